@@ -0,0 +1,33 @@
+package eu.dkitt;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the project, all of them with the allocation profiler
+ * (<code>-prof gc</code>), so that every result reports the bytes allocated per operation
+ * (<code>gc.alloc.rate.norm</code>) next to the time.<br/>
+ * Arguments are JMH command line options, e.g. a regular expression selecting benchmarks:
+ * <pre>
+ * ant -f ant_script.xml bench -Dbench.args="FrameCodec -p size=1024"
+ * </pre>
+ * The JMH jars of the version pinned in the build file are downloaded into <code>lib/jmh</code> by
+ * <code>ant -f ant_script.xml bench-fetch</code>.
+ *
+ * @author dkittrich
+ *
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class);
+		if(cmd.getIncludes().isEmpty())
+			options.include("eu\\.dkitt\\..*Benchmark");
+		new Runner(options.build()).run();
+	}
+
+}
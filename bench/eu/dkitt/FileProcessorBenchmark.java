@@ -0,0 +1,126 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the file paths of {@link FileProcessor} over a directory of <code>files</code> files waiting to be sent:
+ * <ul>
+ * <li>{@link #hasFileToSend()} - claiming the next file from the {@link OutboundQueue} and returning it back.</li>
+ * <li>{@link #reconcile()} - the periodic full scan of the directory, which replaced the scan per
+ * <code>hasFileToSend()</code> call and is the cost that still grows with the directory.</li>
+ * <li>{@link #commitFile()} - writing a received message synchronously into a new file.</li>
+ * </ul>
+ * Write-behind is disabled, so the cost of the calling session is measured.
+ *
+ * @author dkittrich
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileProcessorBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	int files;
+
+	private Path root;
+	private Path outdir;
+	private OutboundQueue queue;
+	private FileProcessor processor;
+	private ByteBuffer message;
+
+	@Setup
+	public void	setup() throws IOException {
+		root = Files.createTempDirectory("bench");
+		Path indir = Files.createDirectory(root.resolve("in"));
+		Files.createDirectory(root.resolve("sent"));
+		outdir = Files.createDirectory(root.resolve("out"));
+		byte [] contents = FrameCodecBenchmark.message(512);
+		for(int i=0; i<files; ++i)
+			Files.write(indir.resolve(String.format("order_%06d.txt", i)), contents);
+
+		Properties properties = new Properties();
+		properties.setProperty(T1.OPTION_DIRECTORY_2_SEND, indir.toString());
+		properties.setProperty(T1.OPTION_FILES_2_SEND_MASK, "*.txt");
+		properties.setProperty(T1.OPTION_DIRBACKUP_2_SEND, root.resolve("sent").toString());
+		properties.setProperty(T1.OPTION_DIRECTORY_RCVD, outdir.toString());
+		properties.setProperty(T1.OPTION_FILES_RCVD_NAME, "msg_received_%08d.txt");
+		properties.setProperty(T1.OPTION_WRITE_BEHIND, "false");
+		processor = new FileProcessor(properties);
+		queue = OutboundQueue.forDirectory(indir, "*.txt", properties);
+		message = ByteBuffer.wrap(FrameCodecBenchmark.message(1024));
+	}
+
+	/**
+	 * Remove messages written by the iteration, so the output directory does not grow without limits.
+	 */
+	@TearDown(Level.Iteration)
+	public void	cleanOutput() throws IOException {
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(outdir, "msg_received_*.txt")) {
+			for(Path file : stream)
+				Files.delete(file);
+		}
+	}
+
+	@TearDown
+	public void	tearDown() throws IOException {
+		processor.close();
+		delete(root);
+	}
+
+	@Benchmark
+	public boolean	hasFileToSend() {
+		boolean bFound = processor.hasFileToSend();
+		// return the file, so every call claims again
+		processor.close();
+		return bFound;
+	}
+
+	@Benchmark
+	public int	reconcile() {
+		queue.reconcile();
+		return queue.size();
+	}
+
+	@Benchmark
+	public void	commitFile() throws IOException {
+		processor.prepareForNextFile();
+		processor.append(message, 0, message.limit());
+		processor.frameCommit(true);
+		processor.commitFile();
+	}
+
+	private static void	delete(Path path) throws IOException {
+		if(Files.isDirectory(path)) {
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for(Path child : stream)
+					delete(child);
+			}
+		}
+		Files.delete(path);
+	}
+
+}
@@ -0,0 +1,134 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the protocol codec:
+ * <ul>
+ * <li>{@link #encode()} - building a frame with its checksum as in <code>Executor.sendOneFrame</code>.</li>
+ * <li>{@link #split(Blackhole)} - cutting a message file into frames of at most 240 bytes as in <code>Executor.transmit</code>.</li>
+ * <li>{@link #decode()} - decoding the frames of a message into a pooled buffer as in <code>Executor.receive</code>.</li>
+ * </ul>
+ * The message is a sequence of ASTM records of <code>size</code> bytes.
+ *
+ * @author dkittrich
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+	@Param({"1024", "65536"})
+	int size;
+
+	private byte [] message;
+	private Path file;
+	/** All frames of the message followed by &lt;EOT&gt;. */
+	private ByteBuffer stream;
+
+	private final FrameEncoder encoder = new FrameEncoder();
+	private final byte [] data = new byte[FrameEncoder.MAX_DATA];
+	private MessageBuffer sink;
+	private FrameDecoder decoder;
+
+	@Setup
+	public void	setup() throws IOException {
+		message = message(size);
+		file = Files.createTempFile("bench", ".txt");
+		Files.write(file, message);
+		for(int i=0; i<data.length; ++i)
+			data[i] = (byte)('A' + i % 26);
+
+		// frames as the sender produces them
+		ByteBuffer frames = ByteBuffer.allocate(message.length * 2 + 1024);
+		FrameEncoder frameEncoder = new FrameEncoder();
+		try(FrameSplitter splitter = new FrameSplitter(file)) {
+			int index = 0;
+			while(splitter.next()) {
+				int len = frameEncoder.encode(splitter.getData(), splitter.getOffset(), splitter.getLength(), ++index, splitter.isTerminal());
+				frames.put(frameEncoder.getFrame(), 0, len);
+			}
+		}
+		frames.put((byte)Executor.EOT);
+		frames.flip();
+		stream = frames;
+
+		sink = new MessageBuffer(BufferPool.shared(new Properties()));
+		decoder = new FrameDecoder(sink);
+	}
+
+	@TearDown
+	public void	tearDown() throws IOException {
+		sink.release();
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public int	encode() {
+		return encoder.encode(data, 0, data.length, 3, false);
+	}
+
+	@Benchmark
+	public int	split(Blackhole bh) throws IOException {
+		int frames = 0;
+		try(FrameSplitter splitter = new FrameSplitter(file)) {
+			while(splitter.next()) {
+				bh.consume(splitter.getData());
+				frames++;
+			}
+		}
+		return frames;
+	}
+
+	@Benchmark
+	public int	decode() {
+		ByteBuffer in = stream.duplicate();
+		sink.release();
+		decoder.reset();
+		int frames = 0;
+		while(in.hasRemaining()) {
+			if(decoder.decode(in) == FrameDecoder.Event.FRAME)
+				frames++;
+		}
+		return frames;
+	}
+
+	/**
+	 * A message of result records.
+	 * @param size	approximate size in bytes
+	 * @return
+	 */
+	static byte []	message(int size) {
+		StringBuilder sb = new StringBuilder(size + 128);
+		sb.append("H|\\^&|||Bench\r");
+		for(int i=1; sb.length() < size; ++i)
+			sb.append("R|").append(i).append("|^^^").append(100 + i % 50).append("|").append(i * 7 % 1000).append(".25|mg/dL||N||F\r");
+		sb.append("L|1\r");
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,75 @@
+package eu.dkitt;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link LogFormatter#format(LogRecord)} - it replaced <code>T1.MyFormatter</code>
+ * and formats every record written to the console and the log file.
+ * <ul>
+ * <li>{@link #format()} - a typical frame record, the cached second is reused.</li>
+ * <li>{@link #formatNewSecond()} - every record is in another second, so the date is formatted again.</li>
+ * <li>{@link #formatParameters()} - a record with parameters.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogFormatterBenchmark {
+
+	private final LogFormatter formatter = new LogFormatter();
+	private LogRecord record;
+	private LogRecord parameters;
+	private long millis;
+
+	@Setup
+	public void	setup() {
+		record = new LogRecord(Level.FINE, "Connection_1: frame 3 received, length : 240");
+		record.setLoggerName(NioSession.class.getName());
+		record.setSourceClassName(NioSession.class.getName());
+		record.setSourceMethodName("onFrameEvent");
+		parameters = new LogRecord(Level.INFO, "{0}: file sent {1}");
+		parameters.setLoggerName(NioSession.class.getName());
+		parameters.setSourceClassName(NioSession.class.getName());
+		parameters.setSourceMethodName("transmitDone");
+		parameters.setParameters(new Object[] {"Connection_1", "order_000001.txt"});
+		millis = record.getMillis();
+	}
+
+	@Benchmark
+	public String	format() {
+		return formatter.format(record);
+	}
+
+	@Benchmark
+	public String	formatNewSecond() {
+		millis += 1000;
+		record.setInstant(Instant.ofEpochMilli(millis));
+		return formatter.format(record);
+	}
+
+	@Benchmark
+	public String	formatParameters() {
+		return formatter.format(parameters);
+	}
+
+}
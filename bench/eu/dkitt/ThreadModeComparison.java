@@ -0,0 +1,164 @@
+package eu.dkitt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Comparison run of the thread modes of the {@link Server}.<br/>
+ * The tool starts the server in-process, opens the given number of idle
+ * instrument connections to it and reports resources spent per connection:
+ * <ul>
+ * <li>heap and resident memory (Linux only),</li>
+ * <li>number of JVM threads,</li>
+ * <li>context switches of all threads of the process during an idle window (Linux only).</li>
+ * </ul>
+ * The tool is compiled with the benchmarks by <code>ant -f ant_script.xml bench-compile</code>, it is not part of <code>server.jar</code>.
+ * Run it once per thread mode, each run in its own JVM:
+ * <pre>
+ * java -cp build/bench eu.dkitt.ThreadModeComparison -threadmode platform -connections 2000
+ * java -cp build/bench eu.dkitt.ThreadModeComparison -threadmode virtual -connections 2000
+ * </pre>
+ *
+ * @author dkittrich
+ *
+ */
+public class ThreadModeComparison {
+
+	public static void main(String[] args) throws Exception {
+		int connections = 1000;
+		int window = 10;
+		int port = 22100;
+		String mode = WorkerThreads.MODE_PLATFORM;
+		for(int i=0; i<args.length; ++i) {
+			switch(args[i]) {
+			case "-connections":
+				connections = Integer.parseInt(args[++i]);
+				break;
+			case "-window":
+				window = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-" + T1.OPTION_THREAD_MODE:
+				mode = args[++i];
+				break;
+			default:
+				System.out.println("Usage: ThreadModeComparison [-threadmode platform|virtual] [-connections <number>] [-window <seconds>] [-port <number>]");
+				return;
+			}
+		}
+
+		Path dir = Files.createTempDirectory("threadmode");
+		Files.createDirectories(dir.resolve("in").resolve("sent"));
+		Files.createDirectories(dir.resolve("out"));
+		Properties properties = new Properties();
+		properties.setProperty(T1.OPTION_PORT, "" + port);
+		properties.setProperty(T1.OPTION_DIRECTORY_2_SEND, dir.resolve("in").toString());
+		properties.setProperty(T1.OPTION_FILES_2_SEND_MASK, "*.txt");
+		properties.setProperty(T1.OPTION_DIRBACKUP_2_SEND, dir.resolve("in").resolve("sent").toString());
+		properties.setProperty(T1.OPTION_DIRECTORY_RCVD, dir.resolve("out").toString());
+		properties.setProperty(T1.OPTION_FILES_RCVD_NAME, "msg_received_%05d.txt");
+		properties.setProperty(T1.OPTION_MAX_CONNECTIONS, "" + (connections + 1));
+		properties.setProperty(T1.OPTION_THREAD_MODE, mode);
+
+		final Server server = new Server(properties);
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.execute();
+				} catch (IOException e) {
+					System.out.println("Server failed: " + e);
+				}
+			}
+		}, "Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(1000);
+
+		Sample before = new Sample();
+		List<Socket> sockets = new ArrayList<Socket>(connections);
+		for(int i=0; i<connections; ++i) {
+			sockets.add(new Socket("localhost", port));
+		}
+		// let the server accept and start all workers
+		Thread.sleep(3000);
+		Sample loaded = new Sample();
+		Thread.sleep(1000L * window);
+		Sample after = new Sample();
+
+		System.out.println("Thread mode           : " + mode + (WorkerThreads.isVirtual(properties) && !WorkerThreads.isVirtualSupported() ? " (not supported - platform threads used)" : ""));
+		System.out.println("Java version          : " + System.getProperty("java.version"));
+		System.out.println("Connections           : " + connections);
+		System.out.println("Threads               : " + before.threads + " -> " + loaded.threads);
+		System.out.println("Heap per connection   : " + (loaded.heap - before.heap) / connections + " B");
+		if(before.rss >= 0)
+			System.out.println("RSS per connection    : " + (loaded.rss - before.rss) / connections + " B");
+		if(before.switches >= 0) {
+			System.out.println("Context switches/s    : " + (after.switches - loaded.switches) / window);
+			System.out.println("  per connection      : " + String.format("%.2f", (double)(after.switches - loaded.switches) / window / connections));
+		}
+
+		for(Socket socket : sockets) {
+			try {socket.close();} catch (IOException e) {}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Resource usage of the process at one moment.
+	 */
+	private static class Sample {
+		final long heap;
+		final long rss;
+		final long switches;
+		final int threads;
+
+		Sample() {
+			System.gc();
+			Runtime rt = Runtime.getRuntime();
+			heap = rt.totalMemory() - rt.freeMemory();
+			rss = 1024 * readStatus(new File("/proc/self/status"), "VmRSS:");
+			threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			long n = -1;
+			File [] tasks = new File("/proc/self/task").listFiles();
+			if(tasks != null) {
+				n = 0;
+				for(File task : tasks) {
+					File status = new File(task, "status");
+					n += Math.max(0, readStatus(status, "voluntary_ctxt_switches:"));
+					n += Math.max(0, readStatus(status, "nonvoluntary_ctxt_switches:"));
+				}
+			}
+			switches = n;
+		}
+
+		/**
+		 * Read a numeric value of a /proc status file.
+		 * @return value or -1 if not available
+		 */
+		private static long readStatus(File file, String key) {
+			try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(line.startsWith(key)) {
+						return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+			}
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,330 @@
+package eu.dkitt;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Received message tokenized into ASTM E1394 records (H, P, O, R, C, Q, L ...), produced by {@link #parse(byte[], int, long)}.<br/>
+ * The message keeps the received bytes in a single array and records are offsets into it:
+ * <ul>
+ * <li>Frame separators (&lt;LF&gt;) are removed in place, so records split into several frames are contiguous.
+ * A line which does not start by a record type and the field delimiter continues the previous record -
+ * stored files end every frame by a line end.</li>
+ * <li>Every record is terminated by &lt;CR&gt;, positions of its field delimiters are stored once.</li>
+ * <li>Repeats and components are located within a field when they are asked for,
+ * strings are created only by the getters - a sink reading a few fields does not pay for the others.</li>
+ * <li>Delimiters are taken from the header record on the first line (<code>H|\^&amp;</code> - field, repeat, component and escape),
+ * a later line starting by <code>H</code> is a record only if the field delimiter follows.
+ * Escape sequences of delimiters (<code>&amp;F&amp; &amp;S&amp; &amp;R&amp; &amp;E&amp;</code>) are decoded.</li>
+ * </ul>
+ * Fields are numbered from 1 for the record type as in the standard, e.g. <code>R.3</code> is the universal test id.
+ * A message is immutable and may be read by several threads.
+ *
+ * @author dkittrich
+ *
+ */
+public class AstmMessage {
+
+	private final byte [] data;
+	private final long received;
+	private final Path location;
+	private final long sequence;
+	private final List<Record> records;
+
+	private byte fieldDelimiter = '|';
+	private byte repeatDelimiter = '\\';
+	private byte componentDelimiter = '^';
+	private byte escapeDelimiter = '&';
+
+	/** Starts of fields of all records. */
+	private int [] marks = new int[64];
+	private int markCount = 0;
+
+	/**
+	 * One record of the message.
+	 */
+	public final class Record {
+		private final int start;
+		private final int end;
+		/** Index of the first field in {@link AstmMessage#marks}. */
+		private final int first;
+		private final int fields;
+
+		private Record(int start, int end, int first, int fields) {
+			this.start = start;
+			this.end = end;
+			this.first = first;
+			this.fields = fields;
+		}
+
+		/**
+		 * Record type - the first character, e.g. 'R'.
+		 * @return
+		 */
+		public char	type() {
+			return (char)(data[start] & 0xFF);
+		}
+
+		/**
+		 * Number of fields including the record type.
+		 * @return
+		 */
+		public int	fieldCount() {
+			return fields;
+		}
+
+		/**
+		 * Whole field with its repeats and components.
+		 * @param field	number of the field from 1
+		 * @return text of the field, empty if the record has less fields
+		 */
+		public String	field(int field) {
+			if(field < 1 || field > fields)
+				return "";
+			// delimiter definition of the header is not escaped
+			if(field == 2 && type() == 'H')
+				return new String(data, fieldStart(field), fieldEnd(field) - fieldStart(field), StandardCharsets.ISO_8859_1);
+			return text(fieldStart(field), fieldEnd(field));
+		}
+
+		/**
+		 * Number of repeats of a field, 0 if the field is empty.
+		 * @param field	number of the field from 1
+		 * @return
+		 */
+		public int	repeats(int field) {
+			if(field < 1 || field > fields || fieldStart(field) == fieldEnd(field))
+				return 0;
+			int n = 1;
+			for(int i=fieldStart(field), e=fieldEnd(field); i<e; ++i) {
+				if(data[i] == repeatDelimiter)
+					n++;
+			}
+			return n;
+		}
+
+		/**
+		 * Component of the first repeat of a field.
+		 * @param field	number of the field from 1
+		 * @param component	number of the component from 1
+		 * @return text of the component, empty if it is not present
+		 */
+		public String	component(int field, int component) {
+			return get(field, 1, component);
+		}
+
+		/**
+		 * Component of a repeat of a field.
+		 * @param field	number of the field from 1
+		 * @param repeat	number of the repeat from 1
+		 * @param component	number of the component from 1
+		 * @return text of the component, empty if it is not present
+		 */
+		public String	get(int field, int repeat, int component) {
+			if(field < 1 || field > fields || repeat < 1 || component < 1)
+				return "";
+			int s = slice(fieldStart(field), fieldEnd(field), repeatDelimiter, repeat);
+			if(s < 0)
+				return "";
+			int e = sliceEnd(s, fieldEnd(field), repeatDelimiter);
+			s = slice(s, e, componentDelimiter, component);
+			if(s < 0)
+				return "";
+			return text(s, sliceEnd(s, e, componentDelimiter));
+		}
+
+		/**
+		 * The record as received without the terminating &lt;CR&gt;.
+		 */
+		@Override
+		public String	toString() {
+			return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+
+		private int	fieldStart(int field) {
+			return marks[first + field - 1];
+		}
+
+		private int	fieldEnd(int field) {
+			return field < fields ? marks[first + field] - 1 : end;
+		}
+	}
+
+	private AstmMessage(byte [] data, long received, Path location, long sequence) {
+		this.data = data;
+		this.received = received;
+		this.location = location;
+		this.sequence = sequence;
+		this.records = new ArrayList<Record>();
+	}
+
+	/**
+	 * Tokenize a received message - frame data each followed by &lt;LF&gt; as copied by {@link MessageBuffer#toRecords()}.
+	 * The array is modified and kept by the message, the caller must not use it afterwards.
+	 * @param data	received bytes
+	 * @param length	number of bytes in the array
+	 * @param received	time of the reception in milliseconds
+	 * @return
+	 */
+	public static AstmMessage	parse(byte [] data, int length, long received) {
+		return parse(data, length, received, null, -1);
+	}
+
+	/**
+	 * Tokenize a stored message.
+	 * @param data	received bytes
+	 * @param length	number of bytes in the array
+	 * @param received	time of the reception in milliseconds
+	 * @param location	file of the message or directory of the segment log
+	 * @param sequence	running counter of the message
+	 * @return
+	 * @see #parse(byte[], int, long)
+	 */
+	public static AstmMessage	parse(byte [] data, int length, long received, Path location, long sequence) {
+		AstmMessage message = new AstmMessage(data, received, location, sequence);
+		int w = 0;
+		int r = 0;
+		int record = -1;
+		while(r < length) {
+			int start = w;
+			// compact the line - drop frame separators up to <CR>
+			while(r < length) {
+				byte c = data[r++];
+				if(c == Executor.CR)
+					break;
+				if(c != Executor.LF)
+					data[w++] = c;
+			}
+			if(w == start || (record >= 0 && !message.isRecordStart(start, w)))
+				continue;
+			if(record >= 0)
+				message.tokenize(record, start);
+			else
+				message.header(start, w);
+			record = start;
+		}
+		if(record >= 0)
+			message.tokenize(record, w);
+		return message;
+	}
+
+	/** Take delimiters of the header on the first line. */
+	private void	header(int start, int end) {
+		if(data[start] == 'H' && end - start >= 5) {
+			fieldDelimiter = data[start + 1];
+			repeatDelimiter = data[start + 2];
+			componentDelimiter = data[start + 3];
+			escapeDelimiter = data[start + 4];
+		}
+	}
+
+	/** Whether a line following the first one starts a record - a continuation of a stored file may start by any text. */
+	private boolean	isRecordStart(int start, int end) {
+		byte c = data[start];
+		return end - start >= 2 && ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) && data[start + 1] == fieldDelimiter;
+	}
+
+	private void	tokenize(int start, int end) {
+		int first = markCount;
+		mark(start);
+		for(int i=start; i<end; ++i) {
+			if(data[i] == fieldDelimiter)
+				mark(i + 1);
+		}
+		records.add(new Record(start, end, first, markCount - first));
+	}
+
+	private void	mark(int position) {
+		if(markCount == marks.length) {
+			int [] grown = new int[marks.length * 2];
+			System.arraycopy(marks, 0, grown, 0, markCount);
+			marks = grown;
+		}
+		marks[markCount++] = position;
+	}
+
+	/** Start of the n-th part of a range separated by the delimiter, -1 if there are less parts. */
+	private int	slice(int start, int end, byte delimiter, int n) {
+		for(int i=start; n > 1; ++i) {
+			if(i >= end)
+				return -1;
+			if(data[i] == delimiter) {
+				n--;
+				start = i + 1;
+			}
+		}
+		return start;
+	}
+
+	private int	sliceEnd(int start, int end, byte delimiter) {
+		for(int i=start; i<end; ++i) {
+			if(data[i] == delimiter)
+				return i;
+		}
+		return end;
+	}
+
+	/** Text of a range with escaped delimiters decoded. */
+	private String	text(int start, int end) {
+		int escape = sliceEnd(start, end, escapeDelimiter);
+		if(escape == end)
+			return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+		StringBuilder sb = new StringBuilder(end - start);
+		for(int i=start; i<end; ++i) {
+			byte c = data[i];
+			if(c == escapeDelimiter && i + 2 < end && data[i + 2] == escapeDelimiter) {
+				byte decoded;
+				switch(data[i + 1]) {
+				case 'F': decoded = fieldDelimiter; break;
+				case 'S': decoded = componentDelimiter; break;
+				case 'R': decoded = repeatDelimiter; break;
+				case 'E': decoded = escapeDelimiter; break;
+				default: decoded = 0;
+				}
+				if(decoded != 0) {
+					sb.append((char)(decoded & 0xFF));
+					i += 2;
+					continue;
+				}
+			}
+			sb.append((char)(c & 0xFF));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Records in the order of reception.
+	 * @return
+	 */
+	public List<Record>	getRecords() {
+		return Collections.unmodifiableList(records);
+	}
+
+	/**
+	 * Time of the reception in milliseconds.
+	 * @return
+	 */
+	public long	getReceived() {
+		return received;
+	}
+
+	/**
+	 * Where the message is stored - its file or the directory of the segment log.
+	 * @return path or null if the message was not stored
+	 */
+	public Path	getLocation() {
+		return location;
+	}
+
+	/**
+	 * Running counter of the message in its output directory - the number in the file name or the segment log sequence.
+	 * @return number or -1 if it is not known
+	 */
+	public long	getSequence() {
+		return sequence;
+	}
+
+}
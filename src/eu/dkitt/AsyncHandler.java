@@ -0,0 +1,208 @@
+package eu.dkitt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler passing records to other handlers by a background writer thread.<br/>
+ * Protocol threads only put a record into a bounded ring buffer,
+ * formatting and writing to the console and the log file is done by the writer:
+ * <ul>
+ * <li>The writer takes all queued records at once and flushes the target handlers
+ * after the batch, not after every record.</li>
+ * <li>The writer polls the buffer every {@link #LINGER} ms, it is woken up earlier only
+ * when the buffer is half full or by a warning, so logging threads do not pay for a wake-up per record.</li>
+ * <li>If the buffer is full, records below {@link Level#WARNING} are dropped
+ * (the number of dropped records is logged later), more severe records wait for space.</li>
+ * <li>The source class and method are resolved by the logging thread before the record is queued.
+ * It walks the stack, which is the largest cost of a log call - {@link T1#OPTION_LOG_SOURCE}
+ * <code>=false</code> omits the method.</li>
+ * <li>{@link #close()} writes all queued records and closes the target handlers.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class AsyncHandler extends Handler implements Runnable {
+
+	/** How often the writer looks for new records. */
+	private static final long LINGER = 50;
+
+	private final Handler [] targets;
+	private final boolean bSource;
+	private final LogRecord [] ring;
+	private final int mask;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	/** Index of the oldest queued record. */
+	private long head = 0;
+	/** Index of the next record to queue. */
+	private long tail = 0;
+	/** The writer is writing a batch. */
+	private boolean bWriting = false;
+	private boolean closed = false;
+	private int dropped = 0;
+
+	private final Thread writer;
+
+	/**
+	 * @param capacity	minimal number of records in the ring buffer, rounded up to a power of two
+	 * @param bSource	resolve the source method of records
+	 * @param targets	handlers doing the output
+	 */
+	AsyncHandler(int capacity, boolean bSource, Handler... targets) {
+		this.bSource = bSource;
+		int size = 16;
+		while(size < capacity)
+			size <<= 1;
+		this.ring = new LogRecord[size];
+		this.mask = size - 1;
+		this.targets = targets;
+		writer = new Thread(this, "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void	publish(LogRecord record) {
+		if(!isLoggable(record))
+			return;
+		if(bSource) {
+			// source is inferred from the stack of the logging thread
+			record.getSourceMethodName();
+		} else {
+			// setting the class stops the inference
+			record.setSourceClassName(record.getLoggerName());
+		}
+		lock.lock();
+		try {
+			if(closed)
+				return;
+			while(tail - head == ring.length) {
+				if(record.getLevel().intValue() < Level.WARNING.intValue()) {
+					dropped++;
+					return;
+				}
+				notFull.awaitUninterruptibly();
+			}
+			ring[(int)(tail & mask)] = record;
+			tail++;
+			// the writer polls, it is woken up only by a filling buffer or a severe record
+			if(tail - head == ring.length / 2 || record.getLevel().intValue() >= Level.WARNING.intValue())
+				notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait (at most a second) until queued records are written and flush the target handlers.
+	 */
+	@Override
+	public void	flush() {
+		lock.lock();
+		try {
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			long left;
+			while((head != tail || bWriting) && (left = end - System.nanoTime()) > 0)
+				drained.awaitNanos(left);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		for(Handler target : targets)
+			target.flush();
+	}
+
+	@Override
+	public void	close() {
+		lock.lock();
+		try {
+			if(closed)
+				return;
+			closed = true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(Handler target : targets)
+			target.close();
+	}
+
+	/**
+	 * Writer thread.
+	 */
+	@Override
+	public void	run() {
+		LogRecord [] batch = new LogRecord[ring.length];
+		while(true) {
+			int n;
+			int lost;
+			lock.lock();
+			try {
+				bWriting = false;
+				if(head == tail)
+					drained.signalAll();
+				while(head == tail && !closed) {
+					try {
+						notEmpty.await(LINGER, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						// only close() stops the writer
+					}
+				}
+				if(head == tail)
+					return;
+				n = 0;
+				while(head != tail) {
+					int i = (int)(head++ & mask);
+					batch[n++] = ring[i];
+					ring[i] = null;
+				}
+				lost = dropped;
+				dropped = 0;
+				bWriting = true;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if(lost > 0) {
+				LogRecord record = new LogRecord(Level.WARNING, lost + " log records dropped - the log queue was full");
+				record.setLoggerName(AsyncHandler.class.getName());
+				record.setSourceClassName(AsyncHandler.class.getName());
+				record.setSourceMethodName("run");
+				write(record);
+			}
+			for(int i=0; i<n; ++i) {
+				write(batch[i]);
+				batch[i] = null;
+			}
+			for(Handler target : targets)
+				target.flush();
+		}
+	}
+
+	private void	write(LogRecord record) {
+		for(Handler target : targets) {
+			try {
+				target.publish(record);
+			} catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package eu.dkitt;
+
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized buffer chunks shared by all sessions of the process.<br/>
+ * Received messages are collected in chains of chunks ({@link MessageBuffer}),
+ * the chunks are returned to the pool when the message was written.
+ * <ul>
+ * <li>{@link T1#OPTION_BUFFER_CHUNK} - size of a chunk in bytes (default 16384).</li>
+ * <li>{@link T1#OPTION_BUFFER_DIRECT} - use direct buffers (default false).</li>
+ * <li>{@link T1#OPTION_BUFFER_POOL_MAX} - maximal number of idle chunks kept in the pool (default 256),
+ * surplus chunks are left to the garbage collector.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class BufferPool {
+
+	private static BufferPool shared = null;
+
+	/**
+	 * Get the pool of the process, it is created on the first call using the given properties.
+	 * @param properties
+	 * @return shared pool
+	 */
+	static synchronized BufferPool shared(Properties properties) {
+		if(shared == null) {
+			shared = new BufferPool(
+					Integer.parseInt(properties.getProperty(T1.OPTION_BUFFER_CHUNK, "16384")),
+					Boolean.parseBoolean(properties.getProperty(T1.OPTION_BUFFER_DIRECT, "false")),
+					Integer.parseInt(properties.getProperty(T1.OPTION_BUFFER_POOL_MAX, "256")));
+		}
+		return shared;
+	}
+
+	private final int chunkSize;
+	private final boolean bDirect;
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	BufferPool(int chunkSize, boolean bDirect, int maxIdle) {
+		this.chunkSize = chunkSize;
+		this.bDirect = bDirect;
+		this.maxIdle = maxIdle;
+	}
+
+	int	getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Take a cleared chunk from the pool or allocate a new one.
+	 * @return
+	 */
+	ByteBuffer	acquire() {
+		ByteBuffer buffer = idle.poll();
+		if(buffer != null) {
+			idleCount.decrementAndGet();
+			return buffer;
+		}
+		return bDirect ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+	}
+
+	/**
+	 * Return a chunk to the pool. The chunk must not be used by the caller anymore.
+	 * @param buffer
+	 */
+	void	release(ByteBuffer buffer) {
+		buffer.clear();
+		if(idleCount.incrementAndGet() <= maxIdle) {
+			idle.offer(buffer);
+		} else {
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Number of idle chunks in the pool.
+	 * @return
+	 */
+	int	getIdleCount() {
+		return idleCount.get();
+	}
+
+}
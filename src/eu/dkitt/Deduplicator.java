@@ -0,0 +1,196 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Index of hashes of messages received into one output directory, used to drop messages
+ * retransmitted by an analyzer which missed the final &lt;ACK&gt; (property {@link T1#OPTION_DEDUP_WINDOW}).<br/>
+ * A message whose hash ({@link MessageBuffer#hash()}) was seen within the window is acknowledged but not written.
+ * <ul>
+ * <li>Hashes are kept in memory in the order of arrival, those older than the window are forgotten,
+ * at most {@link T1#OPTION_DEDUP_ENTRIES} of them are kept.</li>
+ * <li>Every hash is appended to the index file <code>.dedup</code> of the directory, so the window survives a restart.
+ * The file is rewritten when most of its records expired.</li>
+ * <li>A hash is added only after the message was written or handed over to the write-behind stage,
+ * a crash may lose it and a retransmission is written again - it never drops a message which was not stored.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class Deduplicator {
+
+	private static final Logger logger = Logger.getLogger(Deduplicator.class.getName());
+
+	private static final Map<Path, Deduplicator> indexes = new HashMap<Path, Deduplicator>();
+
+	/** Hash and time of arrival. */
+	private static final int RECORD = 16;
+
+	/**
+	 * Get the index of a directory, it is created on the first call.
+	 * @param directory	output directory with the index file
+	 * @param properties	properties with the window
+	 * @return shared index or null if deduplication is disabled
+	 */
+	static synchronized Deduplicator forDirectory(Path directory, Properties properties) {
+		long window = 1000L * Integer.parseInt(properties.getProperty(T1.OPTION_DEDUP_WINDOW, "0"));
+		if(window <= 0)
+			return null;
+		Path dir = directory.toAbsolutePath().normalize();
+		Deduplicator index = indexes.get(dir);
+		if(index == null) {
+			int entries = Math.max(1, Integer.parseInt(properties.getProperty(T1.OPTION_DEDUP_ENTRIES, "65536")));
+			index = new Deduplicator(dir.resolve(".dedup"), window, entries);
+			indexes.put(dir, index);
+		}
+		return index;
+	}
+
+	private final Path store;
+	private final Path storeTmp;
+	private final long window;
+	private final int entries;
+
+	/** Hashes within the window in the order of arrival. */
+	private final LinkedHashMap<Long, Long> seen = new LinkedHashMap<Long, Long>();
+	private FileChannel channel = null;
+	/** Number of records in the index file. */
+	private long records = 0;
+	private boolean bLoaded = false;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+
+	Deduplicator(Path store, long window, int entries) {
+		this.store = store;
+		this.storeTmp = store.resolveSibling(store.getFileName() + ".tmp");
+		this.window = window;
+		this.entries = entries;
+	}
+
+	/**
+	 * Test whether a message with the hash was received within the window.
+	 * @param hash
+	 * @return
+	 */
+	synchronized boolean	contains(long hash) {
+		load();
+		expire(System.currentTimeMillis());
+		return seen.containsKey(hash);
+	}
+
+	/**
+	 * Remember the hash of a stored message.
+	 * @param hash
+	 */
+	synchronized void	add(long hash) {
+		load();
+		long now = System.currentTimeMillis();
+		expire(now);
+		if(seen.containsKey(hash))
+			return;
+		seen.put(hash, now);
+		if(seen.size() > entries) {
+			Iterator<Long> it = seen.keySet().iterator();
+			it.next();
+			it.remove();
+		}
+		try {
+			if(records > 1024 && records > 2L * seen.size())
+				rewrite();
+			if(channel == null)
+				channel = FileChannel.open(store, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			record.clear();
+			record.putLong(hash).putLong(now).flip();
+			while(record.hasRemaining())
+				channel.write(record);
+			records++;
+		} catch (IOException e) {
+			logger.warning("Cannot write index " + store + " - " + e);
+		}
+	}
+
+	private void	expire(long now) {
+		Iterator<Long> it = seen.values().iterator();
+		while(it.hasNext() && it.next() <= now - window)
+			it.remove();
+	}
+
+	/**
+	 * Read the index file, an incomplete last record is ignored.
+	 */
+	private void	load() {
+		if(bLoaded)
+			return;
+		bLoaded = true;
+		byte [] data;
+		try {
+			data = Files.readAllBytes(store);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			logger.warning("Cannot read index " + store + " - duplicates are detected from now on: " + e);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long since = System.currentTimeMillis() - window;
+		while(buffer.remaining() >= RECORD) {
+			long hash = buffer.getLong();
+			long time = buffer.getLong();
+			records++;
+			if(time > since && !seen.containsKey(hash))
+				seen.put(hash, time);
+		}
+		while(seen.size() > entries) {
+			Iterator<Long> it = seen.keySet().iterator();
+			it.next();
+			it.remove();
+		}
+		logger.fine("Index " + store + " holds " + seen.size() + " hashes");
+		try {
+			if(records != seen.size() || buffer.hasRemaining())
+				rewrite();
+		} catch (IOException e) {
+			logger.warning("Cannot rewrite index " + store + " - " + e);
+		}
+	}
+
+	/**
+	 * Replace the index file by hashes within the window.
+	 */
+	private void	rewrite() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+		ByteBuffer data = ByteBuffer.allocate(seen.size() * RECORD);
+		for(Map.Entry<Long, Long> entry : seen.entrySet())
+			data.putLong(entry.getKey()).putLong(entry.getValue());
+		data.flip();
+		try(FileChannel tmp = FileChannel.open(storeTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(data.hasRemaining())
+				tmp.write(data);
+			tmp.force(true);
+		}
+		try {
+			Files.move(storeTmp, store, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(storeTmp, store, StandardCopyOption.REPLACE_EXISTING);
+		}
+		records = seen.size();
+	}
+
+}
@@ -5,9 +5,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.nio.file.InvalidPathException;
 import java.util.Properties;
-import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,35 +17,6 @@ public class Executor {
 	
 	private static final Logger logger = Logger.getLogger(Executor.class.getName());
 	
-	static class MyTimer {
-		long timeout;
-		long timeend;
-		MyTimer(long timeout) {
-			this.timeout = timeout;
-			timeend = System.currentTimeMillis();
-		}
-		/**
-		 * Start the default timeout measurement.
-		 */
-		void	start() {
-			timeend = System.currentTimeMillis() + timeout;
-		}
-		/**
-		 * Start explicit timeout measurement.
-		 * @param millis	milliseconds to wait before a timeout
-		 */
-		void	start(long millis) {
-			timeend = System.currentTimeMillis() + millis;
-		}
-		/**
-		 * Check whether timeout was reached.
-		 * @return true if timeout elapsed
-		 */
-		boolean	tout() {
-			return System.currentTimeMillis() >= timeend; 
-		}
-	}
-
 	static final int ENQ = 5;
 	static final int ACK = 6;
 	static final int NAK = 21;
@@ -56,17 +27,27 @@ public class Executor {
 	static final int EOT = 4;
 	static final int ETB = 23;
 
-	private MyTimer	timerBusy;
-	private MyTimer timerContention;
+	/** End of the busy timer - time of {@link TimerWheel#now()}. */
+	private long busyEnd;
+	/** End of the contention timer - time of {@link TimerWheel#now()}. */
+	private long contentionEnd;
+	private final ProtocolTiming timing;
 	
 	private	boolean bSimulator;
 	private Properties properties;
 	private Socket socket;
+	/** Idle wait for data, a new file or a timer - null if the socket has no channel. */
+	private volatile SocketWaiter waiter;
 	
 	private	InputStream inStream;
 	private	OutputStream outStream;
 	
 	private FileProcessor fileProcessor;
+	private LinkMetrics metrics;
+	
+	private final FrameDecoder frameDecoder;
+	/** Received bytes not consumed yet. */
+	private final ByteBuffer inBuffer = ByteBuffer.allocate(4096);
 	
 	public Socket getSocket() {
 		return socket;
@@ -76,15 +57,16 @@ public class Executor {
 		this.properties = properties;
 		this.socket = socket;
 		this.bSimulator = bSimulator; 
-		timerBusy = new MyTimer(10000);
-		timerContention = new MyTimer(bSimulator?1000:20000);
+		timing = new ProtocolTiming(properties, bSimulator);
+		busyEnd = contentionEnd = TimerWheel.now();
 		fileProcessor = new FileProcessor(properties);
+		frameDecoder = new FrameDecoder(fileProcessor);
+		inBuffer.limit(0);
 	}
 	
 	public void execute() throws IOException {
 		
-		int c;
-		
+		SocketTuning.apply(socket, properties);
 		try {
 		inStream = socket.getInputStream();
 		outStream = socket.getOutputStream();
@@ -93,38 +75,82 @@ public class Executor {
 			throw ex;
 		}
 		
+		String name = (bSimulator ? "Simulator " : "Server ") + socket.getRemoteSocketAddress();
+		WireCapture capture = WireCapture.shared(properties);
+		WireCapture.Session captured = null;
+		if(capture != null) {
+			captured = capture.open(name);
+			inStream = captured.wrap(inStream);
+			outStream = captured.wrap(outStream);
+		}
+		metrics = LinkMetrics.open(properties, name);
+		outStream = metrics.wrap(outStream);
+		if(socket.getChannel() != null) {
+			waiter = new SocketWaiter(socket.getChannel());
+			fileProcessor.addFileListener(waiter.getWakeup());
+		}
+		
+		try {
+			loop();
+		} finally {
+			if(waiter != null) {
+				fileProcessor.removeFileListener(waiter.getWakeup());
+				waiter.close();
+			}
+			fileProcessor.close();
+			if(captured != null)
+				captured.close();
+			metrics.close();
+		}
+	}
+	
+	/**
+	 * Close the socket, the session terminates also if it waits in the idle state.
+	 * The method can be called from any thread.
+	 */
+	public void close() {
+		try {socket.close();} catch (IOException e) {}
+		SocketWaiter w = waiter;
+		if(w != null)
+			w.wakeup();
+	}
+	
+	/**
+	 * Protocol loop of the session - runs until the socket is closed.
+	 * @throws IOException
+	 */
+	private void loop() throws IOException {
+		
+		int c;
+		
 		main_loop:
 		while (true) {
 			/**
 			 * We are idle
 			 */
-			if(logger.isLoggable(Level.INFO)){
-				Handler[] hs = logger.getHandlers();
-				for(Handler h : hs){
-					h.flush();
-				}
-			}
-			
-			if(timerContention.tout() && timerBusy.tout() && fileProcessor.hasFileToSend()){
+			long now = TimerWheel.now();
+			if(now >= contentionEnd && now >= busyEnd && fileProcessor.hasFileToSend()){
 				logger.info("There is a file to transfer - starting establishment phase");
 				logger.finest("writing <ENQ>");
 				outStream.write(ENQ);
-				socket.setSoTimeout(15000);
+				socket.setSoTimeout((int)timing.replyTimeout);
 			  	// keep reading while not getting either a valid byte or a timeout
 				while (true) {
 					try {
-						c = inStream.read();
+						c = read();
 					} catch (SocketTimeoutException ex) {
-						logger.fine("No valid byte received - starting busy timer for 30 seconds");
+						metrics.inc(LinkMetrics.Counter.TIMEOUTS);
+						if(logger.isLoggable(Level.FINE))
+							logger.fine("No valid byte received - starting busy timer for " + timing.busyRetry + " ms");
 						outStream.write(EOT);
 						logger.finest("writing <EOT>");
-						timerBusy.start(30000);
+						busyEnd = TimerWheel.now() + timing.busyRetry;
 						continue main_loop; // stay in idle state
 					}
 					if (c == ACK) {
 						logger.fine("<ACK> received - starting transfer phase (sender)");
 						if( !transmit() ) {
-							timerBusy.start(30000);
+							busyEnd = TimerWheel.now() + timing.busyRetry;
 							logger.fine("Start busy timer");
 						}
 						logger.fine("Going idle");
@@ -132,13 +158,17 @@ public class Executor {
 						continue main_loop; // stay in idle state
 					}
 					if (c == NAK) {
-						logger.fine("<NAK> received - starting busy timer for 10 seconds");
-						timerBusy.start(10000);
+						metrics.inc(LinkMetrics.Counter.NAKS_RECEIVED);
+						if(logger.isLoggable(Level.FINE))
+							logger.fine("<NAK> received - starting busy timer for " + timing.busyNak + " ms");
+						busyEnd = TimerWheel.now() + timing.busyNak;
 						continue main_loop; // stay in idle state
 					}
 					if (c == ENQ) {
-						logger.fine("<ENQ> received - starting contention timer for " + (bSimulator?"1 second":"20 seconds"));
-						timerContention.start();
+						metrics.inc(LinkMetrics.Counter.CONTENTIONS);
+						if(logger.isLoggable(Level.FINE))
+							logger.fine("<ENQ> received - starting contention timer for " + timing.contention + " ms");
+						contentionEnd = TimerWheel.now() + timing.contention;
 						continue main_loop;	// stay in idle state
 					}
 				}
@@ -146,9 +176,10 @@ public class Executor {
 			/**
 			 * We have nothing to send or waiting because of busy or contention
 			 */
-			socket.setSoTimeout(1000);
+			if(!idleWait())
+				continue main_loop; // woken up by a timer or a new file
 			try {
-				c = inStream.read();
+				c = read();
 			} catch (SocketTimeoutException ex) {
 				continue main_loop; // stay in idle state
 			}
@@ -158,12 +189,14 @@ public class Executor {
 					logger.fine("Socket was close - this thread will give up ...");
 					return;
 				}
-				logger.fine("Waiting for <ENQ> - Unexpected byte received : " + c);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine("Waiting for <ENQ> - Unexpected byte received : " + c);
 				continue main_loop;	// ignore - stay in idle state
 			}
 			logger.fine("<ENQ> received");
 			if(bSimulator && fileProcessor.hasFileToSend()){
 				logger.fine("Simulator has file to send - request will be rejected by <NAK>");
+				metrics.inc(LinkMetrics.Counter.NAKS_SENT);
 				outStream.write(NAK);
 				continue main_loop; // stay in idle state
 			}
@@ -177,80 +210,115 @@ public class Executor {
 		
 	}
 
+	/**
+	 * Wait in the idle state until the peer sends something, a new file to send appears
+	 * or a running busy or contention timer ends. A socket without a channel
+	 * is polled every {@link ProtocolTiming#idlePoll} ms instead.
+	 * @return true if the next read does not block
+	 * @throws IOException
+	 */
+	private boolean idleWait() throws IOException {
+		if(inBuffer.hasRemaining())
+			return true;
+		if(waiter == null) {
+			socket.setSoTimeout((int)timing.idlePoll);
+			return true;
+		}
+		long deadline = Math.max(busyEnd, contentionEnd);
+		return waiter.await(deadline > TimerWheel.now() ? deadline : Long.MAX_VALUE);
+	}
+
 	private void receive() throws IOException {
 		
-		int i, c;
-		byte [] bytes = new byte[100000];
-		
-		socket.setSoTimeout(15000);
+		socket.setSoTimeout((int)timing.replyTimeout);
 		
 		fileProcessor.prepareForNextFile();
+		frameDecoder.reset();
 		
 		while(true) {
-			c =inStream.read();
-			if(c == EOT) {
+			if(!inBuffer.hasRemaining() && !fill()) {
+				// socket was closed - there is no remedy - this thread must die !
+				logger.fine("Socket was close - this thread will give up ...");
+				return;
+			}
+			switch(frameDecoder.decode(inBuffer)) {
+			case NONE:
+				break;
+			case EOT:
 				logger.fine("<EOT> received - transfer terminated");
 				logger.fine("Writing a file");
+				long start = System.nanoTime();
 				fileProcessor.commitFile();
+				metrics.time(LinkMetrics.Counter.COMMIT_NANOS, start);
+				metrics.inc(LinkMetrics.Counter.MESSAGES_IN);
 				return;	// end of transmission
-			}
-			if(c != STX) {
-				if(c == -1) {
-				// socket was closed - there is no remedy - this thread must die !
-					logger.fine("Socket was close - this thread will give up ...");
-					return;
-				}
-				logger.fine("Waiting for <STX> - Unexpected byte received : " + c);
-				continue;
-			}
-			logger.fine("<STX> received");
-			c = inStream.read();
-			logger.fine("Frame index received : " + c);
-			i=0;
-			boolean bTerminal;
-			while(true) {
-				c = inStream.read();
-				if(c == -1) {
-					// socket was closed - there is no remedy - this thread must die !
-					logger.fine("Socket was close - this thread will give up ...");
-					return;
-				}
-				if( c != ETB && c != ETX ) {
-					bytes[i++] = (byte)c;
-					logger.finest("byte received : " + c);
-					continue;
-				}
-				bTerminal = c == ETX;
-				logger.fine("End of frame received (" + (bTerminal?"terminal":"continuation") + "): " + c);
+			case MESSAGE:
+				logger.fine("Header record received - writing the previous message of the batch");
+				start = System.nanoTime();
+				fileProcessor.commitFile();
+				metrics.time(LinkMetrics.Counter.COMMIT_NANOS, start);
+				metrics.inc(LinkMetrics.Counter.MESSAGES_IN);
+				break;
+			case FRAME:
+				metrics.inc(LinkMetrics.Counter.FRAMES_IN);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine("Frame " + frameDecoder.getFrameNo() + " received (" + (frameDecoder.isTerminal()?"terminal":"continuation") + "), length : " + frameDecoder.getLength());
+				// hold back the <ACK> while the write-behind queue is full
+				if(!fileProcessor.reserveWrite(WriteBehind.ACK_HOLD_LIMIT))
+					logger.warning("Write-behind queue is full - the message will be written synchronously");
+				outStream.write(ACK);
+				logger.fine("Frame confirmed by <ACK>");
+				break;
+			case DUPLICATE:
+				if(logger.isLoggable(Level.FINE))
+					logger.fine("Repeated frame " + frameDecoder.getFrameNo() + " ignored and confirmed by <ACK>");
+				outStream.write(ACK);
+				break;
+			case BAD_FRAME:
+				logger.info("Invalid frame rejected by <NAK>");
+				metrics.inc(LinkMetrics.Counter.NAKS_SENT);
+				outStream.write(NAK);
 				break;
 			}
-			c = inStream.read();
-			logger.fine("checksumm byte 1 received : " + c);
-			c = inStream.read();
-			logger.fine("checksumm byte 2 received : " + c);
-			c = inStream.read();
-			logger.fine("byte received (cr): " + c);
-			c = inStream.read();
-			logger.fine("byte received (lf): " + c);
-			
-			// TODO: Check correct checksumm and react accordingly
-			
-			logger.fine("Frame contents length : " + i);
-			
-			fileProcessor.addOneFrame(bytes, i);
-			
-			outStream.write(ACK);
-			logger.fine("Frame confirmed by <ACK>");
 		}
 			
 	}
 	
+	/**
+	 * Read one byte - from the input buffer or from the socket if the buffer is empty.
+	 * @return byte or -1 if the socket was closed
+	 * @throws IOException
+	 */
+	private int read() throws IOException {
+		if(!inBuffer.hasRemaining() && !fill())
+			return -1;
+		return inBuffer.get() & 0xFF;
+	}
+	
+	/**
+	 * Refill the empty input buffer by a single socket read.
+	 * @return false if the socket was closed
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		int n = inStream.read(inBuffer.array());
+		if(n < 0)
+			return false;
+		metrics.add(LinkMetrics.Counter.BYTES_IN, n);
+		inBuffer.position(0);
+		inBuffer.limit(n);
+		return true;
+	}
+	
 	/**
 	 * Execute the transmission phase as a sender.
 	 * The method does not care about the phase,
 	 * it is the responsibility of a caller to terminate the transfer phase
 	 * by <EOT> byte.<br/>
-	 * <EOT> must be send regardless of whether transmission succeeded or failed.
+	 * <EOT> must be send regardless of whether transmission succeeded or failed.<br/>
+	 * Further queued files are sent in the same phase up to the limits {@link ProtocolTiming#batchMessages}
+	 * and {@link ProtocolTiming#batchBytes}. Frame numbers continue, the receiver recognizes
+	 * the next message by its header record - a file not starting by one waits for the next phase.
 	 * @return true in success, else it returns false and caller should insert a busy timer
 	 * @throws IOException
 	 */
@@ -259,119 +327,117 @@ public class Executor {
 			logger.fine("There is no file to send - unexpected");
 			return false;
 		}
-		int iStart, nLen, frame_index, nBytes;
-		boolean bTerminalFrame;
-		byte [] bytes;
-		try {
-			nBytes = fileProcessor.readFileData();
-		} catch (InvalidPathException e) {
-			logger.warning("Invalid path - " + e);
-			e.printStackTrace();
-			return false;
-		} catch (InvalidFileContents e) {
-			logger.warning("Invalid file contents - " + e);
-			e.printStackTrace();
-			return false;
-		}
-		logger.fine(" File to send: " + fileProcessor.getFileName());
-		bytes = fileProcessor.getData();
-		/** 
-		 * initialize starting condition
-		 */
-		iStart = 0;
-		nLen = 0;
-		frame_index = 0;
-	main_loop:
+		int frame_index = 0;
+		int messages = 0;
+		long bytes = 0;
 		while(true) {
-			frame_index++;
-			iStart += nLen;
-			while(true) {
-				if(iStart >= nBytes) {
-					break main_loop;
-				}
-				if(bytes[iStart]!=CR && bytes[iStart]!=LF)
-					break;
-				iStart++;
-			}
-			nLen = 1;
-			int i;
-			while(nLen < 240 && (i=iStart + nLen) < nBytes && bytes[i]!=CR && bytes[i]!=LF )
-				nLen++;
-			if(!(bTerminalFrame = (nLen<240))){
-				nLen = 239;
+			OutboundFrames frames;
+			try {
+				frames = fileProcessor.openFileData();
+			} catch (InvalidPathException e) {
+				logger.warning("Invalid path - " + e);
+				e.printStackTrace();
+				return messages > 0;
+			} catch (InvalidFileContents e) {
+				logger.warning("Invalid file contents - " + e);
+				e.printStackTrace();
+				return messages > 0;
+			} catch (IOException e) {
+				logger.warning("Cannot open file " + fileProcessor.getFileName() + " - " + e);
+				fileProcessor.releaseFile();
+				return messages > 0;
 			}
-			if(!sendOneFrame(bytes,iStart,nLen,frame_index,bTerminalFrame)) {
-				return false;
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(" File to send: " + fileProcessor.getFileName());
+			try {
+				if(messages > 0) {
+					int c;
+					try {
+						c = frames.peek();
+					} catch (IOException e) {
+						logger.warning("Cannot read file " + fileProcessor.getFileName() + " - " + e);
+						return true;
+					}
+					if(c != 'H') {
+						logger.fine("File does not start by a header record - it will be sent in the next transfer phase");
+						return true;
+					}
+				}
+				while(true) {
+					try {
+						if(!frames.next())
+							break;
+					} catch (IOException e) {
+						logger.warning("Cannot read file " + fileProcessor.getFileName() + " - " + e);
+						return false;
+					}
+					frame_index++;
+					if(!sendOneFrame(frames, frame_index)) {
+						return false;
+					}
+					bytes += frames.getDataLength();
+				}
+			} finally {
+				frames.close();
 			}
+			logger.fine("File was sent, move it to a backup directory");
+			long start = System.nanoTime();
+			fileProcessor.backupSentFile();
+			metrics.time(LinkMetrics.Counter.BACKUP_NANOS, start);
+			metrics.inc(LinkMetrics.Counter.MESSAGES_OUT);
+			logger.info("File sent " + fileProcessor.getFileName());
+			if(++messages >= timing.batchMessages || bytes >= timing.batchBytes || !fileProcessor.hasFileToSend())
+				return true;
+			logger.fine("Next file is sent in the same transfer phase");
 		}
-		logger.fine("File was sent, move it to a backup directory");
-		fileProcessor.backupSentFile();
-		logger.info("File sent " + fileProcessor.getFileName());
-		return true;
 	}
 	
 	/**
-	 * Send one frame of data.
-	 * The array of bytes must not contain control bytes.
-	 * Number of bytes to write must be less than 240.
-	 * It is assumed that the array of bytes to write does not contain terminal <CR>
-	 * as it will be appended by the method.
-	 * @param data	array of bytes to write
-	 * @param offset	index of the starting byte in the array
-	 * @param len	number of bytes to write - must be in the range <1,239>
+	 * Send the current frame of the file.
+	 * The frame is encoded (or taken from the cache) once,
+	 * retries after &lt;NAK&gt; write the same bytes again.
+	 * @param frames	frames of the file moved to the frame to send
 	 * @param frame_index	index of the frame to send in the range <1,...). Method will calculate % 8.
-	 * @param bLastFrame	frame will be terminated either by <ETX> if true, else <ETB> will be used.
 	 * @return	true if frame was confirmed by the 
 	 * @throws IOException
 	 */
-	private boolean sendOneFrame(byte [] data, int offset, int len, int frame_index, boolean bLastFrame) throws IOException {
+	private boolean sendOneFrame(OutboundFrames frames, int frame_index) throws IOException {
 		
-		int frame_summ;
 		int nRetries = 6;
 		frame_index %= 8; 
+		frames.number(frame_index);
+		byte [] frame = frames.getFrame();
+		int frame_offset = frames.getFrameOffset();
+		int frame_len = frames.getFrameLength();
+		int len = frames.getDataLength();
 		while((nRetries--)>0) {
-			outStream.write(STX);
-			outStream.write(48 + frame_index);
-			outStream.write(data, offset, len);
-			outStream.write(CR);
-			outStream.write(bLastFrame ? ETX : ETB);
-			frame_summ = 48 + frame_index + (bLastFrame ? ETX : ETB) + CR;
-			for(int i=0; i<len; ++i){
-				frame_summ += 0xFF & (data[offset+i]);
-			}
-			int cs1 = (frame_summ & 0xF0)>>4;
-			int cs2 = frame_summ & 0x0F;
-			if(cs1 < 10)
-				cs1 = 48 + cs1;
-			else
-				cs1 = 65 + cs1-10;
-			
-			if(cs2 < 10)
-				cs2 = 48 + cs2;
-			else
-				cs2 = 65 + cs2-10;
-			outStream.write(cs1);
-			outStream.write(cs2);
-			outStream.write(CR);
-			outStream.write(LF);
-			logger.fine("Frame " + frame_index + ": " +len + " bytes sent");
+			if(nRetries < 5)
+				metrics.inc(LinkMetrics.Counter.FRAME_RETRIES);
+			outStream.write(frame, frame_offset, frame_len);
+			metrics.inc(LinkMetrics.Counter.FRAMES_OUT);
+			long sent = System.nanoTime();
+			if(logger.isLoggable(Level.FINE))
+				logger.fine("Frame " + frame_index + ": " +len + " bytes sent");
 			/**
 			 * Waiting for confirmation or until a timeout
 			 */
-			socket.setSoTimeout(15000);
+			socket.setSoTimeout((int)timing.replyTimeout);
 			int c;
 			while (true) {
 				try {
-					c = inStream.read();
+					c = read();
 				} catch (SocketTimeoutException ex) {
+					metrics.inc(LinkMetrics.Counter.TIMEOUTS);
 					logger.warning("No reaction received - timeout");
 					return false;
 				}
 				if (c == ACK || c == EOT) {
-					logger.fine( "Frame accepted by " + (c == ACK ? "<ACK>":"<EOT>"));
+					if(logger.isLoggable(Level.FINE))
+						logger.fine( "Frame accepted by " + (c == ACK ? "<ACK>":"<EOT>") + " after " + (System.nanoTime() - sent) / 1000 + " us");
 					return true;
 				}
 				if (c == NAK) {
+					metrics.inc(LinkMetrics.Counter.NAKS_RECEIVED);
 					logger.info("Frame rejected by <NAK>");
 					break;
 				}
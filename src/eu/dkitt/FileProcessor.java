@@ -1,29 +1,19 @@
 package eu.dkitt;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.FileSystems;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.FileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.EnumSet;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import eu.dkitt.FileProcessor.InvalidFileContents;
@@ -31,116 +21,305 @@ import eu.dkitt.FileProcessor.InvalidFileContents;
 /**
  * Encapsulate File Handling
  * <ul>
- * <li>Test for existence of an input file to send</li>
- * <li>Retrieving contents of an input file as an array of bytes</li>
+ * <li>Claiming an input file to send from the shared {@link OutboundQueue}</li>
+ * <li>Opening an input file for streaming as frames</li>
  * <li>Moving the input file into a backup directory</li>
  * <li>Generating a received data output file name</li>
- * <li>Writing received data into the output file</li>
+ * <li>Collecting received frames decoded by {@link FrameDecoder}</li>
+ * <li>Writing received data into the output file or appending it to a {@link SegmentLog}</li>
+ * <li>Handing the disk work over to the {@link WriteBehind} stage if it is used</li>
+ * <li>Dropping retransmitted messages found in the {@link Deduplicator} index if it is used</li>
+ * <li>Handing stored messages over to the {@link ResultPipeline} to be parsed if it has sinks</li>
  * </ul>
  * 
  * @author dkittrich
  *
  */
-public class FileProcessor implements FileVisitor<Path> {
+public class FileProcessor implements FrameDecoder.Sink {
 	
 	private static final Logger logger = Logger.getLogger(FileProcessor.class.getName());
 	
 	/**
 	 * Infinite running counter of output file name.<br/>
-	 * Must be incremented and saved externally after each new file generated.
+	 * Shared by all processors writing into the same directory.
 	 */ 
-	private int outFileCounter = 1;
+	private final SequenceAllocator outFileCounter;
 	
-	private File outFileCounterStore;
 	/** 
-	 * Buffer for caching frames data to write.<br/>
-	 * We assume that no message will be larger than this buffer.<br/>
-	 * (There is no reallocation of the buffer)
+	 * Buffer for caching received frames data to write.<br/>
+	 * It grows by chunks of a shared pool and holds no memory between messages.
+	 * A committed buffer is handed over to the write-behind stage and replaced by a new one.
 	 */
-	private byte [] outbuf = new byte[100000];
-	/**
-	 * Index into the outbuf where the next frame will be copied.
-	 */
-	private int outbuf_index = 0;
+	private MessageBuffer message;
+	
+	private final BufferPool pool;
+	
+	/** Log of received messages - null if every message is written into its own file. */
+	private final SegmentLog segments;
+	
+	/** Write-behind stage of the process - null if messages are written by the session. */
+	private final WriteBehind writeBehind;
+	
+	/** Index of received messages - null if duplicates are written. */
+	private final Deduplicator dedup;
+	
+	/** Parser of received messages, shared by the process. */
+	private final ResultPipeline results;
+	
+	/** A slot of the write-behind queue is reserved for the message being received. */
+	private boolean bReserved = false;
 	/**
 	 * Before writing a frame into the buffer this method must be called
-	 * in order to clear the next data index.
+	 * in order to clear the buffer.
 	 */
 	public void prepareForNextFile() {
-		outbuf_index = 0;
+		message.release();
 	}
 	/**
-	 * Append one frame to the current contents of the cache buffer.
-	 * @param bytes .. array of bytes to write
-	 * @param N ... number of bytes to write
+	 * Append a part of a received frame to the cache buffer.
+	 * @param src .. buffer with received bytes
+	 * @param offset ... absolute index of the first byte to write
+	 * @param len ... number of bytes to write
 	 */
-	public void	addOneFrame(byte [] bytes, int N){
-		for(int i=0; i<N; ++i) {
-			outbuf[outbuf_index + i] = bytes[i];
-		}
-		outbuf_index += N;
-		outbuf[outbuf_index++] = Executor.LF;
+	@Override
+	public void	append(ByteBuffer src, int offset, int len) {
+		message.append(src, offset, len);
 	}
 	/**
-	 * Generate a new output file name and write current frame cache to it.
+	 * Terminate a valid frame in the cache buffer.
+	 */
+	@Override
+	public void	frameCommit(boolean bTerminal) {
+		message.frameCommit(bTerminal);
+	}
+	/**
+	 * Discard data of an invalid frame.
+	 */
+	@Override
+	public void	frameRollback() {
+		message.frameRollback();
+	}
+	/**
+	 * Discard the last received frame - the sender gave the transfer up before the frame was confirmed by &lt;ACK&gt;,
+	 * it sends the frame again in its next transfer.
+	 * @return true if frames of the message remain and it should be committed
+	 */
+	public	boolean	discardLastFrame() {
+		message.discardLastFrame();
+		if(message.size() > 0)
+			return true;
+		message.release();
+		return false;
+	}
+	/**
+	 * Reserve a slot of the write-behind queue for the message being received, without waiting.
+	 * Frames should not be confirmed before the slot is reserved.
+	 * @return true if the slot is reserved or write-behind is not used
+	 */
+	public	boolean	tryReserveWrite() {
+		if(writeBehind == null || bReserved)
+			return true;
+		return bReserved = writeBehind.tryReserve();
+	}
+	/**
+	 * Reserve a slot of the write-behind queue for the message being received.
+	 * @param millis	maximal time to wait for a free slot
+	 * @return true if the slot is reserved or write-behind is not used
+	 */
+	public	boolean	reserveWrite(long millis) {
+		if(writeBehind == null || bReserved)
+			return true;
+		return bReserved = writeBehind.reserve(millis);
+	}
+	/**
+	 * Disk work taken off the processor by {@link #detachFile(boolean)} or {@link #detachSentFile()}.
+	 * It may be performed by another thread, the processor goes on with the next message or file meanwhile.
+	 */
+	interface Work {
+		void	perform() throws IOException;
+	}
+	/**
+	 * Generate a new output file name and write current frame cache to it.<br/>
+	 * If a slot of the write-behind queue is reserved (or can be reserved)
+	 * the message is handed over and written by the I/O thread,
+	 * otherwise it is written immediately.
+	 * A message received already within the deduplication window is dropped,
+	 * a stored message is parsed by the result pipeline.
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
 	public	void	commitFile() throws FileNotFoundException, IOException {
-		try(BufferedReader freader = new BufferedReader(new  FileReader(outFileCounterStore));) {
-			String str = freader.readLine();
-			str = str.trim();
-			outFileCounter = Integer.parseInt(str);
-		} catch (FileNotFoundException ex){
-			outFileCounter = 1;
+		Work work = detachFile(true);
+		if(work != null)
+			work.perform();
+	}
+	/**
+	 * Take the received message off the processor - performing the returned work is the rest of {@link #commitFile()}.
+	 * The processor collects the next message into a new buffer.
+	 * @param bHandOver	hand the message over to the write-behind stage now if a slot can be reserved,
+	 * false if it has to wait for work of earlier messages
+	 * @return work writing the message or null if the message was dropped or handed over
+	 */
+	Work	detachFile(boolean bHandOver) {
+		long hash = 0;
+		if(dedup != null) {
+			hash = message.hash();
+			if(dedup.contains(hash)) {
+				logger.info("Duplicate message of " + message.size() + " bytes dropped");
+				message.release();
+				if(bReserved) {
+					bReserved = false;
+					writeBehind.cancel();
+				}
+				return null;
+			}
 		}
-		String fileName = String.format(fileRcvdFmt, outFileCounter);
-		Path path = fileRcvd.resolve(fileName);
-		logger.fine("path to write: " + path);
-		try(OutputStream os = new FileOutputStream(path.toFile()) ){
-			os.write(outbuf, 0, outbuf_index);
-			os.close();
-			outFileCounter++;
-			
-			try(FileWriter fw = new FileWriter(outFileCounterStore);) {
-				fw.write(""+outFileCounter);
+		final byte [] data = results.isActive() ? message.toRecords() : null;
+		final long received = System.currentTimeMillis();
+		if(bHandOver && tryReserveWrite() && writeBehind != null) {
+			bReserved = false;
+			handOver(message, hash, data, received);
+			message = new MessageBuffer(pool);
+			return null;
+		}
+		final MessageBuffer detached = message;
+		final long detachedHash = hash;
+		final boolean bDetachedReserved = bReserved;
+		bReserved = false;
+		message = new MessageBuffer(pool);
+		return new Work() {
+			@Override
+			public void perform() throws IOException {
+				if(bDetachedReserved || writeBehind != null && writeBehind.tryReserve())
+					handOver(detached, detachedHash, data, received);
+				else
+					write(detached, detachedHash, data, received);
+			}
+		};
+	}
+	
+	/**
+	 * Hand a message over to the write-behind stage, a slot must be reserved.
+	 */
+	private void	handOver(MessageBuffer message, final long hash, final byte [] data, final long received) {
+		// the location is known when the I/O thread stored the message,
+		// the hash is remembered only then - a message lost by a failed write is not a duplicate
+		WriteBehind.Stored stored = data == null && dedup == null ? null : new WriteBehind.Stored() {
+			@Override
+			public void stored(Path location, long sequence) {
+				FileProcessor.this.stored(hash, data, received, location, sequence);
+			}
+		};
+		if(segments != null)
+			writeBehind.append(message, segments, stored);
+		else
+			writeBehind.write(message, fileRcvd, fileRcvdFmt, outFileCounter, stored);
+	}
+	
+	/**
+	 * Write a message by the calling thread and release it.
+	 */
+	private void	write(MessageBuffer message, long hash, byte [] data, long received) throws IOException {
+		try {
+			if(segments != null) {
+				long seq = segments.append(message);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine("message " + seq + " appended to the segment log");
+				if(writeBehind != null && writeBehind.isSyncing())
+					segments.force();
+				stored(hash, data, received, segments.getDirectory(), seq);
+				return;
 			}
+			while(true) {
+				long seq = outFileCounter.next();
+				String fileName = String.format(fileRcvdFmt, seq);
+				Path path = fileRcvd.resolve(fileName);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine("path to write: " + path);
+				try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) ){
+					message.writeTo(channel);
+					if(writeBehind != null && writeBehind.isSyncing())
+						channel.force(true);
+				} catch (FileAlreadyExistsException ex) {
+					// counter file was lost or restored from an older state - never overwrite
+					logger.warning("File " + path + " already exists - counter skipped");
+					continue;
+				}
+				stored(hash, data, received, path, seq);
+				return;
+			}
+		} finally {
+			message.release();
 		}
 	}
 	
+	private void	stored(long hash, byte [] data, long received, Path location, long sequence) {
+		if(dedup != null)
+			dedup.add(hash);
+		if(data != null)
+			results.submit(data, data.length, received, location, sequence);
+	}
+	
 	/**
-	 * Read data of a file to sent into a cache.
-	 * We never read/write at the same time.
-	 * We use the same cache both for reading and for writing files.
-	 * @return	number of bytes read
-	 * @throws IOException  - error while reading - do not try again
+	 * Open wire frames of the file to send.
+	 * Frames of a file which was opened before and not sent are taken from the {@link FrameCache},
+	 * large files are not read into memory, frames are produced while the file is read.
+	 * The caller must close the returned frames.
+	 * @return	frames of the file
+	 * @throws IOException  - error while opening - do not try again
 	 * @throws FileNotFoundException - should not happen
 	 * @throws InvalidFileContents - do not try again
 	 */
-	public int	readFileData() throws InvalidPathException, FileNotFoundException, IOException, InvalidFileContents {
+	public OutboundFrames	openFileData() throws InvalidPathException, FileNotFoundException, IOException, InvalidFileContents {
 		if(file==null) {
 			throw new FileNotFoundException("Not file name specified.");
 		}
-		logger.fine("path to read: " + file);
-		int n = -1;
-		try(InputStream istream = new FileInputStream(file.toFile())){
-			n = istream.read(outbuf);
-		}
-		if(n<=0)
+		if(logger.isLoggable(Level.FINE))
+			logger.fine("path to read: " + file);
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		if(attributes.size() <= 0) {
 			throw new InvalidFileContents();
-		return n;
+		}
+		return frameCache.open(file, attributes);
 	}
+
 	/**
-	 * Retrieve read data after a successful readFileData().
-	 * @return
+	 * Move the sent file into the backup directory - by the write-behind I/O thread if it is used.
+	 * The file stays claimed in the queue until it is moved.
+	 * @throws IOException
 	 */
-	public byte[] getData() {
-		return outbuf;
+	public void backupSentFile() throws IOException {
+		Work work = detachSentFile();
+		if(work != null)
+			work.perform();
 	}
 
-	public void backupSentFile() throws IOException {
-		String fileName = file.toFile().getName();
-		Files.move(file,fileBackup.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+	/**
+	 * Take the sent file off the processor - performing the returned work is the rest of {@link #backupSentFile()}.
+	 * A file which can not be moved is released to be sent again.
+	 * @return work moving the file or null if it was handed over to the write-behind stage
+	 */
+	Work	detachSentFile() {
+		final Path source = file;
+		final Path target = fileBackup.resolve(file.toFile().getName());
+		bClaimed = false;
+		frameCache.remove(file);
+		if(writeBehind != null) {
+			writeBehind.move(source, target, queue);
+			return null;
+		}
+		return new Work() {
+			@Override
+			public void perform() throws IOException {
+				try {
+					Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					queue.release(source);
+					throw e;
+				}
+				queue.done(source);
+			}
+		};
 	}
 	
 	@SuppressWarnings("serial")
@@ -156,14 +335,14 @@ public class FileProcessor implements FileVisitor<Path> {
 	/** Path of a file to send.*/
 	private Path file = null;
 	
-	/** opts parameter to the search algoritgh */
-	EnumSet<FileVisitOption> opts;
+	/** The file was claimed from the queue and not sent yet. */
+	private boolean bClaimed = false;
 	
-	/** Directory to be searched for files to send */
-	private final Path fileStart;
+	/** Queue of files to send shared by all processors of the same directory */
+	private final OutboundQueue queue;
 	
-	/** Search mask for files to send - should be as restrictive as possible */
-	private final PathMatcher matcher;
+	/** Encoded frames of files not sent yet. */
+	private final FrameCache frameCache;
 	
 	/** Directory where to move sent files */
 	private final Path fileBackup;
@@ -177,26 +356,6 @@ public class FileProcessor implements FileVisitor<Path> {
 	 */
 	private final String fileRcvdFmt;
 	
-	/**
-	 * Callback of a tree walker routine.
-	 * The filename is processed by a matcher.
-	 * The first file found will be registered and the walker routine
-	 * will be terminated.
-	 * @param file	path to test
-	 * @param attr	attributes of a provided file parameter
-	 * @return TERMINATE when the first file that match was detected, CONTINUE otherwise
-	 */
-	public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
-		if (attr.isRegularFile()) {
-			Path name = file.getFileName();
-			if(matcher.matches(name)){
-				this.file = file;
-				return FileVisitResult.TERMINATE;
-			}
-		}
-		return FileVisitResult.CONTINUE;
-	}
-	
 	/**
 	 * Constructor store a reference to properties.
 	 * It also ananlyzes properties and resolves relevant options:
@@ -213,73 +372,100 @@ public class FileProcessor implements FileVisitor<Path> {
 		String directory;
 		String mask;
 		this.properties = properties;
-		opts = EnumSet.noneOf(FileVisitOption.class);
 		directory = this.properties.getProperty(T1.OPTION_DIRECTORY_2_SEND);
-		fileStart = Paths.get(directory);
 		mask = this.properties.getProperty(T1.OPTION_FILES_2_SEND_MASK);
-		matcher = FileSystems.getDefault().getPathMatcher("glob:" + mask);
+		queue = OutboundQueue.forDirectory(Paths.get(directory), mask, properties);
 		directory = this.properties.getProperty(T1.OPTION_DIRBACKUP_2_SEND);
 		fileBackup = Paths.get(directory);
 		directory = this.properties.getProperty(T1.OPTION_DIRECTORY_RCVD);
 		fileRcvd = Paths.get(directory);
-		outFileCounterStore = fileRcvd.resolve(".counter").toFile();
+		outFileCounter = SequenceAllocator.forDirectory(fileRcvd, properties);
 		fileRcvdFmt = this.properties.getProperty(T1.OPTION_FILES_RCVD_NAME);
+		pool = BufferPool.shared(properties);
+		message = new MessageBuffer(pool);
+		writeBehind = WriteBehind.shared(properties);
+		frameCache = FrameCache.shared(properties);
+		segments = "segments".equals(properties.getProperty(T1.OPTION_OUTPUT, "files")) ? SegmentLog.forDirectory(fileRcvd, properties) : null;
+		dedup = Deduplicator.forDirectory(fileRcvd, properties);
+		results = ResultPipeline.shared(properties);
 	}
 	
 	/**
-	 * Initiates a file search tree walk.
+	 * Claims the next file from the outbound queue.
 	 * Will return true if a file was found.
-	 * The file path will be stored in an instance member file.
+	 * The file path will be stored in an instance member file
+	 * and it stays claimed by this processor until it is sent or {@link #close()} is called.
+	 * A file whose lease was lost to another server is dropped and the next one is claimed.
 	 * @return true if found
 	 */
 	public	boolean	hasFileToSend() {
-		file = null;
-		try {
-			Files.walkFileTree(fileStart, opts, 1, this);
-		} catch (IOException e) {
-			file = null;
+		if(bClaimed) {
+			if(queue.holds(file))
+				return true;
+			logger.info("File " + file + " is not claimed anymore");
+			bClaimed = false;
+			frameCache.remove(file);
 		}
-		return file != null;
+		file = queue.claim();
+		bClaimed = file != null;
+		return bClaimed;
 	}
 	
 	/**
-	 * Returns a path when a file was found.
-	 * @return file path of detected input file.
+	 * Give up the claimed file after it could not be opened - it is queued again if it still exists,
+	 * e.g. a file taken by another process is dropped.
 	 */
-	public Path getFile() {
-		return file;
+	public	void	releaseFile() {
+		if(bClaimed) {
+			bClaimed = false;
+			frameCache.remove(file);
+			queue.release(file);
+		}
 	}
 	
 	/**
-	 * Return file name component of the file.
-	 * @return
+	 * Release buffers and a reserved write slot and return a claimed but unsent file back to the queue.
+	 * Must be called when the session using this processor terminates.
 	 */
-	public String getFileName() {
-		return file.toFile().getName();
+	public	void	close() {
+		message.release();
+		if(bReserved) {
+			bReserved = false;
+			writeBehind.cancel();
+		}
+		if(bClaimed) {
+			bClaimed = false;
+			queue.release(file);
+		}
 	}
-
+	
 	/**
-	 * Ignored - we use only a single directory level.
+	 * Register a listener called when a new file to send appears.
+	 * The listener is called by a watcher thread.
+	 * @param listener
 	 */
-	@Override
-	public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-		return FileVisitResult.CONTINUE;
+	public	void	addFileListener(Runnable listener) {
+		queue.addListener(listener);
 	}
-
+	
+	public	void	removeFileListener(Runnable listener) {
+		queue.removeListener(listener);
+	}
+	
 	/**
-	 * Ignored - we use only a single directory level.
+	 * Returns a path when a file was found.
+	 * @return file path of detected input file.
 	 */
-	@Override
-	public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-		return FileVisitResult.CONTINUE;
+	public Path getFile() {
+		return file;
 	}
-
+	
 	/**
-	 * Ignored - we skip any failures.
+	 * Return file name component of the file.
+	 * @return
 	 */
-	@Override
-	public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-		return FileVisitResult.CONTINUE;
+	public String getFileName() {
+		return file.toFile().getName();
 	}
 	
 }
@@ -0,0 +1,161 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of files to send encoded into their wire frames, shared by all sessions of the process
+ * (see {@link #shared(Properties)}).<br/>
+ * A file is split and encoded once - frames with checksums and trailers are kept in a single array,
+ * so a later attempt after a busy timer or a contention is a plain write of the cached frames.
+ * <ul>
+ * <li>An entry is valid for the path, size and modification time of the file, a changed file is encoded again.</li>
+ * <li>The cache holds at most {@link T1#OPTION_FRAME_CACHE} bytes, the least recently used entries are evicted.
+ * 0 disables the cache.</li>
+ * <li>Files larger than 1/8 of the cache are not cached, they are streamed by a {@link FrameSplitter}
+ * with a constant memory footprint.</li>
+ * <li>The entry of a sent file is removed ({@link #remove(Path)}).</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class FrameCache {
+
+	private static final Logger logger = Logger.getLogger(FrameCache.class.getName());
+
+	private static FrameCache shared = null;
+
+	/**
+	 * Get the cache of the process, created by the first call.
+	 * @param properties	properties with the size of the cache
+	 * @return
+	 */
+	static synchronized FrameCache shared(Properties properties) {
+		if(shared == null)
+			shared = new FrameCache(Long.parseLong(properties.getProperty(T1.OPTION_FRAME_CACHE, "4194304")));
+		return shared;
+	}
+
+	/**
+	 * A file encoded into frames numbered from 1 - never modified after it was built.
+	 */
+	static final class Message {
+		final long size;
+		final long modified;
+		/** All frames one after another. */
+		final byte [] wire;
+		/** Start of every frame in {@link #wire} and its end as the last element. */
+		final int [] starts;
+
+		Message(long size, long modified, byte [] wire, int [] starts) {
+			this.size = size;
+			this.modified = modified;
+			this.wire = wire;
+			this.starts = starts;
+		}
+
+		int	frames() {
+			return starts.length - 1;
+		}
+	}
+
+	private final long capacity;
+	private long used = 0;
+	private final LinkedHashMap<Path, Message> entries = new LinkedHashMap<Path, Message>(16, 0.75f, true);
+
+	FrameCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Frames of the file to send - from the cache, encoded now or streamed if the file is too large.
+	 * The caller must close the returned frames.
+	 * @param file
+	 * @param attributes	attributes of the file read by the caller
+	 * @return
+	 * @throws IOException - error while reading the file
+	 */
+	OutboundFrames	open(Path file, BasicFileAttributes attributes) throws IOException {
+		long size = attributes.size();
+		if(size > capacity / 8)
+			return new OutboundFrames(new FrameSplitter(file));
+		long modified = attributes.lastModifiedTime().toMillis();
+		Message message;
+		synchronized (this) {
+			message = entries.get(file);
+			if(message != null && (message.size != size || message.modified != modified)) {
+				evict(file);
+				message = null;
+			}
+		}
+		if(message == null) {
+			message = encode(file, size, modified);
+			put(file, message);
+		} else if(logger.isLoggable(Level.FINE)) {
+			logger.fine("Frames of " + file + " taken from the cache");
+		}
+		return new OutboundFrames(message);
+	}
+
+	/**
+	 * Forget the file - it was sent.
+	 * @param file
+	 */
+	synchronized void	remove(Path file) {
+		evict(file);
+	}
+
+	private synchronized void	put(Path file, Message message) {
+		evict(file);
+		entries.put(file, message);
+		used += message.wire.length;
+		Iterator<Map.Entry<Path, Message>> it = entries.entrySet().iterator();
+		while(used > capacity && it.hasNext()) {
+			Message eldest = it.next().getValue();
+			it.remove();
+			used -= eldest.wire.length;
+		}
+	}
+
+	private void	evict(Path file) {
+		Message message = entries.remove(file);
+		if(message != null)
+			used -= message.wire.length;
+	}
+
+	/**
+	 * Split and encode the whole file.
+	 */
+	private static Message	encode(Path file, long size, long modified) throws IOException {
+		FrameEncoder encoder = new FrameEncoder();
+		// every frame adds its overhead, lines shorter than a frame add more frames
+		byte [] wire = new byte[(int)Math.min(Integer.MAX_VALUE - 8, size + size / 8 + 64)];
+		int [] starts = new int[16];
+		int length = 0;
+		int frames = 0;
+		try(FrameSplitter splitter = new FrameSplitter(file)) {
+			while(splitter.next()) {
+				int len = encoder.encode(splitter.getData(), splitter.getOffset(), splitter.getLength(), frames + 1, splitter.isTerminal());
+				if(length + len > wire.length)
+					wire = Arrays.copyOf(wire, Math.max(wire.length * 2, length + len));
+				System.arraycopy(encoder.getFrame(), 0, wire, length, len);
+				if(frames + 1 >= starts.length)
+					starts = Arrays.copyOf(starts, starts.length * 2);
+				starts[frames++] = length;
+				length += len;
+			}
+		}
+		starts[frames] = length;
+		return new Message(size, modified, Arrays.copyOf(wire, length), Arrays.copyOf(starts, frames + 1));
+	}
+
+}
@@ -0,0 +1,280 @@
+package eu.dkitt;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Incremental decoder of received ASI frames.<br/>
+ * Bytes are pushed in chunks of any size by {@link #decode(ByteBuffer)}, the decoder
+ * keeps its state between calls, so it can be used both by the blocking {@link Executor}
+ * and by the non-blocking {@link NioSession}.
+ * Frame data are passed directly from the chunk to a {@link Sink}, the decoder
+ * itself does not copy nor allocate anything.
+ * <ul>
+ * <li>The checksum of every frame is verified.</li>
+ * <li>The frame number must follow the previous accepted frame (the first one is 1).</li>
+ * <li>A repeated last frame (our &lt;ACK&gt; was lost) is reported as a duplicate and discarded.</li>
+ * <li>A header record (a line starting by <code>H</code>) following complete lines ends the message
+ * received so far - a batched transfer phase carries several messages, see {@link Event#MESSAGE}.</li>
+ * </ul>
+ * The caller answers {@link Event#FRAME} and {@link Event#DUPLICATE} by &lt;ACK&gt;
+ * and {@link Event#BAD_FRAME} by &lt;NAK&gt;.
+ *
+ * @author dkittrich
+ *
+ */
+class FrameDecoder {
+
+	private static final Logger logger = Logger.getLogger(FrameDecoder.class.getName());
+
+	/**
+	 * Receiver of frame data.
+	 * Data of a frame are appended in one or more pieces, then the frame is either
+	 * committed or rolled back to the state after the previous commit.
+	 */
+	interface Sink {
+		/**
+		 * Append bytes of a frame.
+		 * @param src	buffer with data - its position and limit must not be changed
+		 * @param offset	absolute index of the first byte in the buffer
+		 * @param len	number of bytes to append
+		 */
+		void	append(ByteBuffer src, int offset, int len);
+		/**
+		 * The frame appended since the last commit is valid.
+		 * @param bTerminal	the frame ends a line (&lt;ETX&gt;), else the line continues in the next frame (&lt;ETB&gt;)
+		 */
+		void	frameCommit(boolean bTerminal);
+		/**
+		 * Discard data appended since the last commit.
+		 */
+		void	frameRollback();
+	}
+
+	enum Event {
+		/** All bytes consumed, frame is not complete yet. */
+		NONE,
+		/** A valid frame was received. */
+		FRAME,
+		/** A valid repetition of the last frame was received and discarded. */
+		DUPLICATE,
+		/** A frame with wrong checksum, frame number or trailer was received and discarded. */
+		BAD_FRAME,
+		/** &lt;EOT&gt; was received - end of the transfer phase. */
+		EOT,
+		/**
+		 * The next frame starts a new message, the frames accepted so far are a complete message.
+		 * Nothing of the new frame is consumed yet.
+		 */
+		MESSAGE
+	}
+
+	/** Record type of the header record starting every message. */
+	private static final int HEADER_RECORD = 'H';
+
+	/** Longest accepted data part - protection against a stream without frame ends. */
+	static final int MAX_FRAME_DATA = 65536;
+
+	private static final int WAIT_STX = 0;
+	private static final int FRAME_NO = 1;
+	private static final int DATA = 2;
+	private static final int CHECKSUM_1 = 3;
+	private static final int CHECKSUM_2 = 4;
+	private static final int TRAILER_CR = 5;
+	private static final int TRAILER_LF = 6;
+
+	private final Sink sink;
+
+	private int state = WAIT_STX;
+	/** Frame number (0-7) of the last accepted frame. */
+	private int lastFrameNo;
+	/** Whether any frame was accepted in the current transfer phase. */
+	private boolean bAccepted;
+	/** Whether the last accepted frame ended a line. */
+	private boolean bLineEnd;
+	/** Whether frames were accepted since the start of the current message. */
+	private boolean bMessageData;
+	/** The data of the current frame may start a new message. */
+	private boolean bCheckHeader;
+	private int frameNo;
+	private int summ;
+	private int checksum;
+	private int length;
+	private boolean bTerminal;
+	private boolean bValid;
+
+	FrameDecoder(Sink sink) {
+		this.sink = sink;
+		reset();
+	}
+
+	/**
+	 * Prepare for a new transfer phase - the next frame must have number 1.
+	 */
+	void	reset() {
+		state = WAIT_STX;
+		lastFrameNo = 0;
+		bAccepted = false;
+		bLineEnd = false;
+		bMessageData = false;
+		bCheckHeader = false;
+	}
+
+	/**
+	 * Frame number of the last reported frame.
+	 * @return
+	 */
+	int	getFrameNo() {
+		return frameNo;
+	}
+
+	/**
+	 * Number of data bytes of the last reported frame.
+	 * @return
+	 */
+	int	getLength() {
+		return length;
+	}
+
+	/**
+	 * Whether the last reported frame was terminated by &lt;ETX&gt;.
+	 * @return
+	 */
+	boolean	isTerminal() {
+		return bTerminal;
+	}
+
+	/**
+	 * Consume bytes from the buffer until an event occurs or the buffer is empty.
+	 * Bytes following the event stay in the buffer.
+	 * @param in	received bytes between position and limit
+	 * @return event or {@link Event#NONE} if all bytes were consumed
+	 */
+	Event	decode(ByteBuffer in) {
+		while(in.hasRemaining()) {
+			if(state == DATA) {
+				if(bCheckHeader) {
+					bCheckHeader = false;
+					if((in.get(in.position()) & 0xFF) == HEADER_RECORD) {
+						bMessageData = false;
+						return Event.MESSAGE;
+					}
+				}
+				int start = in.position();
+				int end = in.limit();
+				int i = start;
+				int s = summ;
+				int c = 0;
+				while(i < end) {
+					c = in.get(i) & 0xFF;
+					if(c == Executor.ETX || c == Executor.ETB || c == Executor.STX)
+						break;
+					s += c;
+					i++;
+				}
+				int n = i - start;
+				if(n > 0) {
+					if(length + n > MAX_FRAME_DATA) {
+						logger.warning("Frame too long - discarded");
+						sink.frameRollback();
+						in.position(i);
+						state = WAIT_STX;
+						return Event.BAD_FRAME;
+					}
+					sink.append(in, start, n);
+					length += n;
+					summ = s;
+				}
+				in.position(i);
+				if(i == end)
+					return Event.NONE;
+				in.get();
+				if(c == Executor.STX) {
+					logger.fine("<STX> inside of a frame - frame restarted");
+					sink.frameRollback();
+					state = FRAME_NO;
+					continue;
+				}
+				bTerminal = c == Executor.ETX;
+				summ += c;
+				state = CHECKSUM_1;
+				continue;
+			}
+			int c = in.get() & 0xFF;
+			switch(state) {
+			case WAIT_STX:
+				if(c == Executor.STX) {
+					state = FRAME_NO;
+				} else if(c == Executor.EOT) {
+					return Event.EOT;
+				} else if(logger.isLoggable(Level.FINE)) {
+					logger.fine("Waiting for <STX> - Unexpected byte received : " + c);
+				}
+				break;
+			case FRAME_NO:
+				frameNo = c - 48;
+				summ = c;
+				length = 0;
+				state = DATA;
+				bCheckHeader = bMessageData && bLineEnd && frameNo == (lastFrameNo + 1) % 8;
+				break;
+			case CHECKSUM_1:
+				checksum = hexValue(c) << 4;
+				state = CHECKSUM_2;
+				break;
+			case CHECKSUM_2:
+				checksum |= hexValue(c);
+				state = TRAILER_CR;
+				break;
+			case TRAILER_CR:
+				bValid = c == Executor.CR;
+				state = TRAILER_LF;
+				break;
+			case TRAILER_LF:
+				state = WAIT_STX;
+				return frameEnd(c == Executor.LF && bValid);
+			}
+		}
+		return Event.NONE;
+	}
+
+	private Event	frameEnd(boolean bTrailerValid) {
+		if(!bTrailerValid || checksum != (summ & 0xFF)) {
+			if(logger.isLoggable(Level.FINE))
+				logger.fine("Frame " + frameNo + " rejected - " + (bTrailerValid ? "checksum " + Integer.toHexString(checksum) + " expected " + Integer.toHexString(summ & 0xFF) : "invalid trailer"));
+			sink.frameRollback();
+			return Event.BAD_FRAME;
+		}
+		if(frameNo == (lastFrameNo + 1) % 8) {
+			lastFrameNo = frameNo;
+			bAccepted = true;
+			bLineEnd = bTerminal;
+			bMessageData = true;
+			sink.frameCommit(bTerminal);
+			return Event.FRAME;
+		}
+		if(bAccepted && frameNo == lastFrameNo) {
+			sink.frameRollback();
+			return Event.DUPLICATE;
+		}
+		if(logger.isLoggable(Level.FINE))
+			logger.fine("Frame " + frameNo + " rejected - expected frame number " + (lastFrameNo + 1) % 8);
+		sink.frameRollback();
+		return Event.BAD_FRAME;
+	}
+
+	/**
+	 * Value of a hexadecimal digit, invalid digits give a value which never matches a checksum.
+	 */
+	private static int	hexValue(int c) {
+		if(c >= '0' && c <= '9')
+			return c - '0';
+		if(c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		if(c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return 0x100;
+	}
+
+}
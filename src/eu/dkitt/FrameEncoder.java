@@ -0,0 +1,81 @@
+package eu.dkitt;
+
+/**
+ * Builds complete ASI frames in a reusable buffer.<br/>
+ * The frame has the layout
+ * &lt;STX&gt; FN data &lt;CR&gt; &lt;ETX|ETB&gt; C1 C2 &lt;CR&gt; &lt;LF&gt;,
+ * so that it can be written to a socket by a single write call.
+ * An instance is not thread safe - every session uses its own.
+ *
+ * @author dkittrich
+ *
+ */
+class FrameEncoder {
+
+	/** Longest data part of a frame. */
+	static final int MAX_DATA = 240;
+	/** Number of bytes a frame adds to its data part. */
+	static final int OVERHEAD = 8;
+
+	private byte [] frame = new byte[MAX_DATA + OVERHEAD];
+	private int length = 0;
+
+	/**
+	 * Encode one frame into the internal buffer.
+	 * @param data	array of bytes to write
+	 * @param offset	index of the starting byte in the array
+	 * @param len	number of bytes to write
+	 * @param frame_index	index of the frame in the range &lt;1,...). Method will calculate % 8.
+	 * @param bLastFrame	frame will be terminated either by &lt;ETX&gt; if true, else &lt;ETB&gt; will be used.
+	 * @return	length of the encoded frame
+	 */
+	int	encode(byte [] data, int offset, int len, int frame_index, boolean bLastFrame) {
+		if(frame.length < len + OVERHEAD)
+			frame = new byte[len + OVERHEAD];
+		int fn = 48 + frame_index % 8;
+		int end = bLastFrame ? Executor.ETX : Executor.ETB;
+		int frame_summ = fn + Executor.CR + end;
+		int j = 0;
+		frame[j++] = Executor.STX;
+		frame[j++] = (byte)fn;
+		for(int i=0; i<len; ++i){
+			byte b = data[offset+i];
+			frame_summ += 0xFF & b;
+			frame[j++] = b;
+		}
+		frame[j++] = Executor.CR;
+		frame[j++] = (byte)end;
+		frame[j++] = (byte)hexDigit((frame_summ & 0xF0)>>4);
+		frame[j++] = (byte)hexDigit(frame_summ & 0x0F);
+		frame[j++] = Executor.CR;
+		frame[j++] = Executor.LF;
+		length = j;
+		return length;
+	}
+
+	/**
+	 * Buffer with the last encoded frame.
+	 * @return
+	 */
+	byte []	getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Length of the last encoded frame.
+	 * @return
+	 */
+	int	getLength() {
+		return length;
+	}
+
+	/**
+	 * Upper case hexadecimal digit as used in frame checksums.
+	 * @param n	value in the range &lt;0,15&gt;
+	 * @return ASCII code of the digit
+	 */
+	static int	hexDigit(int n) {
+		return n < 10 ? 48 + n : 65 + n - 10;
+	}
+
+}
@@ -0,0 +1,142 @@
+package eu.dkitt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Splits a file to send into frame data while the file is being read.<br/>
+ * Only a small window of the file is held in memory, so files of any size
+ * are sent with the same memory footprint.
+ * <ul>
+ * <li>Every line (terminated by &lt;CR&gt; and/or &lt;LF&gt;) starts a new frame, line terminators are not sent.</li>
+ * <li>Lines shorter than 240 bytes are sent as a single terminal frame.</li>
+ * <li>Longer lines are split into continuation frames of 239 bytes.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * while(splitter.next())
+ *     send(splitter.getData(), splitter.getOffset(), splitter.getLength(), splitter.isTerminal());
+ * </pre>
+ *
+ * @author dkittrich
+ *
+ */
+class FrameSplitter implements Closeable {
+
+	/** Size of the window into the file - must be larger than the longest frame. */
+	private static final int WINDOW = 8192;
+
+	private final FileChannel channel;
+	/** Window into the file in the read mode - bytes between position and limit are not processed yet. */
+	private final ByteBuffer window = ByteBuffer.allocate(WINDOW);
+	private boolean eof = false;
+
+	private int offset;
+	private int length;
+	private boolean bTerminal;
+
+	FrameSplitter(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		window.limit(0);
+	}
+
+	/**
+	 * Size of the file.
+	 * @return
+	 * @throws IOException
+	 */
+	long	size() throws IOException {
+		return channel.size();
+	}
+
+	/**
+	 * Move to the next frame.
+	 * @return false if there are no more data to send
+	 * @throws IOException - error while reading the file
+	 */
+	boolean	next() throws IOException {
+		if(peek() < 0)
+			return false;
+		byte [] data = window.array();
+		ensure(FrameEncoder.MAX_DATA);
+		int start = window.position();
+		int end = window.limit();
+		int nLen = 1;
+		int i;
+		while(nLen < FrameEncoder.MAX_DATA && (i = start + nLen) < end && data[i] != Executor.CR && data[i] != Executor.LF)
+			nLen++;
+		if(!(bTerminal = (nLen < FrameEncoder.MAX_DATA))) {
+			nLen = FrameEncoder.MAX_DATA - 1;
+		}
+		offset = start;
+		length = nLen;
+		window.position(start + nLen);
+		return true;
+	}
+
+	/**
+	 * First byte of the next frame without moving to it - e.g. the record type of the next line.
+	 * @return byte or -1 if there are no more data to send
+	 * @throws IOException - error while reading the file
+	 */
+	int	peek() throws IOException {
+		byte [] data = window.array();
+		// skip line terminators
+		while(true) {
+			if(!ensure(1))
+				return -1;
+			int c = data[window.position()];
+			if(c != Executor.CR && c != Executor.LF)
+				return c & 0xFF;
+			window.position(window.position() + 1);
+		}
+	}
+
+	/**
+	 * Array with data of the current frame - valid until the next call of {@link #next()}.
+	 * @return
+	 */
+	byte []	getData() {
+		return window.array();
+	}
+
+	int	getOffset() {
+		return offset;
+	}
+
+	int	getLength() {
+		return length;
+	}
+
+	/**
+	 * Whether the current frame ends a line (&lt;ETX&gt;) or continues (&lt;ETB&gt;).
+	 * @return
+	 */
+	boolean	isTerminal() {
+		return bTerminal;
+	}
+
+	/**
+	 * Make at least n unprocessed bytes available in the window if the file has them.
+	 * @return true if n bytes are available
+	 */
+	private boolean	ensure(int n) throws IOException {
+		while(window.remaining() < n && !eof) {
+			window.compact();
+			if(channel.read(window) < 0)
+				eof = true;
+			window.flip();
+		}
+		return window.remaining() >= n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
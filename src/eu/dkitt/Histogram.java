@@ -0,0 +1,122 @@
+package eu.dkitt;
+
+import java.io.PrintStream;
+
+/**
+ * Histogram of non negative values with a bounded relative error, in the layout of HdrHistogram.<br/>
+ * Values below {@link #SUB_BUCKETS} are counted exactly, larger values fall into buckets
+ * whose width doubles with every power of two, each power of two is split into
+ * {@link #SUB_BUCKETS}/2 linear sub-buckets - the error is below 1/64 of the value.
+ * Recording is a shift and an increment, the memory is fixed (about 30 KB) for the whole range of long.
+ * <ul>
+ * <li>An instance is not thread safe, every thread records into its own and the results are {@link #add(Histogram) merged}.</li>
+ * <li>Percentiles report the highest value of the bucket holding the percentile.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class Histogram {
+
+	private static final int BITS = 7;
+	private static final int SUB_BUCKETS = 1 << BITS;
+	private static final int HALF = SUB_BUCKETS >> 1;
+
+	private final long [] counts = new long[SUB_BUCKETS + (64 - BITS) * HALF];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	/**
+	 * Count a value, negative values are counted as 0.
+	 * @param value
+	 */
+	void	record(long value) {
+		if(value < 0)
+			value = 0;
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if(value < min)
+			min = value;
+		if(value > max)
+			max = value;
+	}
+
+	/**
+	 * Add all values of another histogram.
+	 * @param other
+	 */
+	void	add(Histogram other) {
+		for(int i=0; i<counts.length; ++i)
+			counts[i] += other.counts[i];
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	long	getCount() {
+		return count;
+	}
+
+	long	getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	long	getMax() {
+		return max;
+	}
+
+	double	getMean() {
+		return count == 0 ? 0 : (double)sum / count;
+	}
+
+	/**
+	 * Value below or at which the given percentage of values lies.
+	 * @param percentile	percentage in the range 0..100
+	 * @return value or 0 if nothing was recorded
+	 */
+	long	percentile(double percentile) {
+		if(count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for(int i=0; i<counts.length; ++i) {
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(highest(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * Print the count, mean and percentiles on a line.
+	 * @param out
+	 * @param title	name of the histogram
+	 * @param unit	unit of values
+	 */
+	void	print(PrintStream out, String title, String unit) {
+		out.println(String.format("%-30s: %8d values, mean %.1f, min %d, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d %s",
+				title, count, getMean(), getMin(), percentile(50), percentile(90), percentile(99), percentile(99.9), max, unit));
+	}
+
+	private static int	index(long value) {
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - BITS + 1;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int)(value >>> shift) - HALF;
+	}
+
+	/** Highest value counted by the bucket. */
+	private static long	highest(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long sub = (index - SUB_BUCKETS) % HALF + HALF;
+		long highest = ((sub + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+
+}
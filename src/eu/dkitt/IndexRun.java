@@ -0,0 +1,283 @@
+package eu.dkitt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable file of index entries sorted by {@link ResultIndex.Hit#compareTo(ResultIndex.Hit)}, a part of a {@link ResultIndex}.<br/>
+ * The file is <code>entries, block index, footer</code>:
+ * <ul>
+ * <li>An entry is <code>type(1) key(UTF) time(8) location(UTF) sequence(8)</code>.</li>
+ * <li>The block index holds the first entry of every {@link #BLOCK} entries with its offset,
+ * it is kept in memory, so a lookup reads a single block and the entries following it.</li>
+ * <li>The footer is <code>index offset(8) entries(8) magic(4)</code>.</li>
+ * </ul>
+ * A run is written into a temporary file and renamed, so a run file is always complete.
+ * Reads do not share a position, a run may be merged while it is searched.
+ *
+ * @author dkittrich
+ *
+ */
+class IndexRun implements Closeable {
+
+	static final String PREFIX = "run_";
+	static final String SUFFIX = ".dat";
+	static final int BLOCK = 64;
+	private static final int FOOTER = 20;
+	private static final int MAGIC = 0x52495831;
+
+	private final Path file;
+	private final FileChannel channel;
+	private final long count;
+	private final ResultIndex.Hit [] firsts;
+	private final long [] offsets;
+
+	private IndexRun(Path file, FileChannel channel, long count, ResultIndex.Hit [] firsts, long [] offsets) {
+		this.file = file;
+		this.channel = channel;
+		this.count = count;
+		this.firsts = firsts;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Write sorted entries into a new run.
+	 * @param file	path of the run
+	 * @param hits	entries in ascending order
+	 * @return the run open for reading
+	 * @throws IOException
+	 */
+	static IndexRun	write(Path file, Iterator<ResultIndex.Hit> hits) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		long n = 0;
+		try(FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+			Counter counter = new Counter(new BufferedOutputStream(fos, 65536));
+			DataOutputStream out = new DataOutputStream(counter);
+			ResultIndex.Hit [] blockFirsts = new ResultIndex.Hit[16];
+			long [] blockOffsets = new long[16];
+			int blocks = 0;
+			while(hits.hasNext()) {
+				ResultIndex.Hit hit = hits.next();
+				if(n % BLOCK == 0) {
+					if(blocks == blockFirsts.length) {
+						blockFirsts = Arrays.copyOf(blockFirsts, blocks * 2);
+						blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+					}
+					blockFirsts[blocks] = hit;
+					blockOffsets[blocks++] = counter.count;
+				}
+				hit.write(out);
+				n++;
+			}
+			long indexOffset = counter.count;
+			for(int i=0; i<blocks; ++i) {
+				blockFirsts[i].write(out);
+				out.writeLong(blockOffsets[i]);
+			}
+			out.writeLong(indexOffset);
+			out.writeLong(n);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getChannel().force(true);
+		} catch (IOException | RuntimeException e) {
+			try {Files.deleteIfExists(temp);} catch (IOException ex) {}
+			throw e;
+		}
+		try {
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return open(file);
+	}
+
+	/**
+	 * Open a run and read its block index.
+	 * @param file
+	 * @return
+	 * @throws IOException	the file is not a complete run
+	 */
+	static IndexRun	open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if(size < FOOTER)
+				throw new IOException("Invalid index run " + file);
+			ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+			while(footer.hasRemaining() && channel.read(footer, size - FOOTER + footer.position()) > 0)
+				;
+			footer.flip();
+			long indexOffset = footer.getLong();
+			long count = footer.getLong();
+			if(footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER)
+				throw new IOException("Invalid index run " + file);
+			int blocks = (int)((count + BLOCK - 1) / BLOCK);
+			ResultIndex.Hit [] firsts = new ResultIndex.Hit[blocks];
+			long [] offsets = new long[blocks];
+			DataInputStream in = reader(channel, indexOffset);
+			for(int i=0; i<blocks; ++i) {
+				firsts[i] = ResultIndex.Hit.read(in);
+				offsets[i] = in.readLong();
+			}
+			return new IndexRun(file, channel, count, firsts, offsets);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	Path	getFile() {
+		return file;
+	}
+
+	/**
+	 * Number of entries.
+	 * @return
+	 */
+	long	size() {
+		return count;
+	}
+
+	/**
+	 * Collect entries of a key within a time range.
+	 * @param type
+	 * @param key
+	 * @param from	first time, inclusive
+	 * @param to	last time, inclusive
+	 * @param out
+	 * @throws IOException
+	 */
+	void	scan(char type, String key, long from, long to, Collection<ResultIndex.Hit> out) throws IOException {
+		ResultIndex.Hit start = new ResultIndex.Hit(type, key, from, "", Long.MIN_VALUE);
+		// the last block starting before the first entry
+		int lo = 0;
+		int hi = firsts.length - 1;
+		int block = 0;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(firsts[mid].compareTo(start) < 0) {
+				block = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if(firsts.length == 0)
+			return;
+		DataInputStream in = reader(channel, offsets[block]);
+		for(long i = (long)block * BLOCK; i < count; ++i) {
+			ResultIndex.Hit hit = ResultIndex.Hit.read(in);
+			if(hit.compareTo(start) < 0)
+				continue;
+			if(hit.compareHead(type, key, to) > 0)
+				break;
+			out.add(hit);
+		}
+	}
+
+	/**
+	 * All entries in ascending order.
+	 * @return iterator throwing {@link UncheckedIOException} if the run can not be read
+	 */
+	Iterator<ResultIndex.Hit>	iterator() {
+		final DataInputStream in = reader(channel, 0);
+		return new Iterator<ResultIndex.Hit>() {
+			long i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			@Override
+			public ResultIndex.Hit next() {
+				if(i >= count)
+					throw new NoSuchElementException();
+				i++;
+				try {
+					return ResultIndex.Hit.read(in);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Close and delete the run - it was merged into another one.
+	 */
+	void	delete() throws IOException {
+		close();
+		Files.deleteIfExists(file);
+	}
+
+	/** Stream reading the channel from a position - the channel position is not moved, so a run may be read by several threads. */
+	private static DataInputStream	reader(final FileChannel channel, final long position) {
+		return new DataInputStream(new BufferedInputStream(new InputStream() {
+			private long next = position;
+
+			@Override
+			public int read() throws IOException {
+				byte [] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0)
+					return 0;
+				int n = channel.read(ByteBuffer.wrap(b, off, len), next);
+				if(n > 0)
+					next += n;
+				return n;
+			}
+		}, 8192));
+	}
+
+	/** Output stream counting written bytes. */
+	private static final class Counter extends FilterOutputStream {
+		long count = 0;
+
+		Counter(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+package eu.dkitt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Run of {@link Leases} of several processes claiming the same files, a test of the take over of expired leases.<br/>
+ * The harness starts worker JVMs sharing a directory of files. A worker claims a random file, renews its lease
+ * a few times and releases it or abandons it like a crashed process. Renewals are sometimes later than the lease time,
+ * so leases expire while their owner is alive and are taken over by other workers.
+ * <ul>
+ * <li>Workers write their claims, renewals and releases with the times before and after the call.</li>
+ * <li>A violation is a lease created or taken over while the lease of another worker was renewed
+ * less than the lease time before and not released - the lease was not expired.</li>
+ * <li>The harness exits by 1 if there was a violation.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * LeaseHarness [-processes &lt;number&gt;] [-files &lt;number&gt;] [-lease &lt;millis&gt;] [-seconds &lt;number&gt;]
+ * </pre>
+ *
+ * @author dkittrich
+ *
+ */
+public class LeaseHarness {
+
+	/** Tolerance of times of created files - the file system stamps them by a coarse clock. */
+	private static final long SLACK = 20;
+
+	private static final String ACQUIRE = "acquire";
+	private static final String RENEW = "renew";
+	private static final String RELEASE = "release";
+	private static final String LOST = "lost";
+
+	public static void main(String[] args) throws Exception {
+		if(args.length == 5 && "-worker".equals(args[0])) {
+			worker(Paths.get(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]), Integer.parseInt(args[4]));
+			return;
+		}
+		int processes = 4;
+		int files = 4;
+		long lease = 200;
+		int seconds = 10;
+		for(int i=0; i<args.length; ++i) {
+			switch(args[i]) {
+			case "-processes":
+				processes = Integer.parseInt(args[++i]);
+				break;
+			case "-files":
+				files = Integer.parseInt(args[++i]);
+				break;
+			case "-lease":
+				lease = Long.parseLong(args[++i]);
+				break;
+			case "-seconds":
+				seconds = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.out.println("Usage: LeaseHarness [-processes <number>] [-files <number>] [-lease <millis>] [-seconds <number>]");
+				return;
+			}
+		}
+
+		Path root = Files.createTempDirectory("leases");
+		int violations;
+		try {
+			for(int i=0; i<files; ++i)
+				Files.write(root.resolve(name(i)), new byte[] {'x'});
+			String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			List<Process> workers = new ArrayList<Process>();
+			for(int i=0; i<processes; ++i) {
+				workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), LeaseHarness.class.getName(),
+						"-worker", root.toString(), "" + (i + 1), "" + lease, "" + seconds).inheritIO().start());
+			}
+			for(Process worker : workers)
+				worker.waitFor();
+			violations = check(root, processes, lease);
+		} finally {
+			delete(root);
+		}
+		System.exit(violations == 0 ? 0 : 1);
+	}
+
+	/** A call of {@link Leases} of a worker. */
+	private static final class Event {
+		final int worker;
+		final String type;
+		final long start;
+		final long end;
+
+		Event(int worker, String type, long start, long end) {
+			this.worker = worker;
+			this.type = type;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Test events of all workers.
+	 * @return number of violations
+	 */
+	private static int	check(Path root, int processes, long lease) throws IOException {
+		Map<String, List<Event>> byFile = new HashMap<String, List<Event>>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for(int i=1; i<=processes; ++i) {
+			for(String line : Files.readAllLines(root.resolve("events_" + i + ".txt"), StandardCharsets.UTF_8)) {
+				String [] fields = line.split(" ");
+				List<Event> events = byFile.get(fields[1]);
+				if(events == null)
+					byFile.put(fields[1], events = new ArrayList<Event>());
+				events.add(new Event(i, fields[0], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+				Integer count = counts.get(fields[0]);
+				counts.put(fields[0], count == null ? 1 : count + 1);
+			}
+		}
+		int violations = 0;
+		for(Map.Entry<String, List<Event>> file : byFile.entrySet()) {
+			for(Event claim : file.getValue()) {
+				if(!ACQUIRE.equals(claim.type))
+					continue;
+				for(Event touch : file.getValue()) {
+					if(touch.worker == claim.worker || !(ACQUIRE.equals(touch.type) || RENEW.equals(touch.type)))
+						continue;
+					// the claim tested the lease after the touch, so the lease was touched less than the lease time before
+					if(claim.start <= touch.end || claim.end >= touch.start + lease - SLACK)
+						continue;
+					if(released(file.getValue(), touch, claim))
+						continue;
+					violations++;
+					System.out.println("Violation: " + file.getKey() + " claimed by worker " + claim.worker + " at " + claim.end
+							+ " - renewed by worker " + touch.worker + " at " + touch.start);
+				}
+			}
+		}
+		System.out.println("Processes             : " + processes);
+		System.out.println("Claims                : " + count(counts, ACQUIRE));
+		System.out.println("Renewals              : " + count(counts, RENEW));
+		System.out.println("Releases              : " + count(counts, RELEASE));
+		System.out.println("Lost after expiry     : " + count(counts, LOST));
+		System.out.println("Violations            : " + violations);
+		return violations;
+	}
+
+	/** Test whether the owner of a touch released the lease before the claim. */
+	private static boolean	released(List<Event> events, Event touch, Event claim) {
+		for(Event event : events) {
+			if(event.worker == touch.worker && RELEASE.equals(event.type) && event.start >= touch.end && event.start <= claim.end)
+				return true;
+		}
+		return false;
+	}
+
+	private static int	count(Map<String, Integer> counts, String type) {
+		Integer count = counts.get(type);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Claim random files until the time is over.
+	 */
+	private static void	worker(Path root, int id, long lease, int seconds) throws IOException, InterruptedException {
+		Logger logger = Logger.getLogger("");
+		logger.setLevel(Level.WARNING);
+		for(Handler handler : logger.getHandlers())
+			handler.setLevel(Level.WARNING);
+		Leases leases = new Leases(root, lease);
+		Random random = new Random(id);
+		int files = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(root, "file_*")) {
+			for(@SuppressWarnings("unused") Path file : stream)
+				files++;
+		}
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		try(BufferedWriter out = Files.newBufferedWriter(root.resolve("events_" + id + ".txt"), StandardCharsets.UTF_8)) {
+			while(System.currentTimeMillis() < end) {
+				String name = name(random.nextInt(files));
+				Path file = root.resolve(name);
+				long start = System.currentTimeMillis();
+				if(!leases.acquire(file)) {
+					Thread.sleep(random.nextInt((int)Math.max(1, lease / 10)));
+					continue;
+				}
+				event(out, ACQUIRE, name, start);
+				boolean bHeld = true;
+				for(int renewals = 1 + random.nextInt(5); renewals > 0 && bHeld; --renewals) {
+					// between 0.3 and 1.3 of the lease time - late renewals let the lease expire
+					Thread.sleep(lease * (30 + random.nextInt(100)) / 100);
+					start = System.currentTimeMillis();
+					bHeld = leases.renew(file);
+					event(out, bHeld ? RENEW : LOST, name, start);
+				}
+				// every fourth lease is abandoned like by a crashed process
+				if(bHeld && random.nextInt(4) != 0) {
+					start = System.currentTimeMillis();
+					leases.release(file);
+					event(out, RELEASE, name, start);
+				}
+			}
+		}
+	}
+
+	private static void	event(BufferedWriter out, String type, String name, long start) throws IOException {
+		out.write(type + " " + name + " " + start + " " + System.currentTimeMillis());
+		out.newLine();
+	}
+
+	private static String	name(int i) {
+		return String.format("file_%03d", i);
+	}
+
+	private static void	delete(Path path) throws IOException {
+		if(Files.isDirectory(path)) {
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for(Path child : stream)
+					delete(child);
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+}
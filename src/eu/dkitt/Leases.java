@@ -0,0 +1,264 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lease files claiming files to send in a directory shared by several server processes
+ * (property {@link T1#OPTION_LEASE}).<br/>
+ * A process claims a file by creating its lease file <code>&lt;name&gt;.lease</code> in the subdirectory {@link #DIRECTORY}
+ * of the directory - the creation is atomic, so only one process wins.
+ * <ul>
+ * <li>The lease file holds the owner and its modification time is the last renewal,
+ * the owner renews leases of its claimed files every 1/3 of the lease time.</li>
+ * <li>A lease not renewed for the lease time is expired - the owner crashed. Another process takes it over
+ * by renaming its own lease file over the expired one, so the lease file never disappears
+ * and no third process can create it meanwhile.</li>
+ * <li>The lease file is deleted after the file was moved to the backup directory or returned unsent.</li>
+ * <li>A take over, a renewal and a release hold the lock file <code>&lt;name&gt;.lease.lock</code>,
+ * so a lease is not replaced between the test of its expiry or owner and the change.
+ * A lock left by a crashed process expires like a lease and is removed by {@link #sweep(Set)}.</li>
+ * </ul>
+ * Expiry compares modification times with the clock of the process, clocks of hosts sharing
+ * a mount must be synchronized well within the lease time.
+ *
+ * @author dkittrich
+ *
+ */
+class Leases {
+
+	private static final Logger logger = Logger.getLogger(Leases.class.getName());
+
+	/** Subdirectory with lease files. */
+	static final String DIRECTORY = ".leases";
+
+	private static final String SUFFIX = ".lease";
+	private static final String LOCK = ".lock";
+	/** Attempts to get the lock of a lease, it is held for a few file operations only. */
+	private static final int LOCK_ATTEMPTS = 50;
+
+	/** Owner written into lease files - unique for the process. */
+	private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName() + "#" + Long.toHexString(System.nanoTime());
+
+	private final Path directory;
+	private final long lease;
+	private final byte [] owner = OWNER.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * @param directory	directory with files to send
+	 * @param lease	lease time in milliseconds
+	 * @throws IOException	the subdirectory can not be created
+	 */
+	Leases(Path directory, long lease) throws IOException {
+		this.directory = directory.resolve(DIRECTORY);
+		this.lease = lease;
+		Files.createDirectories(this.directory);
+	}
+
+	/**
+	 * How often leases of claimed files should be renewed.
+	 * @return milliseconds
+	 */
+	long	renewInterval() {
+		return Math.max(1, lease / 3);
+	}
+
+	/**
+	 * Claim the file for this process - create its lease or take over an expired one.
+	 * @param file
+	 * @return false if another process holds the lease
+	 */
+	boolean	acquire(Path file) {
+		Path path = leaseOf(file);
+		try {
+			Files.write(path, owner, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return expired(path) && takeOver(path);
+		} catch (IOException e) {
+			logger.warning("Cannot create lease " + path + " - " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Renew the lease of a claimed file.
+	 * @param file
+	 * @return false if the lease was lost - it expired and another process took the file over
+	 */
+	boolean	renew(Path file) {
+		Path path = leaseOf(file);
+		Path lock = lock(path);
+		if(lock == null) {
+			// keep the claim, the lease is renewed again before it expires
+			return true;
+		}
+		try {
+			if(!Arrays.equals(Files.readAllBytes(path), owner))
+				return false;
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			logger.warning("Cannot renew lease " + path + " - " + e);
+			return true;
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Give up the lease of a file - sent or returned unsent.
+	 * @param file
+	 */
+	void	release(Path file) {
+		Path path = leaseOf(file);
+		Path lock = lock(path);
+		if(lock == null) {
+			logger.warning("Cannot delete lease " + path + " - it is locked, it expires");
+			return;
+		}
+		try {
+			if(Arrays.equals(Files.readAllBytes(path), owner))
+				Files.delete(path);
+		} catch (NoSuchFileException e) {
+		} catch (IOException e) {
+			logger.warning("Cannot delete lease " + path + " - it expires: " + e);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Test whether a file held by another process may be claimed - its lease is gone or expired.
+	 * @param file
+	 * @return
+	 */
+	boolean	isFree(Path file) {
+		return expired(leaseOf(file));
+	}
+
+	/**
+	 * Delete expired leases of files which do not exist anymore - their owner crashed after moving them.
+	 * @param files	files present in the directory
+	 */
+	void	sweep(Set<Path> files) {
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for(Path path : stream) {
+				String name = path.getFileName().toString();
+				if(name.endsWith(SUFFIX) && files.contains(directory.getParent().resolve(name.substring(0, name.length() - SUFFIX.length()))))
+					continue;
+				// leftovers of a take over and locks of crashed processes are removed as well
+				if(!expired(path))
+					continue;
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+				}
+			}
+		} catch (IOException e) {
+			logger.fine("Cannot scan leases " + directory + " - " + e);
+		}
+	}
+
+	private Path	leaseOf(Path file) {
+		return directory.resolve(file.getFileName().toString() + SUFFIX);
+	}
+
+	private boolean	expired(Path path) {
+		try {
+			return Files.getLastModifiedTime(path).toMillis() + lease < System.currentTimeMillis();
+		} catch (NoSuchFileException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replace an expired lease by a lease of this process - the lease is tested again under its lock
+	 * and replaced by an atomic rename, so it does not disappear meanwhile.
+	 * @return true if the lease is held by this process now
+	 */
+	private boolean	takeOver(Path path) {
+		Path lock = lock(path);
+		if(lock == null)
+			return false;
+		Path temp = directory.resolve(path.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+		try {
+			byte [] previous;
+			try {
+				previous = Files.readAllBytes(path);
+			} catch (NoSuchFileException e) {
+				// released by its owner meanwhile
+				Files.write(path, owner, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				return true;
+			}
+			// renewed by its owner or taken over by another process
+			if(!expired(path))
+				return false;
+			Files.write(temp, owner, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			if(logger.isLoggable(Level.INFO))
+				logger.info("Lease " + path + " of " + new String(previous, StandardCharsets.UTF_8) + " expired - taken over");
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		} catch (IOException e) {
+			logger.warning("Cannot take over lease " + path + " - " + e);
+			return false;
+		} finally {
+			try {Files.deleteIfExists(temp);} catch (IOException e) {}
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Lock a lease against changes of other processes.
+	 * @param path	lease file
+	 * @return the lock file or null if it is held by another process
+	 */
+	private Path	lock(Path path) {
+		Path lock = path.resolveSibling(path.getFileName() + LOCK);
+		for(int attempt = 0; attempt < LOCK_ATTEMPTS; ++attempt) {
+			try {
+				Files.createFile(lock);
+				return lock;
+			} catch (FileAlreadyExistsException e) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			} catch (IOException e) {
+				logger.warning("Cannot lock lease " + path + " - " + e);
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private void	unlock(Path lock) {
+		try {
+			Files.deleteIfExists(lock);
+		} catch (IOException e) {
+			logger.warning("Cannot unlock lease " + lock + " - it expires: " + e);
+		}
+	}
+
+}
@@ -0,0 +1,282 @@
+package eu.dkitt;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters of link activity - one instance per connection and one aggregate for the process.<br/>
+ * Every update of a connection is applied to the aggregate as well. Counters are {@link LongAdder}s,
+ * so sessions updating them concurrently do not contend.
+ * <ul>
+ * <li>{@link T1#OPTION_METRICS_JMX} - register the aggregate as MBean <code>eu.dkitt:type=Link</code>
+ * and every connection as <code>eu.dkitt:type=Connection,name=&lt;name&gt;</code> (default true).</li>
+ * <li>{@link T1#OPTION_METRICS_PORT} - serve all counters in the Prometheus text format, see {@link MetricsServer}.</li>
+ * </ul>
+ * Gauges (active sessions, files waiting to be sent) are computed when they are read.
+ *
+ * @author dkittrich
+ *
+ */
+class LinkMetrics implements DynamicMBean {
+
+	private static final Logger logger = Logger.getLogger(LinkMetrics.class.getName());
+
+	enum Counter {
+		SESSIONS("Sessions started"),
+		CONTENTIONS("<ENQ> received while waiting for a reply to our <ENQ>"),
+		NAKS_RECEIVED("Frames rejected by the instrument"),
+		NAKS_SENT("Frames rejected by us"),
+		FRAME_RETRIES("Frames sent again after a rejection"),
+		TIMEOUTS("Replies not received in time"),
+		BYTES_IN("Bytes received"),
+		BYTES_OUT("Bytes sent"),
+		FRAMES_IN("Valid frames received"),
+		FRAMES_OUT("Frames sent"),
+		MESSAGES_IN("Messages received"),
+		MESSAGES_OUT("Files sent"),
+		COMMIT_NANOS("Time spent by storing received messages"),
+		BACKUP_NANOS("Time spent by moving sent files");
+
+		final String description;
+
+		Counter(String description) {
+			this.description = description;
+		}
+
+		/** Name of the attribute - NAKS_SENT is NaksSent. */
+		String	attribute() {
+			StringBuilder sb = new StringBuilder();
+			for(String part : name().split("_"))
+				sb.append(part.charAt(0)).append(part.substring(1).toLowerCase());
+			return sb.toString();
+		}
+	}
+
+	private static final String ACTIVE_SESSIONS = "ActiveSessions";
+	private static final String QUEUED_FILES = "QueuedFiles";
+
+	private static LinkMetrics aggregate = null;
+	private static boolean bJmx = false;
+	private static final ConcurrentHashMap<String, LinkMetrics> connections = new ConcurrentHashMap<String, LinkMetrics>();
+
+	/**
+	 * Get the aggregate of the process. The first call registers the MBean and starts the text endpoint if configured.
+	 * @param properties
+	 * @return aggregate counters
+	 */
+	static synchronized LinkMetrics aggregate(Properties properties) {
+		if(aggregate == null) {
+			aggregate = new LinkMetrics("Link", null);
+			bJmx = Boolean.parseBoolean(properties.getProperty(T1.OPTION_METRICS_JMX, "true"));
+			aggregate.register("eu.dkitt:type=Link");
+			int port = Integer.parseInt(properties.getProperty(T1.OPTION_METRICS_PORT, "0"));
+			if(port > 0) {
+				try {
+					MetricsServer.start(port);
+				} catch (IOException e) {
+					logger.warning("Cannot serve metrics on port " + port + " - " + e);
+				}
+			}
+		}
+		return aggregate;
+	}
+
+	/**
+	 * Create counters of a new connection, they are kept until {@link #close()} is called.
+	 * @param properties
+	 * @param name	name of the connection
+	 * @return
+	 */
+	static LinkMetrics	open(Properties properties, String name) {
+		LinkMetrics parent = aggregate(properties);
+		LinkMetrics metrics = new LinkMetrics(name, parent);
+		connections.put(name, metrics);
+		metrics.register("eu.dkitt:type=Connection,name=" + ObjectName.quote(name));
+		metrics.add(Counter.SESSIONS, 1);
+		return metrics;
+	}
+
+	/**
+	 * Counters of open connections.
+	 * @return
+	 */
+	static Collection<LinkMetrics>	connections() {
+		return connections.values();
+	}
+
+	static synchronized LinkMetrics	aggregate() {
+		return aggregate;
+	}
+
+	private final String name;
+	private final LinkMetrics parent;
+	private final LongAdder [] counters = new LongAdder[Counter.values().length];
+	private final LongAdder active = new LongAdder();
+	private ObjectName objectName;
+
+	private LinkMetrics(String name, LinkMetrics parent) {
+		this.name = name;
+		this.parent = parent;
+		for(int i=0; i<counters.length; ++i)
+			counters[i] = new LongAdder();
+		if(parent != null)
+			parent.active.increment();
+	}
+
+	String	getName() {
+		return name;
+	}
+
+	void	add(Counter counter, long value) {
+		counters[counter.ordinal()].add(value);
+		if(parent != null)
+			parent.counters[counter.ordinal()].add(value);
+	}
+
+	void	inc(Counter counter) {
+		add(counter, 1);
+	}
+
+	/**
+	 * Add the time elapsed since the given start.
+	 * @param counter
+	 * @param startNanos	value of {@link System#nanoTime()} at the start
+	 */
+	void	time(Counter counter, long startNanos) {
+		add(counter, System.nanoTime() - startNanos);
+	}
+
+	long	get(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * Number of open connections - 1 for a connection.
+	 * @return
+	 */
+	long	getActiveSessions() {
+		return parent == null ? active.sum() : 1;
+	}
+
+	/**
+	 * The connection terminated - its counters are not reported anymore, the aggregate keeps them.
+	 */
+	void	close() {
+		if(connections.remove(name, this) && parent != null)
+			parent.active.decrement();
+		if(objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				logger.fine("Cannot unregister " + objectName + " - " + e);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Wrap a stream so that bytes written are counted as {@link Counter#BYTES_OUT}.
+	 * @param stream
+	 * @return
+	 */
+	OutputStream	wrap(OutputStream stream) {
+		return new FilterOutputStream(stream) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				add(Counter.BYTES_OUT, 1);
+			}
+			@Override
+			public void write(byte [] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				add(Counter.BYTES_OUT, len);
+			}
+		};
+	}
+
+	private void	register(String objectName) {
+		if(!bJmx)
+			return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName on = new ObjectName(objectName);
+			server.registerMBean(this, on);
+			this.objectName = on;
+		} catch (Exception e) {
+			logger.warning("Cannot register MBean " + objectName + " - " + e);
+		}
+	}
+
+	@Override
+	public Object	getAttribute(String attribute) throws AttributeNotFoundException {
+		if(ACTIVE_SESSIONS.equals(attribute))
+			return getActiveSessions();
+		if(QUEUED_FILES.equals(attribute))
+			return (long)OutboundQueue.totalSize();
+		for(Counter counter : Counter.values()) {
+			if(counter.attribute().equals(attribute))
+				return get(counter);
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList	getAttributes(String [] attributes) {
+		AttributeList list = new AttributeList();
+		for(String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void	setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Read only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList	setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object	invoke(String actionName, Object [] params, String [] signature) throws ReflectionException {
+		// the bean has no operations
+		throw new ReflectionException(new NoSuchMethodException(actionName), "No operation " + actionName);
+	}
+
+	@Override
+	public MBeanInfo	getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		attributes.add(new MBeanAttributeInfo(ACTIVE_SESSIONS, "long", "Open connections", true, false, false));
+		if(parent == null)
+			attributes.add(new MBeanAttributeInfo(QUEUED_FILES, "long", "Files waiting to be sent", true, false, false));
+		for(Counter counter : Counter.values())
+			attributes.add(new MBeanAttributeInfo(counter.attribute(), "long", counter.description, true, false, false));
+		return new MBeanInfo(LinkMetrics.class.getName(), parent == null ? "Link activity of the process" : "Link activity of " + name,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+
+}
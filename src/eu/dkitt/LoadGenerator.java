@@ -0,0 +1,518 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Load mode of the {@link Simulator} - many simulated instruments connected to one server.<br/>
+ * Enabled by {@link T1#OPTION_LOAD_INSTRUMENTS}, every instrument has its own connection and thread
+ * (see {@link WorkerThreads}) and runs the instrument side of the protocol:
+ * <ul>
+ * <li>It sends generated result messages at {@link T1#OPTION_LOAD_RATE} messages per second.
+ * Messages are due on a fixed schedule independent of the server (open loop), so a slow server
+ * builds a backlog which shows in the latencies instead of lowering the load.</li>
+ * <li>Sizes of messages follow {@link T1#OPTION_LOAD_SIZE}: <code>&lt;bytes&gt;</code>,
+ * <code>&lt;min&gt;-&lt;max&gt;</code> (uniform) or <code>exp:&lt;mean&gt;</code> (exponential).</li>
+ * <li>With {@link T1#OPTION_LOAD_MIX} a fraction of the rate are orders sent by the server instead:
+ * the generator writes order files into {@link T1#OPTION_LOAD_ORDERS} (the <code>indir</code> of the server)
+ * and the instruments receive them.</li>
+ * </ul>
+ * After {@link T1#OPTION_LOAD_DURATION} seconds the throughput and latency histograms (see {@link Histogram}) are printed:
+ * <ul>
+ * <li>ENQ to final ACK - the time the link is occupied by a message.</li>
+ * <li>Pickup to backup - from the time the message was due until it was sent, including waits for the line.</li>
+ * <li>Order delivery - from writing an order file until an instrument received the message.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class LoadGenerator {
+
+	private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+	/** How long an instrument waits for any reply of the server. */
+	private static final int REPLY_TIMEOUT = 15000;
+	/** How often progress is reported. */
+	private static final long PROGRESS_INTERVAL = 10000;
+	/** Marker of the header record followed by the number of an order. */
+	private static final String ORDER_MARKER = "LoadGen|";
+
+	private final Properties properties;
+	private final String host;
+	private final int port;
+	private final int instruments;
+	private final double rate;
+	private final long duration;
+	private final double mix;
+	private final Path orders;
+	private final String size;
+
+	/** Times when orders not received yet were written - by the number in their header. */
+	private final ConcurrentHashMap<Long, Long> ordersWritten = new ConcurrentHashMap<Long, Long>();
+
+	private final LongAdder messagesSent = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder messagesReceived = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder contentions = new LongAdder();
+	private final LongAdder naks = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	LoadGenerator(Properties properties) {
+		this.properties = properties;
+		host = properties.getProperty(T1.OPTION_HOST, "localhost");
+		port = Integer.parseInt(properties.getProperty(T1.OPTION_PORT));
+		instruments = Integer.parseInt(properties.getProperty(T1.OPTION_LOAD_INSTRUMENTS, "0"));
+		rate = Double.parseDouble(properties.getProperty(T1.OPTION_LOAD_RATE, "1"));
+		duration = 1000L * Integer.parseInt(properties.getProperty(T1.OPTION_LOAD_DURATION, "60"));
+		String dir = properties.getProperty(T1.OPTION_LOAD_ORDERS);
+		orders = dir == null || dir.isEmpty() ? null : Paths.get(dir);
+		mix = orders == null ? 0 : Double.parseDouble(properties.getProperty(T1.OPTION_LOAD_MIX, "0"));
+		size = properties.getProperty(T1.OPTION_LOAD_SIZE, "1024");
+		sizeOf(new Random(), size);	// fail early on a bad specification
+	}
+
+	/**
+	 * Run all instruments for the configured time and print the results.
+	 * @throws InterruptedException
+	 */
+	void	execute() throws InterruptedException {
+		logger.info("Starting " + instruments + " instruments against " + host + ":" + port + ", " + rate + " messages/s each"
+				+ (mix > 0 ? ", " + Math.round(mix * 100) + "% orders written into " + orders : "") + ", " + duration / 1000 + " seconds");
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		List<Instrument> list = new ArrayList<Instrument>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<instruments; ++i) {
+			Instrument instrument = new Instrument(i + 1, start, end);
+			list.add(instrument);
+			Thread thread = WorkerThreads.newThread(properties, instrument, "Instrument_" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		Thread writer = null;
+		if(mix > 0) {
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeOrders(start, end);
+				}
+			}, "OrderWriter");
+			writer.setDaemon(true);
+			writer.start();
+		}
+		long lastSent = 0;
+		long lastReceived = 0;
+		while(System.nanoTime() < end) {
+			Thread.sleep(Math.min(PROGRESS_INTERVAL, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			long sent = messagesSent.sum();
+			long received = messagesReceived.sum();
+			System.out.println(String.format("%5d s: sent %d (+%d), received %d (+%d) messages",
+					TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), sent, sent - lastSent, received, received - lastReceived));
+			lastSent = sent;
+			lastReceived = received;
+		}
+		if(writer != null)
+			writer.join();
+		// a transfer in progress is finished
+		for(Thread thread : threads)
+			thread.join(REPLY_TIMEOUT * 2);
+		report(list, System.nanoTime() - start);
+	}
+
+	private void	report(List<Instrument> list, long elapsedNanos) {
+		Histogram link = new Histogram();
+		Histogram total = new Histogram();
+		Histogram delivery = new Histogram();
+		int failed = 0;
+		for(Instrument instrument : list) {
+			synchronized (instrument) {
+				link.add(instrument.link);
+				total.add(instrument.total);
+				delivery.add(instrument.delivery);
+				if(instrument.failure != null)
+					failed++;
+			}
+		}
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("Instruments                   : " + list.size() + (failed > 0 ? ", " + failed + " failed" : ""));
+		System.out.println(String.format("Sent                          : %d messages, %.1f messages/s, %.0f bytes/s",
+				messagesSent.sum(), messagesSent.sum() / seconds, bytesSent.sum() / seconds));
+		System.out.println(String.format("Received                      : %d messages, %.1f messages/s, %.0f bytes/s",
+				messagesReceived.sum(), messagesReceived.sum() / seconds, bytesReceived.sum() / seconds));
+		if(mix > 0)
+			System.out.println("Orders not delivered          : " + ordersWritten.size());
+		System.out.println("Contentions, NAKs, timeouts   : " + contentions.sum() + ", " + naks.sum() + ", " + timeouts.sum());
+		link.print(System.out, "ENQ to final ACK", "us");
+		total.print(System.out, "Pickup to backup", "us");
+		if(mix > 0)
+			delivery.print(System.out, "Order delivery", "us");
+	}
+
+	/**
+	 * Write order files for the server at the configured share of the total rate.
+	 */
+	private void	writeOrders(long start, long end) {
+		Random random = new Random();
+		double interval = 1e9 / (rate * mix * instruments);
+		try {
+			Files.createDirectories(orders);
+			for(long n=0; ; ++n) {
+				long due = start + (long)(n * interval);
+				if(due >= end)
+					return;
+				long wait = due - System.nanoTime();
+				if(wait > 0)
+					TimeUnit.NANOSECONDS.sleep(wait);
+				byte [] data = message(random, n);
+				// written under a name the server does not match and renamed when complete
+				Path tmp = orders.resolve(".order_" + n + ".tmp");
+				Files.write(tmp, data);
+				ordersWritten.put(n, System.nanoTime());
+				Files.move(tmp, orders.resolve(String.format("order_%08d.txt", n)), StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot write orders into " + orders + " - " + e);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private byte []	message(Random random, long number) {
+		return message(random, sizeOf(random, size), number);
+	}
+
+	/**
+	 * A message of result records, its header carries the given number.
+	 * @param random	source of record contents
+	 * @param target	approximate size in bytes
+	 * @param number	number of the message
+	 * @return
+	 */
+	static byte []	message(Random random, int target, long number) {
+		StringBuilder sb = new StringBuilder(target + 300);
+		sb.append("H|\\^&|||").append(ORDER_MARKER).append(number).append("|\r");
+		sb.append("P|1||").append(100000 + random.nextInt(900000)).append("\r");
+		for(int i=1; sb.length() < target; ++i) {
+			sb.append("R|").append(i).append("|^^^").append(100 + random.nextInt(900)).append('|').append(random.nextInt(10000) / 100.0).append("|mg/dL||N||F");
+			// some records are longer than a frame and are sent as continuation frames
+			if(random.nextInt(8) == 0) {
+				sb.append('|');
+				for(int j=random.nextInt(300); j>0; --j)
+					sb.append((char)('A' + j % 26));
+			}
+			sb.append('\r');
+		}
+		sb.append("L|1\r");
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Size of the next message according to the specification.
+	 */
+	private static int	sizeOf(Random random, String spec) {
+		try {
+			if(spec.startsWith("exp:")) {
+				double mean = Double.parseDouble(spec.substring(4));
+				return 64 + (int)Math.min(Integer.MAX_VALUE / 2, -Math.log(1 - random.nextDouble()) * mean);
+			}
+			int dash = spec.indexOf('-');
+			if(dash > 0) {
+				int min = Integer.parseInt(spec.substring(0, dash));
+				int max = Integer.parseInt(spec.substring(dash + 1));
+				return min + random.nextInt(Math.max(1, max - min + 1));
+			}
+			return Integer.parseInt(spec);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid property " + T1.OPTION_LOAD_SIZE + ": " + spec);
+		}
+	}
+
+	/**
+	 * Data of a received message - only the beginning with the header is kept.
+	 */
+	private static class Received implements FrameDecoder.Sink {
+		final byte [] head = new byte[64];
+		int length = 0;
+		int committed = 0;
+
+		@Override
+		public void	append(ByteBuffer src, int offset, int len) {
+			for(int i=0; i<len && length + i < head.length; ++i)
+				head[length + i] = src.get(offset + i);
+			length += len;
+		}
+
+		@Override
+		public void	frameCommit(boolean bTerminal) {
+			committed = length;
+		}
+
+		@Override
+		public void	frameRollback() {
+			length = committed;
+		}
+
+		void	reset() {
+			length = committed = 0;
+		}
+
+		/**
+		 * Number of the order in the header.
+		 * @return number or -1 if it is not an order of the generator
+		 */
+		long	orderNumber() {
+			String text = new String(head, 0, Math.min(length, head.length), StandardCharsets.US_ASCII);
+			int i = text.indexOf(ORDER_MARKER);
+			if(i < 0)
+				return -1;
+			int j = i += ORDER_MARKER.length();
+			while(j < text.length() && Character.isDigit(text.charAt(j)))
+				j++;
+			return j > i ? Long.parseLong(text.substring(i, j)) : -1;
+		}
+	}
+
+	/**
+	 * One simulated instrument.
+	 */
+	private class Instrument implements Runnable {
+		final int id;
+		final long start;
+		final long end;
+		final Random random;
+		final Histogram link = new Histogram();
+		final Histogram total = new Histogram();
+		final Histogram delivery = new Histogram();
+		Exception failure;
+
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private final FrameEncoder encoder = new FrameEncoder();
+		private final Received received = new Received();
+		private final FrameDecoder decoder = new FrameDecoder(received);
+		private final ByteBuffer inBuffer = ByteBuffer.allocate(4096);
+		/** No &lt;ENQ&gt; is sent before this time (busy or contention timer). */
+		private long holdUntil;
+
+		Instrument(int id, long start, long end) {
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.random = new Random(id);
+			inBuffer.limit(0);
+		}
+
+		@Override
+		public void	run() {
+			try(Socket s = new Socket(host, port)) {
+				socket = s;
+				SocketTuning.apply(socket, properties);
+				in = socket.getInputStream();
+				out = socket.getOutputStream();
+				loop();
+			} catch (IOException e) {
+				logger.warning("Instrument " + id + " failed - " + e);
+				synchronized (this) {
+					failure = e;
+				}
+			}
+		}
+
+		private void	loop() throws IOException {
+			double rateSent = rate * (1 - mix);
+			double interval = rateSent > 0 ? 1e9 / rateSent : 0;
+			// instruments start at random phases of the interval
+			long first = start + (long)(random.nextDouble() * Math.min(interval, 1e9));
+			long due = rateSent > 0 ? first : Long.MAX_VALUE;
+			long number = 0;
+			while(true) {
+				long now = System.nanoTime();
+				if(due < end && now >= due && now >= holdUntil) {
+					byte [] message = message(random, -1);
+					if(send(message)) {
+						long done = System.nanoTime();
+						synchronized (this) {
+							total.record((done - due) / 1000);
+						}
+						messagesSent.increment();
+						bytesSent.add(message.length);
+						number++;
+						due = first + (long)(number * interval);
+					}
+					continue;
+				}
+				if(now >= end && (due >= end || now - end > TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT)))
+					return;
+				long wait = Math.max(due, holdUntil) - now;
+				socket.setSoTimeout((int)Math.max(1, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(wait))));
+				int c;
+				try {
+					c = read();
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				if(c < 0)
+					throw new IOException("connection closed by the server");
+				if(c == Executor.ENQ)
+					receive();
+			}
+		}
+
+		/**
+		 * Send one message.
+		 * @return false if the server did not accept it, it is sent again later
+		 */
+		private boolean	send(byte [] message) throws IOException {
+			long enq = System.nanoTime();
+			out.write(Executor.ENQ);
+			socket.setSoTimeout(REPLY_TIMEOUT);
+			int c;
+			try {
+				do {
+					c = read();
+				} while(c != Executor.ACK && c != Executor.NAK && c != Executor.ENQ && c >= 0);
+			} catch (SocketTimeoutException e) {
+				timeouts.increment();
+				out.write(Executor.EOT);
+				holdUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+				return false;
+			}
+			if(c < 0)
+				throw new IOException("connection closed by the server");
+			if(c == Executor.NAK) {
+				naks.increment();
+				holdUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+				return false;
+			}
+			if(c == Executor.ENQ) {
+				// the server yields, we try again after our contention timer
+				contentions.increment();
+				holdUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+				return false;
+			}
+			int frameIndex = 0;
+			int pos = 0;
+			boolean bOk = true;
+			while(bOk) {
+				while(pos < message.length && (message[pos] == Executor.CR || message[pos] == Executor.LF))
+					pos++;
+				if(pos >= message.length)
+					break;
+				// the same cut as FrameSplitter - a line per frame, long lines in continuation frames
+				int len = 1;
+				while(len < FrameEncoder.MAX_DATA && pos + len < message.length && message[pos + len] != Executor.CR && message[pos + len] != Executor.LF)
+					len++;
+				boolean bTerminal = len < FrameEncoder.MAX_DATA;
+				if(!bTerminal)
+					len = FrameEncoder.MAX_DATA - 1;
+				bOk = sendFrame(message, pos, len, ++frameIndex, bTerminal);
+				pos += len;
+			}
+			if(bOk) {
+				synchronized (this) {
+					link.record((System.nanoTime() - enq) / 1000);
+				}
+			} else {
+				holdUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			}
+			out.write(Executor.EOT);
+			return bOk;
+		}
+
+		private boolean	sendFrame(byte [] data, int offset, int len, int frameIndex, boolean bTerminal) throws IOException {
+			int frameLength = encoder.encode(data, offset, len, frameIndex, bTerminal);
+			for(int attempt=0; attempt<6; ++attempt) {
+				out.write(encoder.getFrame(), 0, frameLength);
+				int c;
+				try {
+					do {
+						c = read();
+					} while(c != Executor.ACK && c != Executor.NAK && c != Executor.EOT && c >= 0);
+				} catch (SocketTimeoutException e) {
+					timeouts.increment();
+					return false;
+				}
+				if(c < 0)
+					throw new IOException("connection closed by the server");
+				if(c != Executor.NAK)
+					return true;
+				naks.increment();
+			}
+			return false;
+		}
+
+		/**
+		 * Receive a message after the server's &lt;ENQ&gt;.
+		 */
+		private void	receive() throws IOException {
+			out.write(Executor.ACK);
+			socket.setSoTimeout(REPLY_TIMEOUT);
+			received.reset();
+			decoder.reset();
+			while(true) {
+				if(!inBuffer.hasRemaining() && !fill())
+					throw new IOException("connection closed by the server");
+				switch(decoder.decode(inBuffer)) {
+				case NONE:
+					break;
+				case FRAME:
+				case DUPLICATE:
+					out.write(Executor.ACK);
+					break;
+				case BAD_FRAME:
+					out.write(Executor.NAK);
+					break;
+				case EOT:
+					messagesReceived.increment();
+					bytesReceived.add(received.length);
+					Long written = ordersWritten.remove(received.orderNumber());
+					if(written != null) {
+						synchronized (this) {
+							delivery.record((System.nanoTime() - written) / 1000);
+						}
+					} else if(logger.isLoggable(Level.FINE)) {
+						logger.fine("Instrument " + id + ": message not written by the generator received");
+					}
+					return;
+				}
+			}
+		}
+
+		private int	read() throws IOException {
+			if(!inBuffer.hasRemaining() && !fill())
+				return -1;
+			return inBuffer.get() & 0xFF;
+		}
+
+		private boolean	fill() throws IOException {
+			int n = in.read(inBuffer.array());
+			if(n < 0)
+				return false;
+			inBuffer.position(0);
+			inBuffer.limit(n);
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+package eu.dkitt;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.Formatter;
+import java.util.logging.LogRecord;
+
+/**
+ * Formatter of log records:
+ * <code>yyyy/MM/dd HH:mm:ss.SSS LEVEL    logger:method -- message</code>
+ * (the method is omitted if it is not known).<br/>
+ * The formatter is thread safe. The date and time part is formatted once per second
+ * and cached, only milliseconds are appended for every record.
+ * Messages with parameters are formatted by {@link #formatMessage(LogRecord)}.
+ *
+ * @author dkittrich
+ *
+ */
+class LogFormatter extends Formatter {
+
+	private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.");
+
+	/** Formatted second - replaced as a whole, so it is consistent without locking. */
+	private static final class Cached {
+		final long second;
+		final String text;
+		Cached(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	private final ZoneId zone = ZoneId.systemDefault();
+	private volatile Cached cached = new Cached(Long.MIN_VALUE, "");
+
+	@Override
+	public String	format(LogRecord record) {
+		long millis = record.getMillis();
+		long second = Math.floorDiv(millis, 1000);
+		// never negative - the second is rounded down
+		int ms = (int)(millis - second * 1000);
+		Cached c = cached;
+		if(c.second != second) {
+			c = new Cached(second, LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone).format(SECONDS));
+			cached = c;
+		}
+		String level = record.getLevel().getName();
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(c.text);
+		sb.append((char)('0' + ms / 100)).append((char)('0' + ms / 10 % 10)).append((char)('0' + ms % 10));
+		sb.append(' ').append(level);
+		for(int i=level.length(); i<8; ++i)
+			sb.append(' ');
+		sb.append(' ').append(record.getLoggerName());
+		String method = record.getSourceMethodName();
+		if(method != null)
+			sb.append(':').append(method);
+		sb.append(" -- ").append(formatMessage(record)).append('\n');
+		return sb.toString();
+	}
+
+}
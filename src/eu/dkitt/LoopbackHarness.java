@@ -0,0 +1,253 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * End-to-end throughput run of the server and simulators in one JVM over loopback sockets.<br/>
+ * The harness starts a {@link NioServer} or a {@link Server} and the given number of {@link Simulator}s,
+ * every simulator with its own directories. A fixed corpus is transferred both ways:
+ * <code>-messages</code> results from every simulator to the server and the same number of orders
+ * per simulator from the server to any simulator. The corpus is generated from a fixed seed,
+ * so runs on different commits transfer the same bytes.
+ * <ul>
+ * <li>Protocol timers are shortened (see {@link ProtocolTiming}), so the run measures the transfer,
+ * not the waiting. They can be changed by <code>-timing &lt;option&gt;=&lt;millis&gt;</code>, e.g.
+ * <code>-timing busyretry=30000</code> for the default of the standard.</li>
+ * <li>The run ends when all messages were written into the output directories.</li>
+ * <li>Reported are messages per second, bytes per second (message contents and bytes on the wire)
+ * and CPU time of the process per message.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * LoopbackHarness [-servermode nio|thread] [-peers &lt;number&gt;] [-messages &lt;number&gt;] [-size &lt;bytes&gt;] [-port &lt;number&gt;] [-timeout &lt;seconds&gt;] [-timing &lt;option&gt;=&lt;millis&gt;]...
+ * </pre>
+ *
+ * @author dkittrich
+ *
+ */
+public class LoopbackHarness {
+
+	private static final long POLL = 10;
+
+	public static void main(String[] args) throws Exception {
+		String mode = "nio";
+		int peers = 2;
+		int messages = 500;
+		int size = 2048;
+		int port = 22200;
+		int timeout = 300;
+		Properties timing = new Properties();
+		timing.setProperty(T1.OPTION_BUSY_RETRY, "200");
+		timing.setProperty(T1.OPTION_BUSY_NAK, "100");
+		for(int i=0; i<args.length; ++i) {
+			switch(args[i]) {
+			case "-" + T1.OPTION_SERVER_MODE:
+				mode = args[++i];
+				break;
+			case "-peers":
+				peers = Integer.parseInt(args[++i]);
+				break;
+			case "-messages":
+				messages = Integer.parseInt(args[++i]);
+				break;
+			case "-size":
+				size = Integer.parseInt(args[++i]);
+				break;
+			case "-port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-timeout":
+				timeout = Integer.parseInt(args[++i]);
+				break;
+			case "-timing":
+				String [] pair = args[++i].split("=", 2);
+				timing.setProperty(pair[0], pair[1]);
+				break;
+			default:
+				System.out.println("Usage: LoopbackHarness [-servermode nio|thread] [-peers <number>] [-messages <number>] [-size <bytes>] [-port <number>] [-timeout <seconds>] [-timing <option>=<millis>]...");
+				return;
+			}
+		}
+		quietLogging();
+
+		Path root = Files.createTempDirectory("loopback");
+		try {
+			run(root, mode, peers, messages, size, port, timeout, timing);
+		} finally {
+			// watchers of the deleted directories would complain
+			Logger.getLogger("").setLevel(Level.OFF);
+			delete(root);
+		}
+		System.exit(0);
+	}
+
+	private static void	run(Path root, String mode, int peers, int messages, int size, int port, int timeout, Properties timing) throws Exception {
+		Properties serverProperties = properties(root.resolve("server"), port, timing);
+		serverProperties.setProperty(T1.OPTION_SERVER_MODE, mode);
+		serverProperties.setProperty(T1.OPTION_MAX_CONNECTIONS, "" + (peers + 1));
+		if(!timing.containsKey(T1.OPTION_CONTENTION))
+			serverProperties.setProperty(T1.OPTION_CONTENTION, "200");
+		List<Properties> peerProperties = new ArrayList<Properties>();
+		for(int i=0; i<peers; ++i) {
+			Properties properties = properties(root.resolve("peer" + (i + 1)), port, timing);
+			properties.setProperty(T1.OPTION_SIMUL, "");
+			if(!timing.containsKey(T1.OPTION_INSTRUMENT_CONTENTION))
+				properties.setProperty(T1.OPTION_INSTRUMENT_CONTENTION, "20");
+			peerProperties.add(properties);
+		}
+		LinkMetrics.aggregate(serverProperties);
+
+		// the corpus - generated before the start, so the scan of the directories sees all files at once
+		Random random = new Random(1);
+		long corpusBytes = 0;
+		long number = 0;
+		for(int m=0; m<messages * peers; ++m)
+			corpusBytes += write(root.resolve("server").resolve("in"), ++number, LoadGenerator.message(random, size, number));
+		for(int i=0; i<peers; ++i) {
+			for(int m=0; m<messages; ++m)
+				corpusBytes += write(root.resolve("peer" + (i + 1)).resolve("in"), ++number, LoadGenerator.message(random, size, number));
+		}
+		long total = number;
+
+		NioServer nioServer = null;
+		Server server = null;
+		if("thread".equals(mode)) {
+			server = new Server(serverProperties);
+			server.start();
+		} else {
+			nioServer = new NioServer(serverProperties);
+			nioServer.start();
+		}
+		long wireBefore = LinkMetrics.aggregate().get(LinkMetrics.Counter.BYTES_OUT);
+		long cpuBefore = cpuTime();
+		long start = System.nanoTime();
+
+		List<Simulator> simulators = new ArrayList<Simulator>();
+		for(Properties properties : peerProperties) {
+			Simulator simulator = new Simulator(properties);
+			simulator.start();
+			simulators.add(simulator);
+		}
+
+		long received = 0;
+		long deadline = start + timeout * 1000000000L;
+		while(System.nanoTime() < deadline) {
+			received = count(root.resolve("server").resolve("out"));
+			for(int i=0; i<peers; ++i)
+				received += count(root.resolve("peer" + (i + 1)).resolve("out"));
+			if(received >= total)
+				break;
+			Thread.sleep(POLL);
+		}
+		long elapsed = System.nanoTime() - start;
+		long cpu = cpuTime() - cpuBefore;
+		long wire = LinkMetrics.aggregate().get(LinkMetrics.Counter.BYTES_OUT) - wireBefore;
+
+		for(Simulator simulator : simulators)
+			simulator.stop();
+		if(server != null)
+			server.stop();
+		if(nioServer != null)
+			nioServer.stop();
+		// store counters now, the directories are deleted before the shutdown hooks run
+		SequenceAllocator.forDirectory(root.resolve("server").resolve("out"), serverProperties).close();
+		for(int i=0; i<peers; ++i)
+			SequenceAllocator.forDirectory(root.resolve("peer" + (i + 1)).resolve("out"), peerProperties.get(i)).close();
+
+		double seconds = elapsed / 1e9;
+		System.out.println("Server mode           : " + mode);
+		System.out.println("Peers                 : " + peers);
+		System.out.println("Messages              : " + received + " of " + total + (received < total ? " - TIMEOUT" : ""));
+		System.out.println(String.format("Elapsed               : %.3f s", seconds));
+		System.out.println(String.format("Messages/s            : %.1f", received / seconds));
+		System.out.println(String.format("Message bytes/s       : %.0f", corpusBytes * ((double)received / total) / seconds));
+		System.out.println(String.format("Wire bytes/s          : %.0f", wire / seconds));
+		if(cpu >= 0 && received > 0)
+			System.out.println(String.format("CPU per message       : %.1f us", cpu / 1000.0 / received));
+	}
+
+	/**
+	 * Properties of one side with its own directories.
+	 */
+	private static Properties	properties(Path dir, int port, Properties timing) throws IOException {
+		Files.createDirectories(dir.resolve("in").resolve("sent"));
+		Files.createDirectories(dir.resolve("out"));
+		Properties properties = new Properties();
+		properties.setProperty(T1.OPTION_HOST, "localhost");
+		properties.setProperty(T1.OPTION_PORT, "" + port);
+		properties.setProperty(T1.OPTION_DIRECTORY_2_SEND, dir.resolve("in").toString());
+		properties.setProperty(T1.OPTION_FILES_2_SEND_MASK, "*.txt");
+		properties.setProperty(T1.OPTION_DIRBACKUP_2_SEND, dir.resolve("in").resolve("sent").toString());
+		properties.setProperty(T1.OPTION_DIRECTORY_RCVD, dir.resolve("out").toString());
+		properties.setProperty(T1.OPTION_FILES_RCVD_NAME, "msg_received_%06d.txt");
+		properties.setProperty(T1.OPTION_METRICS_JMX, "false");
+		properties.putAll(timing);
+		return properties;
+	}
+
+	private static long	write(Path dir, long number, byte [] data) throws IOException {
+		Files.write(dir.resolve(String.format("message_%06d.txt", number)), data);
+		return data.length;
+	}
+
+	/** Number of received messages in a directory. */
+	private static long	count(Path dir) throws IOException {
+		long n = 0;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "msg_received_*.txt")) {
+			for(@SuppressWarnings("unused") Path file : stream)
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * CPU time of the process in nanoseconds - of all live threads if the JVM does not report the process.
+	 * @return time or -1 if not available
+	 */
+	private static long	cpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadCpuTimeSupported())
+			return -1;
+		long sum = 0;
+		for(long id : threads.getAllThreadIds())
+			sum += Math.max(0, threads.getThreadCpuTime(id));
+		return sum;
+	}
+
+	/**
+	 * Only warnings are logged to the console - logging of every transfer would dominate the run.
+	 */
+	private static void	quietLogging() {
+		Logger root = Logger.getLogger("");
+		root.setLevel(Level.WARNING);
+		for(Handler handler : root.getHandlers())
+			handler.setLevel(Level.WARNING);
+	}
+
+	private static void	delete(Path path) throws IOException {
+		if(Files.isDirectory(path)) {
+			try(DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+				for(Path child : stream)
+					delete(child);
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+}
@@ -0,0 +1,243 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Growable buffer of one received message built from chunks of a {@link BufferPool}.<br/>
+ * An empty buffer holds no chunk, chunks are taken from the pool as the message grows
+ * and returned to the pool by {@link #release()}.
+ * The buffer supports rollback to the last commit, so that it can collect frames
+ * from a {@link FrameDecoder}, and dropping of the last committed frame if it was never confirmed.
+ *
+ * @author dkittrich
+ *
+ */
+class MessageBuffer implements FrameDecoder.Sink {
+
+	private final BufferPool pool;
+	/** Chunks in the write mode - the last one is being filled. */
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private int size = 0;
+
+	/** Positions of &lt;CR&gt; ending frames continued by the next frame (&lt;ETB&gt;). */
+	private int [] joins = new int[8];
+	private int joinCount = 0;
+
+	/** Position of the last commit. */
+	private int commitChunk = 0;
+	private int commitPos = 0;
+	private int commitSize = 0;
+	private int commitJoins = 0;
+	/** Position of the commit before the last one. */
+	private int previousChunk = 0;
+	private int previousPos = 0;
+	private int previousSize = 0;
+	private int previousJoins = 0;
+
+	MessageBuffer(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Number of bytes in the buffer.
+	 * @return
+	 */
+	int	size() {
+		return size;
+	}
+
+	@Override
+	public void	append(ByteBuffer src, int offset, int len) {
+		while(len > 0) {
+			ByteBuffer chunk = current();
+			int n = Math.min(len, chunk.remaining());
+			if(src.hasArray()) {
+				chunk.put(src.array(), src.arrayOffset() + offset, n);
+			} else {
+				for(int i=0; i<n; ++i)
+					chunk.put(src.get(offset + i));
+			}
+			offset += n;
+			len -= n;
+			size += n;
+		}
+	}
+
+	/**
+	 * Append a single byte.
+	 * @param b
+	 */
+	void	put(byte b) {
+		current().put(b);
+		size++;
+	}
+
+	/**
+	 * Terminate a valid frame by &lt;LF&gt; and commit it.
+	 */
+	@Override
+	public void	frameCommit(boolean bTerminal) {
+		if(!bTerminal && size > 0) {
+			ByteBuffer chunk = chunks.get(chunks.size() - 1);
+			if(chunk.get(chunk.position() - 1) == Executor.CR) {
+				if(joinCount == joins.length)
+					joins = Arrays.copyOf(joins, joins.length * 2);
+				joins[joinCount++] = size - 1;
+			}
+		}
+		put((byte)Executor.LF);
+		commit();
+	}
+
+	@Override
+	public void	frameRollback() {
+		rollback();
+	}
+
+	/**
+	 * Remember the current end of the data as a rollback point.
+	 */
+	void	commit() {
+		previousChunk = commitChunk;
+		previousPos = commitPos;
+		previousSize = commitSize;
+		previousJoins = commitJoins;
+		commitJoins = joinCount;
+		commitSize = size;
+		if(chunks.isEmpty()) {
+			commitChunk = 0;
+			commitPos = 0;
+		} else {
+			commitChunk = chunks.size() - 1;
+			commitPos = chunks.get(commitChunk).position();
+		}
+	}
+
+	/**
+	 * Discard data appended since the last commit.
+	 */
+	void	rollback() {
+		while(chunks.size() > commitChunk + 1) {
+			pool.release(chunks.remove(chunks.size() - 1));
+		}
+		if(!chunks.isEmpty()) {
+			chunks.get(commitChunk).position(commitPos);
+		}
+		size = commitSize;
+		joinCount = commitJoins;
+	}
+
+	/**
+	 * Discard the last committed frame and data appended after it - the state of the commit before.
+	 * Only one frame may be discarded.
+	 */
+	void	discardLastFrame() {
+		commitChunk = previousChunk;
+		commitPos = previousPos;
+		commitSize = previousSize;
+		commitJoins = previousJoins;
+		rollback();
+	}
+
+	/**
+	 * Write the whole contents to a channel, the contents is kept.
+	 * @param channel
+	 * @throws IOException
+	 */
+	void	writeTo(GatheringByteChannel channel) throws IOException {
+		ByteBuffer [] buffers = new ByteBuffer[chunks.size()];
+		long remaining = 0;
+		for(int i=0; i<buffers.length; ++i) {
+			ByteBuffer chunk = chunks.get(i).duplicate();
+			chunk.flip();
+			buffers[i] = chunk;
+			remaining += chunk.remaining();
+		}
+		while(remaining > 0) {
+			remaining -= channel.write(buffers);
+		}
+	}
+
+	/**
+	 * Update a checksum by the whole contents, the contents is kept.
+	 * @param crc
+	 */
+	void	update(CRC32 crc) {
+		for(ByteBuffer chunk : chunks) {
+			ByteBuffer data = chunk.duplicate();
+			data.flip();
+			crc.update(data);
+		}
+	}
+
+	/**
+	 * Copy the whole contents into a new array for {@link AstmMessage#parse(byte[], int, long)}, the contents is kept.
+	 * The &lt;CR&gt; of a frame continued by the next one is replaced by &lt;LF&gt;,
+	 * so only the end of a record is marked by &lt;CR&gt;.
+	 * @return
+	 */
+	byte []	toRecords() {
+		byte [] data = new byte[size];
+		int n = 0;
+		for(ByteBuffer chunk : chunks) {
+			ByteBuffer src = chunk.duplicate();
+			src.flip();
+			int len = src.remaining();
+			src.get(data, n, len);
+			n += len;
+		}
+		for(int i=0; i<joinCount; ++i)
+			data[joins[i]] = Executor.LF;
+		return data;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the whole contents, the contents is kept.
+	 * @return
+	 */
+	long	hash() {
+		long hash = 0xcbf29ce484222325L;
+		for(ByteBuffer chunk : chunks) {
+			for(int i=0, n=chunk.position(); i<n; ++i) {
+				hash ^= chunk.get(i) & 0xFF;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Return all chunks to the pool, the buffer is empty afterwards.
+	 */
+	void	release() {
+		for(ByteBuffer chunk : chunks) {
+			pool.release(chunk);
+		}
+		chunks.clear();
+		size = 0;
+		joinCount = 0;
+		commitChunk = 0;
+		commitPos = 0;
+		commitSize = 0;
+		commitJoins = 0;
+		previousChunk = 0;
+		previousPos = 0;
+		previousSize = 0;
+		previousJoins = 0;
+	}
+
+	private ByteBuffer	current() {
+		ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if(chunk == null || !chunk.hasRemaining()) {
+			chunk = pool.acquire();
+			chunks.add(chunk);
+		}
+		return chunk;
+	}
+
+}
@@ -0,0 +1,122 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link LinkMetrics} in the Prometheus text format on <code>http://localhost:&lt;port&gt;/metrics</code>.<br/>
+ * The server listens on the loopback interface only and is run by a single daemon thread.
+ * Counters of the process are reported as <code>asi_link_&lt;name&gt;</code>, counters of open connections
+ * as <code>asi_connection_&lt;name&gt;{connection="..."}</code>. Times are reported in seconds.
+ *
+ * @author dkittrich
+ *
+ */
+class MetricsServer implements HttpHandler {
+
+	private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+	private static HttpServer server = null;
+
+	/**
+	 * Start the server, it is started only once in the process.
+	 * @param port
+	 * @throws IOException
+	 */
+	static synchronized void	start(int port) throws IOException {
+		if(server != null)
+			return;
+		HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new MetricsServer());
+		http.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MetricsServer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+		http.start();
+		server = http;
+		logger.info("Metrics served on http://localhost:" + port + "/metrics");
+	}
+
+	@Override
+	public void	handle(HttpExchange exchange) throws IOException {
+		byte [] body = format().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Text of all metrics.
+	 * @return
+	 */
+	static String	format() {
+		StringBuilder sb = new StringBuilder(4096);
+		LinkMetrics aggregate = LinkMetrics.aggregate();
+		if(aggregate == null)
+			return "";
+		gauge(sb, "asi_link_active_sessions", "Open connections");
+		sb.append("asi_link_active_sessions ").append(aggregate.getActiveSessions()).append('\n');
+		gauge(sb, "asi_link_queued_files", "Files waiting to be sent");
+		sb.append("asi_link_queued_files ").append(OutboundQueue.totalSize()).append('\n');
+		for(LinkMetrics.Counter counter : LinkMetrics.Counter.values()) {
+			String name = metricName(counter);
+			counter(sb, "asi_link_" + name, counter.description);
+			sb.append("asi_link_").append(name).append(' ').append(value(aggregate, counter)).append('\n');
+		}
+		for(LinkMetrics.Counter counter : LinkMetrics.Counter.values()) {
+			String name = metricName(counter);
+			counter(sb, "asi_connection_" + name, counter.description + " by the connection");
+			for(LinkMetrics metrics : LinkMetrics.connections()) {
+				sb.append("asi_connection_").append(name).append("{connection=\"").append(escape(metrics.getName())).append("\"} ")
+					.append(value(metrics, counter)).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Prometheus name of a counter - times are in seconds. */
+	private static String	metricName(LinkMetrics.Counter counter) {
+		String name = counter.name().toLowerCase();
+		if(name.endsWith("_nanos"))
+			name = name.substring(0, name.length() - "_nanos".length()) + "_seconds";
+		return name + "_total";
+	}
+
+	private static String	value(LinkMetrics metrics, LinkMetrics.Counter counter) {
+		long value = metrics.get(counter);
+		if(counter.name().endsWith("_NANOS"))
+			return Double.toString(value / 1e9);
+		return Long.toString(value);
+	}
+
+	private static void	gauge(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+	}
+
+	private static void	counter(StringBuilder sb, String name, String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+	}
+
+	private static String	escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
@@ -0,0 +1,379 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking server multiplexing many instrument connections.<br/>
+ * Connections are served by a small number of selector threads
+ * (property {@link T1#OPTION_SELECTORS}), every connection has its own
+ * {@link NioSession} holding the protocol state.
+ * Unlike {@link Server} a new connection never terminates the previous ones.
+ * <ul>
+ * <li>{@link T1#OPTION_MAX_CONNECTIONS} - new connections above the limit are refused.</li>
+ * <li>{@link T1#OPTION_IDLE_TIMEOUT} - connections without any received byte for the given
+ * number of seconds are closed, 0 disables the eviction.</li>
+ * <li>{@link T1#OPTION_PROFILES} - the server listens on ports of all {@link Profile profiles},
+ * every connection is served with properties of its profile.</li>
+ * </ul>
+ * A selector thread sleeps until data arrives or until one of its sessions is due - deadlines
+ * of sessions are registered with the {@link TimerWheel}, so idle connections cost no wake-ups.
+ * Selector threads never wait for the disk - writing, opening and moving files is done by I/O threads
+ * created on demand, a session has at most one of them busy at a time.
+ *
+ * @author dkittrich
+ *
+ */
+public class NioServer {
+
+	private static final Logger logger = Logger.getLogger(NioServer.class.getName());
+
+	Properties properties;
+
+	private final int maxConnections;
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger connectionCounter = new AtomicInteger(1);
+
+	private final List<Profile> profiles;
+
+	private SelectorLoop [] loops;
+	/** Threads doing blocking disk work of sessions. */
+	private ExecutorService io;
+	private final List<Listener> listeners = new ArrayList<Listener>();
+	private volatile boolean running;
+
+	/**
+	 * Listening socket of a port with profiles served on it.
+	 */
+	private static class Listener {
+		final ServerSocketChannel channel;
+		final List<Profile> profiles = new ArrayList<Profile>();
+
+		Listener(ServerSocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/**
+	 * @param properties	properties of the process
+	 * @throws IllegalArgumentException	invalid profiles
+	 */
+	public NioServer(Properties properties) {
+		this.properties = properties;
+		maxConnections = Integer.parseInt(properties.getProperty(T1.OPTION_MAX_CONNECTIONS, "64"));
+		profiles = Profile.parse(properties);
+	}
+
+	/**
+	 * The method is starting a server and waits in the main thread
+	 * until [Enter] is pressed.
+	 * @throws IOException
+	 */
+	public void execute() throws IOException {
+		try {
+			start();
+		} catch (IOException e) {
+			// We did not get a server socket - no way to continue - just exit
+			logger.warning("Could not retrieve server socket");
+			e.printStackTrace();
+			return;
+		}
+
+		System.out.println("Press [Enter] to terminate the server.");
+
+		try {
+			while(true) {
+				Thread.sleep(500);
+				while (System.in.available() > 0) {
+					int c = System.in.read();
+					if (c == 10) {
+						stop();
+						System.out.println("Server stopped");
+						return;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			stop();
+		}
+	}
+
+	/**
+	 * Open listening sockets of all profiles and start selector threads.
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		int nLoops = Math.max(1, Integer.parseInt(properties.getProperty(T1.OPTION_SELECTORS, "1")));
+		Map<Integer, Listener> ports = new LinkedHashMap<Integer, Listener>();
+		try {
+			for(Profile profile : profiles) {
+				Listener listener = ports.get(profile.port);
+				if(listener == null) {
+					logger.info("Starting non-blocking server on port = " + profile.port + ", selectors = " + nLoops + ", max. connections = " + maxConnections);
+					ServerSocketChannel serverChannel = ServerSocketChannel.open();
+					listener = new Listener(serverChannel);
+					listeners.add(listener);
+					ports.put(profile.port, listener);
+					serverChannel.socket().setReuseAddress(true);
+					serverChannel.bind(new InetSocketAddress(profile.port));
+					serverChannel.configureBlocking(false);
+				}
+				listener.profiles.add(profile);
+				if(!profile.name.isEmpty())
+					logger.info("Profile " + profile.name + " on port " + profile.port + (profile.peer != null ? " for " + profile.peer.getHostAddress() : ""));
+			}
+		} catch (IOException e) {
+			closeListeners();
+			throw e;
+		}
+		logger.fine("Server socket retrieved");
+		running = true;
+		final AtomicInteger ioCounter = new AtomicInteger(1);
+		io = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SessionIO_" + ioCounter.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		loops = new SelectorLoop[nLoops];
+		for(int i=0; i<nLoops; ++i) {
+			loops[i] = new SelectorLoop(i);
+		}
+		for(Listener listener : listeners)
+			listener.channel.register(loops[0].selector, SelectionKey.OP_ACCEPT, listener);
+		for(SelectorLoop loop : loops) {
+			loop.thread.start();
+		}
+	}
+
+	/**
+	 * Close listening sockets and all connections, stop selector threads
+	 * and wait for disk work of the sessions.
+	 */
+	public void stop() {
+		running = false;
+		closeListeners();
+		// start() may have failed
+		if(loops != null) {
+			for(SelectorLoop loop : loops) {
+				if(loop != null)
+					loop.selector.wakeup();
+			}
+			for(SelectorLoop loop : loops) {
+				try {
+					if(loop != null)
+						loop.thread.join();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		if(io != null) {
+			io.shutdown();
+			try {
+				io.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Number of currently open instrument connections.
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	private void closeListeners() {
+		for(Listener listener : listeners) {
+			try {listener.channel.close();} catch (IOException e) {}
+		}
+	}
+
+	private void accept(Listener listener) {
+		SocketChannel channel;
+		while(true) {
+			try {
+				channel = listener.channel.accept();
+			} catch (IOException e) {
+				logger.warning("Socket accept failed " + e);
+				return;
+			}
+			if(channel == null)
+				return;
+			if(connections.get() >= maxConnections) {
+				logger.warning("Connection refused - limit of " + maxConnections + " connections reached");
+				try {channel.close();} catch (IOException e) {}
+				continue;
+			}
+			InetAddress remote = channel.socket().getInetAddress();
+			Profile profile = Profile.route(listener.profiles, remote);
+			if(profile == null) {
+				logger.warning("Connection refused - no profile of port " + channel.socket().getLocalPort() + " for " + remote.getHostAddress());
+				try {channel.close();} catch (IOException e) {}
+				continue;
+			}
+			try {
+				SocketTuning.apply(channel.socket(), profile.properties);
+				channel.configureBlocking(false);
+			} catch (IOException e) {
+				logger.warning("Cannot configure a client socket " + e);
+				try {channel.close();} catch (IOException e1) {}
+				continue;
+			}
+			connections.incrementAndGet();
+			int id = connectionCounter.getAndIncrement();
+			String name = profile.connectionName("Connection_" + id);
+			logger.fine("New client connected: " + name);
+			SelectorLoop loop = loops[id % loops.length];
+			NioSession session = new NioSession(channel, profile.properties, name, loop);
+			loop.pending.add(session);
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * One selector thread with its sessions.
+	 */
+	private class SelectorLoop implements Runnable, NioSession.Scheduler {
+
+		final Selector selector;
+		final Thread thread;
+		final ConcurrentLinkedQueue<NioSession> pending = new ConcurrentLinkedQueue<NioSession>();
+		/** Sessions whose deadline was reached or which have a new file to send. */
+		final ConcurrentLinkedQueue<NioSession> due = new ConcurrentLinkedQueue<NioSession>();
+		/** Read buffer shared by all sessions of the thread. */
+		final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+		SelectorLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "Selector_" + index);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(running) {
+					selector.select();
+					registerPending();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if(!key.isValid())
+							continue;
+						if(key.isAcceptable()) {
+							accept((Listener)key.attachment());
+							continue;
+						}
+						NioSession session = (NioSession)key.attachment();
+						if(key.isWritable())
+							session.onWritable();
+						if(key.isValid() && key.isReadable())
+							session.onReadable(readBuffer);
+						if(session.isClosed())
+							connections.decrementAndGet();
+						else
+							service(session);
+					}
+					NioSession session;
+					while((session = due.poll()) != null) {
+						if(!session.isClosed() && session.isRegistered())
+							service(session);
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				logger.warning("Selector failed " + e);
+			} catch (RuntimeException e) {
+				logger.severe("Selector thread terminated by an unexpected exception " + e);
+				e.printStackTrace();
+			} finally {
+				for(SelectionKey key : selector.keys()) {
+					Object o = key.attachment();
+					if(o instanceof NioSession && !((NioSession)o).isClosed()) {
+						((NioSession)o).close();
+						connections.decrementAndGet();
+					}
+				}
+				for(NioSession session : pending) {
+					session.close();
+					connections.decrementAndGet();
+				}
+				try {selector.close();} catch (IOException e) {}
+			}
+		}
+
+		@Override
+		public void due(NioSession session) {
+			due.add(session);
+			selector.wakeup();
+		}
+
+		@Override
+		public void io(Runnable work) {
+			try {
+				io.execute(work);
+			} catch (RejectedExecutionException e) {
+				// the server is stopping - finish the work of a closed session
+				work.run();
+			}
+		}
+
+		/**
+		 * Evaluate timers of an open session - it may start a transfer or be evicted -
+		 * and register its next deadline.
+		 */
+		private void service(NioSession session) {
+			long now = TimerWheel.now();
+			if(session.isIdleExpired(now)) {
+				logger.info(session.getName() + ": idle for too long - connection closed");
+				session.close();
+			} else {
+				session.onTimer(now);
+				session.reschedule();
+			}
+			if(session.isClosed())
+				connections.decrementAndGet();
+		}
+
+		private void registerPending() {
+			NioSession session;
+			while((session = pending.poll()) != null) {
+				try {
+					SocketChannel channel = session.getChannel();
+					session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+					// a file may be waiting already
+					service(session);
+				} catch (IOException e) {
+					logger.warning("Cannot register a client socket " + e);
+					session.close();
+					connections.decrementAndGet();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,840 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import eu.dkitt.FileProcessor.InvalidFileContents;
+
+/**
+ * Non-blocking counterpart of the {@link Executor} for a single instrument connection.<br/>
+ * The session keeps the whole protocol state in its members, so that it can be driven
+ * by a selector thread instead of owning a thread of its own:
+ * <ul>
+ * <li>{@link #onReadable(ByteBuffer)} is called when the channel has bytes to read.</li>
+ * <li>{@link #onWritable()} is called when pending output can be written.</li>
+ * <li>{@link #onTimer(long)} is called when the session is due, it evaluates timeouts.</li>
+ * </ul>
+ * The session is due when its next deadline is reached ({@link #reschedule()} registers it
+ * with the {@link TimerWheel}) or when a new file to send appears - it is then queued
+ * by its {@link Scheduler}. Sessions without a running timer are never woken up.
+ * All times are taken from the monotonic clock {@link TimerWheel#now()}.<br/>
+ * Disk work which may block - writing a received message which can not be handed over to the write-behind stage,
+ * opening a file to send and moving a sent file - is done by {@link Job jobs} on threads of {@link Scheduler#io(Runnable)},
+ * the session continues when its thread is due after the job. The &lt;ACK&gt; of received frames is held back
+ * while a message is being written.<br/>
+ * The session works always as a server (LIS) side of the link.
+ *
+ * @author dkittrich
+ *
+ */
+class NioSession {
+
+	private static final Logger logger = Logger.getLogger(NioSession.class.getName());
+
+	enum State {
+		/** Nothing is being transferred. */
+		IDLE,
+		/** We have sent &lt;ENQ&gt; and are waiting for a reply. */
+		WAIT_ENQ_REPLY,
+		/** We have sent a frame and are waiting for its confirmation. */
+		SENDING,
+		/** We have confirmed the instrument's &lt;ENQ&gt; and receive frames. */
+		RECEIVING
+	}
+
+	/**
+	 * Owner of the thread driving the session.
+	 */
+	interface Scheduler {
+		/**
+		 * Queue the session for {@link NioSession#onTimer(long)}, called from any thread.
+		 * @param session
+		 */
+		void	due(NioSession session);
+
+		/**
+		 * Run blocking disk work of the session by another thread, called by the session's thread.
+		 * @param work
+		 */
+		void	io(Runnable work);
+	}
+
+	/** Single byte arrays of control characters - never modified. */
+	private static final byte [][] CONTROL = new byte[32][];
+	static {
+		for(int i=0; i<CONTROL.length; ++i)
+			CONTROL[i] = new byte[] {(byte)i};
+	}
+
+	/** How often a held back &lt;ACK&gt; checks for a free slot of the write-behind queue. */
+	private static final long ACK_HOLD_POLL = 10;
+
+	private final SocketChannel channel;
+	private final String name;
+	private SelectionKey key;
+
+	private final FileProcessor fileProcessor;
+	private final Scheduler scheduler;
+	private final ProtocolTiming timing;
+	/** Idle time after which the connection is closed, 0 for no eviction. */
+	private final long idleTimeout;
+
+	/** Queues the session for its thread - run by the file listener and by the timer wheel. */
+	private final Runnable wakeup = new Runnable() {
+		@Override
+		public void run() {
+			scheduler.due(NioSession.this);
+		}
+	};
+	/** Registered deadline, null if none. */
+	private TimerWheel.Timeout timeout;
+
+	private State state = State.IDLE;
+	private boolean closed = false;
+
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	/** Jobs submitted and not done, the first one is running - guarded by itself. */
+	private final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+	/** Jobs done and waiting for the session's thread - guarded by {@link #jobs}. */
+	private final ArrayDeque<Job> finished = new ArrayDeque<Job>();
+	/** Messages being written by jobs. */
+	private int commitJobs = 0;
+
+	/** Time of the last byte received - used for idle eviction. */
+	private long lastActivity;
+	/** End of the busy timer. */
+	private long busyEnd;
+	/** End of the contention timer. */
+	private long contentionEnd;
+	/** Deadline of the reply we are waiting for in any non idle state. */
+	private long replyDeadline;
+	/** The &lt;ACK&gt; of a received frame is held back. */
+	private boolean ackHeld = false;
+	/** Time since the &lt;ACK&gt; is held back. */
+	private long ackHeldSince;
+
+	/** Capture of the bytes exchanged - null if capturing is not enabled. */
+	private final WireCapture.Session captured;
+	/** Counters of the connection. */
+	private final LinkMetrics metrics;
+
+	/** Decoder of frames being received. */
+	private final FrameDecoder frameDecoder;
+
+	/** Frame being sent. */
+	private OutboundFrames txFrames;
+	private int txLength;
+	private int txFrameIndex;
+	private int txAttempts;
+	/** Messages and bytes sent in the current transfer phase. */
+	private int txMessages;
+	private long txBytes;
+
+	/**
+	 * @param channel	connected channel
+	 * @param properties	properties of the connection
+	 * @param name	name used in logs
+	 * @param scheduler	queues the session for its thread when it is due
+	 */
+	NioSession(SocketChannel channel, Properties properties, String name, Scheduler scheduler) {
+		this.channel = channel;
+		this.name = name;
+		this.fileProcessor = new FileProcessor(properties);
+		this.frameDecoder = new FrameDecoder(fileProcessor);
+		this.scheduler = scheduler;
+		this.timing = new ProtocolTiming(properties, false);
+		this.idleTimeout = 1000L * Integer.parseInt(properties.getProperty(T1.OPTION_IDLE_TIMEOUT, "0"));
+		fileProcessor.addFileListener(wakeup);
+		WireCapture capture = WireCapture.shared(properties);
+		captured = capture == null ? null : capture.open(name);
+		metrics = LinkMetrics.open(properties, name);
+		long now = TimerWheel.now();
+		lastActivity = now;
+		busyEnd = now;
+		contentionEnd = now;
+	}
+
+	void	setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SocketChannel	getChannel() {
+		return channel;
+	}
+
+	String	getName() {
+		return name;
+	}
+
+	boolean	isClosed() {
+		return closed;
+	}
+
+	boolean	isRegistered() {
+		return key != null;
+	}
+
+	State	getState() {
+		return state;
+	}
+
+	/**
+	 * The connection was idle for longer than {@link T1#OPTION_IDLE_TIMEOUT}.
+	 * @param now
+	 * @return
+	 */
+	boolean	isIdleExpired(long now) {
+		return idleTimeout > 0 && state == State.IDLE && now - lastActivity >= idleTimeout;
+	}
+
+	/**
+	 * Time when the session needs to be woken up even if no data arrives.
+	 * @param now	current time of {@link TimerWheel#now()}
+	 * @return time of {@link TimerWheel#now()} or {@link Long#MAX_VALUE} if there is none
+	 */
+	long	nextDeadline(long now) {
+		if(ackHeld)
+			return now + ACK_HOLD_POLL;
+		// a job wakes the session when it is done
+		if(state == State.SENDING && txFrames == null)
+			return Long.MAX_VALUE;
+		if(state != State.IDLE)
+			return replyDeadline;
+		// a new file queues the session, we wait only for running timers
+		long deadline = Math.max(busyEnd, contentionEnd);
+		if(deadline <= now)
+			deadline = Long.MAX_VALUE;
+		if(idleTimeout > 0)
+			deadline = Math.min(deadline, lastActivity + idleTimeout);
+		return deadline;
+	}
+
+	/**
+	 * Register the next deadline with the timer wheel, called by the session's thread
+	 * after every event. A registered timeout is kept if the deadline did not change.
+	 */
+	void	reschedule() {
+		long now = TimerWheel.now();
+		long deadline = closed ? Long.MAX_VALUE : nextDeadline(now);
+		if(timeout != null) {
+			if(timeout.deadline == deadline && deadline > now)
+				return;
+			timeout.cancel();
+			timeout = null;
+		}
+		if(deadline != Long.MAX_VALUE)
+			timeout = TimerWheel.shared().scheduleAt(deadline, wakeup);
+	}
+
+	/**
+	 * Read everything available from the channel and feed the protocol state machine.
+	 * All bytes read are consumed before the method returns, so the buffer
+	 * is shared by all sessions of a selector thread.
+	 * @param readBuffer	empty buffer of the selector thread
+	 */
+	void	onReadable(ByteBuffer readBuffer) {
+		int n;
+		try {
+			while((n = channel.read(readBuffer)) > 0) {
+				lastActivity = TimerWheel.now();
+				metrics.add(LinkMetrics.Counter.BYTES_IN, n);
+				readBuffer.flip();
+				if(captured != null)
+					captured.in(readBuffer);
+				while(readBuffer.hasRemaining() && !closed) {
+					if(state == State.RECEIVING) {
+						replyDeadline = lastActivity + timing.replyTimeout;
+						onFrameEvent(frameDecoder.decode(readBuffer));
+					} else {
+						onByte(readBuffer.get() & 0xFF);
+					}
+				}
+				readBuffer.clear();
+			}
+		} catch (IOException e) {
+			logger.info(name + ": read failed - " + e.getMessage());
+			close();
+			return;
+		} finally {
+			readBuffer.clear();
+		}
+		if(n < 0) {
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": socket was closed by the peer");
+			close();
+		}
+	}
+
+	/**
+	 * Write as much of the pending output as the channel accepts.
+	 */
+	void	onWritable() {
+		try {
+			flush();
+		} catch (IOException e) {
+			logger.info(name + ": write failed - " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Evaluate timers of the session.
+	 * @param now	current time of {@link TimerWheel#now()}
+	 */
+	void	onTimer(long now) {
+		if(closed)
+			return;
+		try {
+			finishJobs(now);
+			switch(state) {
+			case IDLE:
+				if(now < busyEnd || now < contentionEnd)
+					return;
+				if(fileProcessor.hasFileToSend()) {
+					logger.info(name + ": there is a file to transfer - starting establishment phase");
+					send(Executor.ENQ);
+					enter(State.WAIT_ENQ_REPLY, now);
+				}
+				break;
+			case WAIT_ENQ_REPLY:
+				if(now < replyDeadline)
+					return;
+				metrics.inc(LinkMetrics.Counter.TIMEOUTS);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": no valid byte received - starting busy timer for " + timing.busyRetry + " ms");
+				send(Executor.EOT);
+				busyEnd = now + timing.busyRetry;
+				state = State.IDLE;
+				break;
+			case SENDING:
+				if(now < replyDeadline || txFrames == null)
+					return;
+				metrics.inc(LinkMetrics.Counter.TIMEOUTS);
+				logger.warning(name + ": no reaction received - timeout");
+				transmitFailed(now);
+				break;
+			case RECEIVING:
+				if(ackHeld) {
+					if(commitJobs == 0 && fileProcessor.tryReserveWrite() || now - ackHeldSince >= WriteBehind.ACK_HOLD_LIMIT)
+						releaseAck(now);
+					return;
+				}
+				if(now < replyDeadline)
+					return;
+				metrics.inc(LinkMetrics.Counter.TIMEOUTS);
+				logger.warning(name + ": receive timeout - message discarded");
+				state = State.IDLE;
+				break;
+			}
+		} catch (IOException e) {
+			logger.info(name + ": connection exception - " + e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Close the channel. The session can not be used anymore.
+	 */
+	void	close() {
+		if(closed)
+			return;
+		List<Job> abandoned;
+		synchronized (jobs) {
+			closed = true;
+			abandoned = new ArrayList<Job>(finished);
+			finished.clear();
+		}
+		for(Job job : abandoned)
+			job.abandon();
+		fileProcessor.removeFileListener(wakeup);
+		if(timeout != null) {
+			timeout.cancel();
+			timeout = null;
+		}
+		closeFrames();
+		fileProcessor.close();
+		if(captured != null)
+			captured.close();
+		metrics.close();
+		if(key != null)
+			key.cancel();
+		try {channel.close();} catch (IOException e) {}
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(name + ": connection to a client terminated");
+	}
+
+	private void	enter(State newState, long now) {
+		state = newState;
+		replyDeadline = now + timing.replyTimeout;
+	}
+
+	private void	onByte(int c) throws IOException {
+		long now = lastActivity;
+		switch(state) {
+		case IDLE:
+			if(c != Executor.ENQ) {
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": waiting for <ENQ> - unexpected byte received : " + c);
+				return;
+			}
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": <ENQ> received - request confirmed by <ACK>");
+			send(Executor.ACK);
+			fileProcessor.prepareForNextFile();
+			frameDecoder.reset();
+			enter(State.RECEIVING, now);
+			break;
+		case WAIT_ENQ_REPLY:
+			if (c == Executor.ACK) {
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": <ACK> received - starting transfer phase (sender)");
+				startTransmit(now);
+			} else if (c == Executor.NAK) {
+				metrics.inc(LinkMetrics.Counter.NAKS_RECEIVED);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": <NAK> received - starting busy timer for " + timing.busyNak + " ms");
+				busyEnd = now + timing.busyNak;
+				state = State.IDLE;
+			} else if (c == Executor.ENQ) {
+				metrics.inc(LinkMetrics.Counter.CONTENTIONS);
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": <ENQ> received - starting contention timer for " + timing.contention + " ms");
+				contentionEnd = now + timing.contention;
+				state = State.IDLE;
+			}
+			break;
+		case SENDING:
+			// the file is being opened or moved
+			if(txFrames == null)
+				break;
+			if (c == Executor.ACK || c == Executor.EOT) {
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": frame accepted by " + (c == Executor.ACK ? "<ACK>":"<EOT>"));
+				sendNextFrame(now);
+			} else if (c == Executor.NAK) {
+				metrics.inc(LinkMetrics.Counter.NAKS_RECEIVED);
+				logger.info(name + ": frame rejected by <NAK>");
+				if(txAttempts >= 6) {
+					logger.warning(name + ": too many rejections - stop trying");
+					transmitFailed(now);
+				} else {
+					sendFrame(now);
+				}
+			}
+			break;
+		case RECEIVING:
+			break;
+		}
+	}
+
+	private void	onFrameEvent(FrameDecoder.Event event) throws IOException {
+		boolean bUnconfirmed = ackHeld;
+		if(event != FrameDecoder.Event.NONE && event != FrameDecoder.Event.MESSAGE)
+			ackHeld = false;
+		switch(event) {
+		case NONE:
+			break;
+		case EOT:
+			if(bUnconfirmed) {
+				logger.info(name + ": <EOT> received while <ACK> was held back - the unconfirmed frame is discarded");
+				if(!fileProcessor.discardLastFrame()) {
+					state = State.IDLE;
+					break;
+				}
+			}
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": <EOT> received - transfer terminated, writing a file");
+			commit();
+			state = State.IDLE;
+			break;
+		case MESSAGE:
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": header record received - writing the previous message of the batch");
+			commit();
+			break;
+		case FRAME:
+			metrics.inc(LinkMetrics.Counter.FRAMES_IN);
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": frame " + frameDecoder.getFrameNo() + " received, length : " + frameDecoder.getLength());
+			if(commitJobs == 0 && fileProcessor.tryReserveWrite()) {
+				send(Executor.ACK);
+			} else {
+				logger.info(name + ": write-behind queue is full or a message is being written - <ACK> held back");
+				ackHeld = true;
+				ackHeldSince = lastActivity;
+			}
+			break;
+		case DUPLICATE:
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": repeated frame ignored and confirmed by <ACK>");
+			send(Executor.ACK);
+			break;
+		case BAD_FRAME:
+			logger.info(name + ": invalid frame rejected by <NAK>");
+			metrics.inc(LinkMetrics.Counter.NAKS_SENT);
+			send(Executor.NAK);
+			break;
+		}
+	}
+
+	/**
+	 * Send the held back &lt;ACK&gt; - the message is written by a job
+	 * if no slot of the write-behind queue was reserved in time.
+	 */
+	private void	releaseAck(long now) throws IOException {
+		ackHeld = false;
+		send(Executor.ACK);
+		replyDeadline = now + timing.replyTimeout;
+	}
+
+	/**
+	 * Commit the received message - it is written by a job if it can not be handed over
+	 * to the write-behind stage now or earlier jobs are not done.
+	 */
+	private void	commit() {
+		long start = System.nanoTime();
+		FileProcessor.Work write = fileProcessor.detachFile(!hasJobs());
+		if(write == null) {
+			metrics.time(LinkMetrics.Counter.COMMIT_NANOS, start);
+		} else {
+			commitJobs++;
+			submit(new CommitJob(write));
+		}
+		metrics.inc(LinkMetrics.Counter.MESSAGES_IN);
+	}
+
+	private void	startTransmit(long now) throws IOException {
+		if(!fileProcessor.hasFileToSend()){
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(name + ": there is no file to send - unexpected");
+			transmitFailed(now);
+			return;
+		}
+		txFrameIndex = 0;
+		txMessages = 0;
+		txBytes = 0;
+		enter(State.SENDING, now);
+		submit(new OpenJob(false));
+	}
+
+	/**
+	 * Log why the claimed file could not be opened, a file which can not be read is released.
+	 */
+	private void	openFailed(Exception e) {
+		if(e instanceof InvalidPathException) {
+			logger.warning(name + ": invalid path - " + e);
+		} else if(e instanceof InvalidFileContents) {
+			logger.warning(name + ": invalid file contents - " + e);
+		} else {
+			logger.warning(name + ": cannot open file " + fileProcessor.getFileName() + " - " + e);
+			fileProcessor.releaseFile();
+		}
+	}
+
+	/**
+	 * Read the next frame of the file being sent and send it,
+	 * terminate the transfer if there are no more frames.
+	 */
+	private void	sendNextFrame(long now) throws IOException {
+		boolean bMore;
+		try {
+			bMore = txFrames.next();
+		} catch (IOException e) {
+			logger.warning(name + ": cannot read file " + fileProcessor.getFileName() + " - " + e);
+			transmitFailed(now);
+			return;
+		}
+		if(!bMore) {
+			transmitDone(now);
+			return;
+		}
+		txFrameIndex++;
+		txAttempts = 0;
+		txLength = txFrames.getDataLength();
+		txBytes += txLength;
+		// the frame stays available for possible retries
+		txFrames.number(txFrameIndex);
+		sendFrame(now);
+	}
+
+	private void	sendFrame(long now) throws IOException {
+		if(txAttempts > 0)
+			metrics.inc(LinkMetrics.Counter.FRAME_RETRIES);
+		send(txFrames.getFrame(), txFrames.getFrameOffset(), txFrames.getFrameLength());
+		metrics.inc(LinkMetrics.Counter.FRAMES_OUT);
+		txAttempts++;
+		enter(State.SENDING, now);
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(name + ": frame " + (txFrameIndex % 8) + ": " + txLength + " bytes sent");
+	}
+
+	private void	transmitDone(long now) throws IOException {
+		closeFrames();
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(name + ": file was sent, move it to a backup directory");
+		long start = System.nanoTime();
+		FileProcessor.Work move = fileProcessor.detachSentFile();
+		if(move != null) {
+			submit(new BackupJob(move));
+			return;
+		}
+		metrics.time(LinkMetrics.Counter.BACKUP_NANOS, start);
+		sent();
+	}
+
+	/**
+	 * Continue the transfer phase by the next queued file if the batch limits
+	 * ({@link ProtocolTiming#batchMessages}, {@link ProtocolTiming#batchBytes}) allow it,
+	 * otherwise terminate it.
+	 * Frame numbers continue, the receiver recognizes the next message by its header record -
+	 * a file not starting by one waits for the next phase.
+	 */
+	private void	sent() throws IOException {
+		metrics.inc(LinkMetrics.Counter.MESSAGES_OUT);
+		logger.info(name + ": file sent " + fileProcessor.getFileName());
+		txMessages++;
+		if(txMessages < timing.batchMessages && txBytes < timing.batchBytes && fileProcessor.hasFileToSend()) {
+			submit(new OpenJob(true));
+			return;
+		}
+		endTransfer();
+	}
+
+	private void	endTransfer() throws IOException {
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(name + ": going idle");
+		send(Executor.EOT);
+		state = State.IDLE;
+	}
+
+	private void	transmitFailed(long now) throws IOException {
+		closeFrames();
+		if(logger.isLoggable(Level.FINE))
+			logger.fine(name + ": start busy timer");
+		busyEnd = now + timing.busyRetry;
+		send(Executor.EOT);
+		state = State.IDLE;
+	}
+
+	private void	closeFrames() {
+		if(txFrames != null) {
+			try {txFrames.close();} catch (IOException e) {}
+			txFrames = null;
+		}
+	}
+
+	private void	send(int c) throws IOException {
+		send(CONTROL[c], 0, 1);
+	}
+
+	private void	send(byte [] data, int offset, int len) throws IOException {
+		if(captured != null)
+			captured.out(data, offset, len);
+		metrics.add(LinkMetrics.Counter.BYTES_OUT, len);
+		writeQueue.add(ByteBuffer.wrap(data, offset, len));
+		flush();
+	}
+
+	private void	flush() throws IOException {
+		while(!writeQueue.isEmpty()) {
+			ByteBuffer buffer = writeQueue.peek();
+			channel.write(buffer);
+			if(buffer.hasRemaining())
+				break;
+			writeQueue.poll();
+		}
+		if(key != null && key.isValid()) {
+			key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void	submit(Job job) {
+		synchronized (jobs) {
+			jobs.add(job);
+			if(jobs.size() > 1)
+				return;
+		}
+		scheduler.io(job);
+	}
+
+	private boolean	hasJobs() {
+		synchronized (jobs) {
+			return !jobs.isEmpty();
+		}
+	}
+
+	/**
+	 * Continue the protocol after jobs which are done.
+	 */
+	private void	finishJobs(long now) throws IOException {
+		while(!closed) {
+			Job job;
+			synchronized (jobs) {
+				job = finished.poll();
+			}
+			if(job == null)
+				return;
+			job.done(now);
+		}
+	}
+
+	/**
+	 * Blocking disk work of the session. Jobs run one after another in the order they were submitted,
+	 * jobs of a closed session are still run - messages and sent files are not lost.
+	 */
+	private abstract class Job implements Runnable {
+		/** Failure of the work, null if it succeeded. */
+		Exception failure;
+
+		/** Blocking part - run by a thread of {@link Scheduler#io(Runnable)}. */
+		abstract void	work() throws Exception;
+
+		/** Continue the protocol - run by the session's thread. */
+		abstract void	done(long now) throws IOException;
+
+		/** Release what the work acquired - the session was closed meanwhile. */
+		void	abandon() {
+		}
+
+		@Override
+		public final void run() {
+			try {
+				work();
+			} catch (Exception e) {
+				failure = e;
+			}
+			Job next;
+			boolean bClosed;
+			synchronized (jobs) {
+				jobs.poll();
+				bClosed = closed;
+				if(!bClosed)
+					finished.add(this);
+				next = jobs.peek();
+			}
+			if(bClosed)
+				abandon();
+			else
+				scheduler.due(NioSession.this);
+			if(next != null)
+				scheduler.io(next);
+		}
+	}
+
+	/** Write of a received message. */
+	private final class CommitJob extends Job {
+		private final FileProcessor.Work write;
+
+		CommitJob(FileProcessor.Work write) {
+			this.write = write;
+		}
+
+		@Override
+		void	work() throws IOException {
+			long start = System.nanoTime();
+			write.perform();
+			metrics.time(LinkMetrics.Counter.COMMIT_NANOS, start);
+		}
+
+		@Override
+		void	done(long now) {
+			commitJobs--;
+			abandon();
+		}
+
+		@Override
+		void	abandon() {
+			if(failure != null)
+				logger.severe(name + ": cannot write a received message - " + failure);
+		}
+	}
+
+	/** Opening of a file to send - the first one of the transfer phase or the next one of a batch. */
+	private final class OpenJob extends Job {
+		private final boolean bBatch;
+		private OutboundFrames frames;
+		/** The file starts by a header record. */
+		private boolean bHeader;
+
+		OpenJob(boolean bBatch) {
+			this.bBatch = bBatch;
+		}
+
+		@Override
+		void	work() throws Exception {
+			frames = fileProcessor.openFileData();
+			if(bBatch)
+				bHeader = frames.peek() == 'H';
+		}
+
+		@Override
+		void	done(long now) throws IOException {
+			txFrames = frames;
+			if(failure == null && (!bBatch || bHeader)) {
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + (bBatch ? ": next file is sent in the same transfer phase - " : ": file to send: ") + fileProcessor.getFileName());
+				sendNextFrame(now);
+				return;
+			}
+			if(failure == null) {
+				if(logger.isLoggable(Level.FINE))
+					logger.fine(name + ": file does not start by a header record - it will be sent in the next transfer phase");
+			} else if(frames != null) {
+				logger.warning(name + ": cannot read file " + fileProcessor.getFileName() + " - " + failure);
+			} else {
+				openFailed(failure);
+			}
+			closeFrames();
+			if(bBatch)
+				endTransfer();
+			else
+				transmitFailed(now);
+		}
+
+		@Override
+		void	abandon() {
+			if(frames != null) {
+				try {frames.close();} catch (IOException e) {}
+			}
+		}
+	}
+
+	/** Move of a sent file into the backup directory. */
+	private final class BackupJob extends Job {
+		private final FileProcessor.Work move;
+
+		BackupJob(FileProcessor.Work move) {
+			this.move = move;
+		}
+
+		@Override
+		void	work() throws IOException {
+			long start = System.nanoTime();
+			move.perform();
+			metrics.time(LinkMetrics.Counter.BACKUP_NANOS, start);
+		}
+
+		@Override
+		void	done(long now) throws IOException {
+			abandon();
+			sent();
+		}
+
+		@Override
+		void	abandon() {
+			if(failure != null)
+				logger.warning(name + ": cannot move sent file " + fileProcessor.getFileName() + " - it will be sent again: " + failure);
+		}
+	}
+
+}
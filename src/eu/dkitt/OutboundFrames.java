@@ -0,0 +1,157 @@
+package eu.dkitt;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Wire frames of a file being sent, opened by {@link FileProcessor#openFileData()}.<br/>
+ * Frames come either from an encoded message of the {@link FrameCache} or from a {@link FrameSplitter}
+ * reading a large file - sessions use both the same way:
+ * <pre>
+ * while(frames.next()) {
+ *     frames.number(frameIndex++);
+ *     write(frames.getFrame(), frames.getFrameOffset(), frames.getFrameLength());
+ * }
+ * </pre>
+ * A cached frame whose number matches the transfer phase is written directly from the cache,
+ * otherwise (a later message of a batched phase) it is copied and only its number and checksum are patched.
+ * An instance is not thread safe - it is used by the session which opened it.
+ *
+ * @author dkittrich
+ *
+ */
+class OutboundFrames implements Closeable {
+
+	/** Encoded message - null if the file is streamed. */
+	private final FrameCache.Message message;
+	private final FrameSplitter splitter;
+	private final FrameEncoder encoder;
+
+	/** Index of the current frame of the message. */
+	private int index = -1;
+	/** Copy of a cached frame with another number. */
+	private byte [] patched;
+
+	private byte [] frame;
+	private int frameOffset;
+	private int frameLength;
+
+	OutboundFrames(FrameCache.Message message) {
+		this.message = message;
+		this.splitter = null;
+		this.encoder = null;
+	}
+
+	OutboundFrames(FrameSplitter splitter) {
+		this.message = null;
+		this.splitter = splitter;
+		this.encoder = new FrameEncoder();
+	}
+
+	/**
+	 * Move to the next frame.
+	 * @return false if there are no more frames
+	 * @throws IOException - error while reading a streamed file
+	 */
+	boolean	next() throws IOException {
+		frame = null;
+		if(splitter != null)
+			return splitter.next();
+		if(index + 1 >= message.frames())
+			return false;
+		index++;
+		return true;
+	}
+
+	/**
+	 * First data byte of the next frame without moving to it - e.g. the record type of the next line.
+	 * @return byte or -1 if there are no more frames
+	 * @throws IOException - error while reading a streamed file
+	 */
+	int	peek() throws IOException {
+		if(splitter != null)
+			return splitter.peek();
+		if(index + 1 >= message.frames())
+			return -1;
+		return message.wire[message.starts[index + 1] + 2] & 0xFF;
+	}
+
+	/**
+	 * Number of data bytes of the current frame.
+	 * @return
+	 */
+	int	getDataLength() {
+		if(splitter != null)
+			return splitter.getLength();
+		return message.starts[index + 1] - message.starts[index] - FrameEncoder.OVERHEAD;
+	}
+
+	/**
+	 * Whether the current frame ends a line (&lt;ETX&gt;).
+	 * @return
+	 */
+	boolean	isTerminal() {
+		if(splitter != null)
+			return splitter.isTerminal();
+		return message.wire[message.starts[index + 1] - 5] == Executor.ETX;
+	}
+
+	/**
+	 * Give the current frame its number in the transfer phase, the frame is then available by {@link #getFrame()}.
+	 * @param frameIndex	index of the frame in the transfer phase in the range &lt;1,...)
+	 */
+	void	number(int frameIndex) {
+		if(splitter != null) {
+			frameLength = encoder.encode(splitter.getData(), splitter.getOffset(), splitter.getLength(), frameIndex, splitter.isTerminal());
+			frame = encoder.getFrame();
+			frameOffset = 0;
+			return;
+		}
+		int start = message.starts[index];
+		frameLength = message.starts[index + 1] - start;
+		int fn = 48 + frameIndex % 8;
+		int delta = fn - message.wire[start + 1];
+		if(delta == 0) {
+			frame = message.wire;
+			frameOffset = start;
+			return;
+		}
+		if(patched == null || patched.length < frameLength)
+			patched = new byte[Math.max(frameLength, FrameEncoder.MAX_DATA + FrameEncoder.OVERHEAD)];
+		System.arraycopy(message.wire, start, patched, 0, frameLength);
+		// the checksum is a sum of bytes - it changes by the change of the number
+		int checksum = (hexValue(patched[frameLength - 4]) << 4 | hexValue(patched[frameLength - 3])) + delta;
+		patched[1] = (byte)fn;
+		patched[frameLength - 4] = (byte)FrameEncoder.hexDigit((checksum & 0xF0) >> 4);
+		patched[frameLength - 3] = (byte)FrameEncoder.hexDigit(checksum & 0x0F);
+		frame = patched;
+		frameOffset = 0;
+	}
+
+	/**
+	 * Array with the current frame - valid until the next frame is numbered.
+	 * @return
+	 */
+	byte []	getFrame() {
+		return frame;
+	}
+
+	int	getFrameOffset() {
+		return frameOffset;
+	}
+
+	int	getFrameLength() {
+		return frameLength;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(splitter != null)
+			splitter.close();
+	}
+
+	private static int	hexValue(byte digit) {
+		return digit <= '9' ? digit - '0' : digit - 'A' + 10;
+	}
+
+}
@@ -0,0 +1,574 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queue of files waiting to be sent from one directory.<br/>
+ * There is a single queue per directory and file mask in the process,
+ * shared by all sessions (see {@link #forDirectory(Path, String, Properties)}).
+ * <ul>
+ * <li>The queue is fed by a {@link WatchService}, so a new file is seen immediately.</li>
+ * <li>The directory is scanned periodically ({@link T1#OPTION_RECONCILE_INTERVAL}) as well,
+ * that covers lost events and file systems without notifications.</li>
+ * <li>A file is claimed by a single session, so that two sessions never send the same file.</li>
+ * <li>Registered listeners are notified whenever a file was added.</li>
+ * <li>Files are claimed by their priority ({@link PriorityRules}, property {@link T1#OPTION_PRIORITY}),
+ * then by arrival - the time of the last modification, so the order survives a restart.
+ * Waiting files are indexed by their path and held sorted, adding and claiming a file
+ * is O(log n) and the directory is read only on a rebuild.</li>
+ * <li>A file is sent only after it was not modified for {@link T1#OPTION_IN_SETTLE} milliseconds and its size and time
+ * of the last modification did not change since it was queued, so a file still being written is not sent truncated.
+ * Files starting by a dot are never sent - a producer may write a file under such a name and rename it.</li>
+ * <li>With {@link T1#OPTION_LEASE} the directory may be shared by several server processes,
+ * a file is claimed by a lease file ({@link Leases}) as well. Files leased by another process
+ * are put aside and taken back when their lease is released or expired.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class OutboundQueue implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(OutboundQueue.class.getName());
+
+	private static final Map<String, OutboundQueue> queues = new HashMap<String, OutboundQueue>();
+
+	/**
+	 * Get the queue of a directory, the queue and its watcher thread is created on the first call.
+	 * @param directory	directory with files to send
+	 * @param mask	glob mask of files to send
+	 * @param properties	properties with the reconcile interval
+	 * @return shared queue
+	 */
+	static synchronized OutboundQueue forDirectory(Path directory, String mask, Properties properties) {
+		Path dir = directory.toAbsolutePath().normalize();
+		String key = dir + "|" + mask;
+		OutboundQueue queue = queues.get(key);
+		if(queue == null) {
+			long interval = 1000L * Integer.parseInt(properties.getProperty(T1.OPTION_RECONCILE_INTERVAL, "10"));
+			long lease = 1000L * Integer.parseInt(properties.getProperty(T1.OPTION_LEASE, "0"));
+			long settle = Math.max(0, Long.parseLong(properties.getProperty(T1.OPTION_IN_SETTLE, "500")));
+			Leases leases = null;
+			if(lease > 0) {
+				try {
+					leases = new Leases(directory, lease);
+				} catch (IOException e) {
+					logger.warning("Cannot create leases of " + directory + " - files are claimed by this process only: " + e);
+				}
+			}
+			queue = new OutboundQueue(directory, mask, interval, settle, new PriorityRules(properties), leases);
+			queues.put(key, queue);
+			Thread thread = new Thread(queue, "OutboundQueue_" + dir.getFileName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return queue;
+	}
+
+	/**
+	 * Number of files waiting to be claimed in all queues of the process.
+	 * @return
+	 */
+	static synchronized int	totalSize() {
+		int size = 0;
+		for(OutboundQueue queue : queues.values())
+			size += queue.size();
+		return size;
+	}
+
+	/**
+	 * A file in the queue - ordered by priority (the highest first), then by arrival.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+		final Path file;
+		final int priority;
+		final long arrival;
+		final long size;
+		/** Breaks ties of files with the same arrival time. */
+		final long sequence;
+
+		Entry(Path file, int priority, long arrival, long size, long sequence) {
+			this.file = file;
+			this.priority = priority;
+			this.arrival = arrival;
+			this.size = size;
+			this.sequence = sequence;
+		}
+
+		/** Whether the file was not modified since the entry was created. */
+		boolean	isSame(BasicFileAttributes attributes) {
+			return arrival == attributes.lastModifiedTime().toMillis() && size == attributes.size();
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			if(priority != o.priority)
+				return priority > o.priority ? -1 : 1;
+			if(arrival != o.arrival)
+				return arrival < o.arrival ? -1 : 1;
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+	private final Path directory;
+	private final PathMatcher matcher;
+	private final long reconcileInterval;
+	/** Time since the last modification before a file may be sent. */
+	private final long settle;
+	private final PriorityRules rules;
+	/** Leases of a directory shared by several processes - null if the process owns the directory. */
+	private final Leases leases;
+
+	/** Files waiting to be sent in the order of sending. */
+	private final TreeSet<Entry> pending = new TreeSet<Entry>();
+	/** Index of waiting files. */
+	private final Map<Path, Entry> index = new HashMap<Path, Entry>();
+	/** Files being sent by some session. */
+	private final Map<Path, Entry> claimed = new HashMap<Path, Entry>();
+	/** Files leased by another process. */
+	private final Map<Path, Entry> foreign = new HashMap<Path, Entry>();
+	private long sequence = 0;
+	/** When the first waiting file settles - listeners are notified then. */
+	private long nextSettle = Long.MAX_VALUE;
+
+	private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+	private OutboundQueue(Path directory, String mask, long reconcileInterval, long settle, PriorityRules rules, Leases leases) {
+		this.directory = directory;
+		this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + mask);
+		this.reconcileInterval = reconcileInterval;
+		this.settle = settle;
+		this.rules = rules;
+		this.leases = leases;
+		reconcile();
+	}
+
+	/**
+	 * Take the settled file with the highest priority, the oldest of them.
+	 * The file stays claimed until {@link #done(Path)} or {@link #release(Path)} is called.
+	 * @return path of the file or null if there is none
+	 */
+	Path	claim() {
+		while(true) {
+			Entry entry = null;
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				for(Entry e : pending) {
+					if(isSettled(e, now)) {
+						entry = e;
+						break;
+					}
+				}
+				if(entry == null)
+					return null;
+				pending.remove(entry);
+				index.remove(entry.file);
+				claimed.put(entry.file, entry);
+			}
+			// the file is checked without the lock, other sessions keep claiming meanwhile
+			BasicFileAttributes attributes = regularFile(entry.file);
+			if(attributes != null && entry.isSame(attributes)) {
+				if(leases == null || leases.acquire(entry.file))
+					return entry.file;
+				synchronized (this) {
+					if(claimed.remove(entry.file) == entry)
+						foreign.put(entry.file, entry);
+				}
+				continue;
+			}
+			synchronized (this) {
+				// modified since it was queued - it waits until it settles again
+				if(claimed.remove(entry.file) == entry && attributes != null)
+					add(new Entry(entry.file, entry.priority, attributes.lastModifiedTime().toMillis(), attributes.size(), sequence++));
+			}
+		}
+	}
+
+	/** Whether a file was not modified for the settle time - a time in the future does not hold it back. */
+	private boolean	isSettled(Entry entry, long now) {
+		return now - entry.arrival >= settle || entry.arrival - now > settle;
+	}
+
+	/**
+	 * The claimed file was sent and moved away.
+	 * @param file
+	 */
+	void	done(Path file) {
+		boolean bClaimed;
+		synchronized (this) {
+			bClaimed = claimed.remove(file) != null;
+		}
+		// lease I/O outside of the monitor
+		if(bClaimed && leases != null)
+			leases.release(file);
+	}
+
+	/**
+	 * Test whether the file is still claimed by this process - its lease may have been lost.
+	 * @param file
+	 * @return
+	 */
+	synchronized boolean	holds(Path file) {
+		return claimed.containsKey(file);
+	}
+
+	/**
+	 * The claimed file was not sent, it may be claimed again by any session.
+	 * @param file
+	 */
+	void	release(Path file) {
+		Entry entry;
+		synchronized (this) {
+			entry = claimed.remove(file);
+		}
+		if(entry == null)
+			return;
+		if(leases != null)
+			leases.release(file);
+		if(!Files.isRegularFile(file))
+			return;
+		synchronized (this) {
+			add(entry);
+		}
+		fireAdded();
+	}
+
+	/**
+	 * Test whether there is a file waiting to be claimed.
+	 * @return
+	 */
+	synchronized boolean	isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Number of files waiting to be claimed.
+	 * @return
+	 */
+	synchronized int	size() {
+		return pending.size();
+	}
+
+	/**
+	 * Create an entry of a new file - evaluates priority rules, so it is called without the lock.
+	 * @param file
+	 * @param attributes	attributes of the file
+	 * @return
+	 */
+	private Entry	entry(Path file, BasicFileAttributes attributes) {
+		int priority = rules.isEmpty() ? 0 : rules.priorityOf(file);
+		if(priority != 0 && logger.isLoggable(Level.FINE))
+			logger.fine("File " + file + " queued with priority " + priority);
+		synchronized (this) {
+			return new Entry(file, priority, attributes.lastModifiedTime().toMillis(), attributes.size(), sequence++);
+		}
+	}
+
+	private void	add(Entry entry) {
+		pending.add(entry);
+		index.put(entry.file, entry);
+		long now = System.currentTimeMillis();
+		if(!isSettled(entry, now))
+			nextSettle = Math.min(nextSettle, entry.arrival + settle);
+	}
+
+	/** Whether a file name may be queued. */
+	private boolean	accepts(Path name) {
+		return !name.toString().startsWith(".") && matcher.matches(name);
+	}
+
+	/**
+	 * Notify listeners if a waiting file settled and plan the next notification.
+	 * @return time of the next notification
+	 */
+	private long	settled() {
+		boolean bSettled = false;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if(now < nextSettle)
+				return nextSettle;
+			bSettled = true;
+			nextSettle = Long.MAX_VALUE;
+			for(Entry entry : pending) {
+				if(!isSettled(entry, now))
+					nextSettle = Math.min(nextSettle, entry.arrival + settle);
+			}
+		}
+		if(bSettled)
+			fireAdded();
+		synchronized (this) {
+			return nextSettle;
+		}
+	}
+
+	private void	remove(Path file) {
+		Entry entry = index.remove(file);
+		if(entry != null)
+			pending.remove(entry);
+		foreign.remove(file);
+	}
+
+	/** Attributes of a regular file, null if it is not one or does not exist anymore. */
+	private static BasicFileAttributes	regularFile(Path file) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return attributes.isRegularFile() ? attributes : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Register a listener called (by the watcher thread) when a file was added.
+	 * @param listener
+	 */
+	void	addListener(Runnable listener) {
+		listeners.add(listener);
+	}
+
+	void	removeListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	private void	fireAdded() {
+		for(Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Scan the directory and bring the queue in line with its contents.
+	 */
+	void	reconcile() {
+		Map<Path, BasicFileAttributes> found = new HashMap<Path, BasicFileAttributes>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for(Path file : stream) {
+				if(!accepts(file.getFileName()))
+					continue;
+				BasicFileAttributes attributes = regularFile(file);
+				if(attributes != null)
+					found.put(file, attributes);
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot scan directory " + directory + " - " + e);
+			return;
+		}
+		List<Path> added = new ArrayList<Path>();
+		synchronized (this) {
+			Iterator<Path> it = index.keySet().iterator();
+			while(it.hasNext()) {
+				Path file = it.next();
+				if(!found.containsKey(file)) {
+					pending.remove(index.get(file));
+					it.remove();
+				}
+			}
+			foreign.keySet().retainAll(found.keySet());
+			for(Path file : found.keySet()) {
+				if(!isKnown(file))
+					added.add(file);
+			}
+		}
+		boolean bAdded = leases != null && reclaim();
+		if(leases != null)
+			leases.sweep(found.keySet());
+		if(!added.isEmpty()) {
+			// priorities are evaluated without the lock, sessions keep claiming meanwhile
+			List<Entry> entries = new ArrayList<Entry>(added.size());
+			for(Path file : added)
+				entries.add(entry(file, found.get(file)));
+			synchronized (this) {
+				for(Entry entry : entries) {
+					if(!isKnown(entry.file))
+						add(entry);
+				}
+			}
+			bAdded = true;
+		}
+		if(bAdded)
+			fireAdded();
+	}
+
+	private boolean	isKnown(Path file) {
+		return claimed.containsKey(file) || index.containsKey(file) || foreign.containsKey(file);
+	}
+
+	/**
+	 * Take back files leased by another process whose lease was released or expired.
+	 * @return true if a file was taken back
+	 */
+	private boolean	reclaim() {
+		List<Path> files;
+		synchronized (this) {
+			files = new ArrayList<Path>(foreign.keySet());
+		}
+		boolean bAdded = false;
+		for(Path file : files) {
+			if(!leases.isFree(file))
+				continue;
+			synchronized (this) {
+				Entry entry = foreign.remove(file);
+				if(entry != null) {
+					add(entry);
+					bAdded = true;
+				}
+			}
+		}
+		return bAdded;
+	}
+
+	/**
+	 * Renew leases of claimed files, a file whose lease was lost is left to its new owner.
+	 */
+	private void	renewLeases() {
+		List<Path> files;
+		synchronized (this) {
+			files = new ArrayList<Path>(claimed.keySet());
+		}
+		for(Path file : files) {
+			if(leases.renew(file))
+				continue;
+			synchronized (this) {
+				Entry entry = claimed.remove(file);
+				if(entry == null)
+					continue;
+				foreign.put(file, entry);
+			}
+			logger.warning("Lease of " + file + " was lost - the file is left to another server");
+		}
+	}
+
+	/**
+	 * Watcher thread - applies directory events and reconciles periodically.
+	 */
+	@Override
+	public void run() {
+		WatchService watcher = null;
+		try {
+			watcher = directory.getFileSystem().newWatchService();
+			directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.warning("Cannot watch directory " + directory + " - only periodic scans will be used: " + e);
+			watcher = null;
+		}
+		reconcile();
+		try {
+			long nextReconcile = System.currentTimeMillis() + reconcileInterval;
+			long nextRenew = leases != null ? System.currentTimeMillis() + leases.renewInterval() : Long.MAX_VALUE;
+			while(true) {
+				if(System.currentTimeMillis() >= nextRenew) {
+					renewLeases();
+					nextRenew = System.currentTimeMillis() + leases.renewInterval();
+				}
+				long next = Math.min(Math.min(nextReconcile, nextRenew), settled());
+				long wait = Math.max(1, next - System.currentTimeMillis());
+				if(watcher == null) {
+					Thread.sleep(wait);
+					if(System.currentTimeMillis() >= nextReconcile) {
+						reconcile();
+						nextReconcile = System.currentTimeMillis() + reconcileInterval;
+					}
+					continue;
+				}
+				WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+				if(key != null) {
+					onEvents(key);
+					if(!key.reset()) {
+						logger.warning("Directory " + directory + " is not watched anymore - only periodic scans will be used");
+						try {watcher.close();} catch (IOException e) {}
+						watcher = null;
+					}
+				}
+				if(System.currentTimeMillis() >= nextReconcile) {
+					reconcile();
+					nextReconcile = System.currentTimeMillis() + reconcileInterval;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			logger.fine("Watcher of " + directory + " terminated");
+		}
+	}
+
+	private void	onEvents(WatchKey key) {
+		boolean bAdded = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				reconcile();
+				continue;
+			}
+			Path name = (Path)event.context();
+			if(!accepts(name))
+				continue;
+			Path file = directory.resolve(name);
+			if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				synchronized (this) {
+					remove(file);
+				}
+			} else if(onChanged(file, event.kind() == StandardWatchEventKinds.ENTRY_MODIFY)) {
+				bAdded = true;
+			}
+			if(logger.isLoggable(Level.FINEST))
+				logger.finest("Directory event " + event.kind().name() + " " + file);
+		}
+		if(bAdded)
+			fireAdded();
+	}
+
+	/**
+	 * Queue a created file - or queue a modified waiting file anew, it settles again and priority rules
+	 * are evaluated again as its header may have been incomplete when it was created.
+	 * @return true if the file was added
+	 */
+	private boolean	onChanged(Path file, boolean bModified) {
+		Entry old;
+		synchronized (this) {
+			if(claimed.containsKey(file) || foreign.containsKey(file))
+				return false;
+			old = index.get(file);
+			if(old != null && !bModified)
+				return false;
+		}
+		BasicFileAttributes attributes = regularFile(file);
+		if(attributes == null || (old != null && old.isSame(attributes)))
+			return false;
+		Entry entry = entry(file, attributes);
+		synchronized (this) {
+			if(claimed.containsKey(file) || foreign.containsKey(file))
+				return false;
+			Entry current = index.get(file);
+			if(current != null) {
+				if(current == old) {
+					remove(file);
+					add(entry);
+				}
+				return false;
+			}
+			add(entry);
+			return true;
+		}
+	}
+
+}
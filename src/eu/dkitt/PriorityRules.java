@@ -0,0 +1,158 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Rules giving files to send a priority, read from the property {@link T1#OPTION_PRIORITY}.<br/>
+ * The property is a list of rules separated by <code>;</code>, every rule ends by <code>=&lt;priority&gt;</code>:
+ * <ul>
+ * <li><code>name:&lt;glob&gt;=&lt;priority&gt;</code> - the file name matches the glob mask,
+ * e.g. <code>name:STAT_*=10</code>.</li>
+ * <li><code>field:&lt;record&gt;.&lt;field&gt;:&lt;value&gt;=&lt;priority&gt;</code> - a record of the message
+ * has the value in the first component of the field, fields are numbered from 1 for the record type,
+ * e.g. <code>field:O.6:S=10</code> for STAT orders (order priority of ASTM E1394).
+ * The head of the file is tokenized by {@link AstmMessage#parse(byte[], int, long)} - delimiters are taken
+ * from the header on the first line and a continuation line is never taken for a record,
+ * only the first {@link #HEAD} bytes of the file are read.</li>
+ * </ul>
+ * A file gets the highest priority of all matching rules, 0 if no rule matches.
+ * Files with a higher priority are sent first (see {@link OutboundQueue}).
+ *
+ * @author dkittrich
+ *
+ */
+class PriorityRules {
+
+	private static final Logger logger = Logger.getLogger(PriorityRules.class.getName());
+
+	/** Number of bytes of a file searched by field rules. */
+	static final int HEAD = 4096;
+
+	private static class Rule {
+		final int priority;
+		/** Mask of the file name - null for a field rule. */
+		PathMatcher matcher;
+		char record;
+		int field;
+		String value;
+
+		Rule(int priority) {
+			this.priority = priority;
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private boolean bFields = false;
+
+	/**
+	 * @param properties
+	 * @throws IllegalArgumentException	a rule can not be parsed
+	 */
+	PriorityRules(Properties properties) {
+		String spec = properties.getProperty(T1.OPTION_PRIORITY, "");
+		for(String text : spec.split(";")) {
+			text = text.trim();
+			if(text.isEmpty())
+				continue;
+			int eq = text.lastIndexOf('=');
+			int colon = text.indexOf(':');
+			if(eq < 0 || colon < 0 || colon > eq)
+				throw new IllegalArgumentException("Invalid priority rule " + text);
+			Rule rule = new Rule(Integer.parseInt(text.substring(eq + 1).trim()));
+			String kind = text.substring(0, colon);
+			String arg = text.substring(colon + 1, eq);
+			if("name".equals(kind)) {
+				rule.matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+			} else if("field".equals(kind)) {
+				int dot = arg.indexOf('.');
+				int sep = arg.indexOf(':');
+				if(dot != 1 || sep < dot)
+					throw new IllegalArgumentException("Invalid priority rule " + text);
+				rule.record = arg.charAt(0);
+				rule.field = Integer.parseInt(arg.substring(dot + 1, sep));
+				rule.value = arg.substring(sep + 1);
+				bFields = true;
+			} else {
+				throw new IllegalArgumentException("Invalid priority rule " + text);
+			}
+			rules.add(rule);
+		}
+	}
+
+	/**
+	 * Whether there is no rule - all files have the priority 0.
+	 * @return
+	 */
+	boolean	isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * Evaluate rules for a file, contents are read only if there are field rules.
+	 * @param file
+	 * @return priority
+	 */
+	int	priorityOf(Path file) {
+		int priority = 0;
+		boolean bFound = false;
+		AstmMessage message = null;
+		for(Rule rule : rules) {
+			if(bFound && rule.priority <= priority)
+				continue;
+			boolean bMatch;
+			if(rule.matcher != null) {
+				bMatch = rule.matcher.matches(file.getFileName());
+			} else {
+				if(message == null)
+					message = head(file);
+				bMatch = matches(rule, message);
+			}
+			if(bMatch) {
+				priority = bFound ? Math.max(priority, rule.priority) : rule.priority;
+				bFound = true;
+			}
+		}
+		return priority;
+	}
+
+	/**
+	 * Whether the priority depends on contents of the file.
+	 * @return
+	 */
+	boolean	hasFieldRules() {
+		return bFields;
+	}
+
+	private static boolean	matches(Rule rule, AstmMessage message) {
+		for(AstmMessage.Record record : message.getRecords()) {
+			if(record.type() == rule.record && rule.field <= record.fieldCount()
+					&& record.component(rule.field, 1).equals(rule.value))
+				return true;
+		}
+		return false;
+	}
+
+	/** Records in the beginning of the file, none if it can not be read. */
+	private static AstmMessage	head(Path file) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEAD);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(buffer.hasRemaining() && channel.read(buffer) > 0)
+				;
+		} catch (IOException e) {
+			logger.fine("Cannot read " + file + " - " + e);
+			buffer.clear();
+		}
+		return AstmMessage.parse(buffer.array(), buffer.position(), 0);
+	}
+
+}
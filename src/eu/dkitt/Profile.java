@@ -0,0 +1,138 @@
+package eu.dkitt;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Settings of one group of instruments served by the process - its port, directories, masks and timers.<br/>
+ * Without the property {@link T1#OPTION_PROFILES} there is a single profile with all properties.
+ * Otherwise the property lists names of profiles and every profile takes all properties
+ * overridden by properties prefixed by its name, e.g.
+ * <pre>
+ * profiles=chem,hema
+ * indir=in
+ * chem.port=22011
+ * chem.outdir=chem/out
+ * hema.port=22012
+ * hema.outdir=hema/out
+ * hema.contention=5000
+ * </pre>
+ * <ul>
+ * <li>Profiles may share a port, connections are then routed by the address of the instrument
+ * ({@link T1#OPTION_PEER}), a profile without an address takes the other connections of the port.</li>
+ * <li>Process wide resources - selector and worker threads, buffer pools, write-behind, the timer wheel,
+ * logging and metrics - are shared by all profiles.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class Profile {
+
+	/** Name of the profile, empty if there are no profiles. */
+	final String name;
+	/** Effective properties of the profile. */
+	final Properties properties;
+	final int port;
+	/** Address of the instrument - null if the profile takes any connection of its port. */
+	final InetAddress peer;
+
+	private Profile(String name, Properties properties) {
+		this.name = name;
+		this.properties = properties;
+		String value = properties.getProperty(T1.OPTION_PORT);
+		try {
+			port = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(describe() + "invalid property " + T1.OPTION_PORT + ": " + value);
+		}
+		if(port < 1 || port >= 65536)
+			throw new IllegalArgumentException(describe() + "invalid property " + T1.OPTION_PORT + ": " + value);
+		value = properties.getProperty(T1.OPTION_PEER, "");
+		try {
+			peer = value.isEmpty() ? null : InetAddress.getByName(value);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(describe() + "unknown host " + T1.OPTION_PEER + ": " + value);
+		}
+	}
+
+	/**
+	 * Name of a connection for logs and metrics.
+	 * @param connection	name of the connection within the profile
+	 * @return
+	 */
+	String	connectionName(String connection) {
+		return name.isEmpty() ? connection : name + "/" + connection;
+	}
+
+	private String	describe() {
+		return name.isEmpty() ? "" : "Profile " + name + ": ";
+	}
+
+	/**
+	 * Profiles of the process.
+	 * @param base	properties of the process
+	 * @return profiles in the order of {@link T1#OPTION_PROFILES}
+	 * @throws IllegalArgumentException	a profile has no valid port or two profiles would take the same connections
+	 */
+	static List<Profile>	parse(Properties base) {
+		String names = base.getProperty(T1.OPTION_PROFILES, "").trim();
+		if(names.isEmpty())
+			return Collections.singletonList(new Profile("", base));
+		List<String> prefixes = new ArrayList<String>();
+		for(String name : names.split(",")) {
+			if(!name.trim().isEmpty())
+				prefixes.add(name.trim() + ".");
+		}
+		List<Profile> profiles = new ArrayList<Profile>();
+		for(String prefix : prefixes) {
+			Properties properties = new Properties();
+			for(String key : base.stringPropertyNames()) {
+				if(!key.equals(T1.OPTION_PROFILES) && !hasPrefix(key, prefixes))
+					properties.setProperty(key, base.getProperty(key));
+			}
+			for(String key : base.stringPropertyNames()) {
+				if(key.startsWith(prefix))
+					properties.setProperty(key.substring(prefix.length()), base.getProperty(key));
+			}
+			Profile profile = new Profile(prefix.substring(0, prefix.length() - 1), properties);
+			for(Profile other : profiles) {
+				if(other.port == profile.port && (other.peer == null ? profile.peer == null : other.peer.equals(profile.peer)))
+					throw new IllegalArgumentException("Profiles " + other.name + " and " + profile.name + " take the same connections of port " + profile.port);
+			}
+			profiles.add(profile);
+		}
+		return profiles;
+	}
+
+	/**
+	 * Profile of a connection accepted on a port - the one with the address of the instrument,
+	 * otherwise the one without an address.
+	 * @param profiles	profiles of the port
+	 * @param remote	address of the instrument
+	 * @return profile or null if the connection is not expected
+	 */
+	static Profile	route(List<Profile> profiles, InetAddress remote) {
+		Profile any = null;
+		for(Profile profile : profiles) {
+			if(profile.peer == null)
+				any = profile;
+			else if(profile.peer.equals(remote))
+				return profile;
+		}
+		return any;
+	}
+
+	private static boolean	hasPrefix(String key, List<String> prefixes) {
+		for(String prefix : prefixes) {
+			if(key.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+}
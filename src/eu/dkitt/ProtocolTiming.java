@@ -0,0 +1,58 @@
+package eu.dkitt;
+
+import java.util.Properties;
+
+/**
+ * Timers and limits of the link protocol, read from properties - defaults of timers are the values of the standard:
+ * <ul>
+ * <li>{@link T1#OPTION_IDLE_POLL} - how often an idle session polls a socket without a channel (1 s),
+ * other sessions wait for data, new files and timers (see {@link SocketWaiter}).</li>
+ * <li>{@link T1#OPTION_REPLY_TIMEOUT} - how long we wait for any reply of the peer (15 s).</li>
+ * <li>{@link T1#OPTION_CONTENTION} - how long the server does not start a transfer after both sides sent &lt;ENQ&gt; (20 s),
+ * {@link T1#OPTION_INSTRUMENT_CONTENTION} - the same of the simulator (1 s). The values are separate,
+ * so one set of properties keeps the instrument winning the contention.</li>
+ * <li>{@link T1#OPTION_BUSY_RETRY} - how long we wait after a failed transfer (30 s).</li>
+ * <li>{@link T1#OPTION_BUSY_NAK} - how long we wait after our &lt;ENQ&gt; was refused (10 s).</li>
+ * </ul>
+ * Limits of a batched transfer phase - further queued messages are sent after the first one
+ * without a new establishment phase, the peer gets its turn when a limit is reached:
+ * <ul>
+ * <li>{@link T1#OPTION_BATCH_MESSAGES} - most messages in one transfer phase (1 - no batching).</li>
+ * <li>{@link T1#OPTION_BATCH_BYTES} - no message is started after the number of bytes was sent (64 KB).</li>
+ * </ul>
+ * Shorter timers are meant for tests and benchmarks, see {@link LoopbackHarness}.
+ *
+ * @author dkittrich
+ *
+ */
+class ProtocolTiming {
+
+	final long idlePoll;
+	final long replyTimeout;
+	final long contention;
+	final long busyRetry;
+	final long busyNak;
+	final int batchMessages;
+	final long batchBytes;
+
+	/**
+	 * @param properties
+	 * @param bSimulator	defaults of an instrument instead of the server
+	 */
+	ProtocolTiming(Properties properties, boolean bSimulator) {
+		idlePoll = millis(properties, T1.OPTION_IDLE_POLL, 1000);
+		replyTimeout = millis(properties, T1.OPTION_REPLY_TIMEOUT, 15000);
+		contention = bSimulator ? millis(properties, T1.OPTION_INSTRUMENT_CONTENTION, 1000)
+				: millis(properties, T1.OPTION_CONTENTION, 20000);
+		busyRetry = millis(properties, T1.OPTION_BUSY_RETRY, 30000);
+		busyNak = millis(properties, T1.OPTION_BUSY_NAK, 10000);
+		batchMessages = (int)millis(properties, T1.OPTION_BATCH_MESSAGES, 1);
+		batchBytes = millis(properties, T1.OPTION_BATCH_BYTES, 65536);
+	}
+
+	private static long	millis(Properties properties, String option, long defaultValue) {
+		String value = properties.getProperty(option);
+		return value == null || value.isEmpty() ? defaultValue : Math.max(1, Long.parseLong(value));
+	}
+
+}
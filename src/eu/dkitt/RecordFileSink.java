@@ -0,0 +1,147 @@
+package eu.dkitt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Sink writing one line per result record (R) into a CSV or a JSON lines file - see {@link ResultPipeline}.<br/>
+ * A line has the columns:
+ * <ul>
+ * <li><code>received</code> - time of the reception (ISO 8601)</li>
+ * <li><code>sender</code> - the sender name of the header (H.5)</li>
+ * <li><code>patient</code> - the patient id of the preceding patient record (P.3)</li>
+ * <li><code>sample</code> - the specimen id of the preceding order record (O.3)</li>
+ * <li><code>test</code> - the test code of the universal test id (R.3, the 4th component or the whole field)</li>
+ * <li><code>value</code>, <code>units</code>, <code>flags</code>, <code>status</code>, <code>completed</code> -
+ * R.4, R.5, R.7, R.9 and R.13</li>
+ * </ul>
+ * Lines are appended and flushed after every message, a new CSV file starts by a header line.
+ *
+ * @author dkittrich
+ *
+ */
+class RecordFileSink implements ResultSink {
+
+	private static final String [] COLUMNS = {"received", "sender", "patient", "sample", "test", "value", "units", "flags", "status", "completed"};
+
+	private final boolean bJson;
+	private final Writer writer;
+	private final String [] values = new String[COLUMNS.length];
+
+	/**
+	 * @param file	file to append to
+	 * @param bJson	JSON lines instead of CSV
+	 * @throws IOException
+	 */
+	RecordFileSink(Path file, boolean bJson) throws IOException {
+		this.bJson = bJson;
+		boolean bNew = !Files.exists(file) || Files.size(file) == 0;
+		writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+		if(bNew && !bJson) {
+			for(int i=0; i<COLUMNS.length; ++i) {
+				if(i > 0)
+					writer.write(',');
+				writer.write(COLUMNS[i]);
+			}
+			writer.write('\n');
+			writer.flush();
+		}
+	}
+
+	@Override
+	public synchronized void	accept(AstmMessage message) throws IOException {
+		String received = Instant.ofEpochMilli(message.getReceived()).toString();
+		String sender = "";
+		String patient = "";
+		String sample = "";
+		for(AstmMessage.Record record : message.getRecords()) {
+			switch(record.type()) {
+			case 'H':
+				sender = record.component(5, 1);
+				patient = "";
+				sample = "";
+				break;
+			case 'P':
+				patient = record.component(3, 1);
+				sample = "";
+				break;
+			case 'O':
+				sample = record.component(3, 1);
+				break;
+			case 'R':
+				String test = record.component(3, 4);
+				values[0] = received;
+				values[1] = sender;
+				values[2] = patient;
+				values[3] = sample;
+				values[4] = test.isEmpty() ? record.field(3) : test;
+				values[5] = record.field(4);
+				values[6] = record.field(5);
+				values[7] = record.field(7);
+				values[8] = record.field(9);
+				values[9] = record.field(13);
+				if(bJson)
+					writeJson();
+				else
+					writeCsv();
+				break;
+			default:
+			}
+		}
+		writer.flush();
+	}
+
+	private void	writeCsv() throws IOException {
+		for(int i=0; i<values.length; ++i) {
+			if(i > 0)
+				writer.write(',');
+			String value = values[i];
+			if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				writer.write(value);
+				continue;
+			}
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		}
+		writer.write('\n');
+	}
+
+	private void	writeJson() throws IOException {
+		writer.write('{');
+		for(int i=0; i<values.length; ++i) {
+			if(i > 0)
+				writer.write(',');
+			writer.write('"');
+			writer.write(COLUMNS[i]);
+			writer.write("\":\"");
+			String value = values[i];
+			for(int j=0; j<value.length(); ++j) {
+				char c = value.charAt(j);
+				if(c == '"' || c == '\\') {
+					writer.write('\\');
+					writer.write(c);
+				} else if(c < 0x20) {
+					writer.write(String.format("\\u%04x", (int)c));
+				} else {
+					writer.write(c);
+				}
+			}
+			writer.write('"');
+		}
+		writer.write("}\n");
+	}
+
+	@Override
+	public synchronized void	close() throws IOException {
+		writer.close();
+	}
+
+}
@@ -0,0 +1,761 @@
+package eu.dkitt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Index of stored messages by sample id, patient id, test code and time of the reception -
+ * a result sink named <code>index:&lt;dir&gt;</code> by {@link T1#OPTION_RESULT_SINKS}, queried by {@link ResultIndexTool}.<br/>
+ * Every entry ({@link Hit}) points to the location of a message - its file, or the directory of the segment log and the sequence.
+ * <ul>
+ * <li>Sample ids are taken from O.3 and O.4, patient ids from P.3, P.4 and P.5, test codes from R.3 and O.5
+ * (the 4th component or the whole field). Every message has a time entry.</li>
+ * <li>New entries are appended into <code>journal.log</code> and kept in memory, {@link #FLUSH} entries are written
+ * as a sorted run ({@link IndexRun}) and the journal is cleared. An unfinished journal is written as a run on the next open.</li>
+ * <li>When there are more than {@link #MAX_RUNS} runs, the {@link #TIER} smallest ones are merged into one by a background thread,
+ * so a lookup reads a few blocks only and entries are rewritten a few times only as runs grow.
+ * Lookups and new entries are not blocked by a merge, they use the merged runs until the new one replaces them.</li>
+ * <li>{@link #rebuild(Path, List, int)} indexes existing message files and segment logs by parallel threads.</li>
+ * </ul>
+ * Only one process may write an index, a read only index ({@link #open(Path, boolean)}) does not change files.
+ *
+ * @author dkittrich
+ *
+ */
+public class ResultIndex implements ResultSink {
+
+	private static final Logger logger = Logger.getLogger(ResultIndex.class.getName());
+
+	public static final char SAMPLE = 'S';
+	public static final char PATIENT = 'P';
+	public static final char TEST = 'C';
+	public static final char TIME = 'T';
+
+	static final int FLUSH = 100000;
+	static final int MAX_RUNS = 8;
+	/** Number of runs merged at a time. */
+	static final int TIER = 4;
+	private static final String JOURNAL = "journal.log";
+	private static final Pattern TRAILING_NUMBER = Pattern.compile("(\\d+)(\\.[^.]*)?$");
+
+	/**
+	 * Index entry - a key with the time of the reception and the location of the message.
+	 * Entries are ordered by type, key, time, location and sequence.
+	 */
+	public static final class Hit implements Comparable<Hit> {
+		private final char type;
+		private final String key;
+		private final long time;
+		private final String location;
+		private final long sequence;
+
+		Hit(char type, String key, long time, String location, long sequence) {
+			this.type = type;
+			this.key = key;
+			this.time = time;
+			this.location = location;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * One of {@link ResultIndex#SAMPLE}, {@link ResultIndex#PATIENT}, {@link ResultIndex#TEST} or {@link ResultIndex#TIME}.
+		 * @return
+		 */
+		public char	getType() {
+			return type;
+		}
+
+		/**
+		 * The key, empty for {@link ResultIndex#TIME}.
+		 * @return
+		 */
+		public String	getKey() {
+			return key;
+		}
+
+		/**
+		 * Time of the reception in milliseconds.
+		 * @return
+		 */
+		public long	getTime() {
+			return time;
+		}
+
+		/**
+		 * File of the message or directory of the segment log.
+		 * @return absolute path
+		 */
+		public String	getLocation() {
+			return location;
+		}
+
+		/**
+		 * Sequence of the message in the segment log or the number of the file, -1 if not known.
+		 * @return
+		 */
+		public long	getSequence() {
+			return sequence;
+		}
+
+		@Override
+		public int compareTo(Hit o) {
+			int c = compareHead(o.type, o.key, o.time);
+			if(c != 0)
+				return c;
+			c = location.compareTo(o.location);
+			if(c != 0)
+				return c;
+			return Long.compare(sequence, o.sequence);
+		}
+
+		/** Compare type, key and time only. */
+		int	compareHead(char type, String key, long time) {
+			int c = Character.compare(this.type, type);
+			if(c != 0)
+				return c;
+			c = this.key.compareTo(key);
+			if(c != 0)
+				return c;
+			return Long.compare(this.time, time);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Hit && compareTo((Hit)obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (type * 31 + key.hashCode()) * 31 + Long.hashCode(time) + location.hashCode() * 17 + Long.hashCode(sequence);
+		}
+
+		@Override
+		public String toString() {
+			return type + "|" + key + "|" + time + "|" + location + "|" + sequence;
+		}
+
+		void	write(DataOutput out) throws IOException {
+			out.writeByte(type);
+			out.writeUTF(key);
+			out.writeLong(time);
+			out.writeUTF(location);
+			out.writeLong(sequence);
+		}
+
+		static Hit	read(DataInput in) throws IOException {
+			char type = (char)in.readUnsignedByte();
+			String key = in.readUTF();
+			long time = in.readLong();
+			String location = in.readUTF();
+			return new Hit(type, key, time, location, in.readLong());
+		}
+	}
+
+	private final Path directory;
+	private final boolean bReadOnly;
+	private final TreeSet<Hit> memtable = new TreeSet<Hit>();
+	private final List<IndexRun> runs = new ArrayList<IndexRun>();
+	private DataOutputStream journal = null;
+	private long nextRun = 1;
+	/** Thread merging runs of a writable index, started by the first merge. */
+	private ExecutorService merger = null;
+	private boolean bMerging = false;
+	private boolean bClosed = false;
+
+	/**
+	 * Open an index for writing, the directory is created if needed.
+	 * @param directory
+	 * @throws IOException
+	 */
+	public ResultIndex(Path directory) throws IOException {
+		this(directory, false);
+	}
+
+	private ResultIndex(Path directory, boolean bReadOnly) throws IOException {
+		this.directory = directory;
+		this.bReadOnly = bReadOnly;
+		if(!bReadOnly)
+			Files.createDirectories(directory);
+		while(!load()) {
+			for(IndexRun run : runs)
+				run.close();
+			runs.clear();
+			memtable.clear();
+		}
+	}
+
+	/**
+	 * Open runs and replay the journal.
+	 * A read only index lists runs again afterwards - entries of a run flushed or merged meanwhile
+	 * by the writing process could be neither in the opened runs nor in the journal.
+	 * @return false if runs of a read only index changed meanwhile
+	 * @throws IOException
+	 */
+	private boolean	load() throws IOException {
+		List<Path> files = runFiles(directory);
+		for(Path file : files) {
+			try {
+				runs.add(IndexRun.open(file));
+			} catch (NoSuchFileException e) {
+				// merged meanwhile by the writing process
+				if(bReadOnly)
+					return false;
+			} catch (IOException e) {
+				if(bReadOnly)
+					throw e;
+				logger.warning("Dropping index run " + file + " - " + e);
+				Files.delete(file);
+			}
+			nextRun = Math.max(nextRun, runNumber(file) + 1);
+		}
+		replay();
+		return !bReadOnly || runFiles(directory).equals(files);
+	}
+
+	/**
+	 * Open an index.
+	 * @param directory
+	 * @param bReadOnly	do not change files, e.g. to query an index written by a running server
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResultIndex	open(Path directory, boolean bReadOnly) throws IOException {
+		return new ResultIndex(directory, bReadOnly);
+	}
+
+	private static List<Path>	runFiles(Path directory) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		if(!Files.isDirectory(directory))
+			return files;
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, IndexRun.PREFIX + "*" + IndexRun.SUFFIX)) {
+			for(Path file : stream)
+				files.add(file);
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	private static long	runNumber(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(IndexRun.PREFIX.length(), name.length() - IndexRun.SUFFIX.length()));
+	}
+
+	/** Load entries of the journal - an interrupted last entry is ignored. */
+	private void	replay() throws IOException {
+		Path path = directory.resolve(JOURNAL);
+		try(InputStream is = Files.newInputStream(path)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+			while(true)
+				memtable.add(Hit.read(in));
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (EOFException e) {
+		}
+		if(bReadOnly)
+			return;
+		if(memtable.isEmpty())
+			Files.delete(path);
+		else
+			flush();
+	}
+
+	@Override
+	public synchronized void	accept(AstmMessage message) throws IOException {
+		if(bReadOnly)
+			throw new IllegalStateException("Index " + directory + " is read only");
+		List<Hit> hits = hits(message);
+		if(hits.isEmpty())
+			return;
+		if(journal == null)
+			journal = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(directory.resolve(JOURNAL),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+		for(Hit hit : hits)
+			hit.write(journal);
+		journal.flush();
+		memtable.addAll(hits);
+		if(memtable.size() >= FLUSH)
+			flush();
+	}
+
+	/**
+	 * Entries of a stored message.
+	 * @param message
+	 * @return entries, empty if the message has no records or was not stored
+	 */
+	static List<Hit>	hits(AstmMessage message) {
+		List<Hit> hits = new ArrayList<Hit>();
+		if(message.getLocation() == null || message.getRecords().isEmpty())
+			return hits;
+		Set<String> keys = new LinkedHashSet<String>();
+		for(AstmMessage.Record record : message.getRecords()) {
+			switch(record.type()) {
+			case 'P':
+				key(keys, PATIENT, record.component(3, 1));
+				key(keys, PATIENT, record.component(4, 1));
+				key(keys, PATIENT, record.component(5, 1));
+				break;
+			case 'O':
+				key(keys, SAMPLE, record.component(3, 1));
+				key(keys, SAMPLE, record.component(4, 1));
+				for(int i=1, n=record.repeats(5); i<=n; ++i)
+					test(keys, record.get(5, i, 4), record.get(5, i, 1));
+				break;
+			case 'R':
+				test(keys, record.component(3, 4), record.field(3));
+				break;
+			default:
+			}
+		}
+		String location = message.getLocation().toAbsolutePath().toString();
+		hits.add(new Hit(TIME, "", message.getReceived(), location, message.getSequence()));
+		for(String key : keys)
+			hits.add(new Hit(key.charAt(0), key.substring(1), message.getReceived(), location, message.getSequence()));
+		return hits;
+	}
+
+	private static void	key(Set<String> keys, char type, String key) {
+		key = key.trim();
+		if(!key.isEmpty())
+			keys.add(type + key);
+	}
+
+	private static void	test(Set<String> keys, String code, String field) {
+		key(keys, TEST, code.trim().isEmpty() ? field : code);
+	}
+
+	/**
+	 * Messages with a key received within a time range.
+	 * @param type	{@link #SAMPLE}, {@link #PATIENT}, {@link #TEST} or {@link #TIME}
+	 * @param key	the key, empty for {@link #TIME}
+	 * @param from	first time in milliseconds, inclusive
+	 * @param to	last time in milliseconds, inclusive
+	 * @return entries ordered by time
+	 * @throws IOException
+	 */
+	public synchronized List<Hit>	find(char type, String key, long from, long to) throws IOException {
+		TreeSet<Hit> found = new TreeSet<Hit>();
+		for(IndexRun run : runs)
+			run.scan(type, key, from, to, found);
+		for(Hit hit : memtable.tailSet(new Hit(type, key, from, "", Long.MIN_VALUE))) {
+			if(hit.compareHead(type, key, to) > 0)
+				break;
+			found.add(hit);
+		}
+		return new ArrayList<Hit>(found);
+	}
+
+	/**
+	 * Messages received within a time range.
+	 * @param from	first time in milliseconds, inclusive
+	 * @param to	last time in milliseconds, inclusive
+	 * @return entries ordered by time
+	 * @throws IOException
+	 */
+	public List<Hit>	range(long from, long to) throws IOException {
+		return find(TIME, "", from, to);
+	}
+
+	/**
+	 * Write entries kept in memory into a new run and clear the journal.
+	 * @throws IOException
+	 */
+	public synchronized void	flush() throws IOException {
+		if(bReadOnly || memtable.isEmpty())
+			return;
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		runs.add(IndexRun.write(directory.resolve(runName(nextRun++)), memtable.iterator()));
+		memtable.clear();
+		Files.deleteIfExists(directory.resolve(JOURNAL));
+		scheduleMerge();
+	}
+
+	private static String	runName(long number) {
+		return String.format("%s%016d%s", IndexRun.PREFIX, number, IndexRun.SUFFIX);
+	}
+
+	/** Start the merging thread if there are more than {@link #MAX_RUNS} runs, the caller holds the lock. */
+	private void	scheduleMerge() {
+		if(bMerging || bClosed || runs.size() <= MAX_RUNS)
+			return;
+		if(merger == null) {
+			merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ResultIndexMerge");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		bMerging = true;
+		merger.execute(new Runnable() {
+			@Override
+			public void run() {
+				mergeTiers();
+			}
+		});
+	}
+
+	/** Merge the {@link #TIER} smallest runs while there are more than {@link #MAX_RUNS} of them. */
+	private void	mergeTiers() {
+		try {
+			while(true) {
+				List<IndexRun> tier;
+				synchronized (this) {
+					if(bClosed || runs.size() <= MAX_RUNS)
+						return;
+					tier = new ArrayList<IndexRun>(runs);
+				}
+				Collections.sort(tier, new Comparator<IndexRun>() {
+					@Override
+					public int compare(IndexRun o1, IndexRun o2) {
+						return Long.compare(o1.size(), o2.size());
+					}
+				});
+				merge(new ArrayList<IndexRun>(tier.subList(0, TIER)));
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				// runs closed meanwhile
+				if(!bClosed)
+					logger.warning("Cannot merge index " + directory + " - " + e);
+			}
+		} finally {
+			synchronized (this) {
+				bMerging = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the merging thread is idle.
+	 * @throws InterruptedException
+	 */
+	synchronized void	awaitMerges() throws InterruptedException {
+		while(bMerging)
+			wait();
+	}
+
+	/**
+	 * Merge runs into a new one without holding the lock, the merged runs are deleted after the new one replaced them.
+	 * Runs are merged by one thread at a time - the merging thread or {@link #rebuild(Path, List, int)} after it is idle.
+	 */
+	private void	merge(List<IndexRun> parts) throws IOException {
+		if(parts.size() < 2)
+			return;
+		long start = System.currentTimeMillis();
+		long number;
+		synchronized (this) {
+			number = nextRun++;
+		}
+		IndexRun merged;
+		try {
+			merged = IndexRun.write(directory.resolve(runName(number)), new Merge(parts));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		synchronized (this) {
+			if(bClosed) {
+				merged.delete();
+				return;
+			}
+			runs.removeAll(parts);
+			runs.add(merged);
+			for(IndexRun run : parts)
+				run.delete();
+		}
+		logger.info("Index " + directory + " merged " + parts.size() + " runs into " + merged.size() + " entries in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** Ascending entries of several runs without duplicates. */
+	private static final class Merge implements Iterator<Hit> {
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+		private Hit last = null;
+		private Hit next = null;
+
+		private static final class Head implements Comparable<Head> {
+			Hit hit;
+			final Iterator<Hit> source;
+
+			Head(Iterator<Hit> source) {
+				this.source = source;
+				this.hit = source.next();
+			}
+
+			@Override
+			public int compareTo(Head o) {
+				return hit.compareTo(o.hit);
+			}
+		}
+
+		Merge(List<IndexRun> runs) {
+			for(IndexRun run : runs) {
+				Iterator<Hit> source = run.iterator();
+				if(source.hasNext())
+					heads.add(new Head(source));
+			}
+			advance();
+		}
+
+		private void	advance() {
+			next = null;
+			while(next == null && !heads.isEmpty()) {
+				Head head = heads.poll();
+				if(last == null || head.hit.compareTo(last) != 0)
+					next = head.hit;
+				if(head.source.hasNext()) {
+					head.hit = head.source.next();
+					heads.add(head);
+				}
+			}
+			if(next != null)
+				last = next;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Hit next() {
+			if(next == null)
+				throw new NoSuchElementException();
+			Hit hit = next;
+			advance();
+			return hit;
+		}
+	}
+
+	/**
+	 * Number of entries in runs and in memory - entries of several runs may repeat.
+	 * @return
+	 */
+	public synchronized long	size() {
+		long n = memtable.size();
+		for(IndexRun run : runs)
+			n += run.size();
+		return n;
+	}
+
+	/**
+	 * Close files - entries in memory stay in the journal and are written as a run on the next open.
+	 * A running merge is abandoned, its runs stay as they are.
+	 */
+	@Override
+	public synchronized void	close() throws IOException {
+		bClosed = true;
+		if(merger != null) {
+			merger.shutdown();
+			merger = null;
+		}
+		if(journal != null) {
+			journal.close();
+			journal = null;
+		}
+		for(IndexRun run : runs)
+			run.close();
+		runs.clear();
+	}
+
+	@Override
+	public String	toString() {
+		return "index:" + directory;
+	}
+
+	/**
+	 * Create the index of stored messages anew - existing entries are dropped.<br/>
+	 * Message files and segment logs of the directories are parsed by parallel threads, every thread
+	 * collects entries of all parts it takes and writes them as a sorted run of up to {@link #FLUSH} entries.
+	 * Runs are merged when there are more than {@link #MAX_RUNS} of them and into one at the end,
+	 * so the number of open runs does not grow with the number of files.
+	 * Files starting by a dot and files which are not ASTM messages are skipped.
+	 * @param directory	directory of the index
+	 * @param sources	output (or backup) directories with stored messages
+	 * @param threads	number of threads
+	 * @return number of indexed messages
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static long	rebuild(Path directory, List<Path> sources, int threads) throws IOException, InterruptedException {
+		Files.createDirectories(directory);
+		for(Path file : runFiles(directory))
+			Files.delete(file);
+		Files.deleteIfExists(directory.resolve(JOURNAL));
+		final ResultIndex index = new ResultIndex(directory);
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Long>> tasks = new ArrayList<Future<Long>>();
+		try {
+			// parts - a segment log or up to 1024 message files - are taken by the threads one by one
+			ConcurrentLinkedQueue<List<Path>> parts = new ConcurrentLinkedQueue<List<Path>>();
+			for(Path source : sources) {
+				for(final Path segment : SegmentReader.segments(source))
+					parts.add(Collections.singletonList(segment));
+				List<Path> files = new ArrayList<Path>();
+				try(DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+					for(Path file : stream) {
+						String name = file.getFileName().toString();
+						if(name.startsWith(".") || name.startsWith(SegmentLog.PREFIX) || !Files.isRegularFile(file))
+							continue;
+						files.add(file);
+						if(files.size() == 1024) {
+							parts.add(files);
+							files = new ArrayList<Path>();
+						}
+					}
+				}
+				if(!files.isEmpty())
+					parts.add(files);
+			}
+			for(int i=0; i<Math.max(1, threads); ++i)
+				tasks.add(pool.submit(new Rebuild(index, parts)));
+			long messages = 0;
+			for(Future<Long> task : tasks) {
+				try {
+					messages += task.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof IOException)
+						throw (IOException)cause;
+					throw new IOException(cause);
+				}
+			}
+			index.awaitMerges();
+			List<IndexRun> all;
+			synchronized (index) {
+				all = new ArrayList<IndexRun>(index.runs);
+			}
+			index.merge(all);
+			logger.info("Index " + directory + " rebuilt from " + messages + " messages in " + (System.currentTimeMillis() - start) + " ms");
+			return messages;
+		} finally {
+			pool.shutdownNow();
+			index.close();
+		}
+	}
+
+	/** Write sorted entries of a rebuilding thread as a run, runs beyond {@link #MAX_RUNS} are merged in the background. */
+	private void	addRun(List<Hit> hits) throws IOException {
+		Collections.sort(hits);
+		long number;
+		synchronized (this) {
+			number = nextRun++;
+		}
+		IndexRun run = IndexRun.write(directory.resolve(runName(number)), hits.iterator());
+		synchronized (this) {
+			runs.add(run);
+			scheduleMerge();
+		}
+		hits.clear();
+	}
+
+	/** Rebuilding thread - indexes parts of stored messages until there is none left. */
+	private static final class Rebuild implements Callable<Long> {
+		private final ResultIndex index;
+		private final ConcurrentLinkedQueue<List<Path>> parts;
+		/** Entries of all parts taken by the thread, written as a run when {@link ResultIndex#FLUSH} are collected. */
+		private final List<Hit> pending = new ArrayList<Hit>();
+
+		Rebuild(ResultIndex index, ConcurrentLinkedQueue<List<Path>> parts) {
+			this.index = index;
+			this.parts = parts;
+		}
+
+		@Override
+		public Long call() throws IOException {
+			long messages = 0;
+			List<Path> paths;
+			while((paths = parts.poll()) != null)
+				messages += index(paths);
+			if(!pending.isEmpty())
+				index.addRun(pending);
+			return messages;
+		}
+
+		/** Index a part - a segment log or message files. */
+		private long	index(List<Path> paths) throws IOException {
+			long messages = 0;
+			if(paths.size() == 1 && paths.get(0).getFileName().toString().startsWith(SegmentLog.PREFIX)) {
+				Path dir = paths.get(0).getParent();
+				try(SegmentReader reader = new SegmentReader(paths)) {
+					while(reader.next()) {
+						byte [] data = Arrays.copyOf(reader.getData(), reader.getLength());
+						add(AstmMessage.parse(data, data.length, reader.getTimestamp(), dir, reader.getSequence()));
+						messages++;
+					}
+				}
+			} else {
+				for(Path file : paths) {
+					byte [] data;
+					long modified;
+					try {
+						data = Files.readAllBytes(file);
+						modified = Files.getLastModifiedTime(file).toMillis();
+					} catch (NoSuchFileException e) {
+						continue;
+					}
+					Matcher m = TRAILING_NUMBER.matcher(file.getFileName().toString());
+					long sequence = m.find() ? Long.parseLong(m.group(1)) : -1;
+					if(add(AstmMessage.parse(data, data.length, modified, file, sequence)))
+						messages++;
+				}
+			}
+			if(logger.isLoggable(Level.FINE))
+				logger.fine(messages + " messages of " + paths.get(0).getParent() + " indexed");
+			return messages;
+		}
+
+		private boolean	add(AstmMessage message) throws IOException {
+			List<AstmMessage.Record> records = message.getRecords();
+			// not a stored message
+			if(records.isEmpty() || records.get(0).type() != 'H')
+				return false;
+			pending.addAll(hits(message));
+			if(pending.size() >= FLUSH)
+				index.addRun(pending);
+			return true;
+		}
+	}
+
+}
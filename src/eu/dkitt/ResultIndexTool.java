@@ -0,0 +1,152 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Command line access to a {@link ResultIndex}.
+ * <ul>
+ * <li><code>find &lt;index&gt; sample|patient|test &lt;key&gt; [&lt;from&gt; [&lt;to&gt;]]</code> - messages with the key.</li>
+ * <li><code>range &lt;index&gt; &lt;from&gt; &lt;to&gt;</code> - messages received within the time range.</li>
+ * <li><code>show &lt;index&gt; sample|patient|test &lt;key&gt; [&lt;from&gt; [&lt;to&gt;]]</code> - write the found messages to the standard output.</li>
+ * <li><code>rebuild &lt;index&gt; [-threads &lt;n&gt;] &lt;dir&gt;...</code> - index messages stored in the directories anew.</li>
+ * </ul>
+ * Times are <code>yyyy-MM-dd</code> or <code>yyyy-MM-ddTHH:mm[:ss]</code> in the local time zone, a date alone
+ * as the end of a range includes the whole day. Found messages are listed by the time, the location and the sequence.
+ * The index is opened read only for queries, so it may be queried while the server writes it.
+ *
+ * @author dkittrich
+ *
+ */
+public class ResultIndexTool {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length < 2) {
+			usage();
+			return;
+		}
+		Path dir = Paths.get(args[1]);
+		switch(args[0]) {
+		case "find":
+		case "show":
+			if(args.length < 4 || type(args[2]) == 0) {
+				usage();
+				return;
+			}
+			List<ResultIndex.Hit> hits;
+			try(ResultIndex index = ResultIndex.open(dir, true)) {
+				hits = index.find(type(args[2]), args[3], args.length > 4 ? time(args[4], false) : Long.MIN_VALUE,
+						args.length > 5 ? time(args[5], true) : Long.MAX_VALUE);
+			}
+			if("find".equals(args[0]))
+				list(hits, System.out);
+			else
+				show(hits, System.out);
+			break;
+		case "range":
+			if(args.length < 4) {
+				usage();
+				return;
+			}
+			try(ResultIndex index = ResultIndex.open(dir, true)) {
+				list(index.range(time(args[2], false), time(args[3], true)), System.out);
+			}
+			break;
+		case "rebuild":
+			int threads = Runtime.getRuntime().availableProcessors();
+			List<Path> sources = new ArrayList<Path>();
+			for(int i=2; i<args.length; ++i) {
+				if("-threads".equals(args[i]) && i + 1 < args.length)
+					threads = Integer.parseInt(args[++i]);
+				else
+					sources.add(Paths.get(args[i]));
+			}
+			if(sources.isEmpty()) {
+				usage();
+				return;
+			}
+			long start = System.currentTimeMillis();
+			long messages = ResultIndex.rebuild(dir, sources, threads);
+			System.out.println(messages + " messages indexed in " + (System.currentTimeMillis() - start) + " ms");
+			break;
+		default:
+			usage();
+		}
+	}
+
+	private static void	usage() {
+		System.out.println("Usage: ResultIndexTool find <index> sample|patient|test <key> [<from> [<to>]]\n"
+				+ "       ResultIndexTool range <index> <from> <to>\n"
+				+ "       ResultIndexTool show <index> sample|patient|test <key> [<from> [<to>]]\n"
+				+ "       ResultIndexTool rebuild <index> [-threads <n>] <dir>...");
+	}
+
+	private static char	type(String name) {
+		switch(name) {
+		case "sample":
+			return ResultIndex.SAMPLE;
+		case "patient":
+			return ResultIndex.PATIENT;
+		case "test":
+			return ResultIndex.TEST;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Parse a time argument.
+	 * @param text	date, date and time or milliseconds
+	 * @param bEnd	a date alone means the end of the day
+	 * @return time in milliseconds
+	 */
+	static long	time(String text, boolean bEnd) {
+		ZoneId zone = ZoneId.systemDefault();
+		if(text.indexOf('-') < 0)
+			return Long.parseLong(text);
+		if(text.indexOf('T') < 0) {
+			LocalDate date = LocalDate.parse(text);
+			if(bEnd)
+				return date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+			return date.atStartOfDay(zone).toInstant().toEpochMilli();
+		}
+		return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+	}
+
+	static void	list(List<ResultIndex.Hit> hits, PrintStream out) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		for(ResultIndex.Hit hit : hits)
+			out.println(format.format(new Date(hit.getTime())) + "\t" + hit.getLocation() + "\t" + hit.getSequence());
+	}
+
+	/** Write messages of segment logs or files - a message no longer stored is reported. */
+	static void	show(List<ResultIndex.Hit> hits, PrintStream out) throws IOException {
+		for(ResultIndex.Hit hit : hits) {
+			Path location = Paths.get(hit.getLocation());
+			if(Files.isDirectory(location)) {
+				try(SegmentReader reader = new SegmentReader(location)) {
+					if(reader.get(hit.getSequence())) {
+						out.write(reader.getData(), 0, reader.getLength());
+						continue;
+					}
+				}
+			} else if(Files.isRegularFile(location)) {
+				out.write(Files.readAllBytes(location));
+				continue;
+			}
+			System.err.println("Message " + hit.getSequence() + " of " + location + " not found");
+		}
+		out.flush();
+	}
+
+}
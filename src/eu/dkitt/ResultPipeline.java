@@ -0,0 +1,211 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parsing of received messages into ASTM records ({@link AstmMessage}) and their delivery to result sinks,
+ * shared by all sessions of the process (see {@link #shared(Properties)}).<br/>
+ * A committed message is copied once from its pooled buffer by the session and handed over to a bounded pool of workers,
+ * so results are structured right after the message was received and the session is never blocked.
+ * <ul>
+ * <li>Sinks are named by {@link T1#OPTION_RESULT_SINKS}: <code>csv:&lt;file&gt;</code> and <code>jsonl:&lt;file&gt;</code>
+ * ({@link RecordFileSink}), <code>index:&lt;dir&gt;</code> ({@link ResultIndex}) or <code>class:&lt;name&gt;</code> (a {@link ResultSink} implementation).
+ * An application embedding the server may add a sink by {@link #addSink(ResultSink)}.</li>
+ * <li>{@link T1#OPTION_RESULT_THREADS} workers (default 1) parse and deliver messages - with a single worker
+ * sinks get messages in the order of reception.</li>
+ * <li>At most {@link T1#OPTION_RESULT_QUEUE} messages wait for a worker. When the queue is full, the storing thread waits
+ * up to {@link #SUBMIT_WAIT} ms for a place, a message which does not get one is not parsed (it is still written into the output directory)
+ * and its location is logged, so its results can be added to sinks later (e.g. by <code>ResultIndexTool rebuild</code>).</li>
+ * <li>Messages are parsed only after they were stored and never if they are dropped as duplicates.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+public class ResultPipeline {
+
+	private static final Logger logger = Logger.getLogger(ResultPipeline.class.getName());
+
+	/** Milliseconds a storing thread waits for a place in the full queue. */
+	static final long SUBMIT_WAIT = 1000;
+
+	private static ResultPipeline shared = null;
+
+	/**
+	 * Get the pipeline of the process, created by the first call with sinks of the properties.
+	 * @param properties
+	 * @return
+	 */
+	public static synchronized ResultPipeline shared(Properties properties) {
+		if(shared == null) {
+			shared = new ResultPipeline(Math.max(1, Integer.parseInt(properties.getProperty(T1.OPTION_RESULT_THREADS, "1"))),
+					Math.max(1, Integer.parseInt(properties.getProperty(T1.OPTION_RESULT_QUEUE, "1024"))));
+			shared.configure(properties);
+			final ResultPipeline closing = shared;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					closing.close();
+				}
+			}, "ResultPipeline"));
+		}
+		return shared;
+	}
+
+	private final CopyOnWriteArrayList<ResultSink> sinks = new CopyOnWriteArrayList<ResultSink>();
+	private final ThreadPoolExecutor workers;
+	private long dropped = 0;
+
+	ResultPipeline(int threads, int queue) {
+		final AtomicInteger counter = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ResultPipeline_" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Register a sink receiving all messages parsed from now on.
+	 * @param sink
+	 */
+	public void	addSink(ResultSink sink) {
+		sinks.add(sink);
+	}
+
+	public void	removeSink(ResultSink sink) {
+		sinks.remove(sink);
+	}
+
+	/**
+	 * Whether there is a sink - messages are not copied otherwise.
+	 * @return
+	 */
+	boolean	isActive() {
+		return !sinks.isEmpty();
+	}
+
+	/**
+	 * Parse a stored message and deliver it to sinks by a worker thread.
+	 * @param data	received bytes, owned by the pipeline from now on
+	 * @param length	number of bytes
+	 * @param received	time of the reception in milliseconds
+	 * @param location	file of the message or directory of the segment log
+	 * @param sequence	running counter of the message
+	 */
+	void	submit(final byte [] data, final int length, final long received, final Path location, final long sequence) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				deliver(AstmMessage.parse(data, length, received, location, sequence));
+			}
+		};
+		try {
+			workers.execute(task);
+			return;
+		} catch (RejectedExecutionException e) {
+		}
+		// all workers are busy - wait for a place in the queue
+		try {
+			if(!workers.isShutdown() && workers.getQueue().offer(task, SUBMIT_WAIT, TimeUnit.MILLISECONDS)
+					&& !(workers.isShutdown() && workers.remove(task)))
+				return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long n;
+		synchronized (this) {
+			n = ++dropped;
+		}
+		logger.warning("Result sinks are behind - message " + location + (sequence >= 0 ? " #" + sequence : "")
+				+ " not parsed, " + n + " messages so far");
+	}
+
+	private void	deliver(AstmMessage message) {
+		for(ResultSink sink : sinks) {
+			try {
+				sink.accept(message);
+			} catch (IOException | RuntimeException e) {
+				logger.warning("Result sink " + sink + " failed - " + e);
+			}
+		}
+		if(logger.isLoggable(Level.FINE))
+			logger.fine("Message of " + message.getRecords().size() + " records delivered after "
+					+ (System.currentTimeMillis() - message.getReceived()) + " ms");
+	}
+
+	/**
+	 * Create sinks named by the properties.
+	 */
+	private void	configure(Properties properties) {
+		for(String spec : properties.getProperty(T1.OPTION_RESULT_SINKS, "").split(";")) {
+			spec = spec.trim();
+			if(spec.isEmpty())
+				continue;
+			int colon = spec.indexOf(':');
+			String kind = colon < 0 ? spec : spec.substring(0, colon);
+			String arg = colon < 0 ? "" : spec.substring(colon + 1).trim();
+			try {
+				if("csv".equals(kind))
+					addSink(new RecordFileSink(Paths.get(arg), false));
+				else if("jsonl".equals(kind))
+					addSink(new RecordFileSink(Paths.get(arg), true));
+				else if("index".equals(kind))
+					addSink(new ResultIndex(Paths.get(arg)));
+				else if("class".equals(kind))
+					addSink(instantiate(arg, properties));
+				else
+					logger.warning("Unknown result sink " + spec);
+			} catch (Exception e) {
+				logger.warning("Cannot create result sink " + spec + " - " + e);
+			}
+		}
+	}
+
+	private static ResultSink	instantiate(String name, Properties properties) throws ReflectiveOperationException {
+		Class<? extends ResultSink> type = Class.forName(name).asSubclass(ResultSink.class);
+		try {
+			Constructor<? extends ResultSink> constructor = type.getConstructor(Properties.class);
+			return constructor.newInstance(properties);
+		} catch (NoSuchMethodException e) {
+			return type.getConstructor().newInstance();
+		}
+	}
+
+	/**
+	 * Deliver waiting messages and close sinks.
+	 */
+	void	close() {
+		workers.shutdown();
+		try {
+			if(!workers.awaitTermination(5, TimeUnit.SECONDS))
+				logger.warning("Result sinks did not take all messages");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(ResultSink sink : sinks) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				logger.warning("Cannot close result sink " + sink + " - " + e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package eu.dkitt;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receiver of parsed messages registered in the {@link ResultPipeline}.<br/>
+ * Sinks are called by worker threads of the pipeline - a sink must be thread safe
+ * if there are more of them ({@link T1#OPTION_RESULT_THREADS}).
+ * A sink named by {@link T1#OPTION_RESULT_SINKS} as <code>class:&lt;name&gt;</code> needs a public constructor
+ * taking {@link java.util.Properties} or one without arguments.
+ *
+ * @author dkittrich
+ *
+ */
+public interface ResultSink extends Closeable {
+
+	/**
+	 * Take a parsed message.
+	 * @param message
+	 * @throws IOException
+	 */
+	void	accept(AstmMessage message) throws IOException;
+
+}
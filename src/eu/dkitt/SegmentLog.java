@@ -0,0 +1,298 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of received messages, an alternative to one file per message
+ * ({@link T1#OPTION_OUTPUT} <code>=segments</code>).<br/>
+ * Messages are appended into segment files <code>segment_&lt;first sequence&gt;.log</code> in the output directory:
+ * <ul>
+ * <li>A record is <code>length(4) sequence(8) timestamp(8) data(length) crc32(4)</code>, big endian,
+ * the CRC covers the header and the data.</li>
+ * <li>The sequence is the running counter of the directory ({@link SequenceAllocator}),
+ * the same number a message would get in its file name.</li>
+ * <li>Every segment has an index <code>segment_&lt;first sequence&gt;.idx</code> of 8 byte entries
+ * <code>sequence - first sequence(4) offset(4)</code>.</li>
+ * <li>A new segment is started when the current one would exceed {@link T1#OPTION_SEGMENT_SIZE} bytes
+ * or when it is older than {@link T1#OPTION_SEGMENT_TIME} seconds at the time of an append.</li>
+ * <li>When the log is opened, a torn record at the end of the last segment is cut off and its index is rebuilt.
+ * A segment with invalid records followed by valid ones is kept as it is, appending continues in a new segment.</li>
+ * </ul>
+ * Segments are read by {@link SegmentReader}, see also {@link SegmentLogTool}.
+ *
+ * @author dkittrich
+ *
+ */
+class SegmentLog {
+
+	private static final Logger logger = Logger.getLogger(SegmentLog.class.getName());
+
+	static final String PREFIX = "segment_";
+	static final String LOG_SUFFIX = ".log";
+	static final String INDEX_SUFFIX = ".idx";
+	static final int HEADER = 20;
+	static final int TRAILER = 4;
+	static final int INDEX_ENTRY = 8;
+
+	private static final Map<Path, SegmentLog> logs = new HashMap<Path, SegmentLog>();
+
+	/**
+	 * Get the log of a directory, it is created on the first call.
+	 * @param directory	output directory
+	 * @param properties	properties with the roll limits and the counter block
+	 * @return shared log
+	 */
+	static synchronized SegmentLog forDirectory(Path directory, Properties properties) {
+		Path dir = directory.toAbsolutePath().normalize();
+		SegmentLog log = logs.get(dir);
+		if(log == null) {
+			log = new SegmentLog(dir, SequenceAllocator.forDirectory(dir, properties),
+					Long.parseLong(properties.getProperty(T1.OPTION_SEGMENT_SIZE, "67108864")),
+					1000L * Long.parseLong(properties.getProperty(T1.OPTION_SEGMENT_TIME, "3600")));
+			logs.put(dir, log);
+		}
+		return log;
+	}
+
+	/**
+	 * File name of a segment.
+	 * @param base	sequence of the first record
+	 * @param suffix	{@link #LOG_SUFFIX} or {@link #INDEX_SUFFIX}
+	 * @return
+	 */
+	static String	segmentName(long base, String suffix) {
+		return String.format("%s%020d%s", PREFIX, base, suffix);
+	}
+
+	private final Path directory;
+	private final SequenceAllocator counter;
+	private final long maxSize;
+	private final long maxAge;
+
+	private boolean bRecovered = false;
+	private FileChannel log;
+	private FileChannel index;
+	private long base;
+	private long created;
+	private long size;
+
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+	private final ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+	private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+	private final CRC32 crc = new CRC32();
+
+	SegmentLog(Path directory, SequenceAllocator counter, long maxSize, long maxAge) {
+		this.directory = directory;
+		this.counter = counter;
+		this.maxSize = Math.min(Integer.MAX_VALUE, Math.max(HEADER + TRAILER, maxSize));
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Output directory of the log.
+	 * @return
+	 */
+	Path	getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Append a message. A failed append leaves no partial record behind.
+	 * @param message	received message, it is kept
+	 * @return sequence number of the record
+	 * @throws IOException
+	 */
+	synchronized long	append(MessageBuffer message) throws IOException {
+		if(!bRecovered) {
+			bRecovered = true;
+			recover();
+		}
+		long seq = counter.next();
+		long now = System.currentTimeMillis();
+		int len = message.size();
+		if(log != null && size > 0 && (size + HEADER + len + TRAILER > maxSize || (maxAge > 0 && now - created >= maxAge)))
+			roll();
+		if(log == null)
+			open(seq, now);
+
+		header.clear();
+		header.putInt(len).putLong(seq).putLong(now).flip();
+		crc.reset();
+		crc.update(header.array(), 0, HEADER);
+		message.update(crc);
+		trailer.clear();
+		trailer.putInt((int)crc.getValue()).flip();
+		entry.clear();
+		entry.putInt((int)(seq - base)).putInt((int)size).flip();
+
+		long indexSize = index.size();
+		try {
+			writeFully(log, header);
+			message.writeTo(log);
+			writeFully(log, trailer);
+			writeFully(index, entry);
+		} catch (IOException e) {
+			try {
+				log.truncate(size);
+				log.position(size);
+				index.truncate(indexSize);
+				index.position(indexSize);
+			} catch (IOException ex) {
+				logger.severe("Cannot cut a failed record off " + segmentName(base, LOG_SUFFIX) + " - " + ex);
+			}
+			throw e;
+		}
+		size += HEADER + len + TRAILER;
+		return seq;
+	}
+
+	/**
+	 * Force the current segment and its index to disk.
+	 * @throws IOException
+	 */
+	synchronized void	force() throws IOException {
+		if(log != null) {
+			log.force(true);
+			index.force(true);
+		}
+	}
+
+	/**
+	 * Force and close the current segment, the next append starts a new one.
+	 */
+	synchronized void	close() {
+		if(log != null) {
+			try {
+				roll();
+			} catch (IOException e) {
+				logger.warning("Cannot close segment " + segmentName(base, LOG_SUFFIX) + " - " + e);
+			}
+		}
+	}
+
+	private void	open(long seq, long now) throws IOException {
+		base = seq;
+		created = now;
+		size = 0;
+		log = FileChannel.open(directory.resolve(segmentName(base, LOG_SUFFIX)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		index = FileChannel.open(directory.resolve(segmentName(base, INDEX_SUFFIX)), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		logger.fine("Segment " + segmentName(base, LOG_SUFFIX) + " started");
+	}
+
+	private void	roll() throws IOException {
+		try {
+			log.force(true);
+			index.force(true);
+		} finally {
+			log.close();
+			index.close();
+			log = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * Validate the last segment, cut a torn record off, rebuild its index and continue appending to it.<br/>
+	 * Only invalid bytes after the last valid record are a torn record - an append interrupted by a crash.
+	 * A segment with invalid records before valid ones, or with indexed records after the last valid one,
+	 * is damaged - it is kept for inspection and appending continues in a new segment.
+	 */
+	private void	recover() throws IOException {
+		List<Path> segments = SegmentReader.segments(directory);
+		if(segments.isEmpty())
+			return;
+		Path last = segments.get(segments.size() - 1);
+		long lastBase = SegmentReader.baseOf(last);
+		Path indexFile = directory.resolve(segmentName(lastBase, INDEX_SUFFIX));
+		Path indexTmp = directory.resolve(segmentName(lastBase, INDEX_SUFFIX) + ".tmp");
+		long indexed = lastIndexed(indexFile);
+		long end = 0;
+		long first = -1;
+		int skipped = 0;
+		ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY * 1024);
+		try(FileChannel newIndex = FileChannel.open(indexTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				SegmentReader reader = new SegmentReader(Collections.singletonList(last))) {
+			while(reader.next()) {
+				if(first < 0)
+					first = reader.getTimestamp();
+				if(!entries.hasRemaining()) {
+					entries.flip();
+					writeFully(newIndex, entries);
+					entries.clear();
+				}
+				entries.putInt((int)(reader.getSequence() - lastBase)).putInt((int)reader.getOffset());
+				end = reader.getEnd();
+				skipped = reader.getSkipped();
+			}
+			entries.flip();
+			writeFully(newIndex, entries);
+		} catch (IOException e) {
+			Files.deleteIfExists(indexTmp);
+			throw e;
+		}
+		if(skipped > 0 || indexed >= end) {
+			Files.delete(indexTmp);
+			logger.severe("Segment " + last + " is damaged - " + (skipped > 0 ? skipped + " invalid records before" : "indexed records after")
+					+ " offset " + end + ", the segment is kept and appending continues in a new one");
+			return;
+		}
+		if(end == 0) {
+			Files.delete(indexTmp);
+			Files.deleteIfExists(indexFile);
+			Files.delete(last);
+			logger.info("Empty segment " + last + " removed");
+			return;
+		}
+		Files.move(indexTmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+		log = FileChannel.open(last, StandardOpenOption.WRITE);
+		if(log.size() > end) {
+			logger.warning("Segment " + last + " ends with a torn record - " + (log.size() - end) + " bytes cut off");
+			log.truncate(end);
+		}
+		log.position(end);
+		index = FileChannel.open(indexFile, StandardOpenOption.WRITE);
+		index.position(index.size());
+		base = lastBase;
+		created = first;
+		size = end;
+		logger.fine("Segment " + last + " continues at offset " + end);
+	}
+
+	/**
+	 * Offset of the last record of a segment index - entries are appended after their records.
+	 * @return offset or -1 if the index is missing or empty
+	 */
+	private static long	lastIndexed(Path indexFile) throws IOException {
+		try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			long entries = channel.size() / INDEX_ENTRY;
+			if(entries == 0)
+				return -1;
+			ByteBuffer offset = ByteBuffer.allocate(4);
+			long pos = (entries - 1) * INDEX_ENTRY + 4;
+			while(offset.hasRemaining() && channel.read(offset, pos + offset.position()) > 0);
+			return offset.hasRemaining() ? -1 : offset.getInt(0) & 0xFFFFFFFFL;
+		} catch (NoSuchFileException e) {
+			return -1;
+		}
+	}
+
+	private static void	writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+}
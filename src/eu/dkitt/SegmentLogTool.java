@@ -0,0 +1,125 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Command line access to messages stored by a {@link SegmentLog}.
+ * <ul>
+ * <li><code>list &lt;dir&gt;</code> - segments with their first and last sequence, number of records and size.</li>
+ * <li><code>dump &lt;dir&gt; [&lt;from&gt;]</code> - sequence, time and length of every record.</li>
+ * <li><code>get &lt;dir&gt; &lt;seq&gt;</code> - write a single message to the standard output.</li>
+ * <li><code>export &lt;dir&gt; &lt;outdir&gt; [&lt;format&gt;] [&lt;from&gt;]</code> - write every message into its own file
+ * named as in the legacy output (default <code>msg_received_%05d.txt</code>), existing files are kept.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+public class SegmentLogTool {
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			usage();
+			return;
+		}
+		Path dir = Paths.get(args[1]);
+		switch(args[0]) {
+		case "list":
+			list(dir, System.out);
+			break;
+		case "dump":
+			dump(dir, args.length > 2 ? Long.parseLong(args[2]) : 0, System.out);
+			break;
+		case "get":
+			if(args.length < 3) {
+				usage();
+				return;
+			}
+			try(SegmentReader reader = new SegmentReader(dir)) {
+				long seq = Long.parseLong(args[2]);
+				if(!reader.get(seq)) {
+					System.err.println("Message " + seq + " not found");
+					System.exit(1);
+				}
+				System.out.write(reader.getData(), 0, reader.getLength());
+				System.out.flush();
+			}
+			break;
+		case "export":
+			if(args.length < 3) {
+				usage();
+				return;
+			}
+			export(dir, Paths.get(args[2]), args.length > 3 ? args[3] : "msg_received_%05d.txt",
+					args.length > 4 ? Long.parseLong(args[4]) : 0);
+			break;
+		default:
+			usage();
+		}
+	}
+
+	private static void	usage() {
+		System.out.println("Usage: SegmentLogTool list <dir>\n"
+				+ "       SegmentLogTool dump <dir> [<from>]\n"
+				+ "       SegmentLogTool get <dir> <seq>\n"
+				+ "       SegmentLogTool export <dir> <outdir> [<format>] [<from>]");
+	}
+
+	static void	list(Path dir, PrintStream out) throws IOException {
+		for(Path segment : SegmentReader.segments(dir)) {
+			long first = -1;
+			long last = -1;
+			long count = 0;
+			try(SegmentReader reader = new SegmentReader(Collections.singletonList(segment))) {
+				while(reader.next()) {
+					if(first < 0)
+						first = reader.getSequence();
+					last = reader.getSequence();
+					count++;
+				}
+			}
+			out.println(segment.getFileName() + " first=" + first + " last=" + last + " records=" + count + " bytes=" + Files.size(segment));
+		}
+	}
+
+	static void	dump(Path dir, long from, PrintStream out) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		try(SegmentReader reader = new SegmentReader(dir)) {
+			reader.seek(from);
+			while(reader.next())
+				out.println(reader.getSequence() + "\t" + format.format(new Date(reader.getTimestamp())) + "\t" + reader.getLength());
+		}
+	}
+
+	static void	export(Path dir, Path outdir, String format, long from) throws IOException {
+		int written = 0;
+		int skipped = 0;
+		try(SegmentReader reader = new SegmentReader(dir)) {
+			reader.seek(from);
+			while(reader.next()) {
+				Path path = outdir.resolve(String.format(format, reader.getSequence()));
+				try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					ByteBuffer data = ByteBuffer.wrap(reader.getData(), 0, reader.getLength());
+					while(data.hasRemaining())
+						channel.write(data);
+					written++;
+				} catch (FileAlreadyExistsException e) {
+					skipped++;
+				}
+			}
+		}
+		System.out.println(written + " files written, " + skipped + " existing files kept");
+	}
+
+}
@@ -0,0 +1,313 @@
+package eu.dkitt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Reader of messages stored by a {@link SegmentLog}.<br/>
+ * Records are iterated in the order they were appended:
+ * <pre>
+ * try(SegmentReader reader = new SegmentReader(directory)) {
+ *     reader.seek(from);
+ *     while(reader.next())
+ *         process(reader.getSequence(), reader.getData(), reader.getLength());
+ * }
+ * </pre>
+ * A single message is fetched by its sequence number using the segment index, see {@link #get(long)}.
+ * A record with a wrong CRC is skipped, the reader continues after it. A record whose length does not fit
+ * into its segment ends the iteration of the segment, the reader continues with the next segment.
+ *
+ * @author dkittrich
+ *
+ */
+public class SegmentReader implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(SegmentReader.class.getName());
+
+	/**
+	 * Segment files of a directory ordered by their first sequence.
+	 * @param directory
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Path>	segments(Path directory) throws IOException {
+		List<Path> list = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SegmentLog.PREFIX + "*" + SegmentLog.LOG_SUFFIX)) {
+			for(Path file : stream)
+				list.add(file);
+		}
+		// names have a fixed width sequence
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * First sequence of a segment from its file name.
+	 * @param segment
+	 * @return
+	 */
+	static long	baseOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SegmentLog.PREFIX.length(), name.length() - SegmentLog.LOG_SUFFIX.length()));
+	}
+
+	private final List<Path> segments;
+	private int current = -1;
+	private FileChannel channel;
+	private long position;
+
+	private final ByteBuffer header = ByteBuffer.allocate(SegmentLog.HEADER);
+	private final CRC32 crc = new CRC32();
+	private byte [] data = new byte[4096];
+	private int length;
+	private long sequence;
+	private long timestamp;
+	private long offset;
+	/** Records skipped because of a wrong CRC. */
+	private int skipped = 0;
+
+	/**
+	 * Open all segments of a directory.
+	 * @param directory	output directory of the log
+	 * @throws IOException
+	 */
+	public SegmentReader(Path directory) throws IOException {
+		this(segments(directory));
+	}
+
+	SegmentReader(List<Path> segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Segment files read by this reader.
+	 * @return
+	 */
+	public List<Path>	getSegments() {
+		return Collections.unmodifiableList(segments);
+	}
+
+	/**
+	 * Position the reader so that the next call of {@link #next()} returns
+	 * the first record with the sequence equal to or greater than the given one.
+	 * @param seq
+	 * @throws IOException
+	 */
+	public void	seek(long seq) throws IOException {
+		int i = findSegment(seq);
+		openSegment(Math.max(0, i));
+		if(i < 0)
+			return;
+		long [] found = lookup(segments.get(i), seq);
+		if(found != null && found[0] >= seq) {
+			position = found[1];
+			return;
+		}
+		// no usable index - skip records
+		while(true) {
+			long mark = position;
+			if(!readRecord() || sequence >= seq) {
+				position = mark;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Move to the next record.
+	 * @return false if there are no more records
+	 * @throws IOException
+	 */
+	public boolean	next() throws IOException {
+		if(current < 0)
+			openSegment(0);
+		while(channel != null) {
+			if(readRecord())
+				return true;
+			openSegment(current + 1);
+		}
+		return false;
+	}
+
+	/**
+	 * Fetch a single message.
+	 * @param seq	sequence number of the message
+	 * @return true if the message was found, it is the current record then
+	 * @throws IOException
+	 */
+	public boolean	get(long seq) throws IOException {
+		seek(seq);
+		return next() && sequence == seq;
+	}
+
+	public long	getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Time when the message was stored.
+	 * @return milliseconds since the epoch
+	 */
+	public long	getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Array with the message of the current record - valid until the next read.
+	 * @return
+	 */
+	public byte []	getData() {
+		return data;
+	}
+
+	public int	getLength() {
+		return length;
+	}
+
+	/**
+	 * Offset of the current record in its segment.
+	 * @return
+	 */
+	long	getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Number of records skipped so far because of a wrong CRC.
+	 * @return
+	 */
+	int	getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Offset following the current record in its segment.
+	 * @return
+	 */
+	long	getEnd() {
+		return position;
+	}
+
+	@Override
+	public void	close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Index of the last segment starting at or before the sequence.
+	 */
+	private int	findSegment(long seq) {
+		int i = segments.size() - 1;
+		while(i >= 0 && baseOf(segments.get(i)) > seq)
+			i--;
+		return i;
+	}
+
+	private void	openSegment(int i) throws IOException {
+		close();
+		current = i;
+		position = 0;
+		if(i < segments.size())
+			channel = FileChannel.open(segments.get(i), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Binary search of the first index entry with the sequence equal to or greater than the given one.
+	 * @return sequence and offset or null
+	 */
+	private long []	lookup(Path segment, long seq) throws IOException {
+		long base = baseOf(segment);
+		Path indexFile = segment.resolveSibling(SegmentLog.segmentName(base, SegmentLog.INDEX_SUFFIX));
+		ByteBuffer entry = ByteBuffer.allocate(SegmentLog.INDEX_ENTRY);
+		try(FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			long lo = 0;
+			long hi = index.size() / SegmentLog.INDEX_ENTRY;
+			long [] found = null;
+			while(lo < hi) {
+				long mid = (lo + hi) >>> 1;
+				entry.clear();
+				while(entry.hasRemaining() && index.read(entry, mid * SegmentLog.INDEX_ENTRY + entry.position()) > 0);
+				entry.flip();
+				long s = base + (entry.getInt() & 0xFFFFFFFFL);
+				long o = entry.getInt() & 0xFFFFFFFFL;
+				if(s >= seq) {
+					found = new long[] {s, o};
+					hi = mid;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			return found;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read and verify the record at the current position, records with a wrong CRC are skipped.
+	 * @return false at the end of the segment or at a record which does not fit into it
+	 */
+	private boolean	readRecord() throws IOException {
+		long size = channel.size();
+		while(true) {
+			if(size - position < SegmentLog.HEADER + SegmentLog.TRAILER)
+				return end(size);
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int len = header.getInt();
+			long seq = header.getLong();
+			long ts = header.getLong();
+			if(len < 0 || len > size - position - SegmentLog.HEADER - SegmentLog.TRAILER)
+				return end(size);
+			if(data.length < len + SegmentLog.TRAILER)
+				data = new byte[Math.max(len + SegmentLog.TRAILER, 2 * data.length)];
+			ByteBuffer body = ByteBuffer.wrap(data, 0, len + SegmentLog.TRAILER);
+			readFully(body, position + SegmentLog.HEADER);
+			crc.reset();
+			crc.update(header.array(), 0, SegmentLog.HEADER);
+			crc.update(data, 0, len);
+			if((int)crc.getValue() != ByteBuffer.wrap(data, len, SegmentLog.TRAILER).getInt()) {
+				logger.warning("Invalid record at offset " + position + " of " + segments.get(current) + " skipped");
+				skipped++;
+				position += SegmentLog.HEADER + len + SegmentLog.TRAILER;
+				continue;
+			}
+			offset = position;
+			position += SegmentLog.HEADER + len + SegmentLog.TRAILER;
+			length = len;
+			sequence = seq;
+			timestamp = ts;
+			return true;
+		}
+	}
+
+	private boolean	end(long size) {
+		if(position < size)
+			logger.warning("Incomplete record at offset " + position + " of " + segments.get(current));
+		return false;
+	}
+
+	private void	readFully(ByteBuffer buffer, long pos) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, pos + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + segments.get(current));
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Allocator of running counters of received file names, one per output directory in the process.<br/>
+ * Numbers are handed out from memory without locking. The counter file <code>.counter</code>
+ * is only rewritten when a new block of numbers is reserved
+ * ({@link T1#OPTION_COUNTER_BLOCK}, default 100):
+ * <ul>
+ * <li>The file always contains the first number which was not reserved yet,
+ * so after a crash no number is ever allocated twice - at most the rest of a block is skipped.</li>
+ * <li>The file is written to a temporary file, forced to disk and atomically renamed.</li>
+ * <li>On a clean shutdown the exact next number is stored.</li>
+ * <li>The file keeps the plain text format of older versions, which is read on start.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class SequenceAllocator {
+
+	private static final Logger logger = Logger.getLogger(SequenceAllocator.class.getName());
+
+	private static final Map<Path, SequenceAllocator> allocators = new HashMap<Path, SequenceAllocator>();
+
+	/**
+	 * Get the allocator of a directory, it is created on the first call.
+	 * @param directory	output directory with the counter file
+	 * @param properties	properties with the block size
+	 * @return shared allocator
+	 */
+	static synchronized SequenceAllocator forDirectory(Path directory, Properties properties) {
+		Path dir = directory.toAbsolutePath().normalize();
+		SequenceAllocator allocator = allocators.get(dir);
+		if(allocator == null) {
+			int block = Math.max(1, Integer.parseInt(properties.getProperty(T1.OPTION_COUNTER_BLOCK, "100")));
+			allocator = new SequenceAllocator(dir.resolve(".counter"), block);
+			allocators.put(dir, allocator);
+			final SequenceAllocator closing = allocator;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					closing.close();
+				}
+			}, "SequenceAllocator"));
+		}
+		return allocator;
+	}
+
+	private final Path store;
+	private final Path storeTmp;
+	private final int block;
+	private final AtomicLong next;
+	/** First number not reserved in the counter file. */
+	private volatile long limit;
+	private boolean bLoaded = false;
+
+	SequenceAllocator(Path store, int block) {
+		this.store = store;
+		this.storeTmp = store.resolveSibling(store.getFileName() + ".tmp");
+		this.block = block;
+		this.next = new AtomicLong(1);
+		this.limit = 1;
+	}
+
+	/**
+	 * Allocate the next number.
+	 * @return number never returned before
+	 * @throws IOException	the counter file could not be written
+	 */
+	long	next() throws IOException {
+		while(true) {
+			long n = next.get();
+			if(n < limit) {
+				if(next.compareAndSet(n, n + 1))
+					return n;
+				continue;
+			}
+			reserve(n);
+		}
+	}
+
+	/**
+	 * Store the exact next number so that a clean restart does not skip the rest of the block.<br/>
+	 * The rest of the block is taken first - {@link #next()} does not lock, so a number it allocates
+	 * concurrently must not be below the stored one. A number allocated afterwards starts a new block.
+	 */
+	synchronized void	close() {
+		if(!bLoaded)
+			return;
+		long n;
+		do {
+			n = next.get();
+			if(n >= limit)
+				return;
+		} while(!next.compareAndSet(n, limit));
+		try {
+			persist(n);
+		} catch (IOException e) {
+			logger.warning("Cannot store counter " + store + " - " + e);
+		}
+	}
+
+	private synchronized void	reserve(long needed) throws IOException {
+		if(!bLoaded) {
+			bLoaded = true;
+			long start = load();
+			next.set(start);
+			limit = start;
+			needed = start;
+		}
+		if(needed < limit)
+			return;
+		long newLimit = needed + block;
+		persist(newLimit);
+		limit = newLimit;
+	}
+
+	/**
+	 * Read the counter file.
+	 * @return the first number which may be allocated
+	 */
+	private long	load() throws IOException {
+		try {
+			String str = new String(Files.readAllBytes(store), StandardCharsets.US_ASCII).trim();
+			long n = Long.parseLong(str);
+			logger.fine("Counter " + store + " continues at " + n);
+			return Math.max(1, n);
+		} catch (NoSuchFileException e) {
+			return 1;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid contents of the counter file " + store);
+		}
+	}
+
+	private void	persist(long value) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+		try(FileChannel channel = FileChannel.open(storeTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(data.hasRemaining())
+				channel.write(data);
+			channel.force(true);
+		}
+		try {
+			Files.move(storeTmp, store, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(storeTmp, store, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
@@ -1,10 +1,19 @@
 package eu.dkitt;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Logger;
 
 public class Server {
@@ -12,72 +21,209 @@ public class Server {
 	private static final Logger logger = Logger.getLogger(Server.class.getName());
 	
 	Properties properties;
+	private final List<Profile> profiles;
 	
+	/**
+	 * @param properties	properties of the process
+	 * @throws IllegalArgumentException	invalid profiles
+	 */
 	public Server(Properties properties) {
 		this.properties = properties;
+		profiles = Profile.parse(properties);
 	}
 	
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+	private final List<Thread> acceptors = new ArrayList<Thread>();
+	private final Set<Executor> clients = Collections.synchronizedSet(new HashSet<Executor>());
+	private final Set<Thread> workers = Collections.synchronizedSet(new HashSet<Thread>());
+	
 	/**
-	 * The method is starting a server in the main thread.
+	 * The method is starting a server and waits in the main thread
+	 * until [Enter] is pressed.
 	 * @throws IOException 
 	 */
 	public void execute() throws IOException {
-		int worker_counter=1;
-		ServerSocket serverSocket = null;
-		int portno = Integer.parseInt(properties.getProperty(T1.OPTION_PORT));
-		logger.info("Starting server on port = "+portno);
 		try {
-			serverSocket = new ServerSocket(portno);
-			serverSocket.setSoTimeout(500);
-			logger.fine("Server socket retrieved");
+			start();
 		} catch (IOException e1) {
 			// We did not get a server socket - no way to continue - just exit
 			logger.warning("Could not retrieve server socket");
 			e1.printStackTrace();
 			return;
 		}
-		/**
-		 * Wait in a loop for new connections.
-		 * We assume just a single client connected at a time.
-		 * Because of that when a new connection was accepted
-		 * we terminate any previous one.
-		 */
-		
-		Socket clientSocket = null;
 		
 		System.out.println("Press [Enter] to terminate the server.");
 		
-		while(true) {
-			Socket newSocket;
-			try {
-				newSocket = serverSocket.accept();
-			} catch (SocketTimeoutException exTout) {
+		try {
+			while(isAccepting()) {
+				acceptors.get(0).join(500);
 				while (System.in.available() > 0) {
 					int c = System.in.read();
 					if (c == 10) {
-						serverSocket.close();
+						stop();
 						System.out.println("Server stopped");
-						if (clientSocket != null) {
-							clientSocket.close();
-						}
 						return;
 					}
 				}
-				continue;
+			}
+		} catch (InterruptedException e) {
+			stop();
+		}
+	}
+	
+	/**
+	 * Open listening sockets of all profiles and start threads accepting connections, one per port.
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		Map<Integer, List<Profile>> ports = new LinkedHashMap<Integer, List<Profile>>();
+		for(Profile profile : profiles) {
+			List<Profile> list = ports.get(profile.port);
+			if(list == null) {
+				list = new ArrayList<Profile>();
+				ports.put(profile.port, list);
+			}
+			list.add(profile);
+			if(!profile.name.isEmpty())
+				logger.info("Profile " + profile.name + " on port " + profile.port + (profile.peer != null ? " for " + profile.peer.getHostAddress() : ""));
+		}
+		try {
+			for(int portno : ports.keySet()) {
+				logger.info("Starting server on port = "+portno);
+				// accepted sockets have channels, so idle sessions can wait without polling
+				ServerSocket serverSocket = ServerSocketChannel.open().socket();
+				serverSockets.add(serverSocket);
+				serverSocket.setReuseAddress(true);
+				serverSocket.bind(new InetSocketAddress(portno));
+			}
+		} catch (IOException e) {
+			closeListeners();
+			throw e;
+		}
+		logger.fine("Server socket retrieved");
+		int i = 0;
+		for(final List<Profile> list : ports.values()) {
+			final ServerSocket serverSocket = serverSockets.get(i++);
+			Thread acceptor = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					accept(serverSocket, list);
+				}
+			}, ports.size() == 1 ? "Acceptor" : "Acceptor_" + serverSocket.getLocalPort());
+			acceptors.add(acceptor);
+			acceptor.start();
+		}
+	}
+	
+	/**
+	 * Close listening sockets and wait for the acceptors, then close all connections
+	 * and wait until workers terminate - no connection is accepted after the clients were closed.
+	 */
+	public void stop() {
+		closeListeners();
+		try {
+			for(Thread acceptor : acceptors)
+				acceptor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (clients) {
+			for (Executor client : clients) {
+				client.close();
+			}
+		}
+		try {
+			Thread [] running;
+			synchronized (workers) {
+				running = workers.toArray(new Thread[workers.size()]);
+			}
+			for(Thread worker : running)
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Number of currently open instrument connections.
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return clients.size();
+	}
+	
+	private boolean isAccepting() {
+		for(Thread acceptor : acceptors) {
+			if(acceptor.isAlive())
+				return true;
+		}
+		return false;
+	}
+	
+	private void closeListeners() {
+		for(ServerSocket serverSocket : serverSockets) {
+			try {serverSocket.close();} catch (IOException e) {}
+		}
+	}
+	
+	private static int worker_counter=1;
+	
+	private static synchronized int nextWorker() {
+		return worker_counter++;
+	}
+	
+	/**
+	 * Accept connections of a port until its listening socket is closed.
+	 * @param serverSocket
+	 * @param portProfiles	profiles served on the port
+	 */
+	private void accept(ServerSocket serverSocket, List<Profile> portProfiles) {
+		/**
+		 * Wait in a loop for new connections.
+		 * By default we assume just a single client connected at a time.
+		 * Because of that when a new connection was accepted
+		 * we terminate any previous one of the same profile.
+		 * If more connections were allowed by maxconnections property,
+		 * connections above the limit are refused instead.
+		 */
+		
+		Map<Profile, Executor> previous = new HashMap<Profile, Executor>();
+		final int maxClients = Integer.parseInt(properties.getProperty(T1.OPTION_MAX_CONNECTIONS, "1"));
+		
+		while(true) {
+			Socket newSocket;
+			try {
+				newSocket = serverSocket.accept();
 			} catch (IOException e1) {
-				logger.warning("Socket accept failed " + e1);
-				e1.printStackTrace();
+				if(!serverSocket.isClosed()) {
+					logger.warning("Socket accept failed " + e1);
+					e1.printStackTrace();
+				}
 				return;
 			}
-			logger.fine("New client connected");
-			if(clientSocket!=null) {
-				// close previous socket - any worker associated with it will take care and die eventually...
-				try {clientSocket.close();} catch (IOException e) {}
+			Profile profile = Profile.route(portProfiles, newSocket.getInetAddress());
+			if(profile == null) {
+				logger.warning("Connection refused - no profile of port " + newSocket.getLocalPort() + " for " + newSocket.getInetAddress().getHostAddress());
+				try {newSocket.close();} catch (IOException e) {}
+				continue;
+			}
+			logger.fine("New client connected" + (profile.name.isEmpty() ? "" : " to profile " + profile.name));
+			Executor client = previous.get(profile);
+			if(maxClients <= 1) {
+				if(client!=null) {
+					// close previous socket - any worker associated with it will take care and die eventually...
+					client.close();
+				}
+			} else if(clients.size() >= maxClients) {
+				logger.warning("Connection refused - limit of " + maxClients + " connections reached");
+				try {newSocket.close();} catch (IOException e) {}
+				continue;
 			}
-			clientSocket = newSocket;
 			// Start a new server worker thread associated with the socket.
-			final Executor executor = new Executor(clientSocket,properties,false);
-			Thread worker = new Thread(new Runnable() {
+			final Executor executor = new Executor(newSocket,profile.properties,false);
+			previous.put(profile, executor);
+			clients.add(executor);
+			Thread worker = WorkerThreads.newThread(properties, new Runnable() {
 					@Override
 					public void run() {
 						try {
@@ -86,12 +232,12 @@ public class Server {
 							logger.info("Client connection exception: " + e.getMessage());
 						}
 						logger.fine("Connection to a client terminated");
-						Socket socket = executor.getSocket();
-						if(!socket.isClosed()){
-							try {socket.close();} catch (IOException e) {}
-						}
+						executor.close();
+						clients.remove(executor);
+						workers.remove(Thread.currentThread());
 					}
-				}, "Worker_"+(worker_counter++));
+				}, "Worker_"+nextWorker());
+			workers.add(worker);
 			worker.start();
 		}
 	}
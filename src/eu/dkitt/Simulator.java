@@ -1,8 +1,10 @@
 package eu.dkitt;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -16,35 +18,31 @@ public class Simulator {
 		this.properties = properties;
 	}
 	
+	private Executor executor;
+	private Thread clientthread;
+	
 	public void execute() throws InterruptedException {
 		
-		String host = properties.getProperty(T1.OPTION_HOST, "localhost");
-		int portno = Integer.parseInt(properties.getProperty(T1.OPTION_PORT));
-		
-		logger.info("Starting simulator using server = "+host+":"+portno);
+		if(Integer.parseInt(properties.getProperty(T1.OPTION_LOAD_INSTRUMENTS, "0")) > 0) {
+			new LoadGenerator(properties).execute();
+			return;
+		}
 		
-		try(Socket socket = new Socket(host, portno);) {
-			
-			final Executor executor = new Executor(socket,properties,true);
-			
-			Thread clientthread = new Thread(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						executor.execute();
-						logger.info("Simulator exited.");
-					} catch (IOException e) {
-						logger.info("Simulator exit exception: " + e.getMessage());
-					}
-				}
-			},"Client"); 
-			
-			clientthread.start();
-			
-			System.out.println("Press [Enter] to terminate the simulator.");
-			
-			boolean bRun = true;
+		try {
+			start();
+		} catch (UnknownHostException e) {
+			System.out.println("Unknown host " + properties.getProperty(T1.OPTION_HOST, "localhost"));
+			return;
+		} catch (IOException e) {
+			System.out.println("IOException " + e.getMessage());
+			return;
+		}
 			
+		System.out.println("Press [Enter] to terminate the simulator.");
+		
+		boolean bRun = true;
+		
+		try {
 			while(bRun){
 				Thread.sleep(500);
 				if(!clientthread.isAlive()){
@@ -57,27 +55,65 @@ public class Simulator {
 					if(c==10){
 						System.out.println("Simulator will terminate.");
 						bRun = false;
-						socket.close();
 						break;
 					}
 				}
 				continue;
 			};
-
-			try {
-				clientthread.join();
-			} catch (InterruptedException e) {
-			}
-			
-			System.out.println("Terminated.");
-			
-		} catch (UnknownHostException e) {
-			System.out.println("Unknown host loalhost");
 		} catch (IOException e) {
 			System.out.println("IOException " + e.getMessage());
 		}
-			
+		
+		stop();
+		
+		System.out.println("Terminated.");
 				
 	}
 	
+	/**
+	 * Connect to the server and start the instrument session in its own thread.
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		
+		String host = properties.getProperty(T1.OPTION_HOST, "localhost");
+		int portno = Integer.parseInt(properties.getProperty(T1.OPTION_PORT));
+		
+		logger.info("Starting simulator using server = "+host+":"+portno);
+		
+		InetSocketAddress address = new InetSocketAddress(host, portno);
+		if(address.isUnresolved())
+			throw new UnknownHostException(host);
+		// a socket with a channel, so the idle session can wait without polling
+		Socket socket = SocketChannel.open(address).socket();
+		
+		executor = new Executor(socket,properties,true);
+		
+		clientthread = WorkerThreads.newThread(properties, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.execute();
+					logger.info("Simulator exited.");
+				} catch (IOException e) {
+					logger.info("Simulator exit exception: " + e.getMessage());
+				}
+			}
+		},"Client");
+		
+		clientthread.start();
+	}
+	
+	/**
+	 * Close the connection and wait until the session terminates.
+	 */
+	public void stop() {
+		executor.close();
+		try {
+			clientthread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 }
@@ -0,0 +1,46 @@
+package eu.dkitt;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Applies socket options from properties to a connected instrument socket.
+ * <ul>
+ * <li>{@link T1#OPTION_TCP_NODELAY} - disable Nagle's algorithm (default true),
+ * frames and control bytes are sent immediately.</li>
+ * <li>{@link T1#OPTION_KEEPALIVE} - enable TCP keepalive probes (default false).</li>
+ * <li>{@link T1#OPTION_SEND_BUFFER} - size of the send buffer in bytes (default by OS).</li>
+ * <li>{@link T1#OPTION_RECEIVE_BUFFER} - size of the receive buffer in bytes (default by OS).</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+public class SocketTuning {
+
+	private static final Logger logger = Logger.getLogger(SocketTuning.class.getName());
+
+	/**
+	 * Apply configured options to a socket.
+	 * Failures are only logged - an untuned socket is still usable.
+	 * @param socket	socket to tune
+	 * @param properties	properties with socket options
+	 */
+	public static void apply(Socket socket, Properties properties) {
+		try {
+			socket.setTcpNoDelay(Boolean.parseBoolean(properties.getProperty(T1.OPTION_TCP_NODELAY, "true")));
+			socket.setKeepAlive(Boolean.parseBoolean(properties.getProperty(T1.OPTION_KEEPALIVE, "false")));
+			String size = properties.getProperty(T1.OPTION_SEND_BUFFER);
+			if(size != null)
+				socket.setSendBufferSize(Integer.parseInt(size));
+			size = properties.getProperty(T1.OPTION_RECEIVE_BUFFER);
+			if(size != null)
+				socket.setReceiveBufferSize(Integer.parseInt(size));
+		} catch (SocketException | NumberFormatException e) {
+			logger.warning("Cannot set socket options - " + e);
+		}
+	}
+
+}
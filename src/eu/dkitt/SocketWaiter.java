@@ -0,0 +1,84 @@
+package eu.dkitt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Wait of a blocking session for data of its socket which can be interrupted by other threads.<br/>
+ * The socket must have a channel (it was created by {@link SocketChannel} or accepted by
+ * {@link java.nio.channels.ServerSocketChannel}). While waiting the channel is switched to non-blocking mode
+ * and registered with a selector of its own, afterwards it is blocking again - the session
+ * keeps using the streams of the socket.
+ * <ul>
+ * <li>{@link #wakeup()} ends the wait - called by the file listener and by {@link #close()} of the session.</li>
+ * <li>A deadline is registered with the {@link TimerWheel}, there is no polling.</li>
+ * <li>A wake-up before the wait is not lost, the next wait returns immediately.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class SocketWaiter implements Closeable {
+
+	private final SocketChannel channel;
+	private final Selector selector;
+	private final Runnable wakeup = new Runnable() {
+		@Override
+		public void run() {
+			wakeup();
+		}
+	};
+
+	SocketWaiter(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Task waking up the waiting thread, e.g. for {@link FileProcessor#addFileListener(Runnable)}.
+	 * @return
+	 */
+	Runnable	getWakeup() {
+		return wakeup;
+	}
+
+	/**
+	 * Wait until the socket has data, the deadline is reached or another thread calls {@link #wakeup()}.
+	 * @param deadline	time of {@link TimerWheel#now()}, {@link Long#MAX_VALUE} to wait without a deadline
+	 * @return true if data (or the end of stream) can be read
+	 * @throws IOException
+	 */
+	boolean	await(long deadline) throws IOException {
+		TimerWheel.Timeout timeout = deadline == Long.MAX_VALUE ? null : TimerWheel.shared().scheduleAt(deadline, wakeup);
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		try {
+			return selector.select() > 0 && key.isReadable();
+		} finally {
+			if(timeout != null)
+				timeout.cancel();
+			selector.selectedKeys().clear();
+			key.cancel();
+			// deregister the key, a registered channel can not be blocking
+			selector.selectNow();
+			channel.configureBlocking(true);
+		}
+	}
+
+	/**
+	 * End the current or the next wait, called from any thread.
+	 */
+	synchronized void	wakeup() {
+		if(selector.isOpen())
+			selector.wakeup();
+	}
+
+	@Override
+	public synchronized void	close() throws IOException {
+		selector.close();
+	}
+
+}
@@ -8,10 +8,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.file.InvalidPathException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Properties;
 import java.util.Set;
 import java.util.logging.ConsoleHandler;
@@ -37,6 +36,61 @@ public class T1 {
 	public static	final	String OPTION_DIRBACKUP_2_SEND = "inbackup";
 	public static	final	String OPTION_DIRECTORY_RCVD = "outdir";
 	public static	final	String OPTION_FILES_RCVD_NAME = "outname";
+	public static	final	String OPTION_SERVER_MODE = "servermode";
+	public static	final	String OPTION_SELECTORS = "selectors";
+	public static	final	String OPTION_MAX_CONNECTIONS = "maxconnections";
+	public static	final	String OPTION_IDLE_TIMEOUT = "idletimeout";
+	public static	final	String OPTION_THREAD_MODE = "threadmode";
+	public static	final	String OPTION_TCP_NODELAY = "tcpnodelay";
+	public static	final	String OPTION_KEEPALIVE = "keepalive";
+	public static	final	String OPTION_SEND_BUFFER = "sendbuffer";
+	public static	final	String OPTION_RECEIVE_BUFFER = "receivebuffer";
+	public static	final	String OPTION_RECONCILE_INTERVAL = "reconcileinterval";
+	public static	final	String OPTION_IN_SETTLE = "insettle";
+	public static	final	String OPTION_BUFFER_CHUNK = "bufferchunk";
+	public static	final	String OPTION_BUFFER_DIRECT = "bufferdirect";
+	public static	final	String OPTION_BUFFER_POOL_MAX = "bufferpoolmax";
+	public static	final	String OPTION_COUNTER_BLOCK = "counterblock";
+	public static	final	String OPTION_WRITE_BEHIND = "writebehind";
+	public static	final	String OPTION_WRITE_QUEUE = "writequeue";
+	public static	final	String OPTION_FSYNC = "fsync";
+	public static	final	String OPTION_WRITE_FALLBACK = "writefallback";
+	public static	final	String OPTION_FSYNC_INTERVAL = "fsyncinterval";
+	public static	final	String OPTION_OUTPUT = "output";
+	public static	final	String OPTION_SEGMENT_SIZE = "segmentsize";
+	public static	final	String OPTION_SEGMENT_TIME = "segmenttime";
+	public static	final	String OPTION_LOG_ASYNC = "logasync";
+	public static	final	String OPTION_LOG_QUEUE = "logqueue";
+	public static	final	String OPTION_LOG_SOURCE = "logsource";
+	public static	final	String OPTION_CAPTURE = "capture";
+	public static	final	String OPTION_CAPTURE_SIZE = "capturesize";
+	public static	final	String OPTION_CAPTURE_FILES = "capturefiles";
+	public static	final	String OPTION_METRICS_JMX = "metricsjmx";
+	public static	final	String OPTION_METRICS_PORT = "metricsport";
+	public static	final	String OPTION_LOAD_INSTRUMENTS = "instruments";
+	public static	final	String OPTION_LOAD_RATE = "loadrate";
+	public static	final	String OPTION_LOAD_SIZE = "loadsize";
+	public static	final	String OPTION_LOAD_MIX = "loadmix";
+	public static	final	String OPTION_LOAD_ORDERS = "loadorders";
+	public static	final	String OPTION_LOAD_DURATION = "loadduration";
+	public static	final	String OPTION_IDLE_POLL = "idlepoll";
+	public static	final	String OPTION_REPLY_TIMEOUT = "replytimeout";
+	public static	final	String OPTION_CONTENTION = "contention";
+	public static	final	String OPTION_INSTRUMENT_CONTENTION = "instrumentcontention";
+	public static	final	String OPTION_BUSY_RETRY = "busyretry";
+	public static	final	String OPTION_BUSY_NAK = "busynak";
+	public static	final	String OPTION_BATCH_MESSAGES = "batchmessages";
+	public static	final	String OPTION_BATCH_BYTES = "batchbytes";
+	public static	final	String OPTION_PRIORITY = "priority";
+	public static	final	String OPTION_FRAME_CACHE = "framecache";
+	public static	final	String OPTION_PROFILES = "profiles";
+	public static	final	String OPTION_PEER = "peer";
+	public static	final	String OPTION_LEASE = "lease";
+	public static	final	String OPTION_DEDUP_WINDOW = "dedupwindow";
+	public static	final	String OPTION_DEDUP_ENTRIES = "dedupentries";
+	public static	final	String OPTION_RESULT_SINKS = "resultsinks";
+	public static	final	String OPTION_RESULT_THREADS = "resultthreads";
+	public static	final	String OPTION_RESULT_QUEUE = "resultqueue";
 	
 	static class UsageException extends Exception {
 		
@@ -59,6 +113,61 @@ public class T1 {
 					+ "  inbackup=<directory> ... directore where to move files sent\n"
 					+ "  outdir=<directory> ... directory where to write received files\n"
 					+ "  outname=<format> ... specification of file names received\n"
+					+ "  servermode=<mode> ... nio (default) - many connections served by selector threads|thread - single client served by a thread\n"
+					+ "  selectors=<number> ... number of selector threads in the nio mode\n"
+					+ "  maxconnections=<number> ... maximal number of connections (thread mode: 1 - a new client replaces the previous one)\n"
+					+ "  idletimeout=<seconds> ... close connections idle for the given time in the nio mode, 0 never\n"
+					+ "  threadmode=<mode> ... platform (default)|virtual - kind of threads running sessions in the thread mode\n"
+					+ "  tcpnodelay=<true|false> ... send frames immediately without Nagle's delay (default true)\n"
+					+ "  keepalive=<true|false> ... enable TCP keepalive probes (default false)\n"
+					+ "  sendbuffer=<bytes> ... socket send buffer size\n"
+					+ "  receivebuffer=<bytes> ... socket receive buffer size\n"
+					+ "  reconcileinterval=<seconds> ... period of full scans of indir besides change notifications (default 10)\n"
+					+ "  insettle=<millis> ... a file in indir is sent after it was not modified for the time, it may still be written (default 500)\n"
+					+ "  bufferchunk=<bytes> ... size of pooled chunks holding received messages (default 16384)\n"
+					+ "  bufferdirect=<true|false> ... allocate pooled chunks as direct buffers (default false)\n"
+					+ "  bufferpoolmax=<number> ... maximal number of idle chunks kept in the pool (default 256)\n"
+					+ "  counterblock=<number> ... output file numbers reserved by one write of the counter file (default 100)\n"
+					+ "  writebehind=<true|false> ... write received messages and move sent files by a dedicated I/O thread (default true)\n"
+					+ "  writequeue=<number> ... messages waiting for the I/O thread, <ACK> is held back when it is full (default 64)\n"
+					+ "  writefallback=<directory> ... where the I/O thread writes received messages it cannot store into outdir (default <tmpdir>/writebehind)\n"
+					+ "  fsync=<policy> ... none (default)|message - force every file|group - force files together\n"
+					+ "  fsyncinterval=<millis> ... period of group fsync (default 20)\n"
+					+ "  output=<layout> ... files (default) - a file per received message|segments - append messages to a segment log in outdir\n"
+					+ "  segmentsize=<bytes> ... size limit of a segment file (default 67108864)\n"
+					+ "  segmenttime=<seconds> ... age limit of a segment file, 0 never (default 3600)\n"
+					+ "  logasync=<true|false> ... write log records by a background thread (default true)\n"
+					+ "  logqueue=<number> ... log records waiting for the background thread, less severe than warning are dropped when full (default 8192)\n"
+					+ "  logsource=<true|false> ... log the method of a record, false saves a stack walk per record (default true)\n"
+					+ "  capture=<directory> ... write a binary capture of all bytes exchanged with instruments into the directory\n"
+					+ "  capturesize=<bytes> ... size of a capture file (default 16777216)\n"
+					+ "  capturefiles=<number> ... number of capture files kept (default 10)\n"
+					+ "  metricsjmx=<true|false> ... register link counters as MBeans (default true)\n"
+					+ "  metricsport=<number> ... serve link counters in the Prometheus text format on http://localhost:<number>/metrics\n"
+					+ "  instruments=<number> ... simulate the number of instruments generating load instead of sending files (simul only)\n"
+					+ "  loadrate=<number> ... messages per second of every simulated instrument (default 1)\n"
+					+ "  loadsize=<spec> ... size of generated messages: <bytes>|<min>-<max>|exp:<mean> (default 1024)\n"
+					+ "  loadmix=<fraction> ... share of messages sent by the server as orders, 0..1 (default 0)\n"
+					+ "  loadorders=<directory> ... where the generator writes orders - indir of the server\n"
+					+ "  loadduration=<seconds> ... duration of the load (default 60)\n"
+					+ "  idlepoll=<millis> ... how often an idle thread mode session polls a socket without a channel (default 1000)\n"
+					+ "  replytimeout=<millis> ... how long to wait for a reply of the peer (default 15000)\n"
+					+ "  contention=<millis> ... pause of the server after both sides sent <ENQ> (default 20000)\n"
+					+ "  instrumentcontention=<millis> ... pause of the simulator after both sides sent <ENQ> (default 1000)\n"
+					+ "  busyretry=<millis> ... pause after a failed transfer (default 30000)\n"
+					+ "  busynak=<millis> ... pause after <ENQ> was refused by <NAK> (default 10000)\n"
+					+ "  batchmessages=<number> ... most messages sent in one transfer phase (default 1)\n"
+					+ "  batchbytes=<bytes> ... no further message is started in a transfer phase after the number of bytes (default 65536)\n"
+					+ "  priority=<rule>;... ... files sent first: name:<glob>=<priority> or field:<record>.<field>:<value>=<priority>, e.g. field:O.6:S=10\n"
+					+ "  framecache=<bytes> ... files to send kept encoded in frames for repeated attempts, 0 disables (default 4194304)\n"
+					+ "  profiles=<name>,... ... instrument profiles of the server, <name>.<property> overrides a property for the profile, e.g. chem.port=22011\n"
+					+ "  peer=<hostaddr> ... address of the instrument of a profile, profiles may share a port if they differ by the peer\n"
+					+ "  lease=<seconds> ... claim files to send by lease files in <indir>/.leases, so several servers may share indir - a lease of a crashed server expires after the time, 0 disables (default 0)\n"
+					+ "  dedupwindow=<seconds> ... a message equal to one received within the time is acknowledged but not written, 0 disables (default 0)\n"
+					+ "  dedupentries=<number> ... most messages remembered for deduplication (default 65536)\n"
+					+ "  resultsinks=<sink>;... ... parse received messages into ASTM records for sinks: csv:<file>, jsonl:<file>, index:<dir> or class:<name>\n"
+					+ "  resultthreads=<number> ... threads parsing messages for result sinks (default 1)\n"
+					+ "  resultqueue=<number> ... received messages waiting to be parsed, further ones are not parsed (default 1024)\n"
 					+ "  simul ... if present the application is simulating an instrument\n");
 			
 		}
@@ -192,35 +301,45 @@ public class T1 {
 		logParent.setUseParentHandlers(false);
 		
 		Handler hConsoleHandler = new ConsoleHandler();
-		hConsoleHandler.setFormatter(new MyFormatter());
+		hConsoleHandler.setFormatter(new LogFormatter());
 		hConsoleHandler.setLevel(level);
 		logParent.addHandler(hConsoleHandler);
 		
 		Handler hLogFileHandler = new FileHandler(logfile, 1000000, 9, true);
-		hLogFileHandler.setFormatter(new MyFormatter());
+		hLogFileHandler.setFormatter(new LogFormatter());
 		hLogFileHandler.setLevel(level);
 		logParent.addHandler(hLogFileHandler);
 		
 		logParent.setLevel(level);
 		
 		
-		// Check that port was specified
-		if(!properties.containsKey(OPTION_PORT)){
-			new UsageException("Port number was not specified").printOutput();
-			return;
-		}
-		// Check that the port is a valid number
-		int portno;
 		boolean bSimul = properties.containsKey(OPTION_SIMUL); 
-				
-		try {
-			portno = Integer.parseInt(properties.getProperty(OPTION_PORT));
-		} catch (NumberFormatException e) {
-			portno = -1;
-		}
-		if( portno < 1 || portno >= 65536) {
-			new UsageException("Invalid property "+OPTION_PORT+": " + properties.getProperty(OPTION_PORT)).printOutput();
-			return;
+		boolean bProfiles = !bSimul && !properties.getProperty(OPTION_PROFILES, "").trim().isEmpty();
+		if(bProfiles) {
+			// every profile has its own port
+			try {
+				Profile.parse(properties);
+			} catch (IllegalArgumentException e) {
+				new UsageException(e.getMessage()).printOutput();
+				return;
+			}
+		} else {
+			// Check that port was specified
+			if(!properties.containsKey(OPTION_PORT)){
+				new UsageException("Port number was not specified").printOutput();
+				return;
+			}
+			// Check that the port is a valid number
+			int portno;
+			try {
+				portno = Integer.parseInt(properties.getProperty(OPTION_PORT));
+			} catch (NumberFormatException e) {
+				portno = -1;
+			}
+			if( portno < 1 || portno >= 65536) {
+				new UsageException("Invalid property "+OPTION_PORT+": " + properties.getProperty(OPTION_PORT)).printOutput();
+				return;
+			}
 		}
 		
 		{
@@ -235,12 +354,8 @@ public class T1 {
 			Formatter fmtLogFile = hLogFileHandler.getFormatter();
 			hConsoleHandler.setFormatter(new MyConfigFormatter());
 			hLogFileHandler.setFormatter(new MyConfigFormatter());
-			Calendar cal = new GregorianCalendar(); 
-			cal.setTime(new Date());
-			String header = String.format("%04d/%02d/%02d %02d:%02d:%02d.%03d %s started.\n",
-					cal.get(Calendar.YEAR),cal.get(Calendar.MONTH)+1,cal.get(Calendar.DAY_OF_MONTH),
-					cal.get(Calendar.HOUR),cal.get(Calendar.MINUTE),cal.get(Calendar.SECOND),cal.get(Calendar.MILLISECOND),
-					(bSimul ? "Simulator" : "Server"));
+			String header = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss.SSS"))
+					+ " " + (bSimul ? "Simulator" : "Server") + " started.\n";
 			
 			logParent.severe("========================================================================\n");
 			logParent.severe(header);
@@ -256,32 +371,29 @@ public class T1 {
 			hLogFileHandler.setFormatter(fmtLogFile);
 		}
 		
+		// from now on records are written by a background thread
+		if(Boolean.parseBoolean(properties.getProperty(OPTION_LOG_ASYNC, "true"))) {
+			logParent.removeHandler(hConsoleHandler);
+			logParent.removeHandler(hLogFileHandler);
+			Handler hAsyncHandler = new AsyncHandler(Integer.parseInt(properties.getProperty(OPTION_LOG_QUEUE, "8192")),
+					Boolean.parseBoolean(properties.getProperty(OPTION_LOG_SOURCE, "true")),
+					hConsoleHandler, hLogFileHandler);
+			hAsyncHandler.setLevel(level);
+			logParent.addHandler(hAsyncHandler);
+		}
+		
+		LinkMetrics.aggregate(properties);
+		
 		if(bSimul)
 			new Simulator(properties).execute();
-		else
+		else if("thread".equals(properties.getProperty(OPTION_SERVER_MODE, "nio")))
 			new Server(properties).execute();
+		else
+			new NioServer(properties).execute();
 			
 		
 	}
 	
-	static private class MyFormatter extends Formatter {
-		private Calendar cal;
-		public MyFormatter() {
-			super();
-			cal = new GregorianCalendar();
-		}
-		@Override
-		public String format(LogRecord record) {
-			cal.setTime(new Date(record.getMillis()));
-			String str = String.format("%04d/%02d/%02d %02d:%02d:%02d.%03d %-8s %s:%s -- %s\n",
-					cal.get(Calendar.YEAR),cal.get(Calendar.MONTH)+1,cal.get(Calendar.DAY_OF_MONTH),
-					cal.get(Calendar.HOUR),cal.get(Calendar.MINUTE),cal.get(Calendar.SECOND),cal.get(Calendar.MILLISECOND),
-					record.getLevel().getName(),
-					record.getLoggerName(), record.getSourceMethodName(), record.getMessage());
-			return str;
-		}
-	}
-	
 	static private class MyConfigFormatter extends Formatter {
 		public MyConfigFormatter() {
 			super();
@@ -0,0 +1,222 @@
+package eu.dkitt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed wheel of timeouts shared by all sessions of the process (see {@link #shared()}).<br/>
+ * Times are in milliseconds of a monotonic clock ({@link #now()}), so changes of the wall clock
+ * do not shorten or extend protocol timers.
+ * <ul>
+ * <li>A timeout is put into the slot of its tick ({@link #TICK} ms), a slot holds timeouts of all rounds of the wheel.
+ * Scheduling and cancelling is constant time, a cancelled timeout is removed from its slot at once -
+ * sessions cancel and reschedule timeouts on every frame, they neither pile up nor wake the timer thread.</li>
+ * <li>The timer thread sleeps until the first occupied slot - there are no wake-ups while no timeout is due.</li>
+ * <li>Tasks of expired timeouts are run by the timer thread, they must be short and must not block -
+ * sessions only queue themselves for their own thread.</li>
+ * <li>A timeout fires at most one tick late.</li>
+ * </ul>
+ *
+ * @author dkittrich
+ *
+ */
+class TimerWheel implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+
+	/** Resolution of the wheel in milliseconds. */
+	static final long TICK = 10;
+	/** Number of slots - a round of the wheel is about 5 seconds. */
+	private static final int SLOTS = 512;
+	private static final int MASK = SLOTS - 1;
+
+	private static TimerWheel shared = null;
+
+	/**
+	 * Get the wheel of the process, its thread is started on the first call.
+	 * @return
+	 */
+	static synchronized TimerWheel shared() {
+		if(shared == null) {
+			shared = new TimerWheel();
+			Thread thread = new Thread(shared, "TimerWheel");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Current time of the monotonic clock.
+	 * @return milliseconds since an arbitrary origin
+	 */
+	static long	now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	static final class Timeout {
+		final long deadline;
+		private final Runnable task;
+		private final TimerWheel wheel;
+		private volatile boolean cancelled = false;
+		/** Slot and position in the slot, guarded by the wheel - the index is -1 if the timeout is not in a slot. */
+		private int slot;
+		private int index = -1;
+
+		private Timeout(long deadline, Runnable task, TimerWheel wheel) {
+			this.deadline = deadline;
+			this.task = task;
+			this.wheel = wheel;
+		}
+
+		/**
+		 * The task will not run - unless it is running already.
+		 */
+		void	cancel() {
+			cancelled = true;
+			wheel.remove(this);
+		}
+
+		boolean	isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long origin = now();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final List<Timeout> [] slots = new List[SLOTS];
+	/** The next tick to process. */
+	private long tick = 0;
+	/** Tick the timer thread sleeps until. */
+	private long wakeTick = Long.MAX_VALUE;
+	private int size = 0;
+
+	private TimerWheel() {
+		for(int i=0; i<SLOTS; ++i)
+			slots[i] = new ArrayList<Timeout>();
+	}
+
+	/**
+	 * Run the task after the delay.
+	 * @param delay	milliseconds
+	 * @param task
+	 * @return handle to cancel the task
+	 */
+	Timeout	schedule(long delay, Runnable task) {
+		return scheduleAt(now() + Math.max(0, delay), task);
+	}
+
+	/**
+	 * Run the task at the given time.
+	 * @param deadline	time of {@link #now()}
+	 * @param task
+	 * @return handle to cancel the task
+	 */
+	synchronized Timeout	scheduleAt(long deadline, Runnable task) {
+		Timeout timeout = new Timeout(deadline, task, this);
+		// the slot of the first tick which is not earlier than the deadline
+		long t = Math.max(tick, (deadline - origin + TICK - 1) / TICK);
+		timeout.slot = (int)(t & MASK);
+		timeout.index = slots[timeout.slot].size();
+		slots[timeout.slot].add(timeout);
+		size++;
+		if(t < wakeTick)
+			notify();
+		return timeout;
+	}
+
+	/**
+	 * Timer thread.
+	 */
+	@Override
+	public void	run() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while(true) {
+			synchronized (this) {
+				try {
+					while(true) {
+						long now = now();
+						long current = (now - origin) / TICK;
+						while(tick <= current) {
+							List<Timeout> slot = slots[(int)(tick & MASK)];
+							for(int i=slot.size() - 1; i>=0; --i) {
+								Timeout timeout = slot.get(i);
+								if(timeout.deadline <= now) {
+									unlink(timeout);
+									expired.add(timeout);
+								}
+							}
+							tick++;
+						}
+						if(!expired.isEmpty())
+							break;
+						wakeTick = nextOccupied();
+						if(wakeTick == Long.MAX_VALUE)
+							wait();
+						else
+							wait(Math.max(1, origin + wakeTick * TICK - now()));
+						wakeTick = Long.MAX_VALUE;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			for(Timeout timeout : expired) {
+				try {
+					if(!timeout.cancelled)
+						timeout.task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Timer task failed", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Number of timeouts in the wheel - neither expired nor cancelled.
+	 * @return
+	 */
+	synchronized int	size() {
+		return size;
+	}
+
+	private synchronized void	remove(Timeout timeout) {
+		if(timeout.index >= 0)
+			unlink(timeout);
+	}
+
+	/**
+	 * Remove a timeout from its slot, the last timeout of the slot takes its place - the order in a slot does not matter.
+	 */
+	private void	unlink(Timeout timeout) {
+		List<Timeout> slot = slots[timeout.slot];
+		Timeout last = slot.remove(slot.size() - 1);
+		if(last != timeout) {
+			slot.set(timeout.index, last);
+			last.index = timeout.index;
+		}
+		timeout.index = -1;
+		size--;
+	}
+
+	/**
+	 * The first tick with a non empty slot.
+	 * @return tick or {@link Long#MAX_VALUE} if there is no timeout
+	 */
+	private long	nextOccupied() {
+		if(size == 0)
+			return Long.MAX_VALUE;
+		for(int i=0; i<SLOTS; ++i) {
+			if(!slots[(int)((tick + i) & MASK)].isEmpty())
+				return tick + i;
+		}
+		return Long.MAX_VALUE;
+	}
+
+}
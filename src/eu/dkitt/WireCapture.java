@@ -0,0 +1,399 @@
+package eu.dkitt;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Binary capture of every byte exchanged with instruments, written into rolling files
+ * in the directory {@link T1#OPTION_CAPTURE}.<br/>
+ * All sessions of the process write into the same capture, a file is a header
+ * <code>ASIWCAP1</code> followed by records
+ * <code>type(1) session(4) time(8) length(4) data(length)</code>, big endian:
+ * <ul>
+ * <li>{@link #OPEN} - a session started, the data is its name.</li>
+ * <li>{@link #IN} - bytes received from the instrument.</li>
+ * <li>{@link #OUT} - bytes sent to the instrument.</li>
+ * <li>{@link #CLOSE} - the session terminated.</li>
+ * </ul>
+ * The time is in microseconds since the epoch.
+ * A new file <code>capture_&lt;time&gt;_&lt;n&gt;.bin</code> is started when the current one
+ * exceeds {@link T1#OPTION_CAPTURE_SIZE} bytes, only the newest {@link T1#OPTION_CAPTURE_FILES} files are kept.
+ * Records are collected in memory by the session threads and the buffer is handed over to a writer thread
+ * when it is full, at least once a second and when a session closes - sessions never wait for the disk.
+ * If the writer is behind by {@link #MAX_PENDING} buffers, records are dropped and a warning is logged.
+ * Captures are read and replayed by {@link WireReplay}.
+ *
+ * @author dkittrich
+ *
+ */
+class WireCapture implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(WireCapture.class.getName());
+
+	static final byte [] MAGIC = "ASIWCAP1".getBytes(StandardCharsets.US_ASCII);
+	static final int RECORD_HEADER = 17;
+	static final byte OPEN = 1;
+	static final byte IN = 2;
+	static final byte OUT = 3;
+	static final byte CLOSE = 4;
+
+	private static final long FLUSH_INTERVAL = 1000;
+	private static final int BUFFER_SIZE = 65536;
+	/** Most filled buffers waiting for the writer thread. */
+	static final int MAX_PENDING = 16;
+	/** Most empty buffers kept for reuse. */
+	private static final int MAX_FREE = 4;
+	/** Marker terminating the writer thread. */
+	private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+
+	private static WireCapture shared = null;
+
+	/**
+	 * Get the capture of the process, it is created on the first call.
+	 * @param properties	properties with the capture directory and limits
+	 * @return shared capture or null if capturing is not enabled
+	 */
+	static synchronized WireCapture shared(Properties properties) {
+		String directory = properties.getProperty(T1.OPTION_CAPTURE);
+		if(directory == null || directory.isEmpty())
+			return null;
+		if(shared == null) {
+			shared = new WireCapture(Paths.get(directory),
+					Long.parseLong(properties.getProperty(T1.OPTION_CAPTURE_SIZE, "16777216")),
+					Integer.parseInt(properties.getProperty(T1.OPTION_CAPTURE_FILES, "10")));
+			final WireCapture capture = shared;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					capture.close();
+				}
+			}, "WireCaptureShutdown"));
+		}
+		return shared;
+	}
+
+	/**
+	 * Capture files of a directory in the order they were written.
+	 * @param directory
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Path>	files(Path directory) throws IOException {
+		List<Path> list = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "capture_*.bin")) {
+			for(Path file : stream)
+				list.add(file);
+		}
+		// names contain a sortable time and sequence
+		Collections.sort(list);
+		return list;
+	}
+
+	private final Path directory;
+	private final long maxSize;
+	private final int maxFiles;
+	private final AtomicInteger sessionCounter = new AtomicInteger(1);
+
+	/** Buffer being filled by sessions. */
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private long lastFlush;
+	private long dropped = 0;
+	private boolean bClosed = false;
+	private volatile boolean bFailed = false;
+	private final LinkedBlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<ByteBuffer>();
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final Thread writer;
+
+	/** Current file - used by the writer thread only. */
+	private FileChannel channel;
+	private long size;
+	private int fileSequence = 0;
+
+	private final long startMicros = System.currentTimeMillis() * 1000;
+	private final long startNanos = System.nanoTime();
+
+	WireCapture(Path directory, long maxSize, int maxFiles) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxFiles = Math.max(1, maxFiles);
+		writer = new Thread(this, "WireCapture");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Start capturing a session.
+	 * @param name	name of the session stored in the capture
+	 * @return handle used to capture bytes of the session
+	 */
+	Session	open(String name) {
+		Session session = new Session(sessionCounter.getAndIncrement());
+		byte [] data = name.getBytes(StandardCharsets.UTF_8);
+		record(OPEN, session.id, data, 0, data.length);
+		return session;
+	}
+
+	/**
+	 * Handle of a captured session.
+	 */
+	class Session {
+		final int id;
+
+		private Session(int id) {
+			this.id = id;
+		}
+
+		void	in(byte [] data, int offset, int len) {
+			if(len > 0)
+				record(IN, id, data, offset, len);
+		}
+
+		/**
+		 * Capture bytes received between the position and the limit of a buffer, the buffer is not modified.
+		 * @param data
+		 */
+		void	in(ByteBuffer data) {
+			if(data.hasRemaining())
+				record(IN, id, data);
+		}
+
+		void	out(byte [] data, int offset, int len) {
+			if(len > 0)
+				record(OUT, id, data, offset, len);
+		}
+
+		void	close() {
+			record(CLOSE, id, null, 0, 0);
+			handOff();
+		}
+
+		/**
+		 * Wrap a socket input stream so that bytes read are captured.
+		 * @param stream
+		 * @return
+		 */
+		InputStream	wrap(InputStream stream) {
+			return new FilterInputStream(stream) {
+				@Override
+				public int read() throws IOException {
+					int c = super.read();
+					if(c >= 0)
+						in(new byte[] {(byte)c}, 0, 1);
+					return c;
+				}
+				@Override
+				public int read(byte [] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					in(b, off, n);
+					return n;
+				}
+			};
+		}
+
+		/**
+		 * Wrap a socket output stream so that bytes written are captured.
+		 * @param stream
+		 * @return
+		 */
+		OutputStream	wrap(OutputStream stream) {
+			return new FilterOutputStream(stream) {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					out(new byte[] {(byte)b}, 0, 1);
+				}
+				@Override
+				public void write(byte [] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					out(b, off, len);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Write buffered records and close the current file, further records are ignored.
+	 */
+	void	close() {
+		synchronized (this) {
+			if(bClosed)
+				return;
+			handOff();
+			bClosed = true;
+			pending.add(STOP);
+		}
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void	record(byte type, int session, byte [] data, int offset, int len) {
+		record(type, session, data == null ? null : ByteBuffer.wrap(data, offset, len));
+	}
+
+	private synchronized void	record(byte type, int session, ByteBuffer data) {
+		if(bFailed || bClosed)
+			return;
+		int len = data == null ? 0 : data.remaining();
+		if(buffer.remaining() < RECORD_HEADER + len)
+			handOff();
+		if(RECORD_HEADER + len > buffer.capacity()) {
+			// larger than a buffer - handed over in its own buffer
+			ByteBuffer large = ByteBuffer.allocate(RECORD_HEADER + len);
+			large.put(type).putInt(session).putLong(now()).putInt(len).put(data.duplicate());
+			enqueue(large);
+			return;
+		}
+		buffer.put(type).putInt(session).putLong(now()).putInt(len);
+		if(len > 0)
+			buffer.put(data.duplicate());
+		if(System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL)
+			handOff();
+	}
+
+	/**
+	 * Hand the filled buffer over to the writer thread and continue by an empty one.
+	 * The buffer holds whole records only, so a file never ends in the middle of a record.
+	 */
+	private synchronized void	handOff() {
+		lastFlush = System.currentTimeMillis();
+		if(buffer.position() == 0 || bFailed || bClosed)
+			return;
+		if(enqueue(buffer)) {
+			ByteBuffer next = free.poll();
+			buffer = next != null ? next : ByteBuffer.allocate(BUFFER_SIZE);
+		} else {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Queue records for the writer thread.
+	 * @param data	records between the start and the position
+	 * @return false if the records were dropped as the writer is behind
+	 */
+	private boolean	enqueue(ByteBuffer data) {
+		if(pending.size() >= MAX_PENDING) {
+			// the disk is behind - sessions are not held back by the capture
+			if(dropped++ % MAX_PENDING == 0)
+				logger.warning("Capture into " + directory + " is behind - " + dropped + " buffers of records dropped so far");
+			return false;
+		}
+		data.flip();
+		pending.add(data);
+		return true;
+	}
+
+	/**
+	 * Writer thread - writes handed over buffers and hands over records of idle sessions once a second.
+	 */
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				ByteBuffer data = pending.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+				if(data == null) {
+					synchronized (this) {
+						if(System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL)
+							handOff();
+					}
+					continue;
+				}
+				if(data == STOP)
+					break;
+				write(data);
+				data.clear();
+				if(data.capacity() == BUFFER_SIZE && free.size() < MAX_FREE)
+					free.offer(data);
+			}
+		} catch (InterruptedException e) {
+			logger.warning("Capture writer interrupted - " + pending.size() + " buffers not written");
+		}
+		if(channel != null) {
+			try {channel.close();} catch (IOException e) {}
+			channel = null;
+		}
+	}
+
+	/** Write a buffer into the current file, roll the file if it is full. */
+	private void	write(ByteBuffer data) {
+		if(bFailed)
+			return;
+		try {
+			if(channel == null || size >= maxSize)
+				roll();
+			writeFully(data);
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void	writeFully(ByteBuffer data) throws IOException {
+		while(data.hasRemaining())
+			size += channel.write(data);
+	}
+
+	private void	roll() throws IOException {
+		if(channel != null)
+			channel.close();
+		channel = null;
+		Files.createDirectories(directory);
+		String time = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+		Path file;
+		while(true) {
+			// a sequence keeps files rolled within a millisecond apart and ordered
+			file = directory.resolve(String.format("capture_%s_%04d.bin", time, fileSequence++ % 10000));
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				break;
+			} catch (FileAlreadyExistsException e) {
+				continue;
+			}
+		}
+		ByteBuffer magic = ByteBuffer.wrap(MAGIC);
+		writeFully(magic);
+		size = MAGIC.length;
+		logger.info("Capturing into " + file);
+		List<Path> files = files(directory);
+		for(int i=0; i<files.size() - maxFiles; ++i) {
+			Files.deleteIfExists(files.get(i));
+		}
+	}
+
+	private void	failed(IOException e) {
+		bFailed = true;
+		pending.clear();
+		logger.warning("Capturing stopped - cannot write into " + directory + ": " + e);
+	}
+
+	/** Time of a record in microseconds since the epoch. */
+	private long	now() {
+		return startMicros + (System.nanoTime() - startNanos) / 1000;
+	}
+
+}
@@ -0,0 +1,342 @@
+package eu.dkitt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays sessions of a {@link WireCapture} against a server or a simulator.<br/>
+ * The tool plays the role of the peer of the captured side: bytes the captured side received
+ * are sent, bytes it sent are expected back.
+ * <ul>
+ * <li>By default the original timing is kept, with <code>-fast</code> the next bytes are sent
+ * as soon as the expected reply has arrived - that replays a capture as fast as the target can follow.</li>
+ * <li>Before sending, the tool always waits until the target replied by at least as many bytes as the captured side did
+ * since the previous chunk (at most <code>-timeout</code> ms, default {@link #REPLY_TIMEOUT}), so the lock step of the protocol is kept.
+ * A target which does not reply the same way (e.g. it has no file to send) only costs the timeout.</li>
+ * <li>Sessions are replayed concurrently, each over its own connection.
+ * The target is connected to (a server), or with <code>-listen</code> the tool waits
+ * for connections (a simulator).</li>
+ * <li><code>-dump</code> prints the records instead of replaying them.</li>
+ * </ul>
+ * Usage:
+ * <pre>
+ * WireReplay [-host &lt;host&gt;] -port &lt;port&gt; [-listen] [-fast] [-session &lt;id&gt;] [-timeout &lt;ms&gt;] [-dump] &lt;capture file or directory&gt;...
+ * </pre>
+ *
+ * @author dkittrich
+ *
+ */
+public class WireReplay {
+
+	/** How long we wait for the reply of the target by default. */
+	private static final long REPLY_TIMEOUT = 2000;
+
+	/** A chunk of bytes received or sent by the captured side. */
+	static class Step {
+		final boolean bIn;
+		final long time;
+		final byte [] data;
+		Step(boolean bIn, long time, byte [] data) {
+			this.bIn = bIn;
+			this.time = time;
+			this.data = data;
+		}
+	}
+
+	/** A captured session. */
+	static class Captured {
+		final int id;
+		final String name;
+		final List<Step> steps = new ArrayList<Step>();
+		Captured(int id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String host = "localhost";
+		int port = -1;
+		boolean bListen = false;
+		boolean bFast = false;
+		boolean bDump = false;
+		int only = -1;
+		long timeout = REPLY_TIMEOUT;
+		List<Path> files = new ArrayList<Path>();
+		for(int i=0; i<args.length; ++i) {
+			switch(args[i]) {
+			case "-host":
+				host = args[++i];
+				break;
+			case "-port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-listen":
+				bListen = true;
+				break;
+			case "-fast":
+				bFast = true;
+				break;
+			case "-dump":
+				bDump = true;
+				break;
+			case "-session":
+				only = Integer.parseInt(args[++i]);
+				break;
+			case "-timeout":
+				timeout = Long.parseLong(args[++i]);
+				break;
+			default:
+				Path path = Paths.get(args[i]);
+				if(Files.isDirectory(path))
+					files.addAll(WireCapture.files(path));
+				else
+					files.add(path);
+			}
+		}
+		if(files.isEmpty() || (port < 0 && !bDump)) {
+			System.out.println("Usage: WireReplay [-host <host>] -port <port> [-listen] [-fast] [-session <id>] [-timeout <ms>] [-dump] <capture file or directory>...");
+			return;
+		}
+		List<Captured> sessions = read(files);
+		if(only >= 0) {
+			List<Captured> selected = new ArrayList<Captured>();
+			for(Captured session : sessions) {
+				if(session.id == only)
+					selected.add(session);
+			}
+			sessions = selected;
+		}
+		if(bDump) {
+			for(Captured session : sessions)
+				dump(session);
+			return;
+		}
+		replay(sessions, host, port, bListen, bFast, timeout);
+	}
+
+	/**
+	 * Read captured sessions from capture files.
+	 * Session numbers start from 1 in every process, a repeated start of a number is a new session.
+	 * @param files	capture files in the order they were written
+	 * @return sessions in the order they were started
+	 * @throws IOException
+	 */
+	static List<Captured>	read(List<Path> files) throws IOException {
+		List<Captured> sessions = new ArrayList<Captured>();
+		Map<Integer, Captured> open = new HashMap<Integer, Captured>();
+		byte [] magic = new byte[WireCapture.MAGIC.length];
+		for(Path file : files) {
+			try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				in.readFully(magic);
+				if(!Arrays.equals(magic, WireCapture.MAGIC)) {
+					System.err.println("Not a capture file: " + file);
+					continue;
+				}
+				while(true) {
+					int type = in.read();
+					if(type < 0)
+						break;
+					int id = in.readInt();
+					long time = in.readLong();
+					byte [] data = new byte[in.readInt()];
+					in.readFully(data);
+					Captured session = open.get(id);
+					if(type == WireCapture.OPEN || session == null) {
+						session = new Captured(id, type == WireCapture.OPEN ? new String(data, StandardCharsets.UTF_8) : "session " + id);
+						open.put(id, session);
+						sessions.add(session);
+					}
+					if(type == WireCapture.IN || type == WireCapture.OUT)
+						session.steps.add(new Step(type == WireCapture.IN, time, data));
+					else if(type == WireCapture.CLOSE)
+						open.remove(id);
+				}
+			} catch (EOFException e) {
+				System.err.println("Capture file " + file + " ends with an incomplete record");
+			}
+		}
+		return sessions;
+	}
+
+	private static void	dump(Captured session) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+		System.out.println("Session " + session.id + ": " + session.name);
+		for(Step step : session.steps) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(format.format(new Date(step.time / 1000))).append(step.bIn ? " <- " : " -> ");
+			for(byte b : step.data) {
+				String name = controlName(b & 0xFF);
+				if(name != null)
+					sb.append('<').append(name).append('>');
+				else if(b >= 32 && b < 127)
+					sb.append((char)b);
+				else
+					sb.append(String.format("\\x%02X", b & 0xFF));
+			}
+			System.out.println(sb);
+		}
+	}
+
+	private static String	controlName(int c) {
+		switch(c) {
+		case Executor.ENQ: return "ENQ";
+		case Executor.ACK: return "ACK";
+		case Executor.NAK: return "NAK";
+		case Executor.STX: return "STX";
+		case Executor.ETX: return "ETX";
+		case Executor.ETB: return "ETB";
+		case Executor.EOT: return "EOT";
+		case Executor.CR: return "CR";
+		case Executor.LF: return "LF";
+		default: return null;
+		}
+	}
+
+	private static void	replay(List<Captured> sessions, final String host, final int port, boolean bListen, final boolean bFast, final long timeout) throws Exception {
+		final ServerSocket serverSocket = bListen ? new ServerSocket(port) : null;
+		final long [][] results = new long[sessions.size()][];
+		List<Thread> threads = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for(int i=0; i<sessions.size(); ++i) {
+			final Captured session = sessions.get(i);
+			final int index = i;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Socket socket = serverSocket != null ? serverSocket.accept() : new Socket(host, port);
+						try {
+							results[index] = replay(session, socket, bFast, timeout);
+						} finally {
+							socket.close();
+						}
+					} catch (IOException | InterruptedException e) {
+						System.out.println("Session " + session.id + " failed: " + e);
+					}
+				}
+			}, "Replay_" + session.id);
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads)
+			thread.join();
+		if(serverSocket != null)
+			serverSocket.close();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		long sent = 0;
+		long received = 0;
+		for(int i=0; i<results.length; ++i) {
+			if(results[i] == null)
+				continue;
+			sent += results[i][0];
+			received += results[i][1];
+			System.out.println("Session " + sessions.get(i).id + " (" + sessions.get(i).name + "): sent " + results[i][0]
+					+ " bytes, received " + results[i][1] + " of " + results[i][2] + " expected bytes, "
+					+ results[i][3] + " replies timed out, " + results[i][4] + " ms");
+		}
+		System.out.println("Total: " + sessions.size() + " sessions, sent " + sent + " bytes, received " + received + " bytes in " + elapsed + " ms"
+				+ (elapsed > 0 ? ", " + (sent + received) * 1000 / elapsed + " bytes/s" : ""));
+	}
+
+	/**
+	 * Replay one session.
+	 * @return bytes sent, bytes received, bytes expected, number of timeouts, time in ms
+	 */
+	private static long []	replay(Captured session, Socket socket, boolean bFast, long timeout) throws IOException, InterruptedException {
+		SocketTuning.apply(socket, System.getProperties());
+		OutputStream out = socket.getOutputStream();
+		final InputStream in = socket.getInputStream();
+		final long [] received = new long[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte [] buffer = new byte[4096];
+				try {
+					int n;
+					while((n = in.read(buffer)) > 0) {
+						synchronized (received) {
+							received[0] += n;
+							received.notifyAll();
+						}
+					}
+				} catch (IOException e) {
+				}
+			}
+		}, "ReplayReader_" + session.id);
+		reader.setDaemon(true);
+		reader.start();
+
+		long start = System.nanoTime();
+		long first = session.steps.isEmpty() ? 0 : session.steps.get(0).time;
+		long sent = 0;
+		long expected = 0;
+		long timeouts = 0;
+		/** Bytes the captured side sent since the last received chunk. */
+		long reply = 0;
+		/** Bytes received from the target before our last chunk was sent. */
+		long mark = 0;
+		for(Step step : session.steps) {
+			if(!step.bIn) {
+				expected += step.data.length;
+				reply += step.data.length;
+				continue;
+			}
+			if(!bFast) {
+				long wait = (step.time - first) / 1000 - (System.nanoTime() - start) / 1000000;
+				if(wait > 0)
+					Thread.sleep(wait);
+			}
+			// bytes sent before anything was received are not a reply, the target may not send them
+			if(sent > 0 && reply > 0 && !await(received, mark + reply, timeout))
+				timeouts++;
+			synchronized (received) {
+				mark = received[0];
+			}
+			reply = 0;
+			out.write(step.data);
+			sent += step.data.length;
+		}
+		if(sent > 0 && reply > 0 && !await(received, mark + reply, timeout))
+			timeouts++;
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		synchronized (received) {
+			return new long[] {sent, received[0], expected, timeouts, elapsed};
+		}
+	}
+
+	/**
+	 * Wait until the given number of bytes was received.
+	 * @return false after a timeout
+	 */
+	private static boolean	await(long [] received, long expected, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (received) {
+			while(received[0] < expected) {
+				long wait = end - System.currentTimeMillis();
+				if(wait <= 0)
+					return false;
+				received.wait(wait);
+			}
+		}
+		return true;
+	}
+
+}
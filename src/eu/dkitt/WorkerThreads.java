@@ -0,0 +1,97 @@
+package eu.dkitt;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Factory of threads running blocking {@link Executor} sessions.<br/>
+ * Property {@link T1#OPTION_THREAD_MODE} selects the kind of threads:
+ * <ul>
+ * <li>platform - a classic {@link Thread} with its own stack (default).</li>
+ * <li>virtual - a virtual thread, blocking socket reads just park it and release the carrier thread.</li>
+ * </ul>
+ * Virtual threads are created by reflection so that the application still runs on older JVMs,
+ * where a platform thread is used instead.
+ *
+ * @author dkittrich
+ *
+ */
+public class WorkerThreads {
+
+	private static final Logger logger = Logger.getLogger(WorkerThreads.class.getName());
+
+	public static final String MODE_PLATFORM = "platform";
+	public static final String MODE_VIRTUAL = "virtual";
+
+	/** Thread.ofVirtual() or null if not supported. */
+	private static final Method ofVirtual;
+	/** Thread.Builder.name(String) */
+	private static final Method builderName;
+	/** Thread.Builder.unstarted(Runnable) */
+	private static final Method builderUnstarted;
+
+	static {
+		Method m1 = null, m2 = null, m3 = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			m1 = Thread.class.getMethod("ofVirtual");
+			m2 = builder.getMethod("name", String.class);
+			m3 = builder.getMethod("unstarted", Runnable.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			m1 = null;
+		}
+		ofVirtual = m1;
+		builderName = m2;
+		builderUnstarted = m3;
+	}
+
+	private static boolean bWarned = false;
+
+	/**
+	 * Test whether the running JVM can create virtual threads.
+	 * @return true if supported
+	 */
+	public static boolean isVirtualSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Test whether properties request virtual threads.
+	 * @param properties
+	 * @return true if virtual threads are requested
+	 */
+	public static boolean isVirtual(Properties properties) {
+		return MODE_VIRTUAL.equals(properties.getProperty(T1.OPTION_THREAD_MODE, MODE_PLATFORM));
+	}
+
+	/**
+	 * Create (but do not start) a thread according to the thread mode.
+	 * @param properties	properties with the thread mode
+	 * @param runnable	code to run
+	 * @param name	name of the thread
+	 * @return new unstarted thread
+	 */
+	public static Thread newThread(Properties properties, Runnable runnable, String name) {
+		if(isVirtual(properties)) {
+			if(ofVirtual != null) {
+				try {
+					Object builder = ofVirtual.invoke(null);
+					builder = builderName.invoke(builder, name);
+					return (Thread)builderUnstarted.invoke(builder, runnable);
+				} catch (ReflectiveOperationException e) {
+					logger.warning("Cannot create a virtual thread - " + e);
+				}
+			} else {
+				synchronized (WorkerThreads.class) {
+					if(!bWarned) {
+						bWarned = true;
+						logger.warning("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + ") - platform threads are used");
+					}
+				}
+			}
+		}
+		return new Thread(runnable, name);
+	}
+
+}
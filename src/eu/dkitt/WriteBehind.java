@@ -0,0 +1,548 @@
+package eu.dkitt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind stage doing the disk work of all sessions on a dedicated I/O thread.<br/>
+ * Protocol threads only hand over received messages and sent files,
+ * so the link goes idle without waiting for the storage:
+ * <ul>
+ * <li>A received message is written into a temporary file <code>.&lt;name&gt;.tmp</code>
+ * which is renamed to its final name, readers of the output directory never see a partial file.</li>
+ * <li>A received message is appended to a {@link SegmentLog} if the output directory uses segments.</li>
+ * <li>A sent file is moved into the backup directory, it stays claimed in its {@link OutboundQueue} until it is moved.</li>
+ * <li>{@link T1#OPTION_FSYNC} - <code>none</code> (default) leaves flushing to the system,
+ * <code>message</code> forces every file before it is renamed,
+ * <code>group</code> forces all files written within {@link T1#OPTION_FSYNC_INTERVAL} milliseconds together
+ * and renames them afterwards.</li>
+ * <li>{@link T1#OPTION_WRITE_QUEUE} - number of messages which may wait for the I/O thread (default 64).
+ * A session reserves a slot before it confirms frames of a message,
+ * if the queue is full the &lt;ACK&gt; is held back (at most {@link #ACK_HOLD_LIMIT} ms).</li>
+ * <li>A message which can not be stored after {@link #WRITE_ATTEMPTS} attempts is written into
+ * {@link T1#OPTION_WRITE_FALLBACK} - it was confirmed already. Further messages of the failed directory go there
+ * without retrying for {@link #FAILED_BACKOFF} ms, so one full or unwritable directory does not stall other sessions.</li>
+ * </ul>
+ * Pending work is finished when the process terminates.
+ *
+ * @author dkittrich
+ *
+ */
+class WriteBehind implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(WriteBehind.class.getName());
+
+	/**
+	 * How long a session may hold back an &lt;ACK&gt; while waiting for a slot -
+	 * shorter than the reply timeout of the instrument.
+	 * The message is then written by the session itself.
+	 */
+	static final long ACK_HOLD_LIMIT = 10000;
+
+	/** Attempts to store a received message, one second apart. */
+	static final int WRITE_ATTEMPTS = 3;
+
+	/** How long messages of a failed directory are written into the fallback directory without retrying. */
+	static final long FAILED_BACKOFF = 30000;
+
+	enum Fsync {
+		NONE,
+		MESSAGE,
+		GROUP
+	}
+
+	private static WriteBehind shared = null;
+
+	/**
+	 * Notified by the I/O thread when a handed over message was stored.
+	 */
+	interface Stored {
+		/**
+		 * @param location	file of the message or directory of the segment log
+		 * @param sequence	running counter of the message
+		 */
+		void	stored(Path location, long sequence);
+	}
+
+	/**
+	 * Get the write-behind stage of the process, it and its I/O thread are created on the first call.
+	 * @param properties	properties with the queue size and the fsync policy
+	 * @return shared stage or null if it is disabled by {@link T1#OPTION_WRITE_BEHIND}
+	 */
+	static synchronized WriteBehind shared(Properties properties) {
+		if(!Boolean.parseBoolean(properties.getProperty(T1.OPTION_WRITE_BEHIND, "true")))
+			return null;
+		if(shared == null) {
+			shared = new WriteBehind(
+					Integer.parseInt(properties.getProperty(T1.OPTION_WRITE_QUEUE, "64")),
+					Fsync.valueOf(properties.getProperty(T1.OPTION_FSYNC, "none").toUpperCase()),
+					Long.parseLong(properties.getProperty(T1.OPTION_FSYNC_INTERVAL, "20")),
+					Paths.get(properties.getProperty(T1.OPTION_WRITE_FALLBACK, Paths.get(System.getProperty("java.io.tmpdir"), "writebehind").toString())));
+			final WriteBehind stage = shared;
+			stage.thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					stage.close();
+				}
+			}, "WriteBehindShutdown"));
+		}
+		return shared;
+	}
+
+	/** Work item of the I/O thread. */
+	private interface Task {
+		void	execute() throws InterruptedException;
+	}
+
+	/** Marker terminating the I/O thread. */
+	private static final Task STOP = new Task() {
+		@Override
+		public void execute() {
+		}
+	};
+
+	private final Semaphore slots;
+	private final LinkedBlockingQueue<Task> tasks = new LinkedBlockingQueue<Task>();
+	private final Fsync fsync;
+	private final long fsyncInterval;
+	private final Path fallback;
+	private final Thread thread;
+
+	/** Output directories which failed with the time of the failure - used by the I/O thread only. */
+	private final Map<Path, Long> failed = new HashMap<Path, Long>();
+
+	/** Temporary files written but not forced yet - group mode, used by the I/O thread only. */
+	private final ArrayList<WriteTask> unsynced = new ArrayList<WriteTask>();
+	/** Directories with renamed entries not forced yet - group mode, used by the I/O thread only. */
+	private final Set<Path> unsyncedDirs = new LinkedHashSet<Path>();
+	/** Segment logs with records not forced yet - group mode, used by the I/O thread only. */
+	private final Set<SegmentLog> unsyncedLogs = new LinkedHashSet<SegmentLog>();
+	private long groupDeadline = Long.MAX_VALUE;
+
+	WriteBehind(int capacity, Fsync fsync, long fsyncInterval, Path fallback) {
+		this.slots = new Semaphore(Math.max(1, capacity));
+		this.fsync = fsync;
+		this.fsyncInterval = Math.max(1, fsyncInterval);
+		this.fallback = fallback;
+		this.thread = new Thread(this, "WriteBehind");
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Whether files written are forced to disk.
+	 * @return
+	 */
+	boolean	isSyncing() {
+		return fsync != Fsync.NONE;
+	}
+
+	/**
+	 * Reserve a slot for one message without waiting.
+	 * @return true if a slot was reserved
+	 */
+	boolean	tryReserve() {
+		return slots.tryAcquire();
+	}
+
+	/**
+	 * Reserve a slot for one message.
+	 * @param millis	maximal time to wait for a free slot
+	 * @return true if a slot was reserved
+	 */
+	boolean	reserve(long millis) {
+		try {
+			return slots.tryAcquire(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Return a reserved slot which was not used.
+	 */
+	void	cancel() {
+		slots.release();
+	}
+
+	/**
+	 * Hand over a received message, the caller must hold a reserved slot
+	 * which is consumed by this call. The buffer is released after it was written
+	 * and must not be used by the caller anymore.
+	 * @param message	received message
+	 * @param directory	output directory
+	 * @param format	format of the file name with the running counter
+	 * @param counter	counter of the output directory
+	 * @param stored	notified when the file was published - may be null
+	 */
+	void	write(MessageBuffer message, Path directory, String format, SequenceAllocator counter, Stored stored) {
+		tasks.add(new WriteTask(message, directory, format, counter, stored));
+	}
+
+	/**
+	 * Hand over a received message to be appended to a segment log, the caller must hold a reserved slot
+	 * which is consumed by this call. The buffer is released after it was appended
+	 * and must not be used by the caller anymore.
+	 * @param message	received message
+	 * @param log	log of the output directory
+	 * @param stored	notified when the message was appended - may be null
+	 */
+	void	append(MessageBuffer message, SegmentLog log, Stored stored) {
+		tasks.add(new AppendTask(message, log, stored));
+	}
+
+	/**
+	 * Hand over a sent file to be moved into a backup directory.
+	 * The file is marked as done in its queue after it was moved,
+	 * if it can not be moved it is released to be sent again.
+	 * @param source	sent file
+	 * @param target	path in the backup directory
+	 * @param queue	queue the file was claimed from
+	 */
+	void	move(Path source, Path target, OutboundQueue queue) {
+		tasks.add(new MoveTask(source, target, queue));
+	}
+
+	/**
+	 * Finish all pending work and stop the I/O thread.
+	 */
+	void	close() {
+		tasks.add(STOP);
+		try {
+			thread.join(30000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * I/O thread - executes tasks in the order they were handed over.
+	 */
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				Task task;
+				if(groupDeadline == Long.MAX_VALUE) {
+					task = tasks.take();
+				} else {
+					task = tasks.poll(Math.max(0, groupDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				if(task == STOP)
+					break;
+				if(task != null)
+					task.execute();
+				if(System.currentTimeMillis() >= groupDeadline)
+					groupCommit();
+			}
+			groupCommit();
+			logger.fine("Write-behind terminated");
+		} catch (InterruptedException e) {
+			logger.warning("Write-behind interrupted - " + (tasks.size() + unsynced.size()) + " pending tasks not finished");
+		}
+	}
+
+	private class WriteTask implements Task {
+		final MessageBuffer message;
+		final Path directory;
+		final String format;
+		final SequenceAllocator counter;
+		final Stored stored;
+		Path temp;
+		long sequence;
+
+		WriteTask(MessageBuffer message, Path directory, String format, SequenceAllocator counter, Stored stored) {
+			this.message = message;
+			this.directory = directory;
+			this.format = format;
+			this.counter = counter;
+			this.stored = stored;
+		}
+
+		@Override
+		public void execute() throws InterruptedException {
+			for(int attempt = 1; ; ++attempt) {
+				try {
+					writeTemp(this, fsync == Fsync.MESSAGE);
+					failed.remove(directory);
+					break;
+				} catch (IOException e) {
+					if(attempt >= WRITE_ATTEMPTS || isFailing(directory)) {
+						failed.putIfAbsent(directory, System.currentTimeMillis());
+						writeFallback(message, directory, stored, e);
+						message.release();
+						slots.release();
+						return;
+					}
+					logger.warning("Cannot write a received message into " + directory + " - retry in 1 second: " + e);
+					Thread.sleep(1000);
+				}
+			}
+			message.release();
+			slots.release();
+			if(fsync == Fsync.GROUP) {
+				unsynced.add(this);
+				startGroup();
+			} else {
+				publish(this);
+				if(fsync == Fsync.MESSAGE)
+					syncDirectory(directory);
+			}
+		}
+	}
+
+	private class AppendTask implements Task {
+		final MessageBuffer message;
+		final SegmentLog log;
+		final Stored stored;
+
+		AppendTask(MessageBuffer message, SegmentLog log, Stored stored) {
+			this.message = message;
+			this.log = log;
+			this.stored = stored;
+		}
+
+		@Override
+		public void execute() throws InterruptedException {
+			long sequence;
+			for(int attempt = 1; ; ++attempt) {
+				try {
+					sequence = log.append(message);
+					if(fsync == Fsync.MESSAGE)
+						log.force();
+					failed.remove(log.getDirectory());
+					break;
+				} catch (IOException e) {
+					if(attempt >= WRITE_ATTEMPTS || isFailing(log.getDirectory())) {
+						failed.putIfAbsent(log.getDirectory(), System.currentTimeMillis());
+						writeFallback(message, log.getDirectory(), stored, e);
+						message.release();
+						slots.release();
+						return;
+					}
+					logger.warning("Cannot append a received message to the segment log - retry in 1 second: " + e);
+					Thread.sleep(1000);
+				}
+			}
+			message.release();
+			slots.release();
+			if(stored != null)
+				stored.stored(log.getDirectory(), sequence);
+			if(fsync == Fsync.GROUP) {
+				unsyncedLogs.add(log);
+				startGroup();
+			}
+		}
+	}
+
+	private class MoveTask implements Task {
+		final Path source;
+		final Path target;
+		final OutboundQueue queue;
+
+		MoveTask(Path source, Path target, OutboundQueue queue) {
+			this.source = source;
+			this.target = target;
+			this.queue = queue;
+		}
+
+		@Override
+		public void execute() {
+			try {
+				Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				logger.warning("Cannot move sent file " + source + " to " + target + " - it will be sent again: " + e);
+				queue.release(source);
+				return;
+			}
+			queue.done(source);
+			if(fsync == Fsync.MESSAGE) {
+				syncDirectory(target.getParent());
+				syncDirectory(source.getParent());
+			} else if(fsync == Fsync.GROUP) {
+				unsyncedDirs.add(target.getParent());
+				unsyncedDirs.add(source.getParent());
+				startGroup();
+			}
+		}
+	}
+
+	/** Whether a directory failed recently - its messages are not retried. */
+	private boolean	isFailing(Path directory) {
+		Long since = failed.get(directory);
+		if(since == null)
+			return false;
+		if(System.currentTimeMillis() - since < FAILED_BACKOFF)
+			return true;
+		failed.remove(directory);
+		return false;
+	}
+
+	/**
+	 * Write a message which could not be stored into the fallback directory - it was confirmed already.
+	 * @param message
+	 * @param directory	the directory which failed
+	 * @param stored	notified with the fallback file - may be null
+	 * @param cause	the failure
+	 */
+	private void	writeFallback(MessageBuffer message, Path directory, Stored stored, IOException cause) {
+		try {
+			Files.createDirectories(fallback);
+			for(int n = 0; ; ++n) {
+				Path path = fallback.resolve(String.format("msg_%d_%d.txt", System.currentTimeMillis(), n));
+				try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					message.writeTo(channel);
+					if(fsync != Fsync.NONE)
+						channel.force(true);
+				} catch (FileAlreadyExistsException e) {
+					continue;
+				}
+				logger.severe("Cannot store a received message into " + directory + " - written into " + path + ": " + cause);
+				if(stored != null)
+					stored.stored(path, -1);
+				return;
+			}
+		} catch (IOException e) {
+			logger.severe("Cannot store a received message into " + directory + " nor into " + fallback
+					+ " - " + message.size() + " bytes lost: " + cause + ", " + e);
+		}
+	}
+
+	private void	startGroup() {
+		if(groupDeadline == Long.MAX_VALUE)
+			groupDeadline = System.currentTimeMillis() + fsyncInterval;
+	}
+
+	/**
+	 * Force all files written since the last group commit, rename them and force their directories.
+	 */
+	private void	groupCommit() {
+		groupDeadline = Long.MAX_VALUE;
+		if(unsynced.isEmpty() && unsyncedDirs.isEmpty() && unsyncedLogs.isEmpty())
+			return;
+		for(SegmentLog log : unsyncedLogs) {
+			try {
+				log.force();
+			} catch (IOException e) {
+				logger.warning("Cannot force the segment log - " + e);
+			}
+		}
+		unsyncedLogs.clear();
+		for(WriteTask task : unsynced) {
+			try(FileChannel channel = FileChannel.open(task.temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			} catch (IOException e) {
+				logger.warning("Cannot force file " + task.temp + " - " + e);
+			}
+		}
+		for(WriteTask task : unsynced) {
+			publish(task);
+			unsyncedDirs.add(task.directory);
+		}
+		if(logger.isLoggable(Level.FINE))
+			logger.fine("Group commit of " + unsynced.size() + " files");
+		unsynced.clear();
+		for(Path dir : unsyncedDirs)
+			syncDirectory(dir);
+		unsyncedDirs.clear();
+	}
+
+	/**
+	 * Write the message into a new temporary file.
+	 */
+	private static void	writeTemp(WriteTask task, boolean bForce) throws IOException {
+		task.sequence = task.counter.next();
+		String name = String.format(task.format, task.sequence);
+		task.temp = task.directory.resolve("." + name + ".tmp");
+		try(FileChannel channel = FileChannel.open(task.temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			task.message.writeTo(channel);
+			if(bForce)
+				channel.force(true);
+		} catch (IOException e) {
+			try {Files.deleteIfExists(task.temp);} catch (IOException ex) {}
+			throw e;
+		}
+	}
+
+	/**
+	 * Give the temporary file its final name, an existing file is never replaced.
+	 */
+	private static void	publish(WriteTask task) {
+		String name = task.temp.getFileName().toString();
+		Path path = task.directory.resolve(name.substring(1, name.length() - ".tmp".length()));
+		try {
+			while(true) {
+				try {
+					link(task.temp, path);
+					break;
+				} catch (FileAlreadyExistsException e) {
+					// counter file was lost or restored from an older state - never overwrite
+					logger.warning("File " + path + " already exists - counter skipped");
+					task.sequence = task.counter.next();
+					path = task.directory.resolve(String.format(task.format, task.sequence));
+				}
+			}
+			if(logger.isLoggable(Level.FINE))
+				logger.fine("path written: " + path);
+			if(task.stored != null)
+				task.stored.stored(path, task.sequence);
+		} catch (IOException e) {
+			logger.severe("Cannot rename " + task.temp + " to " + path + " - the message stays in the temporary file: " + e);
+		}
+	}
+
+	/**
+	 * Publish the temporary file under its final name.
+	 * A hard link fails if the name exists - a rename would silently replace a file created after any check.
+	 * On file systems without hard links the file is moved, which fails only if the name existed before.
+	 * @throws FileAlreadyExistsException	the name exists
+	 */
+	private static void	link(Path temp, Path path) throws IOException {
+		try {
+			Files.createLink(path, temp);
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | IOException e) {
+			Files.move(temp, path);
+			return;
+		}
+		try {
+			Files.delete(temp);
+		} catch (IOException e) {
+			logger.warning("Cannot delete " + temp + " - " + e);
+		}
+	}
+
+	/**
+	 * Force directory entries to disk, not supported on every platform.
+	 */
+	private static void	syncDirectory(Path dir) {
+		if(dir == null)
+			return;
+		try(FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			if(logger.isLoggable(Level.FINEST))
+				logger.finest("Cannot force directory " + dir + " - " + e);
+		}
+	}
+
+}
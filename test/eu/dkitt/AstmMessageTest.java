@@ -0,0 +1,133 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tokenizing of received messages by {@link AstmMessage#parse(byte[], int, long)} -
+ * live messages copied by {@link MessageBuffer#toRecords()} and stored files.
+ *
+ * @author dkittrich
+ *
+ */
+public class AstmMessageTest {
+
+	private static final String HEADER = "H|\\^&|||Analyzer";
+
+	@Test
+	public void	fieldsRepeatsAndComponents() {
+		AstmMessage message = stored(HEADER + "\r\n" + "P|1||PAT1\r\n" + "O|1|S1||^^^GLU\\^^^NA\r\n" + "R|1|^^^GLU|5.5|mmol/L\r\n" + "L|1\r\n");
+		List<AstmMessage.Record> records = message.getRecords();
+		assertEquals("HPORL", types(records));
+		AstmMessage.Record order = records.get(2);
+		assertEquals("S1", order.field(3));
+		assertEquals(2, order.repeats(5));
+		assertEquals("GLU", order.get(5, 1, 4));
+		assertEquals("NA", order.get(5, 2, 4));
+		assertEquals("", order.get(5, 3, 4));
+		AstmMessage.Record result = records.get(3);
+		assertEquals(5, result.fieldCount());
+		assertEquals("GLU", result.component(3, 4));
+		assertEquals("mmol/L", result.field(5));
+		assertEquals("", result.field(6));
+		assertEquals("\\^&", records.get(0).field(2));
+	}
+
+	@Test
+	public void	delimitersOfHeaderAndEscapes() {
+		AstmMessage message = stored("H!@#$!!!Analyzer\r\n" + "R!1!#1$F$2$S$3!a@b\r\n");
+		AstmMessage.Record result = message.getRecords().get(1);
+		assertEquals("@#$", message.getRecords().get(0).field(2));
+		assertEquals("1!2#3", result.component(3, 2));
+		assertEquals(2, result.repeats(4));
+		assertEquals("b", result.get(4, 2, 1));
+	}
+
+	@Test
+	public void	liveMessageJoinsRecordsSplitByEtb() {
+		// small chunks, so frames span several chunks
+		MessageBuffer buffer = new MessageBuffer(new BufferPool(8, false, 4));
+		frame(buffer, HEADER + "\r", true);
+		// split without and with <CR> before <ETB> - the continuation looks like a record
+		frame(buffer, "R|1|^^^GL", false);
+		frame(buffer, "U|5.5|mmol/L\r", true);
+		frame(buffer, "R|2|^^^NA|14\r", false);
+		frame(buffer, "X|0|mmol/L\r", true);
+		frame(buffer, "L|1\r", true);
+		byte [] data = buffer.toRecords();
+		AstmMessage message = AstmMessage.parse(data, data.length, 1000);
+		List<AstmMessage.Record> records = message.getRecords();
+		assertEquals("HRRL", types(records));
+		assertEquals("R|1|^^^GLU|5.5|mmol/L", records.get(1).toString());
+		assertEquals("R|2|^^^NA|14X|0|mmol/L", records.get(2).toString());
+		assertEquals("14X", records.get(2).field(4));
+		assertEquals(1000, message.getReceived());
+		assertNull(message.getLocation());
+		buffer.release();
+	}
+
+	@Test
+	public void	storedFileJoinsContinuationLines() {
+		// every frame ends by <LF>, a frame split inside of a record has no <CR>
+		AstmMessage message = stored(HEADER + "\r\n" + "R|1|^^^GL\n" + "X|U|5.5\r\n" + "R|2|^^^NA|14\r\n" + "0|mmol/L\r\n" + "L|1\r\n");
+		List<AstmMessage.Record> records = message.getRecords();
+		assertEquals("HRRL", types(records));
+		assertEquals("R|1|^^^GLX|U|5.5", records.get(1).toString());
+		assertEquals("R|2|^^^NA|140|mmol/L", records.get(2).toString());
+		assertEquals(Paths.get("msg_received_00007.txt"), message.getLocation());
+		assertEquals(7, message.getSequence());
+	}
+
+	@Test
+	public void	storedContinuationStartingByH() {
+		// a record split after <CR> before <ETB>, its continuation looks like a header
+		AstmMessage message = stored(HEADER + "\r\n" + "R|1|^^^HIL|1.2\r\n" + "Hemolysis^index|mg\r\n" + "R|2|^^^NA|140\r\n" + "L|1\r\n");
+		List<AstmMessage.Record> records = message.getRecords();
+		assertEquals("HRRL", types(records));
+		assertEquals("R|1|^^^HIL|1.2Hemolysis^index|mg", records.get(1).toString());
+		// delimiters of the header are kept
+		assertEquals("index", records.get(1).component(4, 2));
+		assertEquals("NA", records.get(2).component(3, 4));
+		// a header after the first line does not change delimiters
+		AstmMessage second = stored(HEADER + "\r\n" + "H!@#$\r\n" + "R|1|^^^NA\r\n");
+		assertEquals("HR", types(second.getRecords()));
+		assertEquals(HEADER + "H!@#$", second.getRecords().get(0).toString());
+		assertEquals("NA", second.getRecords().get(1).component(3, 4));
+	}
+
+	@Test
+	public void	emptyLinesAreSkipped() {
+		AstmMessage message = stored("\r\n\r\n" + HEADER + "\r\n\r\n" + "L|1\r\n");
+		assertEquals("HL", types(message.getRecords()));
+		assertEquals(0, stored("").getRecords().size());
+	}
+
+	static AstmMessage	stored(String text) {
+		byte [] data = text.getBytes(StandardCharsets.ISO_8859_1);
+		Path location = Paths.get("msg_received_00007.txt");
+		return AstmMessage.parse(data, data.length, 0, location, 7);
+	}
+
+	/** Append frame data as {@link FrameDecoder} does. */
+	private static void	frame(MessageBuffer buffer, String text, boolean bTerminal) {
+		byte [] data = text.getBytes(StandardCharsets.ISO_8859_1);
+		buffer.append(ByteBuffer.wrap(data), 0, data.length);
+		buffer.frameCommit(bTerminal);
+	}
+
+	private static String	types(List<AstmMessage.Record> records) {
+		StringBuilder sb = new StringBuilder();
+		for(AstmMessage.Record record : records)
+			sb.append(record.type());
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,92 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Window, expiry and persistence of {@link Deduplicator}.
+ *
+ * @author dkittrich
+ *
+ */
+public class DeduplicatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void	hashWithinWindow() throws IOException {
+		Deduplicator dedup = new Deduplicator(store(), 60000, 100);
+		assertFalse(dedup.contains(1));
+		dedup.add(1);
+		assertTrue(dedup.contains(1));
+		assertFalse(dedup.contains(2));
+	}
+
+	@Test
+	public void	hashExpiresAfterWindow() throws Exception {
+		Deduplicator dedup = new Deduplicator(store(), 300, 100);
+		dedup.add(1);
+		Thread.sleep(150);
+		dedup.add(2);
+		Thread.sleep(200);
+		assertFalse(dedup.contains(1));
+		assertTrue(dedup.contains(2));
+		Thread.sleep(150);
+		assertFalse(dedup.contains(2));
+	}
+
+	@Test
+	public void	oldestHashDroppedBeyondEntries() throws IOException {
+		Deduplicator dedup = new Deduplicator(store(), 60000, 2);
+		dedup.add(1);
+		dedup.add(2);
+		dedup.add(3);
+		assertFalse(dedup.contains(1));
+		assertTrue(dedup.contains(2));
+		assertTrue(dedup.contains(3));
+	}
+
+	@Test
+	public void	windowSurvivesRestart() throws IOException {
+		Path store = store();
+		Deduplicator dedup = new Deduplicator(store, 60000, 100);
+		dedup.add(1);
+		dedup.add(2);
+		Deduplicator restarted = new Deduplicator(store, 60000, 100);
+		assertTrue(restarted.contains(1));
+		assertTrue(restarted.contains(2));
+		assertFalse(restarted.contains(3));
+	}
+
+	@Test
+	public void	expiredAndIncompleteRecordsOfIndexFileIgnored() throws IOException {
+		Path store = store();
+		long now = System.currentTimeMillis();
+		ByteBuffer data = ByteBuffer.allocate(16 * 2 + 5);
+		data.putLong(1).putLong(now - 120000);
+		data.putLong(2).putLong(now - 1000);
+		data.put(new byte[5]);
+		Files.write(store, data.array());
+		Deduplicator dedup = new Deduplicator(store, 60000, 100);
+		assertFalse(dedup.contains(1));
+		assertTrue(dedup.contains(2));
+		// the file was rewritten with the hash within the window only
+		assertEquals(16, Files.size(store));
+	}
+
+	private Path	store() {
+		return folder.getRoot().toPath().resolve(".dedup");
+	}
+
+}
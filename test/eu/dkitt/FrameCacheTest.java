@@ -0,0 +1,128 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Encoded frames of {@link FrameCache} and their numbering by {@link OutboundFrames}.
+ *
+ * @author dkittrich
+ *
+ */
+public class FrameCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String MESSAGE = "H|\\^&\r\nP|1\r\nO|1|S1||^^^GLU\r\nL|1\r\n";
+
+	@Test
+	public void	cachedFramesEqualEncodedOnes() throws IOException {
+		Path file = file("a.txt", MESSAGE);
+		FrameCache cache = new FrameCache(1 << 20);
+		String expected = wire(new FrameCache(0), file, 1);
+		assertEquals(expected, wire(cache, file, 1));
+		// the second open takes frames from the cache
+		assertEquals(expected, wire(cache, file, 1));
+		assertEquals(4, frames(expected));
+	}
+
+	@Test
+	public void	renumberedFramesHaveValidChecksums() throws IOException {
+		Path file = file("a.txt", MESSAGE);
+		FrameCache cache = new FrameCache(1 << 20);
+		for(int first=1; first<=9; ++first)
+			assertEquals(wire(new FrameCache(0), file, first), wire(cache, file, first));
+	}
+
+	@Test
+	public void	changedFileEncodedAgain() throws IOException {
+		Path file = file("a.txt", MESSAGE);
+		FrameCache cache = new FrameCache(1 << 20);
+		wire(cache, file, 1);
+		Files.write(file, "H|\\^&\r\nL|1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 5000));
+		assertEquals(2, frames(wire(cache, file, 1)));
+	}
+
+	@Test
+	public void	largeFileStreamed() throws IOException {
+		StringBuilder text = new StringBuilder("H|\\^&\r\n");
+		for(int i=0; i<100; ++i)
+			text.append("R|").append(i).append("|^^^GLU|5.5\r\n");
+		Path file = file("large.txt", text.toString());
+		// more than 1/8 of the cache
+		FrameCache cache = new FrameCache(Files.size(file) * 4);
+		try(OutboundFrames frames = cache.open(file, attributes(file))) {
+			assertEquals('H', frames.peek());
+			assertTrue(frames.next());
+			assertTrue(frames.isTerminal());
+			assertEquals(5, frames.getDataLength());
+		}
+		assertEquals(wire(new FrameCache(0), file, 3), wire(cache, file, 3));
+	}
+
+	@Test
+	public void	peekAndLongLines() throws IOException {
+		StringBuilder line = new StringBuilder("C|1|");
+		for(int i=0; i<300; ++i)
+			line.append('x');
+		Path file = file("a.txt", "H|\\^&\r\n" + line + "\r\nL|1\r\n");
+		try(OutboundFrames frames = new FrameCache(1 << 20).open(file, attributes(file))) {
+			assertEquals('H', frames.peek());
+			assertTrue(frames.next());
+			assertEquals('C', frames.peek());
+			assertTrue(frames.next());
+			assertFalse(frames.isTerminal());
+			assertEquals(FrameEncoder.MAX_DATA - 1, frames.getDataLength());
+			assertEquals('x', frames.peek());
+			assertTrue(frames.next());
+			assertTrue(frames.isTerminal());
+			assertEquals('L', frames.peek());
+			assertTrue(frames.next());
+			assertEquals(-1, frames.peek());
+			assertFalse(frames.next());
+		}
+	}
+
+	/** All frames of the file numbered from the first index, with a line end after every frame. */
+	private static String	wire(FrameCache cache, Path file, int first) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(OutboundFrames frames = cache.open(file, attributes(file))) {
+			int index = first;
+			while(frames.next()) {
+				frames.number(index++);
+				out.write(frames.getFrame(), frames.getFrameOffset(), frames.getFrameLength());
+			}
+		}
+		return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static int	frames(String wire) {
+		return wire.split("\n").length;
+	}
+
+	private static BasicFileAttributes	attributes(Path file) throws IOException {
+		return Files.readAttributes(file, BasicFileAttributes.class);
+	}
+
+	private Path	file(String name, String text) throws IOException {
+		Path file = folder.getRoot().toPath().resolve(name);
+		Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+		return file;
+	}
+
+}
@@ -0,0 +1,185 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Decoding of received frames by {@link FrameDecoder} - checksums, numbering, duplicates and message boundaries.
+ *
+ * @author dkittrich
+ *
+ */
+public class FrameDecoderTest {
+
+	/** Sink keeping committed data, every committed line ends by '/' if it is terminal. */
+	private static final class Collector implements FrameDecoder.Sink {
+		final ByteArrayOutputStream committed = new ByteArrayOutputStream();
+		final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		int rollbacks = 0;
+
+		@Override
+		public void append(ByteBuffer src, int offset, int len) {
+			for(int i=0; i<len; ++i)
+				pending.write(src.get(offset + i));
+		}
+
+		@Override
+		public void frameCommit(boolean bTerminal) {
+			byte [] data = pending.toByteArray();
+			committed.write(data, 0, data.length);
+			if(bTerminal)
+				committed.write('/');
+			pending.reset();
+		}
+
+		@Override
+		public void frameRollback() {
+			pending.reset();
+			rollbacks++;
+		}
+
+		String	text() {
+			return new String(committed.toByteArray(), StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	private final Collector sink = new Collector();
+	private final FrameDecoder decoder = new FrameDecoder(sink);
+
+	@Test
+	public void	validFrames() {
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME), decode(frame("H|\\^&", 1, true)));
+		assertEquals(1, decoder.getFrameNo());
+		assertTrue(decoder.isTerminal());
+		// data with the <CR> ending the line
+		assertEquals(6, decoder.getLength());
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME, FrameDecoder.Event.FRAME, FrameDecoder.Event.EOT),
+				decode(concat(frame("R|1|^^^GLU", 2, false), frame("|5.5", 3, true), new byte[] {Executor.EOT})));
+		assertEquals(3, decoder.getFrameNo());
+		assertEquals("H|\\^&\r/R|1|^^^GLU\r|5.5\r/", sink.text());
+		assertEquals(0, sink.rollbacks);
+	}
+
+	@Test
+	public void	framesSplitIntoSingleBytes() {
+		byte [] wire = concat(frame("H|\\^&", 1, true), frame("L|1", 2, true));
+		List<FrameDecoder.Event> events = new ArrayList<FrameDecoder.Event>();
+		for(byte b : wire)
+			events.addAll(decode(new byte[] {b}));
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME, FrameDecoder.Event.FRAME), events);
+		assertEquals("H|\\^&\r/L|1\r/", sink.text());
+	}
+
+	@Test
+	public void	badChecksumRolledBack() {
+		byte [] bad = frame("H|\\^&", 1, true);
+		bad[bad.length - 3] ^= 1;
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(bad));
+		assertEquals(1, sink.rollbacks);
+		// the repeated frame keeps its number
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME), decode(frame("H|\\^&", 1, true)));
+		assertEquals("H|\\^&\r/", sink.text());
+	}
+
+	@Test
+	public void	invalidTrailer() {
+		byte [] bad = frame("H|\\^&", 1, true);
+		bad[bad.length - 1] = 'x';
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(bad));
+		assertEquals("", sink.text());
+	}
+
+	@Test
+	public void	duplicateAndWrongNumber() {
+		decode(frame("H|\\^&", 1, true));
+		// our <ACK> was lost - the frame is repeated
+		assertEquals(Arrays.asList(FrameDecoder.Event.DUPLICATE), decode(frame("H|\\^&", 1, true)));
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(frame("P|1", 3, true)));
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME), decode(frame("P|1", 2, true)));
+		assertEquals("H|\\^&\r/P|1\r/", sink.text());
+	}
+
+	@Test
+	public void	firstFrameMustBeOne() {
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(frame("H|\\^&", 0, true)));
+		decoder.reset();
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(frame("H|\\^&", 2, true)));
+	}
+
+	@Test
+	public void	frameNumbersWrapAfter7() {
+		List<FrameDecoder.Event> events = new ArrayList<FrameDecoder.Event>();
+		for(int i=1; i<=10; ++i)
+			events.addAll(decode(frame("C|" + i, i, true)));
+		assertEquals(10, events.size());
+		for(FrameDecoder.Event event : events)
+			assertEquals(FrameDecoder.Event.FRAME, event);
+	}
+
+	@Test
+	public void	headerStartsNextMessage() {
+		ByteBuffer in = ByteBuffer.wrap(concat(frame("H|\\^&", 1, true), frame("L|1", 2, true), frame("H|\\^&", 3, true)));
+		assertEquals(FrameDecoder.Event.FRAME, decoder.decode(in));
+		assertEquals(FrameDecoder.Event.FRAME, decoder.decode(in));
+		assertEquals(FrameDecoder.Event.MESSAGE, decoder.decode(in));
+		// the caller stores the message and continues with the same bytes
+		assertEquals(FrameDecoder.Event.FRAME, decoder.decode(in));
+		assertEquals(FrameDecoder.Event.NONE, decoder.decode(in));
+		assertEquals("H|\\^&\r/L|1\r/H|\\^&\r/", sink.text());
+	}
+
+	@Test
+	public void	continuationStartingByHIsNotMessage() {
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME, FrameDecoder.Event.FRAME, FrameDecoder.Event.FRAME),
+				decode(concat(frame("H|\\^&", 1, true), frame("C|1|", 2, false), frame("Hello", 3, true))));
+	}
+
+	@Test
+	public void	stxInsideFrameRestartsIt() {
+		byte [] broken = Arrays.copyOf(frame("H|\\^&", 1, true), 4);
+		assertEquals(Arrays.asList(FrameDecoder.Event.FRAME), decode(concat(broken, frame("H|\\^&", 1, true))));
+		assertEquals("H|\\^&\r/", sink.text());
+	}
+
+	@Test
+	public void	tooLongFrameDiscarded() {
+		byte [] data = new byte[FrameDecoder.MAX_FRAME_DATA + 1];
+		Arrays.fill(data, (byte)'a');
+		byte [] wire = concat(new byte[] {Executor.STX, '1'}, data);
+		assertEquals(Arrays.asList(FrameDecoder.Event.BAD_FRAME), decode(wire));
+		assertEquals("", sink.text());
+	}
+
+	/** Decode all bytes, collect events other than {@link FrameDecoder.Event#NONE}. */
+	private List<FrameDecoder.Event>	decode(byte [] wire) {
+		List<FrameDecoder.Event> events = new ArrayList<FrameDecoder.Event>();
+		ByteBuffer in = ByteBuffer.wrap(wire);
+		FrameDecoder.Event event;
+		while((event = decoder.decode(in)) != FrameDecoder.Event.NONE)
+			events.add(event);
+		return events;
+	}
+
+	private static byte []	frame(String data, int frameIndex, boolean bLast) {
+		FrameEncoder encoder = new FrameEncoder();
+		byte [] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+		return Arrays.copyOf(encoder.getFrame(), encoder.encode(bytes, 0, bytes.length, frameIndex, bLast));
+	}
+
+	private static byte []	concat(byte [] ... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte [] part : parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+
+}
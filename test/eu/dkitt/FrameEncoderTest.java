@@ -0,0 +1,86 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Layout, numbering and checksums of frames built by {@link FrameEncoder}.
+ *
+ * @author dkittrich
+ *
+ */
+public class FrameEncoderTest {
+
+	@Test
+	public void	terminalFrame() {
+		FrameEncoder encoder = new FrameEncoder();
+		byte [] data = bytes("xABCx");
+		int length = encoder.encode(data, 1, 3, 1, true);
+		assertEquals(3 + FrameEncoder.OVERHEAD, length);
+		assertEquals(length, encoder.getLength());
+		// '1' + 'A' + 'B' + 'C' + <CR> + <ETX> = 0x107
+		assertEquals("\u00021ABC\r\u000307\r\n", text(encoder.getFrame(), length));
+	}
+
+	@Test
+	public void	intermediateFrame() {
+		FrameEncoder encoder = new FrameEncoder();
+		int length = encoder.encode(bytes("ABC"), 0, 3, 2, false);
+		// '2' + 'A' + 'B' + 'C' + <CR> + <ETB> = 0x11C
+		assertEquals("\u00022ABC\r\u00171C\r\n", text(encoder.getFrame(), length));
+	}
+
+	@Test
+	public void	frameNumberTakenModulo8() {
+		FrameEncoder encoder = new FrameEncoder();
+		encoder.encode(bytes("R|1"), 0, 3, 7, true);
+		assertEquals('7', encoder.getFrame()[1]);
+		encoder.encode(bytes("R|1"), 0, 3, 8, true);
+		assertEquals('0', encoder.getFrame()[1]);
+		encoder.encode(bytes("R|1"), 0, 3, 9, true);
+		assertEquals('1', encoder.getFrame()[1]);
+	}
+
+	@Test
+	public void	checksumOfHighBytes() {
+		FrameEncoder encoder = new FrameEncoder();
+		byte [] data = new byte[FrameEncoder.MAX_DATA];
+		Arrays.fill(data, (byte)0xE9);
+		int length = encoder.encode(data, 0, data.length, 3, true);
+		int sum = '3' + Executor.CR + Executor.ETX + 0xE9 * data.length;
+		String expected = String.format("%02X", sum & 0xFF);
+		assertEquals(expected, text(Arrays.copyOfRange(encoder.getFrame(), length - 4, length - 2), 2));
+	}
+
+	@Test
+	public void	bufferGrowsForLongData() {
+		FrameEncoder encoder = new FrameEncoder();
+		byte [] data = new byte[1000];
+		Arrays.fill(data, (byte)'a');
+		assertEquals(1000 + FrameEncoder.OVERHEAD, encoder.encode(data, 0, data.length, 1, false));
+		assertEquals(Executor.ETB, encoder.getFrame()[1000 + 3]);
+		// a shorter frame reuses the grown buffer
+		assertEquals(1 + FrameEncoder.OVERHEAD, encoder.encode(data, 0, 1, 2, true));
+	}
+
+	@Test
+	public void	hexDigits() {
+		assertEquals('0', FrameEncoder.hexDigit(0));
+		assertEquals('9', FrameEncoder.hexDigit(9));
+		assertEquals('A', FrameEncoder.hexDigit(10));
+		assertEquals('F', FrameEncoder.hexDigit(15));
+	}
+
+	private static byte []	bytes(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static String	text(byte [] data, int length) {
+		return new String(data, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,109 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Splitting of files to send into frame data by {@link FrameSplitter}.
+ *
+ * @author dkittrich
+ *
+ */
+public class FrameSplitterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void	linesOfAnyTerminator() throws IOException {
+		assertEquals(Arrays.asList("H|\\^&/", "P|1/", "O|1/", "L|1/"), frames(file("H|\\^&\rP|1\nO|1\r\n\r\nL|1")));
+	}
+
+	@Test
+	public void	emptyFile() throws IOException {
+		assertEquals(Arrays.asList(), frames(file("")));
+		assertEquals(Arrays.asList(), frames(file("\r\n\r\n")));
+	}
+
+	@Test
+	public void	longLineSplitIntoContinuationFrames() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for(int i=0; i<600; ++i)
+			line.append((char)('a' + i % 26));
+		List<String> frames = frames(file("H|\\^&\r" + line + "\rL|1\r"));
+		assertEquals(5, frames.size());
+		int max = FrameEncoder.MAX_DATA - 1;
+		assertEquals(line.substring(0, max), frames.get(1));
+		assertEquals(line.substring(max, 2 * max), frames.get(2));
+		assertEquals(line.substring(2 * max) + "/", frames.get(3));
+	}
+
+	@Test
+	public void	lineOfExactlyMaxData() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for(int i=0; i<FrameEncoder.MAX_DATA - 1; ++i)
+			line.append('x');
+		// the longest terminal frame
+		assertEquals(Arrays.asList(line + "/"), frames(file(line + "\r")));
+		line.append('y');
+		assertEquals(Arrays.asList(line.substring(0, FrameEncoder.MAX_DATA - 1), "y/"), frames(file(line + "\r")));
+	}
+
+	@Test
+	public void	fileLargerThanWindow() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<5000; ++i)
+			text.append("R|").append(i).append("|^^^GLU|5.5\r\n");
+		List<String> frames = frames(file(text.toString()));
+		assertEquals(5000, frames.size());
+		assertEquals("R|0|^^^GLU|5.5/", frames.get(0));
+		assertEquals("R|4321|^^^GLU|5.5/", frames.get(4321));
+		assertEquals("R|4999|^^^GLU|5.5/", frames.get(4999));
+	}
+
+	@Test
+	public void	peekDoesNotMove() throws IOException {
+		try(FrameSplitter splitter = new FrameSplitter(file("H|\\^&\r\nL|1\r\n"))) {
+			assertEquals('H', splitter.peek());
+			assertEquals('H', splitter.peek());
+			assertTrue(splitter.next());
+			assertEquals('L', splitter.peek());
+			assertTrue(splitter.next());
+			assertEquals(-1, splitter.peek());
+			assertFalse(splitter.next());
+		}
+	}
+
+	/** Frames of a file, a terminal frame ends by '/'. */
+	private static List<String>	frames(Path file) throws IOException {
+		List<String> frames = new ArrayList<String>();
+		try(FrameSplitter splitter = new FrameSplitter(file)) {
+			assertEquals(Files.size(file), splitter.size());
+			while(splitter.next()) {
+				String data = new String(splitter.getData(), splitter.getOffset(), splitter.getLength(), StandardCharsets.ISO_8859_1);
+				frames.add(splitter.isTerminal() ? data + "/" : data);
+			}
+		}
+		return frames;
+	}
+
+	private Path	file(String text) throws IOException {
+		Path file = folder.newFile().toPath();
+		Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+		return file;
+	}
+
+}
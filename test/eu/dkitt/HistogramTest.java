@@ -0,0 +1,69 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Buckets, percentiles and merging of {@link Histogram}.
+ *
+ * @author dkittrich
+ *
+ */
+public class HistogramTest {
+
+	@Test
+	public void	smallValuesCountedExactly() {
+		Histogram histogram = new Histogram();
+		for(int i=0; i<128; ++i)
+			histogram.record(i);
+		assertEquals(128, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(127, histogram.getMax());
+		assertEquals(63.5, histogram.getMean(), 1e-9);
+		assertEquals(63, histogram.percentile(50));
+		assertEquals(126, histogram.percentile(99));
+		assertEquals(127, histogram.percentile(100));
+		assertEquals(0, histogram.percentile(0));
+	}
+
+	@Test
+	public void	relativeErrorOfLargeValues() {
+		for(long value = 128; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 7) {
+			Histogram histogram = new Histogram();
+			histogram.record(value);
+			histogram.record(value * 2 + 1000);
+			long reported = histogram.percentile(50);
+			assertTrue(value + " reported as " + reported, reported >= value && reported - value <= value / 64);
+		}
+	}
+
+	@Test
+	public void	mergedHistograms() {
+		Histogram a = new Histogram();
+		Histogram b = new Histogram();
+		a.record(10);
+		a.record(20);
+		b.record(5);
+		b.record(1000);
+		a.add(b);
+		assertEquals(4, a.getCount());
+		assertEquals(5, a.getMin());
+		assertEquals(1000, a.getMax());
+		assertEquals(258.75, a.getMean(), 1e-9);
+		assertEquals(10, a.percentile(50));
+	}
+
+	@Test
+	public void	emptyAndNegative() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.percentile(99));
+		assertEquals(0, histogram.getMean(), 0);
+		histogram.record(-5);
+		assertEquals(0, histogram.getMax());
+		assertEquals(1, histogram.getCount());
+	}
+
+}
@@ -0,0 +1,148 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Claiming, renewal, take over and release of lease files by {@link Leases}.<br/>
+ * Leases of another process are written by the test directly, all instances of a process have the same owner.
+ *
+ * @author dkittrich
+ *
+ */
+public class LeasesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final long LEASE = 60000;
+
+	private Path directory;
+	private Path file;
+	private Path lease;
+	private Leases leases;
+
+	@Before
+	public void	setUp() throws IOException {
+		directory = folder.getRoot().toPath();
+		file = directory.resolve("order_1.txt");
+		Files.write(file, "H|\\^&\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		leases = new Leases(directory, LEASE);
+		lease = directory.resolve(Leases.DIRECTORY).resolve("order_1.txt.lease");
+	}
+
+	@Test
+	public void	claimedOnce() {
+		assertTrue(leases.acquire(file));
+		assertTrue(Files.exists(lease));
+		assertFalse(leases.isFree(file));
+		assertFalse(leases.acquire(file));
+		assertTrue(leases.renew(file));
+		leases.release(file);
+		assertFalse(Files.exists(lease));
+		assertTrue(leases.isFree(file));
+	}
+
+	@Test
+	public void	leaseOfAnotherProcess() throws IOException {
+		foreign(System.currentTimeMillis());
+		assertFalse(leases.isFree(file));
+		assertFalse(leases.acquire(file));
+		// not ours - neither renewed nor deleted
+		assertFalse(leases.renew(file));
+		leases.release(file);
+		assertTrue(Files.exists(lease));
+	}
+
+	@Test
+	public void	expiredLeaseTakenOver() throws IOException {
+		foreign(System.currentTimeMillis() - 2 * LEASE);
+		assertTrue(leases.isFree(file));
+		assertTrue(leases.acquire(file));
+		assertTrue(leases.renew(file));
+		assertFalse(leases.isFree(file));
+		// no temporary file or lock is left
+		assertEquals(Arrays.asList(lease.getFileName().toString()), names());
+	}
+
+	@Test
+	public void	lostLeaseNotRenewed() throws IOException {
+		assertTrue(leases.acquire(file));
+		// expired and taken over by another process
+		foreign(System.currentTimeMillis());
+		assertFalse(leases.renew(file));
+	}
+
+	@Test
+	public void	renewalMovesExpiry() throws IOException {
+		assertTrue(leases.acquire(file));
+		Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - LEASE + 1000));
+		assertTrue(leases.renew(file));
+		assertTrue(Files.getLastModifiedTime(lease).toMillis() > System.currentTimeMillis() - 1000);
+	}
+
+	@Test
+	public void	lockedLease() throws IOException {
+		assertTrue(leases.acquire(file));
+		Path lock = lease.resolveSibling(lease.getFileName() + ".lock");
+		Files.createFile(lock);
+		// the claim is kept, the lease is renewed later
+		assertTrue(leases.renew(file));
+		leases.release(file);
+		assertTrue(Files.exists(lease));
+		Files.delete(lock);
+		leases.release(file);
+		assertFalse(Files.exists(lease));
+	}
+
+	@Test
+	public void	sweepOfExpiredLeftovers() throws IOException {
+		Path dir = directory.resolve(Leases.DIRECTORY);
+		long old = System.currentTimeMillis() - 2 * LEASE;
+		// lease of a file which is gone, a stale lock, an expired lease of an existing file and a fresh lease
+		write(dir.resolve("gone.txt.lease"), old);
+		write(dir.resolve("gone.txt.lease.lock"), old);
+		foreign(old);
+		write(dir.resolve("other.txt.lease"), System.currentTimeMillis());
+		leases.sweep(new HashSet<Path>(Collections.singletonList(file)));
+		assertEquals(Arrays.asList("order_1.txt.lease", "other.txt.lease"), names());
+	}
+
+	private void	foreign(long modified) throws IOException {
+		write(lease, modified);
+	}
+
+	private static void	write(Path path, long modified) throws IOException {
+		Files.write(path, "other-process".getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+	}
+
+	private List<String>	names() throws IOException {
+		List<String> names = new ArrayList<String>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve(Leases.DIRECTORY))) {
+			for(Path path : stream)
+				names.add(path.getFileName().toString());
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+}
@@ -0,0 +1,133 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Chunks, commits and rollbacks of {@link MessageBuffer}.
+ *
+ * @author dkittrich
+ *
+ */
+public class MessageBufferTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Small chunks, so frames span several of them. */
+	private final BufferPool pool = new BufferPool(8, false, 16);
+
+	@Test
+	public void	framesSpanChunks() {
+		MessageBuffer message = new MessageBuffer(pool);
+		frame(message, "H|\\^&|||Analyzer\r", true);
+		frame(message, "L|1\r", true);
+		assertEquals("H|\\^&|||Analyzer\r\nL|1\r\n", text(message));
+		assertEquals(23, message.size());
+		message.release();
+		assertEquals(0, message.size());
+		// 3 chunks returned to the pool
+		assertEquals(3, pool.getIdleCount());
+	}
+
+	@Test
+	public void	rollbackReturnsChunks() {
+		MessageBuffer message = new MessageBuffer(pool);
+		frame(message, "H|\\^&\r", true);
+		append(message, "R|1|^^^GLU|5.5|mmol/L");
+		message.frameRollback();
+		assertEquals("H|\\^&\r\n", text(message));
+		// the chunk of the commit is kept, 3 chunks returned to the pool
+		assertEquals(3, pool.getIdleCount());
+		frame(message, "L|1\r", true);
+		assertEquals("H|\\^&\r\nL|1\r\n", text(message));
+	}
+
+	@Test
+	public void	discardLastFrame() {
+		MessageBuffer message = new MessageBuffer(pool);
+		frame(message, "H|\\^&\r", true);
+		frame(message, "P|1|PATIENT\r", true);
+		append(message, "O|1");
+		// the last frame was never confirmed
+		message.discardLastFrame();
+		assertEquals("H|\\^&\r\n", text(message));
+		frame(message, "P|1|OTHER\r", true);
+		assertEquals("H|\\^&\r\nP|1|OTHER\r\n", text(message));
+	}
+
+	@Test
+	public void	directSource() {
+		MessageBuffer message = new MessageBuffer(pool);
+		byte [] data = "L|1|N\r".getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer direct = ByteBuffer.allocateDirect(16);
+		direct.put(new byte[3]).put(data).flip();
+		message.append(direct, 3, data.length);
+		message.frameCommit(true);
+		assertEquals("L|1|N\r\n", text(message));
+		assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void	continuedFrameJoinedForRecords() {
+		MessageBuffer message = new MessageBuffer(pool);
+		frame(message, "R|1|^^^GLU\r", false);
+		frame(message, "|5.5\r", true);
+		assertEquals(18, message.size());
+		// only the end of the record keeps its <CR>
+		assertEquals("R|1|^^^GLU\n\n|5.5\r\n", text(message));
+	}
+
+	@Test
+	public void	hashOfContents() {
+		MessageBuffer small = new MessageBuffer(pool);
+		MessageBuffer large = new MessageBuffer(new BufferPool(1024, false, 1));
+		frame(small, "H|\\^&\rL|1\r", true);
+		frame(large, "H|\\^&\rL|1\r", true);
+		// chunk boundaries do not matter
+		assertEquals(small.hash(), large.hash());
+		frame(large, "H|\\^&\r", true);
+		assertNotEquals(small.hash(), large.hash());
+	}
+
+	@Test
+	public void	writeTo() throws IOException {
+		MessageBuffer message = new MessageBuffer(pool);
+		frame(message, "H|\\^&|||Analyzer\r", true);
+		frame(message, "L|1\r", true);
+		Path file = folder.getRoot().toPath().resolve("message.txt");
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			message.writeTo(channel);
+		}
+		assertEquals("H|\\^&|||Analyzer\r\nL|1\r\n", new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1));
+		// the contents is kept
+		assertEquals(23, message.size());
+	}
+
+	private static void	frame(MessageBuffer message, String data, boolean bTerminal) {
+		append(message, data);
+		message.frameCommit(bTerminal);
+	}
+
+	private static void	append(MessageBuffer message, String data) {
+		byte [] bytes = data.getBytes(StandardCharsets.ISO_8859_1);
+		message.append(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	private static String	text(MessageBuffer message) {
+		return new String(message.toRecords(), StandardCharsets.ISO_8859_1);
+	}
+
+}
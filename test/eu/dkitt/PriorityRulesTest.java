@@ -0,0 +1,99 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Name and field rules of {@link PriorityRules}.
+ *
+ * @author dkittrich
+ *
+ */
+public class PriorityRulesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void	nameRule() throws IOException {
+		PriorityRules rules = rules("name:STAT_*=10");
+		assertFalse(rules.isEmpty());
+		assertFalse(rules.hasFieldRules());
+		assertEquals(10, rules.priorityOf(file("STAT_1.txt", "")));
+		assertEquals(0, rules.priorityOf(file("order_1.txt", "")));
+	}
+
+	@Test
+	public void	fieldRule() throws IOException {
+		PriorityRules rules = rules("field:O.6:S=5");
+		assertTrue(rules.hasFieldRules());
+		assertEquals(5, rules.priorityOf(file("a.txt", "H|\\^&\rP|1\rO|1|S1||^^^GLU|S^x\rL|1\r")));
+		assertEquals(0, rules.priorityOf(file("b.txt", "H|\\^&\rP|1\rO|1|S1||^^^GLU|R\rL|1\r")));
+		// delimiters of the header
+		assertEquals(5, rules.priorityOf(file("c.txt", "H!@#$\r\nO!1!S1!!#GLU!S#x\r\n")));
+	}
+
+	@Test
+	public void	continuationLineIsNotRecord() throws IOException {
+		PriorityRules rules = rules("field:O.6:S=5");
+		// a comment continued on a line starting by H must not change delimiters
+		assertEquals(5, rules.priorityOf(file("d.txt", "H|\\^&\rC|1|Note\rHIGH!@#$ text\rO|1|S1||^^^GLU|S\r")));
+		// a continuation starting by O is not an order record
+		assertEquals(0, rules.priorityOf(file("e.txt", "H|\\^&\rC|1|Note\rO S S S S S S\rO|1|S1||^^^GLU|R\r")));
+	}
+
+	@Test
+	public void	highestMatchingRuleWins() throws IOException {
+		PriorityRules rules = rules("name:*.txt=1; field:O.6:S=5 ;name:STAT_*=3");
+		assertEquals(5, rules.priorityOf(file("STAT_2.txt", "H|\\^&\rO|1|S1||^^^GLU|S\r")));
+		assertEquals(3, rules.priorityOf(file("STAT_3.txt", "H|\\^&\rO|1|S1||^^^GLU|R\r")));
+		assertEquals(1, rules.priorityOf(file("x.txt", "")));
+		// negative priorities put files behind unmatched ones
+		assertEquals(-1, rules("name:LOW_*=-1").priorityOf(file("LOW_1.txt", "")));
+	}
+
+	@Test
+	public void	missingFileDoesNotMatchFieldRule() {
+		assertEquals(0, rules("field:O.6:S=5").priorityOf(folder.getRoot().toPath().resolve("gone.txt")));
+	}
+
+	@Test
+	public void	noRules() {
+		assertTrue(rules("").isEmpty());
+		assertTrue(rules(" ; ").isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void	invalidRule() {
+		rules("size:100=1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void	invalidFieldRule() {
+		rules("field:O6:S=1");
+	}
+
+	private static PriorityRules	rules(String spec) {
+		Properties properties = new Properties();
+		properties.setProperty(T1.OPTION_PRIORITY, spec);
+		return new PriorityRules(properties);
+	}
+
+	private Path	file(String name, String text) throws IOException {
+		Path file = folder.getRoot().toPath().resolve(name);
+		Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+		return file;
+	}
+
+}
@@ -0,0 +1,220 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Lookup, runs, merging and journal replay of {@link ResultIndex}.
+ *
+ * @author dkittrich
+ *
+ */
+public class ResultIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path directory;
+	private Path messages;
+
+	@Before
+	public void	setUp() throws IOException {
+		directory = folder.newFolder("index").toPath();
+		messages = folder.newFolder("out").toPath();
+	}
+
+	@Test
+	public void	findByKeysAndTime() throws IOException {
+		try(ResultIndex index = new ResultIndex(directory)) {
+			index.accept(message(1, 1000, "S1", "PAT1", "GLU"));
+			index.accept(message(2, 2000, "S2", "PAT1", "NA"));
+			index.accept(message(3, 3000, "S1", "PAT2", "GLU"));
+			assertEquals(Arrays.asList(1L, 3L), sequences(index.find(ResultIndex.SAMPLE, "S1", Long.MIN_VALUE, Long.MAX_VALUE)));
+			assertEquals(Arrays.asList(1L, 2L), sequences(index.find(ResultIndex.PATIENT, "PAT1", Long.MIN_VALUE, Long.MAX_VALUE)));
+			assertEquals(Arrays.asList(3L), sequences(index.find(ResultIndex.TEST, "GLU", 1001, 3000)));
+			assertEquals(Arrays.asList(2L, 3L), sequences(index.range(2000, 5000)));
+			assertEquals(0, index.find(ResultIndex.SAMPLE, "S3", Long.MIN_VALUE, Long.MAX_VALUE).size());
+			ResultIndex.Hit hit = index.find(ResultIndex.SAMPLE, "S2", 0, 5000).get(0);
+			assertEquals(2000, hit.getTime());
+			assertEquals(messages.resolve(name(2)).toAbsolutePath().toString(), hit.getLocation());
+		}
+	}
+
+	@Test
+	public void	findInRunsAndMemory() throws IOException {
+		try(ResultIndex index = new ResultIndex(directory)) {
+			index.accept(message(1, 1000, "S1", "PAT1", "GLU"));
+			index.flush();
+			index.accept(message(2, 2000, "S1", "PAT1", "GLU"));
+			assertEquals(1, runs().size());
+			assertEquals(Arrays.asList(1L, 2L), sequences(index.find(ResultIndex.SAMPLE, "S1", 0, 5000)));
+		}
+	}
+
+	@Test
+	public void	runsMergedBeyondLimit() throws Exception {
+		try(ResultIndex index = new ResultIndex(directory)) {
+			for(int i=1; i<=ResultIndex.MAX_RUNS; ++i) {
+				index.accept(message(i, 1000 * i, "S" + i, "PAT1", "GLU"));
+				index.flush();
+			}
+			assertEquals(ResultIndex.MAX_RUNS, runs().size());
+			index.accept(message(100, 100000, "S100", "PAT1", "GLU"));
+			index.flush();
+			index.awaitMerges();
+			// the smallest runs merged into one
+			assertEquals(ResultIndex.MAX_RUNS + 1 - ResultIndex.TIER + 1, runs().size());
+			assertEquals(ResultIndex.MAX_RUNS + 1, index.find(ResultIndex.PATIENT, "PAT1", 0, Long.MAX_VALUE).size());
+			assertEquals(Arrays.asList(3L), sequences(index.find(ResultIndex.SAMPLE, "S3", 0, Long.MAX_VALUE)));
+		}
+	}
+
+	@Test
+	public void	runsMergedInTiers() throws Exception {
+		try(ResultIndex index = new ResultIndex(directory)) {
+			for(int i=1; i<=100; ++i) {
+				index.accept(message(i, 1000 * i, "S" + i, "PAT1", "GLU"));
+				index.flush();
+			}
+			index.awaitMerges();
+			assertTrue(runs().size() <= ResultIndex.MAX_RUNS);
+			// time, sample, patient and test of every message, no entry repeats
+			assertEquals(400, index.size());
+			assertEquals(100, index.find(ResultIndex.PATIENT, "PAT1", 0, Long.MAX_VALUE).size());
+			assertEquals(Arrays.asList(77L), sequences(index.find(ResultIndex.SAMPLE, "S77", 0, Long.MAX_VALUE)));
+		}
+	}
+
+	@Test
+	public void	journalReplayedOnOpen() throws IOException {
+		ResultIndex index = new ResultIndex(directory);
+		index.accept(message(1, 1000, "S1", "PAT1", "GLU"));
+		index.accept(message(2, 2000, "S2", "PAT1", "GLU"));
+		// closed without a flush - entries are in the journal only
+		index.close();
+		assertEquals(0, runs().size());
+		try(ResultIndex reader = ResultIndex.open(directory, true)) {
+			assertEquals(Arrays.asList(1L, 2L), sequences(reader.find(ResultIndex.PATIENT, "PAT1", 0, 5000)));
+		}
+		// a read only index does not change files
+		assertEquals(0, runs().size());
+		assertTrue(Files.exists(directory.resolve("journal.log")));
+		try(ResultIndex writer = ResultIndex.open(directory, false)) {
+			assertEquals(1, runs().size());
+			assertFalse(Files.exists(directory.resolve("journal.log")));
+			assertEquals(Arrays.asList(2L), sequences(writer.find(ResultIndex.SAMPLE, "S2", 0, 5000)));
+		}
+	}
+
+	@Test
+	public void	rebuildFromStoredFiles() throws Exception {
+		for(int i=1; i<=20; ++i)
+			Files.write(messages.resolve(name(i)), text("S" + i, "PAT" + (i % 2), "GLU").getBytes(StandardCharsets.ISO_8859_1));
+		Files.write(messages.resolve("notes.txt"), "not a message\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		assertEquals(20, ResultIndex.rebuild(directory, Arrays.asList(messages), 3));
+		try(ResultIndex index = ResultIndex.open(directory, true)) {
+			assertEquals(Arrays.asList(7L), sequences(index.find(ResultIndex.SAMPLE, "S7", Long.MIN_VALUE, Long.MAX_VALUE)));
+			assertEquals(10, index.find(ResultIndex.PATIENT, "PAT1", Long.MIN_VALUE, Long.MAX_VALUE).size());
+			assertEquals(20, index.find(ResultIndex.TEST, "GLU", Long.MIN_VALUE, Long.MAX_VALUE).size());
+		}
+		assertEquals(1, runs().size());
+	}
+
+	@Test
+	public void	rebuildOfSeveralParts() throws Exception {
+		// more parts of 1024 files than threads - every thread writes one run of all its parts
+		for(int i=1; i<=2500; ++i)
+			Files.write(messages.resolve(name(i)), text("S" + i, "PAT" + (i % 5), "GLU").getBytes(StandardCharsets.ISO_8859_1));
+		assertEquals(2500, ResultIndex.rebuild(directory, Arrays.asList(messages), 2));
+		assertEquals(1, runs().size());
+		try(ResultIndex index = ResultIndex.open(directory, true)) {
+			assertEquals(Arrays.asList(2222L), sequences(index.find(ResultIndex.SAMPLE, "S2222", Long.MIN_VALUE, Long.MAX_VALUE)));
+			assertEquals(500, index.find(ResultIndex.PATIENT, "PAT3", Long.MIN_VALUE, Long.MAX_VALUE).size());
+		}
+	}
+
+	@Test
+	public void	readOnlyOpenDuringMerges() throws Exception {
+		final ResultIndex writer = new ResultIndex(directory);
+		final AtomicLong stored = new AtomicLong();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// a run of every two entries, runs merged beyond MAX_RUNS
+					for(int i=1; i<=200; ++i) {
+						writer.accept(message(i, 1000 * i, "S" + i, "PAT1", "GLU"));
+						if(i % 2 == 0)
+							writer.flush();
+						stored.set(i);
+					}
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		});
+		thread.start();
+		try {
+			while(thread.isAlive()) {
+				long before = stored.get();
+				try(ResultIndex reader = ResultIndex.open(directory, true)) {
+					int found = reader.find(ResultIndex.PATIENT, "PAT1", 0, Long.MAX_VALUE).size();
+					assertTrue(found + " of " + before + " stored messages found", found >= before);
+				}
+			}
+		} finally {
+			thread.join();
+			writer.close();
+		}
+		assertEquals(null, failure.get());
+	}
+
+	private AstmMessage	message(long sequence, long received, String sample, String patient, String test) {
+		byte [] data = text(sample, patient, test).getBytes(StandardCharsets.ISO_8859_1);
+		return AstmMessage.parse(data, data.length, received, messages.resolve(name(sequence)), sequence);
+	}
+
+	private static String	text(String sample, String patient, String test) {
+		return "H|\\^&|||Analyzer\r\n" + "P|1||" + patient + "\r\n" + "O|1|" + sample + "||^^^" + test + "\r\n"
+				+ "R|1|^^^" + test + "|5.5|mmol/L\r\n" + "L|1\r\n";
+	}
+
+	private static String	name(long sequence) {
+		return String.format("msg_received_%05d.txt", sequence);
+	}
+
+	private static List<Long>	sequences(List<ResultIndex.Hit> hits) {
+		List<Long> sequences = new ArrayList<Long>();
+		for(ResultIndex.Hit hit : hits)
+			sequences.add(hit.getSequence());
+		return sequences;
+	}
+
+	private List<Path>	runs() throws IOException {
+		List<Path> runs = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, IndexRun.PREFIX + "*" + IndexRun.SUFFIX)) {
+			for(Path run : stream)
+				runs.add(run);
+		}
+		return runs;
+	}
+
+}
@@ -0,0 +1,57 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Delivery of messages by {@link ResultPipeline} to its sinks.
+ *
+ * @author dkittrich
+ *
+ */
+public class ResultPipelineTest {
+
+	/** Sink taking a while for every message. */
+	private static final class SlowSink implements ResultSink {
+		final List<Long> sequences = new ArrayList<Long>();
+
+		@Override
+		public void accept(AstmMessage message) throws IOException {
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (sequences) {
+				sequences.add(message.getSequence());
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void	fullQueueDoesNotDropMessages() {
+		ResultPipeline pipeline = new ResultPipeline(1, 1);
+		SlowSink sink = new SlowSink();
+		pipeline.addSink(sink);
+		// a worker and a place in the queue - the storing thread waits for the rest
+		for(int i=1; i<=6; ++i) {
+			byte [] data = "H|\\^&\rO|1|S1\rL|1\r".getBytes(StandardCharsets.ISO_8859_1);
+			pipeline.submit(data, data.length, i, Paths.get("msg_" + i + ".txt"), i);
+		}
+		pipeline.close();
+		assertEquals(6, sink.sequences.size());
+		assertEquals(Long.valueOf(6), sink.sequences.get(5));
+	}
+
+}
@@ -0,0 +1,143 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Appending, reading and recovery of a {@link SegmentLog} on restart.
+ *
+ * @author dkittrich
+ *
+ */
+public class SegmentLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Size of a record of a four letter message - the message gets a terminating &lt;LF&gt;. */
+	private static final int RECORD = SegmentLog.HEADER + 5 + SegmentLog.TRAILER;
+
+	private final BufferPool pool = new BufferPool(64, false, 4);
+	private Path directory;
+
+	@Before
+	public void	setUp() throws IOException {
+		directory = folder.newFolder("out").toPath();
+	}
+
+	@Test
+	public void	appendedRecordsRead() throws IOException {
+		SegmentLog log = open();
+		assertEquals(1, log.append(message("msg1")));
+		assertEquals(2, log.append(message("msg2")));
+		log.close();
+		assertEquals(Arrays.asList("msg1\n", "msg2\n"), texts());
+		try(SegmentReader reader = new SegmentReader(directory)) {
+			assertTrue(reader.get(2));
+			assertEquals("msg2\n", new String(reader.getData(), 0, reader.getLength(), StandardCharsets.ISO_8859_1));
+		}
+	}
+
+	@Test
+	public void	tornTailCutOff() throws IOException {
+		SegmentLog log = open();
+		log.append(message("msg1"));
+		log.append(message("msg2"));
+		log.close();
+		Path segment = SegmentReader.segments(directory).get(0);
+		// an append interrupted by a crash - the header promises more data than written
+		ByteBuffer torn = ByteBuffer.allocate(SegmentLog.HEADER + 2);
+		torn.putInt(100).putLong(3).putLong(0).flip();
+		try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+			channel.write(torn);
+		}
+		long seq = open().append(message("msg3"));
+		// the same segment continues right after the last valid record
+		assertEquals(1, SegmentReader.segments(directory).size());
+		assertEquals(3 * RECORD, Files.size(segment));
+		assertEquals(Arrays.asList("msg1\n", "msg2\n", "msg3\n"), texts());
+		try(SegmentReader reader = new SegmentReader(directory)) {
+			assertTrue(reader.get(seq));
+		}
+	}
+
+	@Test
+	public void	damagedRecordInTheMiddleKept() throws IOException {
+		SegmentLog log = open();
+		log.append(message("msg1"));
+		log.append(message("msg2"));
+		log.append(message("msg3"));
+		log.close();
+		Path segment = SegmentReader.segments(directory).get(0);
+		corrupt(segment, RECORD + SegmentLog.HEADER);
+		open().append(message("msg4"));
+		// nothing of the damaged segment is cut off, appending continues in a new segment
+		assertEquals(3 * RECORD, Files.size(segment));
+		assertEquals(2, SegmentReader.segments(directory).size());
+		assertEquals(Arrays.asList("msg1\n", "msg3\n", "msg4\n"), texts());
+	}
+
+	@Test
+	public void	damagedFirstRecordKept() throws IOException {
+		SegmentLog log = open();
+		log.append(message("msg1"));
+		log.append(message("msg2"));
+		log.close();
+		Path segment = SegmentReader.segments(directory).get(0);
+		corrupt(segment, SegmentLog.HEADER);
+		open().append(message("msg3"));
+		assertTrue(Files.exists(segment));
+		assertEquals(2 * RECORD, Files.size(segment));
+		assertEquals(Arrays.asList("msg2\n", "msg3\n"), texts());
+	}
+
+	/** A log as opened after a restart of the process. */
+	private SegmentLog	open() {
+		return new SegmentLog(directory, new SequenceAllocator(directory.resolve(".counter"), 1), 1 << 20, 0);
+	}
+
+	private MessageBuffer	message(String text) {
+		MessageBuffer message = new MessageBuffer(pool);
+		byte [] data = text.getBytes(StandardCharsets.ISO_8859_1);
+		message.append(ByteBuffer.wrap(data), 0, data.length);
+		message.frameCommit(true);
+		return message;
+	}
+
+	/** Flip a byte of a segment. */
+	private static void	corrupt(Path segment, long position) throws IOException {
+		try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer b = ByteBuffer.allocate(1);
+			channel.read(b, position);
+			b.put(0, (byte)(b.get(0) ^ 0x55));
+			b.rewind();
+			channel.write(b, position);
+		}
+	}
+
+	private List<String>	texts() throws IOException {
+		List<String> texts = new ArrayList<String>();
+		try(SegmentReader reader = new SegmentReader(directory)) {
+			while(reader.next())
+				texts.add(new String(reader.getData(), 0, reader.getLength(), StandardCharsets.ISO_8859_1));
+		}
+		return texts;
+	}
+
+}
@@ -0,0 +1,129 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Block reservation, crash safety and the counter file of {@link SequenceAllocator}.
+ *
+ * @author dkittrich
+ *
+ */
+public class SequenceAllocatorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path store;
+
+	@Before
+	public void	setUp() {
+		store = folder.getRoot().toPath().resolve(".counter");
+	}
+
+	@Test
+	public void	blockReserved() throws IOException {
+		SequenceAllocator allocator = new SequenceAllocator(store, 10);
+		assertFalse(Files.exists(store));
+		assertEquals(1, allocator.next());
+		// the file holds the first number not reserved
+		assertEquals("11", counter());
+		for(int i=2; i<=10; ++i)
+			assertEquals(i, allocator.next());
+		assertEquals("11", counter());
+		assertEquals(11, allocator.next());
+		assertEquals("21", counter());
+	}
+
+	@Test
+	public void	crashSkipsRestOfBlock() throws IOException {
+		SequenceAllocator allocator = new SequenceAllocator(store, 10);
+		allocator.next();
+		allocator.next();
+		// not closed - a new process continues after the reserved block
+		assertEquals(11, new SequenceAllocator(store, 10).next());
+	}
+
+	@Test
+	public void	closeStoresExactNext() throws IOException {
+		SequenceAllocator allocator = new SequenceAllocator(store, 10);
+		allocator.next();
+		allocator.next();
+		allocator.close();
+		assertEquals("3", counter());
+		assertEquals(3, new SequenceAllocator(store, 10).next());
+		// a number allocated after close starts a new block, never below the stored one
+		assertEquals(11, allocator.next());
+		assertEquals("21", counter());
+	}
+
+	@Test
+	public void	closeOfUnusedAllocator() throws IOException {
+		new SequenceAllocator(store, 10).close();
+		assertFalse(Files.exists(store));
+	}
+
+	@Test
+	public void	oldCounterFile() throws IOException {
+		Files.write(store, " 42\r\n".getBytes(StandardCharsets.US_ASCII));
+		assertEquals(42, new SequenceAllocator(store, 10).next());
+		assertEquals("52", counter());
+		assertFalse(Files.exists(folder.getRoot().toPath().resolve(".counter.tmp")));
+	}
+
+	@Test(expected = IOException.class)
+	public void	invalidCounterFile() throws IOException {
+		Files.write(store, "abc".getBytes(StandardCharsets.US_ASCII));
+		new SequenceAllocator(store, 10).next();
+	}
+
+	@Test
+	public void	concurrentNumbersUnique() throws Exception {
+		final SequenceAllocator allocator = new SequenceAllocator(store, 7);
+		final Set<Long> numbers = ConcurrentHashMap.newKeySet();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<4; ++t) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0; i<1000; ++i)
+							assertTrue(numbers.add(allocator.next()));
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertEquals(null, failure.get());
+		assertEquals(4000, numbers.size());
+		allocator.close();
+		assertEquals("4001", counter());
+	}
+
+	private String	counter() throws IOException {
+		return new String(Files.readAllBytes(store), StandardCharsets.US_ASCII);
+	}
+
+}
@@ -0,0 +1,104 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Deadlines, order and cancelling of {@link TimerWheel} timeouts.
+ *
+ * @author dkittrich
+ *
+ */
+public class TimerWheelTest {
+
+	@Test
+	public void	firesNotBeforeDeadline() throws InterruptedException {
+		final CountDownLatch fired = new CountDownLatch(1);
+		final AtomicLong firedAt = new AtomicLong();
+		TimerWheel.Timeout timeout = TimerWheel.shared().schedule(50, new Runnable() {
+			@Override
+			public void run() {
+				firedAt.set(TimerWheel.now());
+				fired.countDown();
+			}
+		});
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertTrue(firedAt.get() >= timeout.deadline);
+	}
+
+	@Test
+	public void	firesInOrderOfDeadlines() throws InterruptedException {
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch fired = new CountDownLatch(3);
+		for(final int delay : new int[] {120, 20, 70}) {
+			TimerWheel.shared().schedule(delay, new Runnable() {
+				@Override
+				public void run() {
+					order.add(delay);
+					fired.countDown();
+				}
+			});
+		}
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		assertEquals(3, order.size());
+		assertEquals(20, (int)order.get(0));
+		assertEquals(70, (int)order.get(1));
+		assertEquals(120, (int)order.get(2));
+	}
+
+	@Test
+	public void	cancelledTaskDoesNotRun() throws InterruptedException {
+		final AtomicBoolean cancelledRan = new AtomicBoolean();
+		TimerWheel.Timeout timeout = TimerWheel.shared().schedule(30, new Runnable() {
+			@Override
+			public void run() {
+				cancelledRan.set(true);
+			}
+		});
+		timeout.cancel();
+		assertTrue(timeout.isCancelled());
+		final CountDownLatch later = new CountDownLatch(1);
+		TimerWheel.shared().schedule(100, new Runnable() {
+			@Override
+			public void run() {
+				later.countDown();
+			}
+		});
+		assertTrue(later.await(5, TimeUnit.SECONDS));
+		assertFalse(cancelledRan.get());
+	}
+
+	@Test
+	public void	cancelledTimeoutsLeaveTheWheel() {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		TimerWheel wheel = TimerWheel.shared();
+		int before = wheel.size();
+		List<TimerWheel.Timeout> timeouts = new ArrayList<TimerWheel.Timeout>();
+		// many timeouts share slots, they are removed in any order
+		for(int i=0; i<2000; ++i)
+			timeouts.add(wheel.schedule(60000 + (i % 7) * 10, task));
+		assertEquals(before + 2000, wheel.size());
+		for(int i=0; i<timeouts.size(); i+=2)
+			timeouts.get(i).cancel();
+		assertEquals(before + 1000, wheel.size());
+		for(TimerWheel.Timeout timeout : timeouts)
+			timeout.cancel();
+		assertEquals(before, wheel.size());
+	}
+
+}
@@ -0,0 +1,135 @@
+package eu.dkitt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Publishing, group commit and the fallback directory of {@link WriteBehind}.
+ *
+ * @author dkittrich
+ *
+ */
+public class WriteBehindTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final BufferPool pool = new BufferPool(64, false, 4);
+	private final List<Path> locations = new ArrayList<Path>();
+	private final List<Long> sequences = new ArrayList<Long>();
+	private Path directory;
+	private Path fallback;
+	private SequenceAllocator counter;
+	private WriteBehind stage;
+	private Thread thread;
+
+	@Before
+	public void	setUp() throws IOException {
+		directory = folder.newFolder("out").toPath();
+		fallback = folder.getRoot().toPath().resolve("fallback");
+		counter = new SequenceAllocator(folder.getRoot().toPath().resolve(".counter"), 10);
+	}
+
+	@After
+	public void	tearDown() throws InterruptedException {
+		if(stage != null) {
+			stage.close();
+			thread.join(5000);
+		}
+	}
+
+	@Test
+	public void	existingFileNeverReplaced() throws Exception {
+		start(WriteBehind.Fsync.NONE);
+		Files.write(directory.resolve("msg_00001.txt"), "old".getBytes(StandardCharsets.ISO_8859_1));
+		write("new");
+		assertEquals(directory.resolve("msg_00002.txt"), locations.get(0));
+		assertEquals(2L, (long)sequences.get(0));
+		assertEquals("old", text(directory.resolve("msg_00001.txt")));
+		assertEquals("new\n", text(locations.get(0)));
+		assertEquals(2, files(directory).size());
+	}
+
+	@Test
+	public void	groupCommitPublishesAfterInterval() throws Exception {
+		start(WriteBehind.Fsync.GROUP);
+		write("first");
+		write("second");
+		assertEquals(directory.resolve("msg_00001.txt"), locations.get(0));
+		assertEquals("second\n", text(directory.resolve("msg_00002.txt")));
+		// no temporary file is left
+		assertEquals(2, files(directory).size());
+	}
+
+	@Test
+	public void	failedDirectoryWrittenIntoFallback() throws Exception {
+		start(WriteBehind.Fsync.NONE);
+		// a file where the directory should be - every attempt fails
+		directory = folder.newFile("notadirectory").toPath();
+		write("lost?");
+		assertEquals(fallback, locations.get(0).getParent());
+		assertEquals(-1L, (long)sequences.get(0));
+		assertEquals("lost?\n", text(locations.get(0)));
+		// the slot was returned
+		assertTrue(stage.tryReserve());
+		stage.cancel();
+	}
+
+	private void	start(WriteBehind.Fsync fsync) {
+		stage = new WriteBehind(2, fsync, 50, fallback);
+		thread = new Thread(stage, "WriteBehindTest");
+		thread.start();
+	}
+
+	/** Hand a message over and wait until it is stored. */
+	private void	write(String text) throws InterruptedException {
+		MessageBuffer message = new MessageBuffer(pool);
+		byte [] data = text.getBytes(StandardCharsets.ISO_8859_1);
+		message.append(ByteBuffer.wrap(data), 0, data.length);
+		message.frameCommit(true);
+		final CountDownLatch stored = new CountDownLatch(1);
+		assertTrue(stage.reserve(1000));
+		stage.write(message, directory, "msg_%05d.txt", counter, new WriteBehind.Stored() {
+			@Override
+			public void stored(Path location, long sequence) {
+				synchronized (locations) {
+					locations.add(location);
+					sequences.add(sequence);
+				}
+				stored.countDown();
+			}
+		});
+		assertTrue(stored.await(10, TimeUnit.SECONDS));
+	}
+
+	private static String	text(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+	}
+
+	private static List<Path>	files(Path dir) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path file : stream)
+				files.add(file);
+		}
+		return files;
+	}
+
+}